@@ -30,6 +30,8 @@
  */
 package org.apache.openaz.xacml.rest;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -41,8 +43,20 @@ import java.net.URLConnection;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
@@ -57,7 +71,8 @@ import org.apache.openaz.xacml.api.pip.PIPException;
 import org.apache.openaz.xacml.api.pip.PIPFinder;
 import org.apache.openaz.xacml.api.pip.PIPFinderFactory;
 import org.apache.openaz.xacml.pdp.policy.PolicyDef;
-import org.apache.openaz.xacml.pdp.policy.dom.DOMPolicyDef;
+import org.apache.openaz.xacml.pdp.policy.binary.BinaryPolicyDef;
+import org.apache.openaz.xacml.pdp.std.StdPolicyFinder;
 import org.apache.openaz.xacml.pdp.std.StdPolicyFinderFactory;
 import org.apache.openaz.xacml.std.pap.StdPDPPIPConfig;
 import org.apache.openaz.xacml.std.pap.StdPDPPolicy;
@@ -157,10 +172,14 @@ public class XACMLPdpLoader {
         //
         XACMLRest.loadXacmlProperties(policyProperties, pipProperties);
         //
-        // Dump ALL our properties that we are trying to load
+        // Take a private copy of ALL our properties that we are trying to load. The
+        // engine is built entirely from this copy, so that a later reload of the
+        // XACMLProperties does not change it underneath requests still using it.
         //
+        Properties engineProperties = new Properties();
         try {
-            logger.info(XACMLProperties.getProperties().toString());
+            engineProperties.putAll(XACMLProperties.getProperties());
+            logger.info(engineProperties.toString());
         } catch (IOException e) {
             logger.error("Failed to get XACML Properties", e);
         }
@@ -170,8 +189,8 @@ public class XACMLPdpLoader {
         PDPEngineFactory factory = null;
         PDPEngine engine = null;
         try {
-            factory = PDPEngineFactory.newInstance();
-            engine = factory.newEngine();
+            factory = PDPEngineFactory.newInstance(engineProperties);
+            engine = factory.newEngine(engineProperties);
             logger.info("Loaded new PDP engine.");
             status.setStatus(Status.UP_TO_DATE);
         } catch (FactoryException e) {
@@ -182,19 +201,166 @@ public class XACMLPdpLoader {
         return engine;
     }
 
+    /**
+     * Closes an engine that is no longer published, if it owns resources that need closing. Requests that are
+     * still using the engine can finish; its resources are released when they are done.
+     *
+     * @param engine the <code>PDPEngine</code> that was replaced, may be null
+     */
+    public static void closeEngine(PDPEngine engine) {
+        if (engine instanceof Closeable) {
+            try {
+                ((Closeable)engine).close();
+            } catch (IOException e) {
+                logger.error("Failed to close PDP engine", e);
+            }
+        }
+    }
+
+    /*
+     * A policy being loaded on a loader thread. The outcome is recorded in the status afterwards, on the
+     * thread doing the load, in the order the policies are configured. Loader threads must not call the
+     * synchronized methods of this class, the thread waiting for them holds the lock.
+     */
+    private static class PolicyLoad {
+        private final String id;
+        private String location;
+        private URI locationURI;
+        private boolean isFile;
+        private boolean isDownloaded;
+        private File file;
+        private File fileBinary;
+        private byte[] bytes;
+        private byte[] digest;
+        private PolicyDef policyDef;
+        private Exception exception;
+
+        PolicyLoad(String idIn) {
+            this.id = idIn;
+        }
+    }
+
+    /**
+     * Creates the <code>ExecutorService</code> used to download and parse policies concurrently. Its size is
+     * the "xacml.rest.pdp.load.threads" property, by default the number of available processors.
+     *
+     * @return a new <code>ExecutorService</code>
+     */
+    private static ExecutorService newExecutorService() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String value = XACMLProperties.getProperty(XACMLRestProperties.PROP_PDP_LOAD_THREADS);
+        if (value != null && value.trim().length() > 0) {
+            try {
+                threads = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value for " + XACMLRestProperties.PROP_PDP_LOAD_THREADS + ": \"" + value
+                            + "\"");
+            }
+        }
+        return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "pdp-loader-" + this.count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /*
+     * Runs the tasks on the ExecutorService and waits for all of them to finish
+     */
+    private static <T> List<T> invokeAll(ExecutorService executorService, List<Callable<T>> tasks)
+        throws PAPException {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            for (Future<T> future : executorService.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PAPException("Interrupted while loading policies");
+        } catch (ExecutionException e) {
+            throw new PAPException(e.getCause());
+        }
+        return results;
+    }
+
     public static synchronized void validatePolicies(Properties properties, StdPDPStatus status)
         throws PAPException {
+        final Properties policyProperties = properties;
         Set<String> rootPolicies = XACMLProperties.getRootPolicyIDs(properties);
         Set<String> refPolicies = XACMLProperties.getReferencedPolicyIDs(properties);
+        List<PolicyDef> rootPolicyDefs = new ArrayList<PolicyDef>();
+        List<PolicyDef> refPolicyDefs = new ArrayList<PolicyDef>();
 
-        for (String id : rootPolicies) {
-            loadPolicy(properties, status, id, true);
+        List<String> ids = new ArrayList<String>(rootPolicies);
+        ids.addAll(refPolicies);
+        final Path config = findPDPConfig();
+        List<PolicyLoad> policyLoads;
+        ExecutorService executorService = newExecutorService();
+        try {
+            //
+            // Read every policy file first, so the cache knows which policies changed
+            // before any of them is parsed
+            //
+            List<Callable<PolicyLoad>> readTasks = new ArrayList<Callable<PolicyLoad>>(ids.size());
+            for (final String id : ids) {
+                readTasks.add(new Callable<PolicyLoad>() {
+                    @Override
+                    public PolicyLoad call() {
+                        return readPolicy(policyProperties, id, config);
+                    }
+                });
+            }
+            policyLoads = invokeAll(executorService, readTasks);
+            Map<String, byte[]> mapDigests = new HashMap<String, byte[]>();
+            for (PolicyLoad policyLoad : policyLoads) {
+                mapDigests.put(policyLoad.id, policyLoad.digest);
+            }
+            XACMLPdpPolicyCache.prepareReload(mapDigests);
+            //
+            // Now parse the ones that changed
+            //
+            List<Callable<PolicyLoad>> parseTasks = new ArrayList<Callable<PolicyLoad>>(ids.size());
+            for (final PolicyLoad policyLoad : policyLoads) {
+                parseTasks.add(new Callable<PolicyLoad>() {
+                    @Override
+                    public PolicyLoad call() {
+                        return parsePolicy(policyLoad);
+                    }
+                });
+            }
+            invokeAll(executorService, parseTasks);
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        for (PolicyLoad policyLoad : policyLoads.subList(0, rootPolicies.size())) {
+            PolicyDef policyDef = recordPolicy(properties, status, policyLoad, true);
+            if (policyDef != null) {
+                rootPolicyDefs.add(policyDef);
+            }
         }
         // remember which policies were root policies
         status.addAllLoadedRootPolicies(status.getLoadedPolicies());
 
-        for (String id : refPolicies) {
-            loadPolicy(properties, status, id, false);
+        for (PolicyLoad policyLoad : policyLoads.subList(rootPolicies.size(), policyLoads.size())) {
+            PolicyDef policyDef = recordPolicy(properties, status, policyLoad, false);
+            if (policyDef != null) {
+                refPolicyDefs.add(policyDef);
+            }
+        }
+        //
+        // Link the policies the same way the engine will, so that references that
+        // cannot be resolved are reported now rather than on the first request
+        //
+        StdPolicyFinder policyFinder = new StdPolicyFinder(rootPolicyDefs, refPolicyDefs);
+        for (String linkError : policyFinder.getLinkErrors()) {
+            logger.warn(linkError);
+            status.addLoadWarning(linkError);
         }
 
         logger.info("Loaded " + status.getLoadedPolicies().size() + " policies, failed to load "
@@ -206,22 +372,27 @@ public class XACMLPdpLoader {
         }
     }
 
-    public static synchronized void loadPolicy(Properties properties, StdPDPStatus status, String id,
-                                               boolean isRoot) throws PAPException {
-        PolicyDef policy = null;
-        String location = null;
-        URI locationURI = null;
-        boolean isFile = false;
+    public static synchronized PolicyDef loadPolicy(Properties properties, StdPDPStatus status, String id,
+                                                    boolean isRoot) throws PAPException {
+        return recordPolicy(properties, status, parsePolicy(readPolicy(properties, id, findPDPConfig())),
+                            isRoot);
+    }
+
+    /*
+     * Finds the policy file, downloading it if there is only a URL, and reads it
+     */
+    private static PolicyLoad readPolicy(Properties properties, String id, Path config) {
+        PolicyLoad policyLoad = new PolicyLoad(id);
         try {
-            location = properties.getProperty(id + ".file");
-            if (location == null) {
-                location = properties.getProperty(id + ".url");
-                if (location != null) {
+            policyLoad.location = properties.getProperty(id + ".file");
+            if (policyLoad.location == null) {
+                policyLoad.location = properties.getProperty(id + ".url");
+                if (policyLoad.location != null) {
                     //
                     // Construct the URL
                     //
-                    locationURI = URI.create(location);
-                    URL url = locationURI.toURL();
+                    policyLoad.locationURI = URI.create(policyLoad.location);
+                    URL url = policyLoad.locationURI.toURL();
                     URLConnection urlConnection = url.openConnection();
                     urlConnection.setRequestProperty(XACMLRestProperties.PROP_PDP_HTTP_HEADER_ID,
                                                      XACMLProperties
@@ -229,34 +400,72 @@ public class XACMLPdpLoader {
                     //
                     // Now construct the output file name
                     //
-                    Path outFile = Paths.get(getPDPConfig().toAbsolutePath().toString(), id);
+                    if (config == null) {
+                        throw new PAPException("No PDP config directory to download policy " + id + " to");
+                    }
+                    Path outFile = Paths.get(config.toAbsolutePath().toString(), id);
                     //
                     // Copy it to disk
                     //
                     try (FileOutputStream fos = new FileOutputStream(outFile.toFile())) {
                         IOUtils.copy(urlConnection.getInputStream(), fos);
                     }
-                    //
-                    // Now try to load
-                    //
-                    isFile = true;
-                    try (InputStream fis = Files.newInputStream(outFile)) {
-                        policy = DOMPolicyDef.load(fis);
-                    }
-                    //
-                    // Save it
-                    //
-                    properties.setProperty(id + ".file", outFile.toAbsolutePath().toString());
+                    policyLoad.isFile = true;
+                    policyLoad.isDownloaded = true;
+                    policyLoad.file = outFile.toFile();
                 }
             } else {
-                isFile = true;
-                locationURI = Paths.get(location).toUri();
-                try (InputStream is = Files.newInputStream(Paths.get(location))) {
-                    policy = DOMPolicyDef.load(is);
-                }
+                policyLoad.isFile = true;
+                policyLoad.locationURI = Paths.get(policyLoad.location).toUri();
+                policyLoad.file = new File(policyLoad.location);
+            }
+            if (policyLoad.file != null) {
+                policyLoad.fileBinary = getBinaryPolicyFile(id, policyLoad.file, config);
+                policyLoad.bytes = Files.readAllBytes(policyLoad.file.toPath());
+                policyLoad.digest = BinaryPolicyDef.digest(policyLoad.bytes);
             }
+        } catch (Exception e) {
+            policyLoad.exception = e;
+        }
+        return policyLoad;
+    }
+
+    /*
+     * Gets the PolicyDef for a policy that was read, parsing it unless it is unchanged since the last load
+     */
+    private static PolicyLoad parsePolicy(PolicyLoad policyLoad) {
+        if (policyLoad.exception == null && policyLoad.bytes != null) {
+            try {
+                policyLoad.policyDef = XACMLPdpPolicyCache.load(policyLoad.id, policyLoad.fileBinary,
+                                                                policyLoad.bytes, policyLoad.digest);
+            } catch (Exception e) {
+                policyLoad.exception = e;
+            }
+            policyLoad.bytes = null;
+        }
+        return policyLoad;
+    }
+
+    /*
+     * Records the outcome of loading a policy in the status
+     */
+    private static PolicyDef recordPolicy(Properties properties, StdPDPStatus status, PolicyLoad policyLoad,
+                                          boolean isRoot) throws PAPException {
+        String id = policyLoad.id;
+        String location = policyLoad.location;
+        try {
+            if (policyLoad.exception != null) {
+                throw policyLoad.exception;
+            }
+            PolicyDef policy = policyLoad.policyDef;
             if (policy != null) {
-                status.addLoadedPolicy(new StdPDPPolicy(id, isRoot, locationURI, properties));
+                if (policyLoad.isDownloaded) {
+                    //
+                    // Save it
+                    //
+                    properties.setProperty(id + ".file", policyLoad.file.getAbsolutePath());
+                }
+                status.addLoadedPolicy(new StdPDPPolicy(id, isRoot, policyLoad.locationURI, properties));
                 logger.info("Loaded policy: " + policy.getIdentifier() + " version: "
                             + policy.getVersion().stringValue());
             } else {
@@ -266,6 +475,7 @@ public class XACMLPdpLoader {
                 status.addLoadError(error);
                 status.addFailedPolicy(new StdPDPPolicy(id, isRoot));
             }
+            return policy;
         } catch (Exception e) {
             logger.error("Failed to load policy '" + id + "' from location '" + location + "'", e);
             status.setStatus(PDPStatus.Status.LOAD_ERRORS);
@@ -273,7 +483,7 @@ public class XACMLPdpLoader {
             //
             // Is it a file?
             //
-            if (isFile) {
+            if (policyLoad.isFile) {
                 //
                 // Let's remove it
                 //
@@ -326,7 +536,8 @@ public class XACMLPdpLoader {
      * entry and that file exists in the local directory - if not, see if the file exists in the local
      * directory; if so create a ".file" property for it. - if not, get the "&lt;PolicyID&gt;.url" property
      * and try to GET the policy from that location (and set the ".file" property) If the ".file" property is
-     * created, then true is returned to tell the caller that the props object changed.
+     * created, then true is returned to tell the caller that the props object changed. Policies that have to
+     * be downloaded are downloaded concurrently.
      *
      * @param props
      * @return true/false if anything was changed in the props object
@@ -334,6 +545,8 @@ public class XACMLPdpLoader {
      */
     public static synchronized boolean cachePolicies(Properties props) throws PAPException {
         boolean changed = false;
+        Map<String, String> mapDownloads = new LinkedHashMap<String, String>();
+        Map<String, Path> mapDownloadFiles = new HashMap<String, Path>();
         String[] lists = new String[2];
         lists[0] = props.getProperty(XACMLProperties.PROP_ROOTPOLICIES);
         lists[1] = props.getProperty(XACMLProperties.PROP_REFERENCEDPOLICIES);
@@ -395,50 +608,10 @@ public class XACMLPdpLoader {
                         propLocation = props.getProperty(policy + StdPolicyFinderFactory.PROP_URL);
                         if (propLocation != null) {
                             //
-                            // Get it
+                            // Get it, along with any others that are missing
                             //
-                            URL url = null;
-                            try {
-                                //
-                                // Create the URL
-                                //
-                                url = new URL(propLocation);
-                                logger.info("Pulling " + url.toString());
-                                //
-                                // Open the connection
-                                //
-                                URLConnection urlConnection = url.openConnection();
-                                urlConnection
-                                    .setRequestProperty(XACMLRestProperties.PROP_PDP_HTTP_HEADER_ID,
-                                                        XACMLProperties
-                                                            .getProperty(XACMLRestProperties.PROP_PDP_ID));
-                                //
-                                // Copy it to disk
-                                //
-                                try (InputStream is = urlConnection.getInputStream();
-                                    OutputStream os = new FileOutputStream(outFile.toFile())) {
-                                    IOUtils.copy(is, os);
-                                }
-                                //
-                                // Now save it in the properties as a .file
-                                //
-                                logger.info("Pulled policy: " + outFile.toAbsolutePath().toString());
-                                props.setProperty(policy + StdPolicyFinderFactory.PROP_FILE, outFile
-                                    .toAbsolutePath().toString());
-                                //
-                                // Indicate that there were changes made to the properties
-                                //
-                                changed = true;
-                            } catch (Exception e) {
-                                if (e instanceof MalformedURLException) {
-                                    logger.error("Policy '" + policy
-                                                 + "' had bad URL in new configuration, URL='" + propLocation
-                                                 + "'");
-                                } else {
-                                    logger.error("Error while retrieving policy " + policy + " from URL "
-                                                 + url.toString() + ", e=" + e);
-                                }
-                            }
+                            mapDownloads.put(policy, propLocation);
+                            mapDownloadFiles.put(policy, outFile);
                         } else {
                             logger.error("Policy " + policy + " does NOT exist and does NOT have a URL");
                         }
@@ -446,9 +619,84 @@ public class XACMLPdpLoader {
                 }
             }
         }
+        if (mapDownloads.isEmpty()) {
+            return changed;
+        }
+        //
+        // Download the missing policies concurrently
+        //
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(mapDownloads.size());
+        for (final Map.Entry<String, String> entry : mapDownloads.entrySet()) {
+            final Path outFile = mapDownloadFiles.get(entry.getKey());
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return downloadPolicy(entry.getKey(), entry.getValue(), outFile);
+                }
+            });
+        }
+        List<Boolean> results;
+        ExecutorService executorService = newExecutorService();
+        try {
+            results = invokeAll(executorService, tasks);
+        } finally {
+            executorService.shutdownNow();
+        }
+        int index = 0;
+        for (String policy : mapDownloads.keySet()) {
+            if (results.get(index++)) {
+                //
+                // Now save it in the properties as a .file
+                //
+                props.setProperty(policy + StdPolicyFinderFactory.PROP_FILE, mapDownloadFiles.get(policy)
+                    .toAbsolutePath().toString());
+                //
+                // Indicate that there were changes made to the properties
+                //
+                changed = true;
+            }
+        }
         return changed;
     }
 
+    /*
+     * Downloads a policy from its URL to the given file, returning whether it succeeded
+     */
+    private static boolean downloadPolicy(String policy, String propLocation, Path outFile) {
+        URL url = null;
+        try {
+            //
+            // Create the URL
+            //
+            url = new URL(propLocation);
+            logger.info("Pulling " + url.toString());
+            //
+            // Open the connection
+            //
+            URLConnection urlConnection = url.openConnection();
+            urlConnection.setRequestProperty(XACMLRestProperties.PROP_PDP_HTTP_HEADER_ID,
+                                             XACMLProperties.getProperty(XACMLRestProperties.PROP_PDP_ID));
+            //
+            // Copy it to disk
+            //
+            try (InputStream is = urlConnection.getInputStream();
+                OutputStream os = new FileOutputStream(outFile.toFile())) {
+                IOUtils.copy(is, os);
+            }
+            logger.info("Pulled policy: " + outFile.toAbsolutePath().toString());
+            return true;
+        } catch (Exception e) {
+            if (e instanceof MalformedURLException) {
+                logger.error("Policy '" + policy + "' had bad URL in new configuration, URL='" + propLocation
+                             + "'");
+            } else {
+                logger.error("Error while retrieving policy " + policy + " from URL " + url.toString()
+                             + ", e=" + e);
+            }
+            return false;
+        }
+    }
+
     public static synchronized Path getPDPPolicyCache() throws PAPException {
         Path config = getPDPConfig();
         Path policyProperties = Paths.get(config.toAbsolutePath().toString(), "xacml.policy.properties");
@@ -489,6 +737,39 @@ public class XACMLPdpLoader {
         return pipConfigProperties;
     }
 
+    /**
+     * Gets the <code>File</code> the binary form of the given policy is cached in. This is in the
+     * <code>getPDPConfig</code> directory when one is configured, otherwise next to the policy file.
+     *
+     * @param id the policy id
+     * @param filePolicy the <code>File</code> containing the policy XML
+     * @return the <code>File</code> for the binary form of the policy
+     */
+    public static File getBinaryPolicyFile(String id, File filePolicy) {
+        return getBinaryPolicyFile(id, filePolicy, findPDPConfig());
+    }
+
+    private static File getBinaryPolicyFile(String id, File filePolicy, Path config) {
+        if (config == null) {
+            return BinaryPolicyDef.getBinaryFile(filePolicy);
+        }
+        return config.resolve(id + BinaryPolicyDef.SUFFIX).toFile();
+    }
+
+    /*
+     * Gets the PDP config directory, or null if none is configured or it cannot be created
+     */
+    private static Path findPDPConfig() {
+        if (XACMLProperties.getProperty(XACMLRestProperties.PROP_PDP_CONFIG) == null) {
+            return null;
+        }
+        try {
+            return getPDPConfig();
+        } catch (PAPException e) {
+            return null;
+        }
+    }
+
     public static synchronized Path getPDPConfig() throws PAPException {
         Path config = Paths.get(XACMLProperties.getProperty(XACMLRestProperties.PROP_PDP_CONFIG));
         if (Files.notExists(config)) {
@@ -0,0 +1,179 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.openaz.xacml.pdp.policy.PolicyDef;
+import org.apache.openaz.xacml.pdp.policy.PolicyIdReferenceBase;
+import org.apache.openaz.xacml.pdp.policy.PolicySet;
+import org.apache.openaz.xacml.pdp.policy.PolicySetChild;
+import org.apache.openaz.xacml.pdp.policy.binary.BinaryPolicyDef;
+import org.apache.openaz.xacml.std.dom.DOMStructureException;
+
+/**
+ * Keeps the <code>PolicyDef</code>s the PDP has loaded, keyed by policy id and the digest of the policy file,
+ * so that a reload only parses the policies whose content changed.
+ * <p>
+ * A <code>PolicyDef</code> that contains policy references is linked to the policies it references whenever
+ * an engine is built. It is only reused while every configured policy is unchanged, in which case linking it
+ * again resolves each reference to the same <code>PolicyDef</code> and leaves it untouched; otherwise it is
+ * parsed again, so an engine that is still serving requests keeps the references it was linked with.
+ */
+public class XACMLPdpPolicyCache {
+    private static final Log logger = LogFactory.getLog(XACMLPdpPolicyCache.class);
+
+    private static final Map<String, CachedPolicyDef> mapPolicyDefs = new ConcurrentHashMap<String, CachedPolicyDef>();
+    private static Map<String, byte[]> mapDigests = Collections.emptyMap();
+
+    /*
+     * A loaded PolicyDef and the digest of the file it was loaded from
+     */
+    private static class CachedPolicyDef {
+        private final byte[] digest;
+        private final PolicyDef policyDef;
+        private final boolean hasReferences;
+
+        CachedPolicyDef(byte[] digestIn, PolicyDef policyDefIn) {
+            this.digest = digestIn;
+            this.policyDef = policyDefIn;
+            this.hasReferences = hasReferences(policyDefIn);
+        }
+    }
+
+    protected XACMLPdpPolicyCache() {
+    }
+
+    private static boolean hasReferences(PolicySetChild policySetChild) {
+        if (policySetChild instanceof PolicyIdReferenceBase) {
+            return true;
+        } else if (policySetChild instanceof PolicySet) {
+            Iterator<PolicySetChild> iterChildren = ((PolicySet)policySetChild).getChildren();
+            while (iterChildren != null && iterChildren.hasNext()) {
+                if (hasReferences(iterChildren.next())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean sameDigests(Map<String, byte[]> mapDigests1, Map<String, byte[]> mapDigests2) {
+        if (!mapDigests1.keySet().equals(mapDigests2.keySet())) {
+            return false;
+        }
+        for (Map.Entry<String, byte[]> entry : mapDigests1.entrySet()) {
+            if (entry.getValue() == null || !Arrays.equals(entry.getValue(), mapDigests2.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Prepares the cache for loading the given set of policies. Policies that are no longer configured are
+     * dropped. If any policy was added, removed or changed since the last reload, every cached
+     * <code>PolicyDef</code> that contains policy references is dropped so that it is parsed and linked again.
+     *
+     * @param mapPolicyDigests the digest of each configured policy file by policy id, null if it could not be
+     *            read
+     */
+    public static synchronized void prepareReload(Map<String, byte[]> mapPolicyDigests) {
+        mapPolicyDefs.keySet().retainAll(mapPolicyDigests.keySet());
+        if (!sameDigests(mapPolicyDigests, mapDigests)) {
+            int dropped = 0;
+            for (Iterator<CachedPolicyDef> iterCached = mapPolicyDefs.values().iterator(); iterCached.hasNext();) {
+                if (iterCached.next().hasReferences) {
+                    iterCached.remove();
+                    dropped++;
+                }
+            }
+            if (dropped > 0) {
+                logger.info("Policies changed, reloading " + dropped + " policies that contain references");
+            }
+        }
+        mapDigests = new HashMap<String, byte[]>(mapPolicyDigests);
+    }
+
+    /**
+     * Gets the <code>PolicyDef</code> for the given policy id from the given policy file, reusing the one
+     * loaded last time if the file has not changed.
+     *
+     * @param id the policy id
+     * @param filePolicy the <code>File</code> containing the policy XML
+     * @return the <code>PolicyDef</code>
+     * @throws DOMStructureException if the policy has to be parsed and there is an error loading it
+     */
+    public static PolicyDef load(String id, File filePolicy) throws DOMStructureException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(filePolicy.toPath());
+        } catch (IOException ex) {
+            throw new DOMStructureException("Exception loading Policy file \"" + filePolicy.getAbsolutePath()
+                                            + "\": " + ex.getMessage(), ex);
+        }
+        return load(id, XACMLPdpLoader.getBinaryPolicyFile(id, filePolicy), bytes,
+                    BinaryPolicyDef.digest(bytes));
+    }
+
+    /**
+     * Gets the <code>PolicyDef</code> for the given policy id from policy XML that has already been read,
+     * reusing the one loaded last time if the digest has not changed.
+     *
+     * @param id the policy id
+     * @param fileBinary the <code>File</code> the binary form of the policy is cached in
+     * @param bytes the policy XML
+     * @param digest the <code>BinaryPolicyDef.digest</code> of the bytes
+     * @return the <code>PolicyDef</code>
+     * @throws DOMStructureException if the policy has to be parsed and there is an error loading it
+     */
+    public static PolicyDef load(String id, File fileBinary, byte[] bytes, byte[] digest)
+        throws DOMStructureException {
+        CachedPolicyDef cachedPolicyDef = mapPolicyDefs.get(id);
+        if (cachedPolicyDef != null && Arrays.equals(cachedPolicyDef.digest, digest)) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Reusing unchanged policy " + id);
+            }
+            return cachedPolicyDef.policyDef;
+        }
+        PolicyDef policyDef = BinaryPolicyDef.load(bytes, digest, fileBinary);
+        mapPolicyDefs.put(id, new CachedPolicyDef(digest, policyDef));
+        return policyDef;
+    }
+
+    /**
+     * Drops every cached <code>PolicyDef</code>.
+     */
+    public static synchronized void clear() {
+        mapPolicyDefs.clear();
+        mapDigests = Collections.emptyMap();
+    }
+}
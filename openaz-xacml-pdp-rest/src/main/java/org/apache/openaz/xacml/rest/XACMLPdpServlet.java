@@ -40,6 +40,7 @@ import java.nio.file.Files;
 import java.util.Properties;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletConfig;
@@ -59,11 +60,13 @@ import org.apache.openaz.xacml.api.Response;
 import org.apache.openaz.xacml.api.pap.PDPStatus.Status;
 import org.apache.openaz.xacml.api.pdp.PDPEngine;
 import org.apache.openaz.xacml.api.pdp.PDPException;
-import org.apache.openaz.xacml.std.dom.DOMRequest;
 import org.apache.openaz.xacml.std.dom.DOMResponse;
 import org.apache.openaz.xacml.std.json.JSONRequest;
 import org.apache.openaz.xacml.std.json.JSONResponse;
+import org.apache.openaz.xacml.std.json.JSONResponseWriter;
 import org.apache.openaz.xacml.std.pap.StdPDPStatus;
+import org.apache.openaz.xacml.std.stax.StAXRequest;
+import org.apache.openaz.xacml.std.stax.StAXResponseWriter;
 import org.apache.openaz.xacml.util.XACMLProperties;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -104,12 +107,13 @@ public class XACMLPdpServlet extends HttpServlet implements Runnable {
     private Thread registerThread = null;
     private XACMLPdpRegisterThread registerRunnable = null;
     //
-    // This is our PDP engine pointer. There is a synchronized lock used
-    // for access to the pointer. In case we are servicing PEP requests while
-    // an update is occurring from the PAP.
+    // This is our PDP engine pointer. Each engine is fully built by the
+    // XACMLPdpLoader before it is published here, and is never modified
+    // afterwards. PEP requests read the pointer once and use that engine
+    // until they are done, so an update from the PAP simply swaps in the
+    // new engine without blocking or disturbing requests already in flight.
     //
-    private PDPEngine pdpEngine = null;
-    private static final Object pdpEngineLock = new Object();
+    private final AtomicReference<PDPEngine> pdpEngine = new AtomicReference<PDPEngine>();
     //
     // This is our PDP's status. What policies are loaded (or not) and
     // what PIP configurations are loaded (or not).
@@ -160,9 +164,7 @@ public class XACMLPdpServlet extends HttpServlet implements Runnable {
         //
         PDPEngine engine = XACMLPdpLoader.loadEngine(XACMLPdpServlet.status, null, null);
         if (engine != null) {
-            synchronized (pdpEngineLock) {
-                pdpEngine = engine;
-            }
+            this.pdpEngine.set(engine);
         }
         //
         // Kick off our thread to register with the PAP servlet.
@@ -211,6 +213,10 @@ public class XACMLPdpServlet extends HttpServlet implements Runnable {
         } catch (InterruptedException e) {
             logger.error(e);
         }
+        //
+        // Release the threads and connections of the engine
+        //
+        XACMLPdpLoader.closeEngine(this.pdpEngine.getAndSet(null));
         logger.info("Destroyed.");
     }
 
@@ -471,28 +477,35 @@ public class XACMLPdpServlet extends HttpServlet implements Runnable {
         if (contentType.getMimeType().equalsIgnoreCase(ContentType.APPLICATION_JSON.getMimeType())
             || contentType.getMimeType().equalsIgnoreCase(ContentType.APPLICATION_XML.getMimeType())
             || contentType.getMimeType().equalsIgnoreCase("application/xacml+xml")) {
+            boolean isJson = contentType.getMimeType()
+                .equalsIgnoreCase(ContentType.APPLICATION_JSON.getMimeType());
             //
-            // Read in the string
+            // Read in the string, unless nobody logs it. Then it is parsed straight from the body.
             //
-            StringBuilder buffer = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(request.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    buffer.append(line);
+            if (logger.isInfoEnabled() || requestLogger.isInfoEnabled()) {
+                StringBuilder buffer = new StringBuilder();
+                try (BufferedReader reader = new BufferedReader(
+                                                                new InputStreamReader(request.getInputStream()))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        buffer.append(line);
+                    }
+                    incomingRequestString = buffer.toString();
                 }
-                incomingRequestString = buffer.toString();
+                logger.info(incomingRequestString);
             }
-            logger.info(incomingRequestString);
             //
             // Parse into a request
             //
             try {
-                if (contentType.getMimeType().equalsIgnoreCase(ContentType.APPLICATION_JSON.getMimeType())) {
-                    pdpRequest = JSONRequest.load(incomingRequestString);
+                if (isJson) {
+                    pdpRequest = incomingRequestString == null ? JSONRequest.load(request.getInputStream())
+                        : JSONRequest.load(incomingRequestString);
                 } else if (contentType.getMimeType().equalsIgnoreCase(ContentType.APPLICATION_XML
                                                                           .getMimeType())
                            || contentType.getMimeType().equalsIgnoreCase("application/xacml+xml")) {
-                    pdpRequest = DOMRequest.load(incomingRequestString);
+                    pdpRequest = incomingRequestString == null ? StAXRequest.load(request.getInputStream())
+                        : StAXRequest.load(incomingRequestString);
                 }
             } catch (Exception e) {
                 logger.error("Could not parse request", e);
@@ -520,12 +533,10 @@ public class XACMLPdpServlet extends HttpServlet implements Runnable {
         //
         try {
             //
-            // Get the pointer to the PDP Engine
+            // Get the pointer to the PDP Engine. This request keeps using this
+            // engine even if a new configuration is published while it runs.
             //
-            PDPEngine myEngine = null;
-            synchronized (pdpEngineLock) {
-                myEngine = this.pdpEngine;
-            }
+            PDPEngine myEngine = this.pdpEngine.get();
             if (myEngine == null) {
                 String message = "No engine loaded.";
                 logger.error(message);
@@ -538,36 +549,15 @@ public class XACMLPdpServlet extends HttpServlet implements Runnable {
             long lTimeStart, lTimeEnd;
             Response pdpResponse = null;
 
-            // TODO - Make this unnecessary
-            // TODO It seems that the PDP Engine is not thread-safe, so when a configuration change occurs in
-            // the middle of processing
-            // TODO a PEP Request, that Request fails (it throws a NullPointerException in the decide()
-            // method).
-            // TODO Using synchronize will slow down processing of PEP requests, possibly by a significant
-            // amount.
-            // TODO Since configuration changes are rare, it would be A Very Good Thing if we could eliminate
-            // this sychronized block.
-            // TODO
-            // TODO This problem was found by starting one PDP then
-            // TODO RestLoadTest switching between 2 configurations, 1 second apart
-            // TODO both configurations contain the datarouter policy
-            // TODO both configurations already have all policies cached in the PDPs config directory
-            // TODO RestLoadTest started with the Datarouter test requests, 5 threads, no interval
-            // TODO With that configuration this code (without the synchronized) throws a NullPointerException
-            // TODO within a few seconds.
-            //
-            synchronized (pdpEngineLock) {
-                myEngine = this.pdpEngine;
-                try {
-                    lTimeStart = System.currentTimeMillis();
-                    pdpResponse = myEngine.decide(pdpRequest);
-                    lTimeEnd = System.currentTimeMillis();
-                } catch (PDPException e) {
-                    String message = "Exception during decide: " + e.getMessage();
-                    logger.error(message);
-                    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, message);
-                    return;
-                }
+            try {
+                lTimeStart = System.currentTimeMillis();
+                pdpResponse = myEngine.decide(pdpRequest);
+                lTimeEnd = System.currentTimeMillis();
+            } catch (PDPException e) {
+                String message = "Exception during decide: " + e.getMessage();
+                logger.error(message);
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, message);
+                return;
             }
             requestLogger.info(lTimeStart + "=" + incomingRequestString);
             if (logger.isDebugEnabled()) {
@@ -584,12 +574,32 @@ public class XACMLPdpServlet extends HttpServlet implements Runnable {
             // Set our content-type
             //
             response.setContentType(contentType.getMimeType());
+            String mimeType = contentType.getMimeType();
+            boolean isJsonResponse = mimeType.equalsIgnoreCase(ContentType.APPLICATION_JSON.getMimeType());
+            boolean isXmlResponse = mimeType.equalsIgnoreCase(ContentType.APPLICATION_XML.getMimeType())
+                                    || mimeType.equalsIgnoreCase("application/xacml+xml");
+            if ((isJsonResponse || isXmlResponse) && !requestLogger.isInfoEnabled()
+                && !logger.isDebugEnabled()) {
+                //
+                // Nobody is logging the response text, so write it straight
+                // to the caller without building it as a String first.
+                //
+                OutputStream outputStream = response.getOutputStream();
+                if (isJsonResponse) {
+                    JSONResponseWriter.write(pdpResponse, outputStream);
+                } else {
+                    StAXResponseWriter.write(pdpResponse, outputStream);
+                }
+                outputStream.flush();
+                response.setStatus(HttpServletResponse.SC_OK);
+                return;
+            }
             //
             // Convert the PDP response object to a String to
             // return to our caller as well as dump to our loggers.
             //
             String outgoingResponseString = "";
-            if (contentType.getMimeType().equalsIgnoreCase(ContentType.APPLICATION_JSON.getMimeType())) {
+            if (isJsonResponse) {
                 //
                 // Get it as a String. This is not very efficient but we need to log our
                 // results for auditing.
@@ -602,8 +612,7 @@ public class XACMLPdpServlet extends HttpServlet implements Runnable {
                     //
                     outgoingResponseString = JSONResponse.toString(pdpResponse, false);
                 }
-            } else if (contentType.getMimeType().equalsIgnoreCase(ContentType.APPLICATION_XML.getMimeType())
-                       || contentType.getMimeType().equalsIgnoreCase("application/xacml+xml")) {
+            } else if (isXmlResponse) {
                 //
                 // Get it as a String. This is not very efficient but we need to log our
                 // results for auditing.
@@ -626,7 +635,13 @@ public class XACMLPdpServlet extends HttpServlet implements Runnable {
         } catch (Exception e) {
             String message = "Exception executing request: " + e;
             logger.error(message, e);
-            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, message);
+            //
+            // A streamed response may already be partly sent, in which
+            // case it is too late to change the status.
+            //
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, message);
+            }
             return;
         }
         response.setStatus(HttpServletResponse.SC_OK);
@@ -642,44 +657,39 @@ public class XACMLPdpServlet extends HttpServlet implements Runnable {
                 PutRequest request = XACMLPdpServlet.queue.take();
                 StdPDPStatus newStatus = new StdPDPStatus();
 
-                // TODO - This is related to the problem discussed in the doPost() method about the PDPEngine
-                // not being thread-safe.
-                // TODO See that discussion, and when the PDPEngine is made thread-safe it should be ok to
-                // move the loadEngine out of
-                // TODO the synchronized block.
-                // TODO However, since configuration changes should be rare we may not care about changing
-                // this.
-                PDPEngine newEngine = null;
                 synchronized (pdpStatusLock) {
                     XACMLPdpServlet.status.setStatus(Status.UPDATING_CONFIGURATION);
-                    newEngine = XACMLPdpLoader.loadEngine(newStatus, request.policyProperties,
-                                                          request.pipConfigProperties);
                 }
-                // PDPEngine newEngine = XACMLPdpLoader.loadEngine(newStatus, request.policyProperties,
-                // request.pipConfigProperties);
+                //
+                // Requests keep being served by the current engine while the
+                // new one is loaded.
+                //
+                PDPEngine newEngine = XACMLPdpLoader.loadEngine(newStatus, request.policyProperties,
+                                                                request.pipConfigProperties);
                 if (newEngine != null) {
-                    synchronized (XACMLPdpServlet.pdpEngineLock) {
-                        this.pdpEngine = newEngine;
-                        try {
-                            logger.info("Saving configuration.");
-                            if (request.policyProperties != null) {
-                                try (OutputStream os = Files.newOutputStream(XACMLPdpLoader
-                                    .getPDPPolicyCache())) {
-                                    request.policyProperties.store(os, "");
-                                }
+                    //
+                    // The old engine is closed once the requests
+                    // still using it are done.
+                    //
+                    XACMLPdpLoader.closeEngine(this.pdpEngine.getAndSet(newEngine));
+                    try {
+                        logger.info("Saving configuration.");
+                        if (request.policyProperties != null) {
+                            try (OutputStream os = Files.newOutputStream(XACMLPdpLoader.getPDPPolicyCache())) {
+                                request.policyProperties.store(os, "");
                             }
-                            if (request.pipConfigProperties != null) {
-                                try (OutputStream os = Files.newOutputStream(XACMLPdpLoader.getPIPConfig())) {
-                                    request.pipConfigProperties.store(os, "");
-                                }
+                        }
+                        if (request.pipConfigProperties != null) {
+                            try (OutputStream os = Files.newOutputStream(XACMLPdpLoader.getPIPConfig())) {
+                                request.pipConfigProperties.store(os, "");
                             }
-                            newStatus.setStatus(Status.UP_TO_DATE);
-
-                        } catch (Exception e) {
-                            logger.error("Failed to store new properties.");
-                            newStatus.setStatus(Status.LOAD_ERRORS);
-                            newStatus.addLoadWarning("Unable to save configuration: " + e.getMessage());
                         }
+                        newStatus.setStatus(Status.UP_TO_DATE);
+
+                    } catch (Exception e) {
+                        logger.error("Failed to store new properties.");
+                        newStatus.setStatus(Status.LOAD_ERRORS);
+                        newStatus.addLoadWarning("Unable to save configuration: " + e.getMessage());
                     }
                 } else {
                     newStatus.setStatus(Status.LAST_UPDATE_FAILED);
@@ -46,8 +46,11 @@ import org.apache.openaz.xacml.pdp.policy.Policy;
 import org.apache.openaz.xacml.pdp.policy.PolicyDef;
 import org.apache.openaz.xacml.pdp.policy.PolicyFinder;
 import org.apache.openaz.xacml.pdp.policy.PolicyFinderFactory;
+import org.apache.openaz.xacml.pdp.policy.TargetIndex;
 import org.apache.openaz.xacml.pdp.policy.dom.DOMPolicyDef;
 import org.apache.openaz.xacml.pdp.std.StdPolicyFinder;
+import org.apache.openaz.xacml.pdp.util.OpenAZPDPProperties;
+import org.apache.openaz.xacml.rest.XACMLPdpPolicyCache;
 import org.apache.openaz.xacml.std.StdStatusCode;
 import org.apache.openaz.xacml.std.dom.DOMStructureException;
 import org.apache.openaz.xacml.util.FactoryException;
@@ -112,7 +115,7 @@ public class XACMLPdpPolicyFinderFactory extends PolicyFinderFactory {
             } else {
                 try {
                     XACMLPdpPolicyFinderFactory.logger.info("Loading policy file " + fileLocation);
-                    PolicyDef policyDef = DOMPolicyDef.load(fileLocation);
+                    PolicyDef policyDef = XACMLPdpPolicyCache.load(policyId, fileLocation);
                     if (policyDef != null) {
                         return policyDef;
                     }
@@ -176,7 +179,12 @@ public class XACMLPdpPolicyFinderFactory extends PolicyFinderFactory {
      * @return a <code>List</code> of <code>PolicyDef</code>s loaded from the given property name
      */
     protected List<PolicyDef> getPolicyDefs(String propertyName) {
-        String policyIds = XACMLProperties.getProperty(propertyName);
+        String policyIds = null;
+        if (this.properties == null) {
+            policyIds = XACMLProperties.getProperty(propertyName);
+        } else {
+            policyIds = this.properties.getProperty(propertyName);
+        }
         if (policyIds == null || policyIds.length() == 0) {
             return null;
         }
@@ -203,6 +211,19 @@ public class XACMLPdpPolicyFinderFactory extends PolicyFinderFactory {
             }
             this.rootPolicies = this.getPolicyDefs(XACMLProperties.PROP_ROOTPOLICIES);
             this.referencedPolicies = this.getPolicyDefs(XACMLProperties.PROP_REFERENCEDPOLICIES);
+            String compileTargets = null;
+            if (this.properties == null) {
+                compileTargets = XACMLProperties
+                    .getProperty(OpenAZPDPProperties.PROP_POLICYFINDERFACTORY_COMPILETARGETS);
+            } else {
+                compileTargets = this.properties
+                    .getProperty(OpenAZPDPProperties.PROP_POLICYFINDERFACTORY_COMPILETARGETS);
+            }
+            if (Boolean.parseBoolean(compileTargets)) {
+                XACMLPdpPolicyFinderFactory.logger.info("Compiling policy targets");
+                TargetIndex.compileTargets(this.rootPolicies);
+                TargetIndex.compileTargets(this.referencedPolicies);
+            }
             if (XACMLPdpPolicyFinderFactory.logger.isDebugEnabled()) {
                 XACMLPdpPolicyFinderFactory.logger.debug("Root Policies: " + this.rootPolicies);
                 XACMLPdpPolicyFinderFactory.logger.debug("Referenced Policies: " + this.referencedPolicies);
@@ -0,0 +1,138 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.openaz.xacml.api.Decision;
+import org.apache.openaz.xacml.api.Request;
+import org.apache.openaz.xacml.api.Response;
+import org.apache.openaz.xacml.api.Result;
+import org.apache.openaz.xacml.api.pdp.PDPEngine;
+import org.apache.openaz.xacml.std.json.JSONRequest;
+import org.apache.openaz.xacml.std.pap.StdPDPStatus;
+import org.apache.openaz.xacml.util.XACMLProperties;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs decisions on several threads against the currently published engine while another thread keeps
+ * loading new configurations and closing the engines it replaces, the same way the {@link XACMLPdpServlet}
+ * does on a PUT from the PAP.
+ */
+public class XACMLPdpEngineReloadTest {
+    private static final int REQUEST_THREADS = 8;
+    private static final int RELOADS = 20;
+
+    private static final String REQUEST = "{\"Request\":{"
+                                          + "\"AccessSubject\":{\"Attribute\":{\"AttributeId\":\"urn:oasis:names:tc:xacml:1.0:subject:subject-id\",\"Value\":\"John\"}},"
+                                          + "\"Resource\":{\"Attribute\":{\"AttributeId\":\"urn:oasis:names:tc:xacml:1.0:resource:resource-id\",\"Value\":\"www.mywebsite.com\"}},"
+                                          + "\"Action\":{\"Attribute\":{\"AttributeId\":\"urn:oasis:names:tc:xacml:1.0:action:action-id\",\"Value\":\"ACCESS\"}}"
+                                          + "}}";
+
+    @BeforeClass
+    public static void setUp() {
+        System.setProperty(XACMLProperties.XACML_PROPERTIES_NAME, "src/test/resources/xacml.pdp.test.properties");
+        XACMLProperties.reloadProperties();
+    }
+
+    private static Properties getPolicyProperties(String policy) {
+        Properties properties = new Properties();
+        properties.setProperty(XACMLProperties.PROP_ROOTPOLICIES, policy);
+        properties.setProperty(XACMLProperties.PROP_REFERENCEDPOLICIES, "");
+        properties.setProperty(policy + ".file", Paths.get("src/test/resources/policies", policy + ".xml")
+            .toAbsolutePath().toString());
+        return properties;
+    }
+
+    private static Properties getPipProperties() {
+        Properties properties = new Properties();
+        properties.setProperty(XACMLProperties.PROP_PIP_ENGINES, "");
+        return properties;
+    }
+
+    private static PDPEngine loadEngine(String policy) {
+        StdPDPStatus status = new StdPDPStatus();
+        PDPEngine engine = XACMLPdpLoader.loadEngine(status, getPolicyProperties(policy), getPipProperties());
+        assertNotNull("Failed to load " + policy + ": " + status, engine);
+        return engine;
+    }
+
+    @Test
+    public void testDecideWhileReloading() throws Exception {
+        final AtomicReference<PDPEngine> pdpEngine = new AtomicReference<PDPEngine>(loadEngine("PolicyA"));
+        final Request request = JSONRequest.load(REQUEST);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicLong decisions = new AtomicLong();
+        final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<String>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < REQUEST_THREADS; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!done.get()) {
+                        try {
+                            Response response = pdpEngine.get().decide(request);
+                            for (Result result : response.getResults()) {
+                                if (result.getDecision() != Decision.PERMIT) {
+                                    failures.add("Unexpected result: " + result);
+                                }
+                            }
+                            decisions.incrementAndGet();
+                        } catch (Throwable t) {
+                            failures.add("Exception during decide: " + t);
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        try {
+            for (int i = 0; i < RELOADS; i++) {
+                PDPEngine engine = loadEngine(i % 2 == 0 ? "PolicyB" : "PolicyA");
+                XACMLPdpLoader.closeEngine(pdpEngine.getAndSet(engine));
+            }
+        } finally {
+            done.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            XACMLPdpLoader.closeEngine(pdpEngine.get());
+        }
+
+        assertEquals(failures.toString(), 0, failures.size());
+        assertTrue(decisions.get() > 0);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import org.apache.openaz.xacml.pdp.policy.PolicyDef;
+import org.apache.openaz.xacml.std.pap.StdPDPStatus;
+import org.apache.openaz.xacml.util.XACMLProperties;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that reloading a configuration through {@link XACMLPdpLoader} only parses the policies that changed,
+ * and the policies whose references may now resolve differently.
+ */
+public class XACMLPdpPolicyCacheTest {
+    private static final String NAMESPACE = "xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\"";
+    private static final String[] IDS = {
+        "set", "plain", "referenced"
+    };
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Properties properties;
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.setProperty(XACMLProperties.XACML_PROPERTIES_NAME, "src/test/resources/xacml.pdp.test.properties");
+        XACMLProperties.reloadProperties();
+    }
+
+    private static String policy(String id, String version) {
+        return "<Policy " + NAMESPACE + " PolicyId=\"" + id + "\" Version=\"" + version
+               + "\" RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">"
+               + "<Target/><Rule RuleId=\"urn:test:rule\" Effect=\"Permit\"><Target/></Rule></Policy>";
+    }
+
+    private void write(String id, String xml) throws Exception {
+        Files.write(new File(this.properties.getProperty(id + ".file")).toPath(),
+                    xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        XACMLPdpPolicyCache.clear();
+        this.properties = new Properties();
+        this.properties.setProperty(XACMLProperties.PROP_ROOTPOLICIES, "set,plain");
+        this.properties.setProperty(XACMLProperties.PROP_REFERENCEDPOLICIES, "referenced");
+        for (String id : IDS) {
+            this.properties.setProperty(id + ".file", this.temporaryFolder.newFile(id + ".xml").getAbsolutePath());
+        }
+        this.write("set", "<PolicySet " + NAMESPACE + " PolicySetId=\"urn:test:set\" Version=\"1.0\""
+                          + " PolicyCombiningAlgId="
+                          + "\"urn:oasis:names:tc:xacml:3.0:policy-combining-algorithm:deny-overrides\">"
+                          + "<Target/><PolicyIdReference>urn:test:referenced</PolicyIdReference></PolicySet>");
+        this.write("plain", policy("urn:test:plain", "1.0"));
+        this.write("referenced", policy("urn:test:referenced", "1.0"));
+    }
+
+    /*
+     * Loads the configuration and returns the PolicyDef for each id
+     */
+    private PolicyDef[] reload() throws Exception {
+        StdPDPStatus status = new StdPDPStatus();
+        XACMLPdpLoader.validatePolicies(this.properties, status);
+        assertEquals(3, status.getLoadedPolicies().size());
+        assertEquals(2, status.getLoadedRootPolicies().size());
+        assertTrue(status.getLoadWarnings().toString(), status.getLoadWarnings().isEmpty());
+        PolicyDef[] policyDefs = new PolicyDef[IDS.length];
+        for (int i = 0; i < IDS.length; i++) {
+            policyDefs[i] = XACMLPdpPolicyCache.load(IDS[i], new File(this.properties.getProperty(IDS[i]
+                                                                                                  + ".file")));
+        }
+        return policyDefs;
+    }
+
+    @Test
+    public void testUnchangedPoliciesAreReused() throws Exception {
+        PolicyDef[] first = this.reload();
+        PolicyDef[] second = this.reload();
+        for (int i = 0; i < IDS.length; i++) {
+            assertSame(IDS[i], first[i], second[i]);
+        }
+    }
+
+    @Test
+    public void testChangedReferencedPolicy() throws Exception {
+        PolicyDef[] first = this.reload();
+        this.write("referenced", policy("urn:test:referenced", "1.1"));
+        PolicyDef[] second = this.reload();
+        assertEquals("1.1", second[2].getVersion().stringValue());
+        assertNotSame(first[2], second[2]);
+        /*
+         * The PolicySet referencing it is parsed again, the unrelated Policy is not
+         */
+        assertNotSame(first[0], second[0]);
+        assertSame(first[1], second[1]);
+    }
+
+    @Test
+    public void testChangedRootPolicy() throws Exception {
+        PolicyDef[] first = this.reload();
+        this.write("plain", policy("urn:test:plain", "2.0"));
+        PolicyDef[] second = this.reload();
+        assertEquals("2.0", second[1].getVersion().stringValue());
+        assertNotSame(first[1], second[1]);
+        assertSame(first[2], second[2]);
+    }
+}
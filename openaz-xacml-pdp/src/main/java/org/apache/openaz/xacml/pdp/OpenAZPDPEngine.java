@@ -30,18 +30,31 @@
  */
 package org.apache.openaz.xacml.pdp;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.openaz.xacml.api.AttributeCategory;
 import org.apache.openaz.xacml.api.Decision;
 import org.apache.openaz.xacml.api.PermissionsResponse;
+import org.apache.openaz.xacml.api.PermissionsResult;
 import org.apache.openaz.xacml.api.Request;
 import org.apache.openaz.xacml.api.Response;
 import org.apache.openaz.xacml.api.Result;
@@ -59,6 +72,7 @@ import org.apache.openaz.xacml.pdp.eval.EvaluationException;
 import org.apache.openaz.xacml.pdp.policy.PolicyDef;
 import org.apache.openaz.xacml.pdp.policy.PolicyFinderResult;
 import org.apache.openaz.xacml.std.StdIndividualDecisionRequestGenerator;
+import org.apache.openaz.xacml.std.StdMutablePermissionsResponse;
 import org.apache.openaz.xacml.std.StdMutableResponse;
 import org.apache.openaz.xacml.std.StdMutableResult;
 import org.apache.openaz.xacml.std.StdResult;
@@ -69,9 +83,10 @@ import org.apache.openaz.xacml.util.FactoryException;
 
 /**
  * ATTPDPEngine implements the {@link org.apache.openaz.xacml.api.pdp.PDPEngine} interface using the XACML 3.0
- * specification.
+ * specification. An engine that is replaced by a new one should be closed, so that the threads and
+ * connections it owns are released once the decisions it is still making are done.
  */
-public class OpenAZPDPEngine implements PDPEngine, Traceable {
+public class OpenAZPDPEngine implements PDPEngine, Traceable, Closeable {
     private static final Status STATUS_ADVICE_NA = new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR,
                                                                  "Advice not allowed in combined decision");
     private static final Status STATUS_OBLIGATIONS_NA = new StdStatus(
@@ -100,7 +115,14 @@ public class OpenAZPDPEngine implements PDPEngine, Traceable {
     private EvaluationContextFactory evaluationContextFactory;
     private Decision defaultDecision = Decision.INDETERMINATE;
     private ScopeResolver scopeResolver;
-    private TraceEngine traceEngine;
+    private volatile TraceEngine traceEngine;
+    private ExecutorService executorService;
+    private int parallelThreshold = Integer.MAX_VALUE;
+    private int maxIndividualDecisions = Integer.MAX_VALUE;
+    private final List<Closeable> listCloseables = new CopyOnWriteArrayList<Closeable>();
+    private final AtomicInteger activeDecisions = new AtomicInteger();
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile boolean closed;
     private Log logger = LogFactory.getLog(this.getClass());
 
     protected TraceEngine getTraceEngine() {
@@ -131,6 +153,47 @@ public class OpenAZPDPEngine implements PDPEngine, Traceable {
         this.defaultDecision = defaultDecisionIn;
     }
 
+    /**
+     * Creates a new <code>OpenAZPDPEngine</code> that evaluates the individual decision requests of a
+     * multiple decision request on the given <code>ExecutorService</code> once there are at least
+     * <code>parallelThresholdIn</code> of them. Results are still returned and combined in request order.
+     *
+     * @param evaluationContextFactoryIn the <code>EvaluationContextFactory</code>
+     * @param defaultDecisionIn the <code>Decision</code> when no root policy applies
+     * @param scopeResolverIn the <code>ScopeResolver</code>
+     * @param executorServiceIn the <code>ExecutorService</code> for individual decisions, or null to evaluate
+     *            them one at a time
+     * @param parallelThresholdIn the minimum number of individual decisions to evaluate in parallel
+     */
+    public OpenAZPDPEngine(EvaluationContextFactory evaluationContextFactoryIn, Decision defaultDecisionIn,
+                        ScopeResolver scopeResolverIn, ExecutorService executorServiceIn,
+                        int parallelThresholdIn) {
+        this(evaluationContextFactoryIn, defaultDecisionIn, scopeResolverIn);
+        this.executorService = executorServiceIn;
+        this.parallelThreshold = Math.max(parallelThresholdIn, 2);
+    }
+
+    /**
+     * Creates a new <code>OpenAZPDPEngine</code> as above that also refuses to split a multiple decision
+     * request into more than <code>maxIndividualDecisionsIn</code> individual decision requests. A request
+     * over the limit gets a response with a single result carrying a processing error status.
+     *
+     * @param evaluationContextFactoryIn the <code>EvaluationContextFactory</code>
+     * @param defaultDecisionIn the <code>Decision</code> when no root policy applies
+     * @param scopeResolverIn the <code>ScopeResolver</code>
+     * @param executorServiceIn the <code>ExecutorService</code> for individual decisions, or null to evaluate
+     *            them one at a time
+     * @param parallelThresholdIn the minimum number of individual decisions to evaluate in parallel
+     * @param maxIndividualDecisionsIn the maximum number of individual decisions per request
+     */
+    public OpenAZPDPEngine(EvaluationContextFactory evaluationContextFactoryIn, Decision defaultDecisionIn,
+                        ScopeResolver scopeResolverIn, ExecutorService executorServiceIn,
+                        int parallelThresholdIn, int maxIndividualDecisionsIn) {
+        this(evaluationContextFactoryIn, defaultDecisionIn, scopeResolverIn, executorServiceIn,
+             parallelThresholdIn);
+        this.maxIndividualDecisions = Math.max(maxIndividualDecisionsIn, 1);
+    }
+
     protected Result processRequest(EvaluationContext evaluationContext) {
         try {
             PolicyFinderResult<PolicyDef> policyFinderResult = evaluationContext.getRootPolicyDef();
@@ -173,8 +236,206 @@ public class OpenAZPDPEngine implements PDPEngine, Traceable {
         }
     }
 
+    /**
+     * Evaluates a single individual decision request.
+     *
+     * @param requestIndividualDecision the individual decision <code>Request</code>
+     * @return the <code>Result</code> of the evaluation
+     */
+    protected Result processIndividualRequest(Request requestIndividualDecision) {
+        if (requestIndividualDecision.getStatus() != null && !requestIndividualDecision.getStatus().isOk()) {
+            return new StdMutableResult(requestIndividualDecision.getStatus());
+        }
+        EvaluationContext evaluationContext = this.evaluationContextFactory
+            .getEvaluationContext(requestIndividualDecision);
+        if (evaluationContext == null) {
+            return RESULT_ECTX_NULL;
+        } else {
+            return this.processRequest(evaluationContext);
+        }
+    }
+
+    /**
+     * Evaluates all of the given individual decision requests on the <code>ExecutorService</code> and
+     * returns their <code>Result</code>s in the same order as the requests.
+     *
+     * @param listRequests the <code>List</code> of individual decision <code>Request</code>s
+     * @return the <code>List</code> of <code>Result</code>s
+     * @throws PDPException if the evaluation is interrupted or fails with a checked exception
+     */
+    protected List<Result> processIndividualRequestsParallel(List<Request> listRequests) throws PDPException {
+        List<Future<Result>> listFutures = new ArrayList<Future<Result>>(listRequests.size());
+        try {
+            for (final Request requestIndividualDecision : listRequests) {
+                listFutures.add(this.executorService.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return OpenAZPDPEngine.this.processIndividualRequest(requestIndividualDecision);
+                    }
+                }));
+            }
+            List<Result> listResults = new ArrayList<Result>(listFutures.size());
+            for (Future<Result> future : listFutures) {
+                listResults.add(future.get());
+            }
+            return listResults;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new PDPException("Interrupted evaluating individual decisions", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new PDPException("Exception evaluating individual decisions", cause);
+        } finally {
+            for (Future<Result> future : listFutures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /*
+     * Evaluates the individual decision requests in parallel, or one at a time if the executor will not take
+     * them
+     */
+    private List<Result> processIndividualRequests(List<Request> listRequests) throws PDPException {
+        try {
+            return this.processIndividualRequestsParallel(listRequests);
+        } catch (RejectedExecutionException ex) {
+            this.logger.warn("Executor rejected individual decisions, evaluating them sequentially");
+        }
+        List<Result> listResults = new ArrayList<Result>(listRequests.size());
+        for (Request requestIndividualDecision : listRequests) {
+            listResults.add(this.processIndividualRequest(requestIndividualDecision));
+        }
+        return listResults;
+    }
+
+    /*
+     * Reads up to max individual decision requests from the generator
+     */
+    private static List<Request> nextRequests(Iterator<Request> iterRequests, int max) {
+        List<Request> listRequests = new ArrayList<Request>();
+        while (listRequests.size() < max && iterRequests.hasNext()) {
+            listRequests.add(iterRequests.next());
+        }
+        return listRequests;
+    }
+
+    /*
+     * Adds the results of the individual decisions to the response in order, combining them into a single
+     * result if the request asks for a combined decision
+     */
+    private final class ResultCollector {
+        private final TraceEngine traceEngine;
+        private final boolean bCombineResults;
+        private final StdMutableResponse stdResponse = new StdMutableResponse();
+        private StdMutableResult stdResultCombined;
+
+        ResultCollector(TraceEngine traceEngineIn, boolean bCombineResultsIn) {
+            this.traceEngine = traceEngineIn;
+            this.bCombineResults = bCombineResultsIn;
+        }
+
+        void add(Result resultIndividualDecision) {
+            assert resultIndividualDecision != null;
+            if (this.traceEngine.isTracing()) {
+                this.traceEngine.trace(new StdTraceEvent<Result>("Individual Result", OpenAZPDPEngine.this,
+                                                                 resultIndividualDecision));
+            }
+            if (!this.bCombineResults) {
+                this.stdResponse.add(resultIndividualDecision);
+                return;
+            }
+            Decision decision = resultIndividualDecision.getDecision();
+            Status status = resultIndividualDecision.getStatus();
+            if (resultIndividualDecision.getAssociatedAdvice().size() > 0) {
+                decision = Decision.INDETERMINATE;
+                status = STATUS_ADVICE_NA;
+            } else if (resultIndividualDecision.getObligations().size() > 0) {
+                decision = Decision.INDETERMINATE;
+                status = STATUS_OBLIGATIONS_NA;
+            }
+
+            if (this.stdResultCombined == null) {
+                this.stdResultCombined = new StdMutableResult(decision, status);
+            } else {
+                if (this.stdResultCombined.getDecision() != resultIndividualDecision.getDecision()) {
+                    this.stdResultCombined.setDecision(Decision.INDETERMINATE);
+                    this.stdResultCombined.setStatus(STATUS_COMBINE_FAILED);
+                }
+            }
+            this.stdResultCombined.addPolicyIdentifiers(resultIndividualDecision.getPolicyIdentifiers());
+            this.stdResultCombined
+                .addPolicySetIdentifiers(resultIndividualDecision.getPolicySetIdentifiers());
+            this.stdResultCombined.addAttributeCategories(resultIndividualDecision.getAttributes());
+            if (this.traceEngine.isTracing()) {
+                this.traceEngine.trace(new StdTraceEvent<Result>("Combined result", OpenAZPDPEngine.this,
+                                                                 this.stdResultCombined));
+            }
+        }
+
+        Response getResponse() {
+            if (this.bCombineResults) {
+                this.stdResponse.add(this.stdResultCombined);
+            }
+            return this.stdResponse;
+        }
+    }
+
+    /**
+     * Adds a resource owned by this engine, to be closed when the engine is closed.
+     *
+     * @param closeable the <code>Closeable</code> resource
+     */
+    void addCloseable(Closeable closeable) {
+        this.listCloseables.add(closeable);
+    }
+
+    /**
+     * Closes this engine. The resources it owns are closed as soon as no call to <code>decide</code> or
+     * <code>decidePermissions</code> is in progress.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        if (this.activeDecisions.get() == 0) {
+            this.release();
+        }
+    }
+
+    private void release() {
+        if (this.released.compareAndSet(false, true)) {
+            for (Closeable closeable : this.listCloseables) {
+                try {
+                    closeable.close();
+                } catch (IOException | RuntimeException ex) {
+                    this.logger.warn("Exception closing " + closeable + ": " + ex.getMessage(), ex);
+                }
+            }
+        }
+    }
+
+    private void endDecision() {
+        if (this.activeDecisions.decrementAndGet() == 0 && this.closed) {
+            this.release();
+        }
+    }
+
     @Override
     public Response decide(Request pepRequest) throws PDPException {
+        this.activeDecisions.incrementAndGet();
+        try {
+            return this.decideRequest(pepRequest);
+        } finally {
+            this.endDecision();
+        }
+    }
+
+    private Response decideRequest(Request pepRequest) throws PDPException {
         /*
          * Validate the request
          */
@@ -192,24 +453,42 @@ public class OpenAZPDPEngine implements PDPEngine, Traceable {
          */
         StdIndividualDecisionRequestGenerator stdIndividualDecisionRequestGenerator = new StdIndividualDecisionRequestGenerator(
                                                                                                                                 this.scopeResolver,
-                                                                                                                                pepRequest);
-        /*
-         * Determine if we are combining multiple results into a single result
-         */
-        boolean bCombineResults = pepRequest.getCombinedDecision();
-        StdMutableResult stdResultCombined = null;
-
+                                                                                                                                pepRequest,
+                                                                                                                                this.maxIndividualDecisions);
         /*
          * Iterate over all of the individual decision requests and process them, combining them into the
          * final response
          */
-        StdMutableResponse stdResponse = new StdMutableResponse();
         Iterator<Request> iterRequestsIndividualDecision = stdIndividualDecisionRequestGenerator
             .getIndividualDecisionRequests();
         if (iterRequestsIndividualDecision == null || !iterRequestsIndividualDecision.hasNext()) {
             return new StdMutableResponse(new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR,
                                                         "No individual decision requests"));
         }
+        ResultCollector resultCollector = new ResultCollector(traceEngineThis,
+                                                              pepRequest.getCombinedDecision());
+
+        /*
+         * If there is an executor and enough individual decisions, evaluate them in parallel, reading at most
+         * parallelThreshold of them ahead from the generator. Tracing always evaluates them one at a time so
+         * the trace events stay in order.
+         */
+        if (this.executorService != null && !traceEngineThis.isTracing()) {
+            List<Request> listRequestsIndividualDecision = nextRequests(iterRequestsIndividualDecision,
+                                                                        this.parallelThreshold);
+            if (listRequestsIndividualDecision.size() >= this.parallelThreshold) {
+                do {
+                    for (Result resultIndividualDecision : this
+                        .processIndividualRequests(listRequestsIndividualDecision)) {
+                        resultCollector.add(resultIndividualDecision);
+                    }
+                    listRequestsIndividualDecision = nextRequests(iterRequestsIndividualDecision,
+                                                                  this.parallelThreshold);
+                } while (!listRequestsIndividualDecision.isEmpty());
+                return getResponse(stdIndividualDecisionRequestGenerator, resultCollector);
+            }
+            iterRequestsIndividualDecision = listRequestsIndividualDecision.iterator();
+        }
 
         while (iterRequestsIndividualDecision.hasNext()) {
             Request requestIndividualDecision = iterRequestsIndividualDecision.next();
@@ -217,67 +496,86 @@ public class OpenAZPDPEngine implements PDPEngine, Traceable {
                 traceEngineThis.trace(new StdTraceEvent<Request>("Individual Request", this,
                                                                  requestIndividualDecision));
             }
-            Result resultIndividualDecision = null;
-            if (requestIndividualDecision.getStatus() != null
-                && !requestIndividualDecision.getStatus().isOk()) {
-                resultIndividualDecision = new StdMutableResult(requestIndividualDecision.getStatus());
-            } else {
-                EvaluationContext evaluationContext = this.evaluationContextFactory
-                    .getEvaluationContext(requestIndividualDecision);
-                if (evaluationContext == null) {
-                    resultIndividualDecision = RESULT_ECTX_NULL;
-                } else {
-                    resultIndividualDecision = this.processRequest(evaluationContext);
-                }
-            }
-
-            assert resultIndividualDecision != null;
-            if (traceEngineThis.isTracing()) {
-                traceEngineThis.trace(new StdTraceEvent<Result>("Individual Result", this,
-                                                                resultIndividualDecision));
-            }
-            if (bCombineResults) {
-                Decision decision = resultIndividualDecision.getDecision();
-                Status status = resultIndividualDecision.getStatus();
-                if (resultIndividualDecision.getAssociatedAdvice().size() > 0) {
-                    decision = Decision.INDETERMINATE;
-                    status = STATUS_ADVICE_NA;
-                } else if (resultIndividualDecision.getObligations().size() > 0) {
-                    decision = Decision.INDETERMINATE;
-                    status = STATUS_OBLIGATIONS_NA;
-                }
-
-                if (stdResultCombined == null) {
-                    stdResultCombined = new StdMutableResult(decision, status);
-                } else {
-                    if (stdResultCombined.getDecision() != resultIndividualDecision.getDecision()) {
-                        stdResultCombined.setDecision(Decision.INDETERMINATE);
-                        stdResultCombined.setStatus(STATUS_COMBINE_FAILED);
-                    }
-                }
-                stdResultCombined.addPolicyIdentifiers(resultIndividualDecision.getPolicyIdentifiers());
-                stdResultCombined.addPolicySetIdentifiers(resultIndividualDecision.getPolicySetIdentifiers());
-                stdResultCombined.addAttributeCategories(resultIndividualDecision.getAttributes());
-                if (traceEngineThis.isTracing()) {
-                    traceEngineThis.trace(new StdTraceEvent<Result>("Combined result", this,
-                                                                    stdResultCombined));
-                }
-            } else {
-                stdResponse.add(resultIndividualDecision);
-            }
+            resultCollector.add(this.processIndividualRequest(requestIndividualDecision));
         }
+        return getResponse(stdIndividualDecisionRequestGenerator, resultCollector);
+    }
 
-        if (bCombineResults) {
-            stdResponse.add(stdResultCombined);
+    /*
+     * If the generator went over the limit part way through, the results already collected are dropped
+     */
+    private static Response getResponse(StdIndividualDecisionRequestGenerator requestGenerator,
+                                        ResultCollector resultCollector) {
+        Status statusLimitExceeded = requestGenerator.getLimitExceededStatus();
+        if (statusLimitExceeded != null) {
+            return new StdMutableResponse(new StdMutableResult(statusLimitExceeded));
         }
-        return stdResponse;
+        return resultCollector.getResponse();
     }
 
+    /**
+     * Decides which actions each individual decision request permits, denies or is not applicable to. The
+     * action category of the request is left unbound; the candidate actions are the action-ids matched in
+     * the policy targets, or the action-ids in the request if it names any. See
+     * <code>PermissionsEvaluator</code>.
+     */
     @Override
-    public PermissionsResponse decidePermissions(Request request) {
-        throw new UnsupportedOperationException("decidePermissions not supported in this release");
+    public PermissionsResponse decidePermissions(Request pepRequest) throws PDPException {
+        this.activeDecisions.incrementAndGet();
+        try {
+            return this.decideRequestPermissions(pepRequest);
+        } finally {
+            this.endDecision();
+        }
+    }
+
+    private PermissionsResponse decideRequestPermissions(Request pepRequest) throws PDPException {
+        TraceEngine traceEngineThis = this.getTraceEngine();
+        if (traceEngineThis.isTracing()) {
+            traceEngineThis.trace(new StdTraceEvent<Request>("Input Request", this, pepRequest));
+        }
+        Status statusRequest = pepRequest.getStatus();
+        if (statusRequest != null && !statusRequest.isOk()) {
+            return new StdMutablePermissionsResponse(statusRequest, (PermissionsResult)null);
+        }
+
+        StdIndividualDecisionRequestGenerator stdIndividualDecisionRequestGenerator = new StdIndividualDecisionRequestGenerator(
+                                                                                                                                this.scopeResolver,
+                                                                                                                                pepRequest,
+                                                                                                                                this.maxIndividualDecisions);
+        Iterator<Request> iterRequestsIndividualDecision = stdIndividualDecisionRequestGenerator
+            .getIndividualDecisionRequests();
+        if (iterRequestsIndividualDecision == null || !iterRequestsIndividualDecision.hasNext()) {
+            return new StdMutablePermissionsResponse(new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR,
+                                                                   "No individual decision requests"),
+                                                     (PermissionsResult)null);
+        }
+
+        StdMutablePermissionsResponse stdPermissionsResponse = new StdMutablePermissionsResponse();
+        stdPermissionsResponse.setStatus(StdStatus.STATUS_OK);
+        while (iterRequestsIndividualDecision.hasNext()) {
+            Request requestIndividualDecision = iterRequestsIndividualDecision.next();
+            if (requestIndividualDecision.getStatus() != null && !requestIndividualDecision.getStatus().isOk()) {
+                stdPermissionsResponse.setStatus(requestIndividualDecision.getStatus());
+                continue;
+            }
+            PermissionsResult permissionsResult = new PermissionsEvaluator(this,
+                                                                           this.evaluationContextFactory,
+                                                                           requestIndividualDecision)
+                .evaluate();
+            if (traceEngineThis.isTracing()) {
+                traceEngineThis.trace(new StdTraceEvent<PermissionsResult>("Permissions Result", this,
+                                                                           permissionsResult));
+            }
+            stdPermissionsResponse.add(permissionsResult);
+        }
+        Status statusLimitExceeded = stdIndividualDecisionRequestGenerator.getLimitExceededStatus();
+        if (statusLimitExceeded != null) {
+            return new StdMutablePermissionsResponse(statusLimitExceeded, (PermissionsResult)null);
+        }
+        return stdPermissionsResponse;
     }
-    
+
     @Override
     public Collection<URI> getProfiles() {
         return Collections.unmodifiableCollection(PROFILES);
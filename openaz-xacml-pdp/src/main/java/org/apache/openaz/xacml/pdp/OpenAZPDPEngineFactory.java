@@ -30,14 +30,24 @@
  */
 package org.apache.openaz.xacml.pdp;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.openaz.xacml.api.pdp.PDPEngine;
 import org.apache.openaz.xacml.api.pdp.PDPEngineFactory;
+import org.apache.openaz.xacml.api.pip.PIPException;
+import org.apache.openaz.xacml.api.pip.PIPFinder;
+import org.apache.openaz.xacml.api.pip.PIPFinderFactory;
 import org.apache.openaz.xacml.pdp.eval.EvaluationContextFactory;
+import org.apache.openaz.xacml.pdp.policy.PolicyFinder;
+import org.apache.openaz.xacml.pdp.policy.PolicyFinderFactory;
+import org.apache.openaz.xacml.pdp.util.OpenAZPDPProperties;
 import org.apache.openaz.xacml.util.FactoryException;
+import org.apache.openaz.xacml.util.XACMLProperties;
 
 /**
  * OpenAZPDPEngineFactory extends {@link org.apache.openaz.xacml.api.pdp.PDPEngineFactory} by implementing the
@@ -45,11 +55,98 @@ import org.apache.openaz.xacml.util.FactoryException;
  * policies and PIP instances based on configuration information provided to the factory.
  */
 public class OpenAZPDPEngineFactory extends PDPEngineFactory {
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 16;
+
     private Log logger = LogFactory.getLog(this.getClass());
 
     public OpenAZPDPEngineFactory() {
     }
 
+    /**
+     * Resolves the {@link org.apache.openaz.xacml.pdp.policy.PolicyFinder} and
+     * {@link org.apache.openaz.xacml.api.pip.PIPFinder} for the given
+     * <code>EvaluationContextFactory</code> from the given <code>Properties</code> up front, instead of
+     * leaving them to be created lazily on the first call to <code>decide</code>. An engine built this way
+     * does not consult the global <code>XACMLProperties</code> while it is serving requests, so it can be
+     * published to other threads and keep working while a new configuration is being loaded.
+     *
+     * @param evaluationContextFactory the <code>EvaluationContextFactory</code> to initialize
+     * @param properties the <code>Properties</code> to create the finders from
+     * @return the <code>PIPFinder</code> that was created, or null if there is none
+     */
+    protected PIPFinder initFinders(EvaluationContextFactory evaluationContextFactory, Properties properties) {
+        try {
+            PolicyFinder policyFinder = PolicyFinderFactory.newInstance(properties)
+                .getPolicyFinder(properties);
+            if (policyFinder != null) {
+                evaluationContextFactory.setPolicyFinder(policyFinder);
+            }
+        } catch (FactoryException ex) {
+            this.logger.error("Exception getting PolicyFinder: " + ex.getMessage(), ex);
+        }
+        try {
+            PIPFinder pipFinder = PIPFinderFactory.newInstance(properties).getFinder(properties);
+            if (pipFinder != null) {
+                evaluationContextFactory.setPIPFinder(pipFinder);
+            }
+            return pipFinder;
+        } catch (FactoryException | PIPException ex) {
+            this.logger.error("Exception getting PIPFinder: " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    private int getIntProperty(Properties properties, String propertyName, int defaultValue) {
+        String value = properties.getProperty(propertyName);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            this.logger.error("Invalid integer value for " + propertyName + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Creates the <code>OpenAZPDPEngine</code>, giving it a bounded <code>ForkJoinPool</code> for individual
+     * decisions if the <code>xacml.pdp.parallel.threads</code> property asks for more than one thread, and
+     * limiting the number of individual decisions per request to <code>xacml.pdp.maxIndividualDecisions</code>.
+     * The <code>ForkJoinPool</code> is shut down when the engine is closed.
+     *
+     * @param evaluationContextFactory the <code>EvaluationContextFactory</code> for the engine
+     * @param properties the <code>Properties</code> to configure the engine from
+     * @return a new <code>OpenAZPDPEngine</code>
+     */
+    protected OpenAZPDPEngine createEngine(EvaluationContextFactory evaluationContextFactory,
+                                           Properties properties) {
+        int maxIndividualDecisions = this.getIntProperty(properties,
+                                                         OpenAZPDPProperties.PROP_PDP_MAXINDIVIDUALDECISIONS,
+                                                         Integer.MAX_VALUE);
+        int parallelThreads = this.getIntProperty(properties, OpenAZPDPProperties.PROP_PDP_PARALLEL_THREADS, 0);
+        if (parallelThreads > 1) {
+            int parallelThreshold = this.getIntProperty(properties,
+                                                        OpenAZPDPProperties.PROP_PDP_PARALLEL_THRESHOLD,
+                                                        DEFAULT_PARALLEL_THRESHOLD);
+            this.logger.info("Evaluating individual decisions on " + parallelThreads
+                             + " threads when there are at least " + parallelThreshold);
+            final ForkJoinPool forkJoinPool = new ForkJoinPool(parallelThreads);
+            OpenAZPDPEngine engine = new OpenAZPDPEngine(evaluationContextFactory, this.getDefaultBehavior(),
+                                                         this.getScopeResolver(), forkJoinPool,
+                                                         parallelThreshold, maxIndividualDecisions);
+            engine.addCloseable(new Closeable() {
+                @Override
+                public void close() {
+                    forkJoinPool.shutdown();
+                }
+            });
+            return engine;
+        }
+        return new OpenAZPDPEngine(evaluationContextFactory, this.getDefaultBehavior(), this.getScopeResolver(),
+                                   null, Integer.MAX_VALUE, maxIndividualDecisions);
+    }
+
     @Override
     public PDPEngine newEngine() throws FactoryException {
         EvaluationContextFactory evaluationContextFactory = EvaluationContextFactory.newInstance();
@@ -57,7 +154,14 @@ public class OpenAZPDPEngineFactory extends PDPEngineFactory {
             this.logger.error("Null EvaluationContextFactory");
             throw new FactoryException("Null EvaluationContextFactory");
         }
-        return new OpenAZPDPEngine(evaluationContextFactory, this.getDefaultBehavior(), this.getScopeResolver());
+        Properties properties;
+        try {
+            properties = XACMLProperties.getProperties();
+        } catch (IOException ex) {
+            this.logger.error("Exception getting XACMLProperties: " + ex.getMessage(), ex);
+            properties = new Properties();
+        }
+        return this.createEngine(evaluationContextFactory, properties);
     }
 
     @Override
@@ -67,6 +171,14 @@ public class OpenAZPDPEngineFactory extends PDPEngineFactory {
             this.logger.error("Null EvaluationContextFactory");
             throw new FactoryException("Null EvaluationContextFactory");
         }
-        return new OpenAZPDPEngine(evaluationContextFactory, this.getDefaultBehavior(), this.getScopeResolver());
+        PIPFinder pipFinder = this.initFinders(evaluationContextFactory, properties);
+        OpenAZPDPEngine engine = this.createEngine(evaluationContextFactory, properties);
+        /*
+         * The PIPFinder was created for this engine alone, so it is closed with the engine
+         */
+        if (pipFinder instanceof Closeable) {
+            engine.addCloseable((Closeable)pipFinder);
+        }
+        return engine;
     }
 }
@@ -0,0 +1,613 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.openaz.xacml.api.Attribute;
+import org.apache.openaz.xacml.api.AttributeValue;
+import org.apache.openaz.xacml.api.Decision;
+import org.apache.openaz.xacml.api.IdReference;
+import org.apache.openaz.xacml.api.Identifier;
+import org.apache.openaz.xacml.api.IdReferenceMatch;
+import org.apache.openaz.xacml.api.Obligation;
+import org.apache.openaz.xacml.api.PermissionsResult;
+import org.apache.openaz.xacml.api.PoliciesAndObligations;
+import org.apache.openaz.xacml.api.Request;
+import org.apache.openaz.xacml.api.RequestAttributes;
+import org.apache.openaz.xacml.api.Result;
+import org.apache.openaz.xacml.api.Status;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.api.pip.PIPEngine;
+import org.apache.openaz.xacml.api.pip.PIPException;
+import org.apache.openaz.xacml.api.pip.PIPFinder;
+import org.apache.openaz.xacml.api.pip.PIPRequest;
+import org.apache.openaz.xacml.api.pip.PIPResponse;
+import org.apache.openaz.xacml.api.trace.TraceEvent;
+import org.apache.openaz.xacml.pdp.eval.ContentRootCache;
+import org.apache.openaz.xacml.pdp.eval.Evaluatable;
+import org.apache.openaz.xacml.pdp.eval.EvaluationContext;
+import org.apache.openaz.xacml.pdp.eval.EvaluationContextFactory;
+import org.apache.openaz.xacml.pdp.eval.EvaluationResult;
+import org.apache.openaz.xacml.pdp.eval.EvaluationResultCache;
+import org.apache.openaz.xacml.pdp.eval.VariableResultCache;
+import org.apache.openaz.xacml.pdp.policy.AdviceExpression;
+import org.apache.openaz.xacml.pdp.policy.AllOf;
+import org.apache.openaz.xacml.pdp.policy.AnyOf;
+import org.apache.openaz.xacml.pdp.policy.AttributeAssignmentExpression;
+import org.apache.openaz.xacml.pdp.policy.Expression;
+import org.apache.openaz.xacml.pdp.policy.ExpressionResult;
+import org.apache.openaz.xacml.pdp.policy.Match;
+import org.apache.openaz.xacml.pdp.policy.ObligationExpression;
+import org.apache.openaz.xacml.pdp.policy.Policy;
+import org.apache.openaz.xacml.pdp.policy.PolicyDef;
+import org.apache.openaz.xacml.pdp.policy.PolicyFinderResult;
+import org.apache.openaz.xacml.pdp.policy.PolicyIdReference;
+import org.apache.openaz.xacml.pdp.policy.PolicySet;
+import org.apache.openaz.xacml.pdp.policy.PolicySetChild;
+import org.apache.openaz.xacml.pdp.policy.PolicySetIdReference;
+import org.apache.openaz.xacml.pdp.policy.Rule;
+import org.apache.openaz.xacml.pdp.policy.Target;
+import org.apache.openaz.xacml.pdp.policy.VariableDefinition;
+import org.apache.openaz.xacml.pdp.policy.expressions.Apply;
+import org.apache.openaz.xacml.pdp.policy.expressions.AttributeDesignator;
+import org.apache.openaz.xacml.pdp.policy.expressions.AttributeRetrievalBase;
+import org.apache.openaz.xacml.pdp.policy.expressions.VariableReference;
+import org.apache.openaz.xacml.std.StdMutableAttribute;
+import org.apache.openaz.xacml.std.StdMutablePermissionsResult;
+import org.apache.openaz.xacml.std.StdMutableRequest;
+import org.apache.openaz.xacml.std.StdMutableRequestAttributes;
+import org.apache.openaz.xacml.std.StdMutableStatus;
+import org.apache.openaz.xacml.std.StdPermissions;
+import org.apache.openaz.xacml.std.StdPoliciesAndObligations;
+import org.apache.openaz.xacml.std.dom.DOMStructureException;
+import org.apache.openaz.xacml.std.dom.DOMUtil;
+import org.w3c.dom.Node;
+
+/**
+ * PermissionsEvaluator decides which actions an individual decision request permits by evaluating the policy
+ * tree with the action category left unbound.
+ * <p>
+ * One walk of the tree collects the candidate actions: the values of every equality <code>Match</code> on
+ * the action-id in a <code>Target</code>. If the request itself names action-ids, only those are decided.
+ * Each candidate is then bound as the action-id of an otherwise unchanged request and decided through the
+ * engine. All of the decisions share one attribute cache, so request and PIP attributes outside the action
+ * category are retrieved once, and they share the <code>EvaluationResult</code> of every rule, policy and
+ * policy set whose target, condition, obligations and advice never refer to the action category, so those
+ * parts of the tree are evaluated once however many actions there are.
+ * <p>
+ * If a PIP engine requires an attribute of the action category, or may require one because it does not
+ * say, its results may differ per action and nothing is shared.
+ */
+class PermissionsEvaluator {
+    private static final Identifier ID_CATEGORY_ACTION = XACML3.ID_ATTRIBUTE_CATEGORY_ACTION;
+    private static final Identifier ID_ACTION_ID = XACML3.ID_ACTION_ACTION_ID;
+
+    private final OpenAZPDPEngine pdpEngine;
+    private final EvaluationContextFactory evaluationContextFactory;
+    private final Request request;
+
+    private boolean shareResults;
+    private final Map<PIPRequest, PIPResponse> mapAttributes = new HashMap<PIPRequest, PIPResponse>();
+    private final Map<Evaluatable, EvaluationResult> mapResults = new IdentityHashMap<Evaluatable, EvaluationResult>();
+    private final Map<Object, Boolean> mapActionDependent = new IdentityHashMap<Object, Boolean>();
+
+    /**
+     * An <code>EvaluationContext</code> for a single action that retrieves everything outside the action
+     * category through the caches shared by all of the actions.
+     */
+    private class ActionEvaluationContext implements EvaluationContext, EvaluationResultCache,
+        VariableResultCache, ContentRootCache {
+        private final EvaluationContext evaluationContext;
+
+        ActionEvaluationContext(EvaluationContext evaluationContextIn) {
+            this.evaluationContext = evaluationContextIn;
+        }
+
+        @Override
+        public EvaluationResult getEvaluationResult(Evaluatable evaluatable) {
+            EvaluationResult evaluationResult = PermissionsEvaluator.this.shareResults
+                ? PermissionsEvaluator.this.mapResults.get(evaluatable) : null;
+            return evaluationResult == null ? null : copy(evaluationResult);
+        }
+
+        @Override
+        public void putEvaluationResult(Evaluatable evaluatable, EvaluationResult evaluationResult) {
+            if (PermissionsEvaluator.this.shareResults && !this.evaluationContext.isTracing()
+                && !PermissionsEvaluator.this.mapResults.containsKey(evaluatable)
+                && !PermissionsEvaluator.this.isActionDependent(evaluatable)) {
+                PermissionsEvaluator.this.mapResults.put(evaluatable, copy(evaluationResult));
+            }
+        }
+
+        @Override
+        public PIPResponse getAttributes(PIPRequest pipRequest) throws PIPException {
+            if (!PermissionsEvaluator.this.shareResults || ID_CATEGORY_ACTION.equals(pipRequest.getCategory())) {
+                return this.evaluationContext.getAttributes(pipRequest);
+            }
+            PIPResponse pipResponse = PermissionsEvaluator.this.mapAttributes.get(pipRequest);
+            if (pipResponse == null) {
+                pipResponse = this.evaluationContext.getAttributes(pipRequest);
+                PermissionsEvaluator.this.mapAttributes.put(pipRequest, pipResponse);
+            }
+            return pipResponse;
+        }
+
+        @Override
+        public PIPResponse getAttributes(PIPRequest pipRequest, PIPEngine exclude) throws PIPException {
+            return this.evaluationContext.getAttributes(pipRequest, exclude);
+        }
+
+        @Override
+        public PIPResponse getAttributes(PIPRequest pipRequest, PIPEngine exclude, PIPFinder pipFinderParent)
+            throws PIPException {
+            return this.evaluationContext.getAttributes(pipRequest, exclude, pipFinderParent);
+        }
+
+        @Override
+        public PIPResponse getMatchingAttributes(PIPRequest pipRequest, PIPEngine exclude)
+            throws PIPException {
+            return this.evaluationContext.getMatchingAttributes(pipRequest, exclude);
+        }
+
+        @Override
+        public PIPResponse getMatchingAttributes(PIPRequest pipRequest, PIPEngine exclude,
+                                                 PIPFinder pipFinderParent) throws PIPException {
+            return this.evaluationContext.getMatchingAttributes(pipRequest, exclude, pipFinderParent);
+        }
+
+        @Override
+        public Collection<PIPEngine> getPIPEngines() {
+            return this.evaluationContext.getPIPEngines();
+        }
+
+        @Override
+        public Request getRequest() {
+            return this.evaluationContext.getRequest();
+        }
+
+        @Override
+        public PolicyFinderResult<PolicyDef> getRootPolicyDef() {
+            return this.evaluationContext.getRootPolicyDef();
+        }
+
+        @Override
+        public PolicyFinderResult<Policy> getPolicy(IdReferenceMatch idReferenceMatch) {
+            return this.evaluationContext.getPolicy(idReferenceMatch);
+        }
+
+        @Override
+        public PolicyFinderResult<PolicySet> getPolicySet(IdReferenceMatch idReferenceMatch) {
+            return this.evaluationContext.getPolicySet(idReferenceMatch);
+        }
+
+        @Override
+        public ExpressionResult getVariableResult(VariableDefinition variableDefinition) {
+            return this.evaluationContext instanceof VariableResultCache
+                ? ((VariableResultCache)this.evaluationContext).getVariableResult(variableDefinition) : null;
+        }
+
+        @Override
+        public void setVariableResult(VariableDefinition variableDefinition, ExpressionResult expressionResult) {
+            if (this.evaluationContext instanceof VariableResultCache) {
+                ((VariableResultCache)this.evaluationContext).setVariableResult(variableDefinition,
+                                                                                 expressionResult);
+            }
+        }
+
+        @Override
+        public Node getContentDocumentRoot(Node node) throws DOMStructureException {
+            return this.evaluationContext instanceof ContentRootCache
+                ? ((ContentRootCache)this.evaluationContext).getContentDocumentRoot(node) : DOMUtil
+                    .getDirectDocumentChild(node);
+        }
+
+        @Override
+        public void trace(TraceEvent<?> traceEvent) {
+            this.evaluationContext.trace(traceEvent);
+        }
+
+        @Override
+        public boolean isTracing() {
+            return this.evaluationContext.isTracing();
+        }
+    }
+
+    /**
+     * Creates a new <code>PermissionsEvaluator</code> for one individual decision request.
+     *
+     * @param pdpEngineIn the <code>OpenAZPDPEngine</code> that decides each action
+     * @param evaluationContextFactoryIn the <code>EvaluationContextFactory</code> of the engine
+     * @param requestIn the individual decision <code>Request</code>
+     */
+    PermissionsEvaluator(OpenAZPDPEngine pdpEngineIn, EvaluationContextFactory evaluationContextFactoryIn,
+                         Request requestIn) {
+        this.pdpEngine = pdpEngineIn;
+        this.evaluationContextFactory = evaluationContextFactoryIn;
+        this.request = requestIn;
+    }
+
+    /*
+     * Each copy gets its own Status, since EvaluationResult.merge may change the Status it is given
+     */
+    private static EvaluationResult copy(EvaluationResult evaluationResult) {
+        EvaluationResult evaluationResultCopy = new EvaluationResult(
+                                                                     evaluationResult.getDecision(),
+                                                                     evaluationResult.getObligations(),
+                                                                     evaluationResult.getAssociatedAdvice(),
+                                                                     evaluationResult.getAttributes(),
+                                                                     evaluationResult.getPolicyIdentifiers(),
+                                                                     evaluationResult
+                                                                         .getPolicySetIdentifiers());
+        Status status = evaluationResult.getStatus();
+        evaluationResultCopy.setStatus(status == null ? null : StdMutableStatus.copy(status));
+        return evaluationResultCopy;
+    }
+
+    /**
+     * Copies the request with the given action-id values in place of its own, asking for the policy
+     * identifiers that the <code>Permissions</code> report. The other attributes, <code>Content</code> and
+     * xml:id of the action category are kept.
+     *
+     * @param actionValues the action-id <code>AttributeValue</code>s, or null to leave the action-id unbound
+     */
+    private StdMutableRequest newRequest(Collection<AttributeValue<?>> actionValues) {
+        List<RequestAttributes> listRequestAttributes = new ArrayList<RequestAttributes>();
+        StdMutableRequestAttributes actionAttributes = null;
+        for (RequestAttributes requestAttributes : this.request.getRequestAttributes()) {
+            if (!ID_CATEGORY_ACTION.equals(requestAttributes.getCategory())) {
+                listRequestAttributes.add(requestAttributes);
+                continue;
+            }
+            StdMutableRequestAttributes requestAttributesCopy = new StdMutableRequestAttributes(
+                ID_CATEGORY_ACTION, null, requestAttributes.getContentRoot(), requestAttributes.getXmlId());
+            for (Attribute attribute : requestAttributes.getAttributes()) {
+                if (!ID_ACTION_ID.equals(attribute.getAttributeId())) {
+                    requestAttributesCopy.add(attribute);
+                }
+            }
+            if (actionAttributes == null) {
+                actionAttributes = requestAttributesCopy;
+            }
+            listRequestAttributes.add(requestAttributesCopy);
+        }
+        if (actionValues != null) {
+            if (actionAttributes == null) {
+                actionAttributes = new StdMutableRequestAttributes();
+                actionAttributes.setCategory(ID_CATEGORY_ACTION);
+                listRequestAttributes.add(actionAttributes);
+            }
+            actionAttributes.add(new StdMutableAttribute(ID_CATEGORY_ACTION, ID_ACTION_ID, actionValues, null,
+                                                         false));
+        }
+        return new StdMutableRequest(this.request.getStatus(), this.request.getRequestDefaults(), true, false,
+                                     listRequestAttributes, null);
+    }
+
+    private static void addAction(Map<String, Set<AttributeValue<?>>> mapActions, AttributeValue<?> value) {
+        if (value == null || value.getValue() == null) {
+            return;
+        }
+        String action = value.getValue().toString();
+        Set<AttributeValue<?>> values = mapActions.get(action);
+        if (values == null) {
+            values = new LinkedHashSet<AttributeValue<?>>();
+            mapActions.put(action, values);
+        }
+        values.add(value);
+    }
+
+    /**
+     * Gets the action-ids named in the request, if any.
+     */
+    private Map<String, Set<AttributeValue<?>>> getRequestedActions() {
+        Map<String, Set<AttributeValue<?>>> mapActions = new LinkedHashMap<String, Set<AttributeValue<?>>>();
+        for (RequestAttributes requestAttributes : this.request.getRequestAttributes()) {
+            if (ID_CATEGORY_ACTION.equals(requestAttributes.getCategory())) {
+                Iterator<Attribute> iterAttributes = requestAttributes.getAttributes(ID_ACTION_ID);
+                while (iterAttributes != null && iterAttributes.hasNext()) {
+                    for (AttributeValue<?> value : iterAttributes.next().getValues()) {
+                        addAction(mapActions, value);
+                    }
+                }
+            }
+        }
+        return mapActions;
+    }
+
+    private static boolean isActionId(AttributeRetrievalBase attributeRetrievalBase) {
+        return attributeRetrievalBase instanceof AttributeDesignator
+               && ID_CATEGORY_ACTION.equals(attributeRetrievalBase.getCategory())
+               && ID_ACTION_ID.equals(((AttributeDesignator)attributeRetrievalBase).getAttributeId());
+    }
+
+    private static boolean isEquality(Identifier matchId) {
+        String functionId = matchId == null ? "" : matchId.stringValue();
+        return functionId.endsWith("-equal") || functionId.endsWith("-equal-ignore-case");
+    }
+
+    private static void collectActions(Target target, Map<String, Set<AttributeValue<?>>> mapActions) {
+        Iterator<AnyOf> iterAnyOfs = target == null ? null : target.getAnyOfs();
+        while (iterAnyOfs != null && iterAnyOfs.hasNext()) {
+            Iterator<AllOf> iterAllOfs = iterAnyOfs.next().getAllOfs();
+            while (iterAllOfs != null && iterAllOfs.hasNext()) {
+                Iterator<Match> iterMatches = iterAllOfs.next().getMatches();
+                while (iterMatches != null && iterMatches.hasNext()) {
+                    Match match = iterMatches.next();
+                    if (isActionId(match.getAttributeRetrievalBase()) && isEquality(match.getMatchId())) {
+                        addAction(mapActions, match.getAttributeValue());
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Gets the PolicyDef a reference points to, finding it through the EvaluationContext if it has not been
+     * resolved yet
+     */
+    private static PolicyDef getReferencee(PolicySetChild policySetChild, EvaluationContext evaluationContext) {
+        PolicyFinderResult<? extends PolicyDef> policyFinderResult = null;
+        if (policySetChild instanceof PolicyIdReference) {
+            PolicyIdReference policyIdReference = (PolicyIdReference)policySetChild;
+            if (policyIdReference.getReferencee() != null) {
+                return policyIdReference.getReferencee();
+            }
+            policyFinderResult = evaluationContext.getPolicy(policyIdReference.getIdReferenceMatch());
+        } else if (policySetChild instanceof PolicySetIdReference) {
+            PolicySetIdReference policySetIdReference = (PolicySetIdReference)policySetChild;
+            if (policySetIdReference.getReferencee() != null) {
+                return policySetIdReference.getReferencee();
+            }
+            policyFinderResult = evaluationContext.getPolicySet(policySetIdReference.getIdReferenceMatch());
+        }
+        return policyFinderResult == null ? null : policyFinderResult.getPolicyDef();
+    }
+
+    private static void collectActions(PolicySetChild policySetChild, EvaluationContext evaluationContext,
+                                       Map<String, Set<AttributeValue<?>>> mapActions, Set<Object> visited) {
+        PolicyDef policyDef = policySetChild instanceof PolicyDef
+            ? (PolicyDef)policySetChild : getReferencee(policySetChild, evaluationContext);
+        if (policyDef == null || visited.contains(policyDef)) {
+            return;
+        }
+        visited.add(policyDef);
+        collectActions(policyDef.getTarget(), mapActions);
+        if (policyDef instanceof Policy) {
+            Iterator<Rule> iterRules = ((Policy)policyDef).getRules();
+            while (iterRules != null && iterRules.hasNext()) {
+                collectActions(iterRules.next().getTarget(), mapActions);
+            }
+        } else if (policyDef instanceof PolicySet) {
+            Iterator<PolicySetChild> iterChildren = ((PolicySet)policyDef).getChildren();
+            while (iterChildren != null && iterChildren.hasNext()) {
+                collectActions(iterChildren.next(), evaluationContext, mapActions, visited);
+            }
+        }
+    }
+
+    private boolean isActionDependent(Expression expression, Set<VariableDefinition> variables) {
+        if (expression instanceof AttributeRetrievalBase) {
+            return ID_CATEGORY_ACTION.equals(((AttributeRetrievalBase)expression).getCategory());
+        } else if (expression instanceof Apply) {
+            Apply apply = (Apply)expression;
+            /*
+             * access-permitted decides a new request built from this one
+             */
+            if (XACML3.ID_FUNCTION_ACCESS_PERMITTED.equals(apply.getFunctionId())) {
+                return true;
+            }
+            Iterator<Expression> iterArguments = apply.getArguments();
+            while (iterArguments != null && iterArguments.hasNext()) {
+                if (this.isActionDependent(iterArguments.next(), variables)) {
+                    return true;
+                }
+            }
+        } else if (expression instanceof VariableReference) {
+            VariableReference variableReference = (VariableReference)expression;
+            VariableDefinition variableDefinition = variableReference.getPolicy() == null
+                ? null : variableReference.getPolicy().getVariableDefinition(variableReference.getVariableId());
+            if (variableDefinition == null) {
+                return true;
+            }
+            return variables.add(variableDefinition)
+                   && this.isActionDependent(variableDefinition.getExpression(), variables);
+        }
+        return false;
+    }
+
+    private boolean isActionDependent(Target target) {
+        Iterator<AnyOf> iterAnyOfs = target == null ? null : target.getAnyOfs();
+        while (iterAnyOfs != null && iterAnyOfs.hasNext()) {
+            Iterator<AllOf> iterAllOfs = iterAnyOfs.next().getAllOfs();
+            while (iterAllOfs != null && iterAllOfs.hasNext()) {
+                Iterator<Match> iterMatches = iterAllOfs.next().getMatches();
+                while (iterMatches != null && iterMatches.hasNext()) {
+                    AttributeRetrievalBase attributeRetrievalBase = iterMatches.next()
+                        .getAttributeRetrievalBase();
+                    if (attributeRetrievalBase != null
+                        && ID_CATEGORY_ACTION.equals(attributeRetrievalBase.getCategory())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isActionDependent(Iterator<ObligationExpression> iterObligationExpressions,
+                                      Iterator<AdviceExpression> iterAdviceExpressions) {
+        List<AttributeAssignmentExpression> listAssignments = new ArrayList<AttributeAssignmentExpression>();
+        while (iterObligationExpressions != null && iterObligationExpressions.hasNext()) {
+            Iterator<AttributeAssignmentExpression> iterAssignments = iterObligationExpressions.next()
+                .getAttributeAssignmentExpressions();
+            while (iterAssignments != null && iterAssignments.hasNext()) {
+                listAssignments.add(iterAssignments.next());
+            }
+        }
+        while (iterAdviceExpressions != null && iterAdviceExpressions.hasNext()) {
+            Iterator<AttributeAssignmentExpression> iterAssignments = iterAdviceExpressions.next()
+                .getAttributeAssignmentExpressions();
+            while (iterAssignments != null && iterAssignments.hasNext()) {
+                listAssignments.add(iterAssignments.next());
+            }
+        }
+        for (AttributeAssignmentExpression attributeAssignmentExpression : listAssignments) {
+            if (this.isActionDependent(attributeAssignmentExpression.getExpression(),
+                                       newVariableSet())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The VariableDefinitions already followed, so a cycle of references terminates
+     */
+    private static Set<VariableDefinition> newVariableSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<VariableDefinition, Boolean>());
+    }
+
+    /**
+     * Determines whether the <code>EvaluationResult</code> of the given <code>Evaluatable</code> can differ
+     * from one action to the next. References are always treated as action dependent, since what they
+     * resolve to is only known when they are evaluated.
+     *
+     * @param evaluatable the <code>Evaluatable</code> to check
+     * @return true if the <code>Evaluatable</code> may refer to the action category
+     */
+    boolean isActionDependent(Evaluatable evaluatable) {
+        Boolean actionDependent = this.mapActionDependent.get(evaluatable);
+        if (actionDependent != null) {
+            return actionDependent.booleanValue();
+        }
+        boolean result = true;
+        if (evaluatable instanceof Rule) {
+            Rule rule = (Rule)evaluatable;
+            result = this.isActionDependent(rule.getTarget())
+                     || rule.getCondition() != null
+                     && this.isActionDependent(rule.getCondition().getExpression(), newVariableSet())
+                     || this.isActionDependent(rule.getObligationExpressions(), rule.getAdviceExpressions());
+        } else if (evaluatable instanceof Policy || evaluatable instanceof PolicySet) {
+            PolicyDef policyDef = (PolicyDef)evaluatable;
+            result = this.isActionDependent(policyDef.getTarget())
+                     || this.isActionDependent(policyDef.getObligationExpressions(),
+                                               policyDef.getAdviceExpressions());
+            if (!result && policyDef instanceof Policy) {
+                Iterator<Rule> iterRules = ((Policy)policyDef).getRules();
+                while (!result && iterRules != null && iterRules.hasNext()) {
+                    result = this.isActionDependent(iterRules.next());
+                }
+            } else if (!result) {
+                Iterator<PolicySetChild> iterChildren = ((PolicySet)policyDef).getChildren();
+                while (!result && iterChildren != null && iterChildren.hasNext()) {
+                    result = this.isActionDependent(iterChildren.next());
+                }
+            }
+        }
+        this.mapActionDependent.put(evaluatable, Boolean.valueOf(result));
+        return result;
+    }
+
+    /*
+     * A PIP engine that may look up an action attribute can answer differently for each action
+     */
+    private static boolean isActionIndependent(Collection<PIPEngine> pipEngines) {
+        if (pipEngines == null) {
+            return true;
+        }
+        for (PIPEngine pipEngine : pipEngines) {
+            Collection<PIPRequest> attributesRequired = pipEngine.attributesRequired();
+            if (attributesRequired == null) {
+                return false;
+            }
+            for (PIPRequest pipRequest : attributesRequired) {
+                if (ID_CATEGORY_ACTION.equals(pipRequest.getCategory())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decides each candidate action of the request.
+     *
+     * @return the <code>PermissionsResult</code> with the actions grouped by their <code>Decision</code>
+     */
+    PermissionsResult evaluate() {
+        Map<String, Set<AttributeValue<?>>> mapActions = this.getRequestedActions();
+        EvaluationContext evaluationContextUnbound = this.evaluationContextFactory
+            .getEvaluationContext(this.newRequest(null));
+        if (evaluationContextUnbound != null) {
+            this.shareResults = isActionIndependent(evaluationContextUnbound.getPIPEngines());
+            if (mapActions.isEmpty()) {
+                PolicyFinderResult<PolicyDef> policyFinderResult = evaluationContextUnbound.getRootPolicyDef();
+                if (policyFinderResult != null && policyFinderResult.getPolicyDef() != null) {
+                    collectActions(policyFinderResult.getPolicyDef(), evaluationContextUnbound, mapActions,
+                                   Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+                }
+            }
+        }
+
+        Map<Decision, Map<String, PoliciesAndObligations>> mapDecisions = new LinkedHashMap<Decision, Map<String, PoliciesAndObligations>>();
+        for (Map.Entry<String, Set<AttributeValue<?>>> entry : mapActions.entrySet()) {
+            Request requestAction = this.newRequest(entry.getValue());
+            EvaluationContext evaluationContext = this.evaluationContextFactory
+                .getEvaluationContext(requestAction);
+            Result result = evaluationContext == null
+                ? this.pdpEngine.processIndividualRequest(requestAction) : this.pdpEngine
+                    .processRequest(new ActionEvaluationContext(evaluationContext));
+
+            List<String> listPolicies = new ArrayList<String>();
+            for (IdReference idReference : result.getPolicyIdentifiers()) {
+                listPolicies.add(idReference.getId().stringValue());
+            }
+            for (IdReference idReference : result.getPolicySetIdentifiers()) {
+                listPolicies.add(idReference.getId().stringValue());
+            }
+            Map<String, PoliciesAndObligations> mapPermissions = mapDecisions.get(result.getDecision());
+            if (mapPermissions == null) {
+                mapPermissions = new LinkedHashMap<String, PoliciesAndObligations>();
+                mapDecisions.put(result.getDecision(), mapPermissions);
+            }
+            mapPermissions.put(entry.getKey(),
+                               new StdPoliciesAndObligations(listPolicies,
+                                                             new ArrayList<Obligation>(result.getObligations())));
+        }
+
+        StdMutablePermissionsResult stdMutablePermissionsResult = new StdMutablePermissionsResult();
+        for (Map.Entry<Decision, Map<String, PoliciesAndObligations>> entry : mapDecisions.entrySet()) {
+            stdMutablePermissionsResult.setPermissionsResult(entry.getKey(), new StdPermissions(entry.getValue()));
+        }
+        return stdMutablePermissionsResult;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.eval;
+
+import org.apache.openaz.xacml.std.dom.DOMStructureException;
+import org.w3c.dom.Node;
+
+/**
+ * ContentRootCache is implemented by {@link org.apache.openaz.xacml.pdp.eval.EvaluationContext}s that copy
+ * the <code>Content</code> nodes of their <code>Request</code> into documents of their own at most once. The
+ * {@link org.apache.openaz.xacml.pdp.policy.expressions.AttributeSelector} uses it to get the node to
+ * evaluate its path against; with any other <code>EvaluationContext</code> the node is copied for every
+ * evaluation.
+ */
+public interface ContentRootCache {
+    /**
+     * Gets a <code>Node</code> with the same content as the given {@link org.w3c.dom.Node} from the
+     * <code>Request</code> that is the document element of its own <code>Document</code>, so that absolute
+     * XPath expressions are evaluated relative to it. A <code>Node</code> that already is the document element
+     * of its <code>Document</code> is returned as is; any other <code>Node</code> is copied at most once while
+     * evaluating this <code>EvaluationContext</code>'s <code>Request</code>.
+     *
+     * @param node the <code>Node</code> from the <code>Request</code> content
+     * @return the <code>Node</code> to evaluate XPath expressions against
+     * @throws DOMStructureException if the <code>Node</code> cannot be copied
+     */
+    Node getContentDocumentRoot(Node node) throws DOMStructureException;
+}
@@ -0,0 +1,50 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.eval;
+
+/**
+ * EvaluationResultCache is implemented by {@link org.apache.openaz.xacml.pdp.eval.EvaluationContext}s that
+ * evaluate the same policy tree several times for requests that differ only in some attributes, and know
+ * which {@link org.apache.openaz.xacml.pdp.eval.Evaluatable}s do not depend on those attributes. The
+ * {@link org.apache.openaz.xacml.pdp.policy.CombiningElement} consults it before evaluating its
+ * <code>Evaluatable</code>.
+ */
+public interface EvaluationResultCache {
+    /**
+     * Gets the <code>EvaluationResult</code> of an earlier evaluation of the given <code>Evaluatable</code>
+     * that can be used in place of evaluating it again.
+     *
+     * @param evaluatable the <code>Evaluatable</code>
+     * @return a copy of the cached <code>EvaluationResult</code> the caller may modify, or null if it must
+     *         be evaluated
+     */
+    EvaluationResult getEvaluationResult(Evaluatable evaluatable);
+
+    /**
+     * Offers the <code>EvaluationResult</code> of the given <code>Evaluatable</code> to the cache. The cache
+     * keeps a copy only if the <code>Evaluatable</code> gives the same result for every evaluation sharing
+     * the cache.
+     *
+     * @param evaluatable the <code>Evaluatable</code> that was evaluated
+     * @param evaluationResult the <code>EvaluationResult</code> it returned
+     */
+    void putEvaluationResult(Evaluatable evaluatable, EvaluationResult evaluationResult);
+}
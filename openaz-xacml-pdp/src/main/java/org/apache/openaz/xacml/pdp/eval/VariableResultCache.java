@@ -0,0 +1,54 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.eval;
+
+import org.apache.openaz.xacml.pdp.policy.ExpressionResult;
+import org.apache.openaz.xacml.pdp.policy.VariableDefinition;
+
+/**
+ * VariableResultCache is implemented by {@link org.apache.openaz.xacml.pdp.eval.EvaluationContext}s that
+ * remember the result of each {@link org.apache.openaz.xacml.pdp.policy.VariableDefinition} evaluated for
+ * their <code>Request</code>. The {@link org.apache.openaz.xacml.pdp.policy.expressions.VariableReference}
+ * consults it before evaluating the <code>VariableDefinition</code>; with any other
+ * <code>EvaluationContext</code> the <code>VariableDefinition</code> is evaluated at every reference.
+ */
+public interface VariableResultCache {
+    /**
+     * Gets the {@link org.apache.openaz.xacml.pdp.policy.ExpressionResult} already computed for the given
+     * {@link org.apache.openaz.xacml.pdp.policy.VariableDefinition} while evaluating this
+     * <code>EvaluationContext</code>'s <code>Request</code>.
+     *
+     * @param variableDefinition the <code>VariableDefinition</code> to look up
+     * @return the <code>ExpressionResult</code> for the <code>VariableDefinition</code> or null if it has not
+     *         been evaluated yet
+     */
+    ExpressionResult getVariableResult(VariableDefinition variableDefinition);
+
+    /**
+     * Records the {@link org.apache.openaz.xacml.pdp.policy.ExpressionResult} of evaluating the given
+     * {@link org.apache.openaz.xacml.pdp.policy.VariableDefinition} so later references to it in the same
+     * <code>Request</code> do not evaluate it again.
+     *
+     * @param variableDefinition the <code>VariableDefinition</code> that was evaluated
+     * @param expressionResult the <code>ExpressionResult</code> of evaluating it
+     */
+    void setVariableResult(VariableDefinition variableDefinition, ExpressionResult expressionResult);
+}
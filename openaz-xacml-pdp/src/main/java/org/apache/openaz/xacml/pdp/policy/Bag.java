@@ -31,18 +31,30 @@
 package org.apache.openaz.xacml.pdp.policy;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.openaz.xacml.api.AttributeValue;
 
 /**
  * Bag represents a collection of XACML attribute values for the same attribute.
+ * <p>
+ * Membership tests through {@link #contains(AttributeValue)} on larger bags use a hashed view of the values
+ * that is built on the first such test and kept until the bag changes.
  */
 public class Bag {
     public static final Bag EMPTY = new Bag();
 
+    /*
+     * Bags up to this size are searched linearly; building a hashed view does not pay off for them
+     */
+    private static final int MAX_LINEAR_SEARCH = 8;
+
     private List<AttributeValue<?>> attributeValues = new ArrayList<AttributeValue<?>>();
+    private Set<AttributeValue<?>> attributeValueSet;
+    private int attributeValueSetSize;
 
     /**
      * Gets the <code>List</code> of <code>AttributeValue</code>s for this <code>Bag</code>.
@@ -78,6 +90,33 @@ public class Bag {
      */
     public void add(AttributeValue<?> attributeValue) {
         this.attributeValues.add(attributeValue);
+        this.attributeValueSet = null;
+    }
+
+    /**
+     * Determines whether the given <code>AttributeValue</code> is in this <code>Bag</code>, using the same
+     * <code>attributeValue.equals(value)</code> test as <code>List.contains</code>.
+     *
+     * @param attributeValue the <code>AttributeValue</code> to look for
+     * @return true if an equal <code>AttributeValue</code> is in this <code>Bag</code>, else false
+     */
+    public boolean contains(AttributeValue<?> attributeValue) {
+        List<AttributeValue<?>> listAttributeValues = this.getAttributeValueList();
+        int size = listAttributeValues.size();
+        if (size <= MAX_LINEAR_SEARCH) {
+            return listAttributeValues.contains(attributeValue);
+        }
+        /*
+         * The List is exposed through getAttributeValueList, so the size is checked as well in case it was
+         * changed directly
+         */
+        Set<AttributeValue<?>> setAttributeValues = this.attributeValueSet;
+        if (setAttributeValues == null || this.attributeValueSetSize != size) {
+            setAttributeValues = new HashSet<AttributeValue<?>>(listAttributeValues);
+            this.attributeValueSetSize = size;
+            this.attributeValueSet = setAttributeValues;
+        }
+        return setAttributeValues.contains(attributeValue);
     }
 
     /**
@@ -39,6 +39,7 @@ import org.apache.openaz.xacml.pdp.eval.Evaluatable;
 import org.apache.openaz.xacml.pdp.eval.EvaluationContext;
 import org.apache.openaz.xacml.pdp.eval.EvaluationException;
 import org.apache.openaz.xacml.pdp.eval.EvaluationResult;
+import org.apache.openaz.xacml.pdp.eval.EvaluationResultCache;
 
 /**
  * CombiningElement wraps an {@link org.apache.openaz.xacml.pdp.evl.Evaluatable} with a set of
@@ -98,7 +99,19 @@ public class CombiningElement<T extends Evaluatable> {
      *             <code>evaluate</code> method of the <code>Evaluatable</code>
      */
     public EvaluationResult evaluate(EvaluationContext evaluationContext) throws EvaluationException {
-        return this.getEvaluatable().evaluate(evaluationContext);
+        if (!(evaluationContext instanceof EvaluationResultCache)) {
+            return this.getEvaluatable().evaluate(evaluationContext);
+        }
+        /*
+         * The context is evaluating the same tree more than once, so it may already have our result
+         */
+        EvaluationResultCache evaluationResultCache = (EvaluationResultCache)evaluationContext;
+        EvaluationResult evaluationResult = evaluationResultCache.getEvaluationResult(this.getEvaluatable());
+        if (evaluationResult == null) {
+            evaluationResult = this.getEvaluatable().evaluate(evaluationContext);
+            evaluationResultCache.putEvaluationResult(this.getEvaluatable(), evaluationResult);
+        }
+        return evaluationResult;
     }
 
 }
@@ -0,0 +1,40 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.policy;
+
+import org.apache.openaz.xacml.api.AttributeValue;
+
+/**
+ * FunctionArgumentCompiler is implemented by {@link FunctionDefinition}s that can prepare a literal argument
+ * once, when the {@link org.apache.openaz.xacml.pdp.policy.expressions.Apply} or {@link Match} holding it is
+ * first evaluated, instead of on every evaluation.
+ */
+public interface FunctionArgumentCompiler {
+    /**
+     * Prepares the literal <code>AttributeValue</code> at the given argument position.
+     *
+     * @param index the zero-based position of the argument
+     * @param attributeValue the literal <code>AttributeValue</code> of the argument
+     * @return a {@link FunctionArgument} to pass in place of the literal on every evaluation, or null if
+     *         nothing can be prepared for this argument
+     */
+    FunctionArgument compileArgument(int index, AttributeValue<?> attributeValue);
+}
@@ -59,6 +59,7 @@ public class Match extends PolicyComponent implements Matchable {
     private AttributeRetrievalBase attributeRetrievalBase;
     private PolicyDefaults policyDefaults;
     private FunctionDefinition functionDefinition;
+    private volatile FunctionArgument functionArgumentValue;
 
     protected FunctionDefinition getFunctionDefinition() {
         Identifier functionDefinitionId = this.getMatchId();
@@ -100,6 +101,8 @@ public class Match extends PolicyComponent implements Matchable {
 
     public void setMatchId(Identifier matchIdIn) {
         this.matchId = matchIdIn;
+        this.functionDefinition = null;
+        this.functionArgumentValue = null;
     }
 
     public AttributeValue<?> getAttributeValue() {
@@ -108,6 +111,33 @@ public class Match extends PolicyComponent implements Matchable {
 
     public void setAttributeValue(AttributeValue<?> attributeValueIn) {
         this.attributeValue = attributeValueIn;
+        this.functionArgumentValue = null;
+    }
+
+    /**
+     * Gets the {@link FunctionArgument} for the literal <code>AttributeValue</code> of this
+     * <code>Match</code>. If the <code>FunctionDefinition</code> is a {@link FunctionArgumentCompiler} the
+     * argument is prepared once and reused for every evaluation. It is published through a volatile field, as
+     * other threads may be evaluating this <code>Match</code> at the same time.
+     *
+     * @param functionDefinitionMatch the <code>FunctionDefinition</code> of this <code>Match</code>
+     * @param attributeValueMatch the literal <code>AttributeValue</code> of this <code>Match</code>
+     * @return the <code>FunctionArgument</code> for the first argument of the match function
+     */
+    protected FunctionArgument getFunctionArgumentValue(FunctionDefinition functionDefinitionMatch,
+                                                        AttributeValue<?> attributeValueMatch) {
+        FunctionArgument functionArgument = this.functionArgumentValue;
+        if (functionArgument == null) {
+            if (functionDefinitionMatch instanceof FunctionArgumentCompiler) {
+                functionArgument = ((FunctionArgumentCompiler)functionDefinitionMatch)
+                    .compileArgument(0, attributeValueMatch);
+            }
+            if (functionArgument == null) {
+                functionArgument = new FunctionArgumentAttributeValue(attributeValueMatch);
+            }
+            this.functionArgumentValue = functionArgument;
+        }
+        return functionArgument;
     }
 
     public AttributeRetrievalBase getAttributeRetrievalBase() {
@@ -169,7 +199,8 @@ public class Match extends PolicyComponent implements Matchable {
 
         AttributeValue<?> attributeValue = this.getAttributeValue();
         assert attributeValue != null;
-        FunctionArgument functionArgument1 = new FunctionArgumentAttributeValue(attributeValue);
+        FunctionArgument functionArgument1 = this.getFunctionArgumentValue(functionDefinitionMatch,
+                                                                           attributeValue);
 
         AttributeRetrievalBase attributeRetrievalBase = this.getAttributeRetrievalBase();
         assert attributeRetrievalBase != null;
@@ -56,8 +56,9 @@ public class Policy extends PolicyDef {
     private TargetedCombinerParameterMap<String, Rule> ruleCombinerParameters = new TargetedCombinerParameterMap<String, Rule>();
     private VariableMap variableMap = new VariableMap();
     private List<Rule> rules = new ArrayList<Rule>();
-    private List<CombiningElement<Rule>> combiningRules;
+    private volatile List<CombiningElement<Rule>> combiningRules;
     private CombiningAlgorithm<Rule> ruleCombiningAlgorithm;
+    private volatile TargetIndex ruleTargetIndex;
 
     @Override
     protected boolean validateComponent() {
@@ -79,16 +80,33 @@ public class Policy extends PolicyDef {
      * @return the <code>List</code> of <code>CombiningElement</code>s for all of the <code>Rule</code>s
      */
     protected List<CombiningElement<Rule>> getCombiningRules() {
-        if (this.combiningRules == null) {
-            this.combiningRules = new ArrayList<CombiningElement<Rule>>();
+        List<CombiningElement<Rule>> listCombiningRules = this.combiningRules;
+        if (listCombiningRules == null) {
+            /*
+             * Build the list completely before publishing it through the volatile field, as other threads
+             * may be evaluating this Policy at the same time
+             */
+            listCombiningRules = new ArrayList<CombiningElement<Rule>>();
             Iterator<Rule> iterRules = this.getRules();
             while (iterRules.hasNext()) {
                 Rule rule = iterRules.next();
-                this.combiningRules.add(new CombiningElement<Rule>(rule, this.ruleCombinerParameters
+                listCombiningRules.add(new CombiningElement<Rule>(rule, this.ruleCombinerParameters
                     .getCombinerParameters(rule)));
             }
+            this.combiningRules = listCombiningRules;
         }
-        return this.combiningRules;
+        return listCombiningRules;
+    }
+
+    @Override
+    public void compileTargets() {
+        List<CombiningElement<Rule>> listCombiningRules = this.getCombiningRules();
+        List<Target> listTargets = new ArrayList<Target>(listCombiningRules.size());
+        for (CombiningElement<Rule> combiningElement : listCombiningRules) {
+            Rule rule = combiningElement.getEvaluatable();
+            listTargets.add(rule.validate() ? rule.getTarget() : null);
+        }
+        this.ruleTargetIndex = new TargetIndex(listTargets);
     }
 
     public Policy(PolicySet policySetParent, StatusCode statusCodeIn, String statusMessageIn) {
@@ -302,6 +320,15 @@ public class Policy extends PolicyDef {
         List<CombiningElement<Rule>> ruleCombiningElements = this.getCombiningRules();
         assert ruleCombiningElements != null;
 
+        /*
+         * If the rule targets have been compiled, leave out the rules that cannot match. They would all
+         * evaluate to NotApplicable, which the combining algorithms skip. Tracing sees every rule.
+         */
+        TargetIndex targetIndex = this.ruleTargetIndex;
+        if (targetIndex != null && !evaluationContext.isTracing()) {
+            ruleCombiningElements = targetIndex.select(evaluationContext, ruleCombiningElements);
+        }
+
         /*
          * Run the combining algorithm
          */
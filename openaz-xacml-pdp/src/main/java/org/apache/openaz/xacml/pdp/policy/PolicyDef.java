@@ -504,6 +504,14 @@ public abstract class PolicyDef extends PolicySetChild {
         return stringBuilder.toString();
     }
 
+    /**
+     * Compiles the <code>Target</code>s of the children of this <code>PolicyDef</code>, and recursively of
+     * their children, into a {@link org.apache.openaz.xacml.pdp.policy.TargetIndex} so that evaluation only
+     * combines the children that can match the request. This should be called once the
+     * <code>PolicyDef</code> is completely loaded.
+     */
+    public abstract void compileTargets();
+
     @Override
     public MatchResult match(EvaluationContext evaluationContext) throws EvaluationException {
         if (!this.validate()) {
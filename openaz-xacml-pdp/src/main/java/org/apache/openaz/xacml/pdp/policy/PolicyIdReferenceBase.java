@@ -32,6 +32,7 @@ package org.apache.openaz.xacml.pdp.policy;
 
 import org.apache.openaz.xacml.api.Decision;
 import org.apache.openaz.xacml.api.IdReferenceMatch;
+import org.apache.openaz.xacml.api.Status;
 import org.apache.openaz.xacml.api.StatusCode;
 import org.apache.openaz.xacml.pdp.eval.EvaluationContext;
 import org.apache.openaz.xacml.pdp.eval.EvaluationException;
@@ -39,13 +40,20 @@ import org.apache.openaz.xacml.pdp.eval.EvaluationResult;
 import org.apache.openaz.xacml.pdp.eval.MatchResult;
 import org.apache.openaz.xacml.std.StdStatus;
 import org.apache.openaz.xacml.std.StdStatusCode;
+import org.apache.openaz.xacml.util.ObjUtil;
 
 /**
  * PolicyIdReferenceBase extends {@link PolicySetChild} to implement a XACML PolicyIdReference element.
+ * <p>
+ * A reference is normally linked to its referencee by the
+ * {@link org.apache.openaz.xacml.pdp.policy.PolicyFinder} when the policies are loaded. An unlinked reference
+ * looks up its referencee in the <code>EvaluationContext</code> the first time it is evaluated.
  */
 public abstract class PolicyIdReferenceBase<T extends PolicyDef> extends PolicySetChild {
     private IdReferenceMatch idReferenceMatch;
     private T referencee;
+    private Status linkStatus;
+    private volatile boolean linked;
 
     @Override
     protected boolean validateComponent() {
@@ -118,14 +126,61 @@ public abstract class PolicyIdReferenceBase<T extends PolicyDef> extends PolicyS
         this.referencee = referenceeIn;
     }
 
+    /**
+     * Links this <code>PolicyIdReferenceBase</code> to the given <code>T</code> referencee. Once linked,
+     * <code>evaluate</code> and <code>match</code> use the linked referencee and never look it up in the
+     * <code>EvaluationContext</code>. Linking it again to the same referencee with an equal status leaves it
+     * untouched, so a policy tree that is in use can be linked by another finder over the same policies.
+     *
+     * @param referenceeIn the <code>T</code> referencee, or null if the reference could not be resolved
+     * @param linkStatusIn the <code>Status</code> explaining why the reference could not be resolved, or
+     *            null for the default status
+     */
+    public void link(T referenceeIn, Status linkStatusIn) {
+        if (this.linked && this.referencee == referenceeIn
+            && ObjUtil.equalsAllowNull(this.linkStatus, linkStatusIn)) {
+            return;
+        }
+        this.referencee = referenceeIn;
+        this.linkStatus = linkStatusIn;
+        this.linked = true;
+    }
+
+    /**
+     * Gets the <code>Status</code> this <code>PolicyIdReferenceBase</code> was linked with.
+     *
+     * @return the <code>Status</code> explaining why the reference could not be resolved, or null
+     */
+    public Status getLinkStatus() {
+        return this.linkStatus;
+    }
+
+    /**
+     * Determines whether this <code>PolicyIdReferenceBase</code> has been linked.
+     *
+     * @return true if <code>link</code> has been called, else false
+     */
+    public boolean isLinked() {
+        return this.linked;
+    }
+
+    private T resolveReferencee(EvaluationContext evaluationContext) throws EvaluationException {
+        return this.linked ? this.referencee : this.ensureReferencee(evaluationContext);
+    }
+
+    private Status getUnresolvedStatus() {
+        if (this.linkStatus != null) {
+            return this.linkStatus;
+        }
+        return new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR, "Could not find referencee for "
+                                                                         + this.getIdReferenceMatch().toString());
+    }
+
     @Override
     public EvaluationResult evaluate(EvaluationContext evaluationContext) throws EvaluationException {
-        T thisReferencee = this.ensureReferencee(evaluationContext);
+        T thisReferencee = this.resolveReferencee(evaluationContext);
         if (thisReferencee == null) {
-            return new EvaluationResult(Decision.INDETERMINATE,
-                                        new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR,
-                                                      "Could not find referencee for "
-                                                          + this.getIdReferenceMatch().toString()));
+            return new EvaluationResult(Decision.INDETERMINATE, this.getUnresolvedStatus());
         } else {
             return thisReferencee.evaluate(evaluationContext);
         }
@@ -133,12 +188,9 @@ public abstract class PolicyIdReferenceBase<T extends PolicyDef> extends PolicyS
 
     @Override
     public MatchResult match(EvaluationContext evaluationContext) throws EvaluationException {
-        T thisReferencee = this.ensureReferencee(evaluationContext);
+        T thisReferencee = this.resolveReferencee(evaluationContext);
         if (thisReferencee == null) {
-            return new MatchResult(MatchResult.MatchCode.INDETERMINATE,
-                                   new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR,
-                                                 "Could not find referencee for "
-                                                     + this.getIdReferenceMatch().toString()));
+            return new MatchResult(MatchResult.MatchCode.INDETERMINATE, this.getUnresolvedStatus());
         } else {
             return thisReferencee.match(evaluationContext);
         }
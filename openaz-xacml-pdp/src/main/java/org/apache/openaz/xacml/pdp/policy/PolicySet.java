@@ -55,8 +55,9 @@ import org.apache.openaz.xacml.util.StringUtils;
 public class PolicySet extends PolicyDef {
     private TargetedCombinerParameterMap<Identifier, PolicySetChild> policyCombinerParameters = new TargetedCombinerParameterMap<Identifier, PolicySetChild>();
     private List<PolicySetChild> children;
-    private List<CombiningElement<PolicySetChild>> combiningPolicies;
+    private volatile List<CombiningElement<PolicySetChild>> combiningPolicies;
     private CombiningAlgorithm<PolicySetChild> combiningAlgorithm;
+    private volatile TargetIndex childTargetIndex;
 
     private void ensureChildren() {
         if (this.children == null) {
@@ -70,20 +71,46 @@ public class PolicySet extends PolicyDef {
      * @return the <code>List</code> of <code>CombiningElement</code>s for all of the <code>Rule</code>s
      */
     protected List<CombiningElement<PolicySetChild>> getCombiningPolicies() {
-        if (this.combiningPolicies == null) {
-            this.combiningPolicies = new ArrayList<CombiningElement<PolicySetChild>>();
+        List<CombiningElement<PolicySetChild>> listCombiningPolicies = this.combiningPolicies;
+        if (listCombiningPolicies == null) {
+            /*
+             * Build the list completely before publishing it through the volatile field, as other threads
+             * may be evaluating this PolicySet at the same time
+             */
+            listCombiningPolicies = new ArrayList<CombiningElement<PolicySetChild>>();
             Iterator<PolicySetChild> iterPolicies = this.getChildren();
             if (iterPolicies != null) {
                 while (iterPolicies.hasNext()) {
                     PolicySetChild policySetChild = iterPolicies.next();
-                    this.combiningPolicies
+                    listCombiningPolicies
                         .add(new CombiningElement<PolicySetChild>(policySetChild,
                                                                   this.policyCombinerParameters
                                                                       .getCombinerParameters(policySetChild)));
                 }
             }
+            this.combiningPolicies = listCombiningPolicies;
         }
-        return this.combiningPolicies;
+        return listCombiningPolicies;
+    }
+
+    @Override
+    public void compileTargets() {
+        List<CombiningElement<PolicySetChild>> listCombiningPolicies = this.getCombiningPolicies();
+        List<Target> listTargets = new ArrayList<Target>(listCombiningPolicies.size());
+        for (CombiningElement<PolicySetChild> combiningElement : listCombiningPolicies) {
+            PolicySetChild policySetChild = combiningElement.getEvaluatable();
+            if (policySetChild instanceof PolicyDef) {
+                PolicyDef policyDef = (PolicyDef)policySetChild;
+                policyDef.compileTargets();
+                listTargets.add(policyDef.validate() ? policyDef.getTarget() : null);
+            } else {
+                /*
+                 * References are not resolved until evaluation time, so they are always evaluated
+                 */
+                listTargets.add(null);
+            }
+        }
+        this.childTargetIndex = new TargetIndex(listTargets);
     }
 
     @Override
@@ -224,6 +251,15 @@ public class PolicySet extends PolicyDef {
         List<CombiningElement<PolicySetChild>> listCombiningElements = this.getCombiningPolicies();
         assert listCombiningElements != null;
 
+        /*
+         * If the child targets have been compiled, leave out the children that cannot match. They would
+         * all evaluate to NotApplicable, which the combining algorithms skip. Tracing sees every child.
+         */
+        TargetIndex targetIndex = this.childTargetIndex;
+        if (targetIndex != null && !evaluationContext.isTracing()) {
+            listCombiningElements = targetIndex.select(evaluationContext, listCombiningElements);
+        }
+
         /*
          * Run the PolicyCombiningAlgorithm
          */
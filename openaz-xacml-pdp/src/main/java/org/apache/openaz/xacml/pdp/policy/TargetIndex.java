@@ -0,0 +1,353 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.policy;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.openaz.xacml.api.Attribute;
+import org.apache.openaz.xacml.api.AttributeValue;
+import org.apache.openaz.xacml.api.DataType;
+import org.apache.openaz.xacml.api.Identifier;
+import org.apache.openaz.xacml.api.Request;
+import org.apache.openaz.xacml.api.RequestAttributes;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.api.pip.PIPRequest;
+import org.apache.openaz.xacml.pdp.eval.EvaluationContext;
+import org.apache.openaz.xacml.pdp.policy.expressions.AttributeDesignator;
+import org.apache.openaz.xacml.std.datatypes.DataTypes;
+import org.apache.openaz.xacml.std.pip.StdPIPRequest;
+
+/**
+ * TargetIndex is an immutable index over an ordered list of {@link org.apache.openaz.xacml.pdp.policy.Target}s
+ * that narrows down which of them can possibly match a request without evaluating every one.
+ * <p>
+ * A <code>Target</code> is indexed on its first <code>AnyOf</code> when the first <code>Match</code> of every
+ * <code>AllOf</code> in it is an equality function (<code>string-equal</code>, <code>anyURI-equal</code>,
+ * <code>integer-equal</code> or <code>boolean-equal</code>) against an <code>AttributeDesignator</code>. When
+ * none of the (category, attribute id, value) keys from that <code>AnyOf</code> are present in the request,
+ * <code>Target.match</code> would have returned <code>NOMATCH</code> from those first <code>Match</code>es
+ * without evaluating anything else, so the position can be skipped with no change in the result. Every other
+ * <code>Target</code> is always returned as a candidate.
+ * <p>
+ * Attribute values are only taken from the <code>Request</code> itself, which is where the
+ * <code>AttributeDesignator</code> would find them first. When the <code>Request</code> has no value for a
+ * designator, it may still be supplied by a PIP engine, so rather than retrieving it up front every position
+ * depending on that designator is a candidate and the normal evaluation path retrieves it only if needed. Any
+ * conversion error likewise makes every position depending on that designator a candidate so that the error
+ * surfaces from the normal evaluation path.
+ */
+public class TargetIndex {
+    private static final Map<Identifier, DataType<?>> MAP_INDEXABLE_FUNCTIONS = new HashMap<Identifier, DataType<?>>();
+
+    static {
+        MAP_INDEXABLE_FUNCTIONS.put(XACML3.ID_FUNCTION_STRING_EQUAL, DataTypes.DT_STRING);
+        MAP_INDEXABLE_FUNCTIONS.put(XACML3.ID_FUNCTION_ANYURI_EQUAL, DataTypes.DT_ANYURI);
+        MAP_INDEXABLE_FUNCTIONS.put(XACML3.ID_FUNCTION_INTEGER_EQUAL, DataTypes.DT_INTEGER);
+        MAP_INDEXABLE_FUNCTIONS.put(XACML3.ID_FUNCTION_BOOLEAN_EQUAL, DataTypes.DT_BOOLEAN);
+    }
+
+    /*
+     * All of the indexed positions keyed by a single AttributeDesignator
+     */
+    private static class DesignatorEntry {
+        private final Identifier category;
+        private final Identifier attributeId;
+        private final String issuer;
+        private final DataType<?> dataType;
+        private final Map<Object, BitSet> mapValues = new HashMap<Object, BitSet>();
+        private final BitSet allPositions = new BitSet();
+
+        DesignatorEntry(AttributeDesignator attributeDesignator, DataType<?> dataTypeIn) {
+            this.category = attributeDesignator.getCategory();
+            this.attributeId = attributeDesignator.getAttributeId();
+            this.issuer = attributeDesignator.getIssuer();
+            this.dataType = dataTypeIn;
+        }
+
+        void add(Object value, int position) {
+            BitSet positions = this.mapValues.get(value);
+            if (positions == null) {
+                positions = new BitSet();
+                this.mapValues.put(value, positions);
+            }
+            positions.set(position);
+            this.allPositions.set(position);
+        }
+
+        boolean matches(Attribute attribute) {
+            return this.category.equals(attribute.getCategory())
+                   && this.attributeId.equals(attribute.getAttributeId())
+                   && (this.issuer == null || this.issuer.equals(attribute.getIssuer()));
+        }
+    }
+
+    /*
+     * An indexable Match resolved down to its designator key and converted value
+     */
+    private static class IndexKey {
+        private final PIPRequest pipRequest;
+        private final AttributeDesignator attributeDesignator;
+        private final DataType<?> dataType;
+        private final Object value;
+
+        IndexKey(AttributeDesignator attributeDesignatorIn, DataType<?> dataTypeIn, Object valueIn) {
+            this.attributeDesignator = attributeDesignatorIn;
+            this.pipRequest = new StdPIPRequest(attributeDesignatorIn.getCategory(),
+                                                attributeDesignatorIn.getAttributeId(),
+                                                attributeDesignatorIn.getDataTypeId(),
+                                                attributeDesignatorIn.getIssuer());
+            this.dataType = dataTypeIn;
+            this.value = valueIn;
+        }
+    }
+
+    private final int size;
+    private final BitSet unindexedPositions = new BitSet();
+    private final Map<PIPRequest, DesignatorEntry> mapDesignators = new HashMap<PIPRequest, DesignatorEntry>();
+
+    /**
+     * Creates a new <code>TargetIndex</code> over the given <code>List</code> of <code>Target</code>s. A
+     * <code>null</code> entry marks a position that must always be evaluated.
+     *
+     * @param targets the <code>List</code> of <code>Target</code>s in evaluation order
+     */
+    public TargetIndex(List<Target> targets) {
+        this.size = (targets == null ? 0 : targets.size());
+        for (int i = 0; i < this.size; i++) {
+            List<IndexKey> indexKeys = getIndexKeys(targets.get(i));
+            if (indexKeys == null) {
+                this.unindexedPositions.set(i);
+            } else {
+                for (IndexKey indexKey : indexKeys) {
+                    DesignatorEntry designatorEntry = this.mapDesignators.get(indexKey.pipRequest);
+                    if (designatorEntry == null) {
+                        designatorEntry = new DesignatorEntry(indexKey.attributeDesignator, indexKey.dataType);
+                        this.mapDesignators.put(indexKey.pipRequest, designatorEntry);
+                    }
+                    designatorEntry.add(indexKey.value, i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles the <code>Target</code>s of each of the given <code>PolicyDef</code>s.
+     *
+     * @param policyDefs the <code>List</code> of <code>PolicyDef</code>s to compile, may be null
+     * @see org.apache.openaz.xacml.pdp.policy.PolicyDef#compileTargets()
+     */
+    public static void compileTargets(List<? extends PolicyDef> policyDefs) {
+        if (policyDefs != null) {
+            for (PolicyDef policyDef : policyDefs) {
+                policyDef.compileTargets();
+            }
+        }
+    }
+
+    /**
+     * Gets the index keys for the given <code>Target</code>, one per <code>AllOf</code> in its first
+     * <code>AnyOf</code>.
+     *
+     * @param target the <code>Target</code> to index
+     * @return the <code>List</code> of <code>IndexKey</code>s or null if the <code>Target</code> cannot be
+     *         indexed
+     */
+    private static List<IndexKey> getIndexKeys(Target target) {
+        if (target == null || !target.validate()) {
+            return null;
+        }
+        Iterator<AnyOf> iterAnyOfs = target.getAnyOfs();
+        if (iterAnyOfs == null || !iterAnyOfs.hasNext()) {
+            return null;
+        }
+        AnyOf anyOf = iterAnyOfs.next();
+        if (!anyOf.validate()) {
+            return null;
+        }
+        List<IndexKey> indexKeys = new ArrayList<IndexKey>();
+        Iterator<AllOf> iterAllOfs = anyOf.getAllOfs();
+        while (iterAllOfs.hasNext()) {
+            AllOf allOf = iterAllOfs.next();
+            if (!allOf.validate()) {
+                return null;
+            }
+            IndexKey indexKey = getIndexKey(allOf.getMatches().next());
+            if (indexKey == null) {
+                return null;
+            }
+            indexKeys.add(indexKey);
+        }
+        return (indexKeys.size() == 0 ? null : indexKeys);
+    }
+
+    private static IndexKey getIndexKey(Match match) {
+        if (!match.validate()) {
+            return null;
+        }
+        DataType<?> dataType = MAP_INDEXABLE_FUNCTIONS.get(match.getMatchId());
+        if (dataType == null || !(match.getAttributeRetrievalBase() instanceof AttributeDesignator)) {
+            return null;
+        }
+        AttributeDesignator attributeDesignator = (AttributeDesignator)match.getAttributeRetrievalBase();
+        if (!attributeDesignator.validate() || !dataType.getId().equals(attributeDesignator.getDataTypeId())) {
+            return null;
+        }
+        AttributeValue<?> attributeValue = match.getAttributeValue();
+        if (!dataType.getId().equals(attributeValue.getDataTypeId()) || attributeValue.getValue() == null) {
+            return null;
+        }
+        Object value;
+        try {
+            value = dataType.convert(attributeValue.getValue());
+        } catch (Exception ex) {
+            return null;
+        }
+        return (value == null ? null : new IndexKey(attributeDesignator, dataType, value));
+    }
+
+    /**
+     * Gets the number of positions in this <code>TargetIndex</code>.
+     *
+     * @return the number of positions
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Gets the number of positions that are always returned as candidates because their <code>Target</code>
+     * could not be indexed.
+     *
+     * @return the number of unindexed positions
+     */
+    public int getUnindexedCount() {
+        return this.unindexedPositions.cardinality();
+    }
+
+    /**
+     * Selects the elements of the given <code>List</code> whose positions may match the request in the given
+     * <code>EvaluationContext</code>, keeping their original order.
+     *
+     * @param evaluationContext the <code>EvaluationContext</code> to retrieve attributes from
+     * @param elements the <code>List</code> of elements this <code>TargetIndex</code> was built for
+     * @return the candidate elements, or <code>elements</code> itself if every position is a candidate
+     */
+    public <E> List<E> select(EvaluationContext evaluationContext, List<E> elements) {
+        if (elements.size() != this.size) {
+            return elements;
+        }
+        BitSet candidates = this.getCandidates(evaluationContext);
+        int count = candidates.cardinality();
+        if (count == this.size) {
+            return elements;
+        }
+        List<E> listCandidates = new ArrayList<E>(count);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            listCandidates.add(elements.get(i));
+        }
+        return listCandidates;
+    }
+
+    /**
+     * Determines which positions may match the request in the given <code>EvaluationContext</code>. Any
+     * position not in the returned <code>BitSet</code> is guaranteed to evaluate to <code>NOMATCH</code>.
+     *
+     * @param evaluationContext the <code>EvaluationContext</code> whose <code>Request</code> is checked
+     * @return a new <code>BitSet</code> with the candidate positions set
+     */
+    public BitSet getCandidates(EvaluationContext evaluationContext) {
+        BitSet candidates = (BitSet)this.unindexedPositions.clone();
+        Request request = evaluationContext.getRequest();
+        for (DesignatorEntry designatorEntry : this.mapDesignators.values()) {
+            if (request == null) {
+                candidates.or(designatorEntry.allPositions);
+            } else {
+                this.addCandidates(request, designatorEntry, candidates);
+            }
+        }
+        return candidates;
+    }
+
+    private void addCandidates(Request request, DesignatorEntry designatorEntry, BitSet candidates) {
+        boolean sawValue = false;
+        Iterator<RequestAttributes> iterRequestAttributes = request
+            .getRequestAttributes(designatorEntry.category);
+        while (iterRequestAttributes != null && iterRequestAttributes.hasNext()) {
+            Iterator<Attribute> iterAttributes = iterRequestAttributes.next()
+                .getAttributes(designatorEntry.attributeId);
+            while (iterAttributes.hasNext()) {
+                Attribute attribute = iterAttributes.next();
+                if (!designatorEntry.matches(attribute)) {
+                    continue;
+                }
+                for (AttributeValue<?> attributeValue : attribute.getValues()) {
+                    if (!designatorEntry.dataType.getId().equals(attributeValue.getDataTypeId())) {
+                        continue;
+                    }
+                    sawValue = true;
+                    Object value = null;
+                    try {
+                        value = (attributeValue.getValue() == null ? null : designatorEntry.dataType
+                            .convert(attributeValue.getValue()));
+                    } catch (Exception ex) {
+                        value = null;
+                    }
+                    if (value == null) {
+                        /*
+                         * The Match function would have been indeterminate on this value
+                         */
+                        candidates.or(designatorEntry.allPositions);
+                        return;
+                    }
+                    BitSet positions = designatorEntry.mapValues.get(value);
+                    if (positions != null) {
+                        candidates.or(positions);
+                    }
+                }
+            }
+        }
+        if (!sawValue) {
+            /*
+             * Not in the Request, so a PIP engine may supply it. Leave it to the normal evaluation path to
+             * retrieve the value only if one of these positions is actually evaluated.
+             */
+            candidates.or(designatorEntry.allPositions);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder("{");
+        stringBuilder.append("size=");
+        stringBuilder.append(this.size);
+        stringBuilder.append(",unindexed=");
+        stringBuilder.append(this.getUnindexedCount());
+        stringBuilder.append(",designators=");
+        stringBuilder.append(this.mapDesignators.keySet().toString());
+        stringBuilder.append('}');
+        return stringBuilder.toString();
+    }
+}
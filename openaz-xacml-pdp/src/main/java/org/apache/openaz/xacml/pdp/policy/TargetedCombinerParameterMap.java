@@ -48,7 +48,7 @@ import java.util.Map;
 public class TargetedCombinerParameterMap<T, U> {
     List<TargetedCombinerParameter<T, U>> targetedCombinerParameters = null;
     Map<T, U> mapTargetIdToTarget = new HashMap<T, U>();
-    Map<U, List<CombinerParameter>> mapTargetToCombinerParameters = null;
+    volatile Map<U, List<CombinerParameter>> mapTargetToCombinerParameters = null;
 
     private void ensureTargetedCombinerParameters() {
         if (this.targetedCombinerParameters == null) {
@@ -86,21 +86,21 @@ public class TargetedCombinerParameterMap<T, U> {
     protected void ensureMap() throws IllegalStateException {
         if (this.mapTargetToCombinerParameters == null
             && this.targetedCombinerParameters != null && this.targetedCombinerParameters.size() > 0) {
-            this.mapTargetToCombinerParameters = new HashMap<U, List<CombinerParameter>>();
+            Map<U, List<CombinerParameter>> mapCombinerParameters = new HashMap<U, List<CombinerParameter>>();
             for (TargetedCombinerParameter<T, U> targetedCombinerParameter : this.targetedCombinerParameters) {
                 U target = this.resolve(targetedCombinerParameter);
                 if (target == null) {
                     throw new IllegalStateException("Unresolved TargetCombinerParameter \""
                         + targetedCombinerParameter.toString() + "\"");
                 }
-                List<CombinerParameter> listCombinerParameters = this.mapTargetToCombinerParameters
-                    .get(target);
+                List<CombinerParameter> listCombinerParameters = mapCombinerParameters.get(target);
                 if (listCombinerParameters == null) {
                     listCombinerParameters = new ArrayList<CombinerParameter>();
-                    this.mapTargetToCombinerParameters.put(target, listCombinerParameters);
+                    mapCombinerParameters.put(target, listCombinerParameters);
                 }
                 listCombinerParameters.add(targetedCombinerParameter);
             }
+            this.mapTargetToCombinerParameters = mapCombinerParameters;
         }
     }
 
@@ -168,8 +168,8 @@ public class TargetedCombinerParameterMap<T, U> {
      */
     public List<CombinerParameter> getCombinerParameters(U target) throws IllegalStateException {
         this.ensureMap();
-        return (this.mapTargetToCombinerParameters == null ? null : this.mapTargetToCombinerParameters
-            .get(target));
+        Map<U, List<CombinerParameter>> mapCombinerParameters = this.mapTargetToCombinerParameters;
+        return (mapCombinerParameters == null ? null : mapCombinerParameters.get(target));
     }
 
     public Iterator<TargetedCombinerParameter<T, U>> getTargetedCombinerParameters() {
@@ -0,0 +1,232 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.policy.binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.openaz.xacml.pdp.policy.PolicyDef;
+import org.apache.openaz.xacml.pdp.policy.dom.DOMPolicyDef;
+import org.apache.openaz.xacml.std.dom.DOMStructureException;
+
+/**
+ * BinaryPolicyDef stores {@link org.apache.openaz.xacml.pdp.policy.PolicyDef}s in a compact binary form and
+ * loads them back by memory-mapping the file, which is much faster than parsing the XACML XML.
+ * <p>
+ * A binary file records the SHA-256 digest of the XML it was compiled from and a CRC-32 of its own contents.
+ * It is only used when both still match, so a binary file can never be loaded in place of different XML. A
+ * <code>PolicyDef</code> that uses something the binary form cannot represent, such as a
+ * <code>PolicyIssuer</code> or an <code>AttributeValue</code> that does not survive a round trip through its
+ * <code>DataType</code>, is never stored and is always loaded from the XML.
+ */
+public abstract class BinaryPolicyDef {
+    /*
+     * The file suffix of the binary form of a policy file
+     */
+    public static final String SUFFIX = ".bin";
+
+    static final int MAGIC = 0x4F415A50;
+    static final int FORMAT_VERSION = 1;
+
+    static final int TAG_NULL = 0;
+    static final int TAG_POLICY = 1;
+    static final int TAG_POLICYSET = 2;
+    static final int TAG_POLICYIDREFERENCE = 3;
+    static final int TAG_POLICYSETIDREFERENCE = 4;
+
+    static final int TAG_APPLY = 1;
+    static final int TAG_ATTRIBUTEDESIGNATOR = 2;
+    static final int TAG_ATTRIBUTESELECTOR = 3;
+    static final int TAG_ATTRIBUTEVALUE = 4;
+    static final int TAG_FUNCTION = 5;
+    static final int TAG_VARIABLEREFERENCE = 6;
+
+    static final int VALUE_STRING = 1;
+    static final int VALUE_BOOLEAN = 2;
+    static final int VALUE_INTEGER = 3;
+    static final int VALUE_DOUBLE = 4;
+    static final int VALUE_TEXT = 5;
+
+    static final int DEFAULTS_NONE = 0;
+    static final int DEFAULTS_PARENT = 1;
+    static final int DEFAULTS_OWN = 2;
+
+    private static final Log logger = LogFactory.getLog(BinaryPolicyDef.class);
+
+    protected BinaryPolicyDef() {
+    }
+
+    /**
+     * Computes the digest that identifies the given XML in the binary form compiled from it.
+     *
+     * @param bytes the XML bytes
+     * @return the SHA-256 digest of the bytes
+     */
+    public static byte[] digest(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    /**
+     * Gets the <code>File</code> the binary form of the given policy file is stored in.
+     *
+     * @param filePolicy the <code>File</code> containing the XACML Policy or PolicySet
+     * @return the <code>File</code> next to it for the binary form
+     */
+    public static File getBinaryFile(File filePolicy) {
+        return new File(filePolicy.getPath() + SUFFIX);
+    }
+
+    /**
+     * Stores the given <code>PolicyDef</code> in the given <code>File</code>. The file is replaced
+     * atomically, so a concurrent <code>load</code> sees either the old or the new contents.
+     *
+     * @param policyDef the <code>PolicyDef</code> to store
+     * @param sourceDigest the <code>digest</code> of the XML the <code>PolicyDef</code> was loaded from
+     * @param fileBinary the <code>File</code> to store it in
+     * @return true if the <code>PolicyDef</code> was stored, false if it cannot be represented
+     * @throws IOException if there is an error writing the file
+     */
+    public static boolean store(PolicyDef policyDef, byte[] sourceDigest, File fileBinary) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = new BinaryPolicyWriter().write(policyDef, sourceDigest);
+        } catch (BinaryPolicyWriter.UnsupportedPolicyException ex) {
+            logger.debug("Not storing " + policyDef.getIdentifier() + " in binary form: " + ex.getMessage());
+            return false;
+        }
+        Path pathBinary = fileBinary.toPath().toAbsolutePath();
+        Path pathTemp = Files.createTempFile(pathBinary.getParent(), fileBinary.getName(), ".tmp");
+        try {
+            try (OutputStream outputStream = Files.newOutputStream(pathTemp)) {
+                outputStream.write(bytes);
+            }
+            Files.move(pathTemp, pathBinary, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(pathTemp);
+        }
+        return true;
+    }
+
+    /**
+     * Loads a <code>PolicyDef</code> from the given binary <code>File</code> if it was compiled from XML with
+     * the given digest.
+     *
+     * @param fileBinary the binary <code>File</code>
+     * @param sourceDigest the <code>digest</code> of the XML the <code>PolicyDef</code> is wanted for
+     * @return the <code>PolicyDef</code>, or null if the file is missing, stale or corrupt
+     */
+    public static PolicyDef load(File fileBinary, byte[] sourceDigest) {
+        if (!fileBinary.isFile()) {
+            return null;
+        }
+        try (FileChannel fileChannel = FileChannel.open(fileBinary.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer byteBuffer = fileChannel.map(MapMode.READ_ONLY, 0, fileChannel.size());
+            return new BinaryPolicyReader(byteBuffer).read(sourceDigest);
+        } catch (Exception ex) {
+            logger.warn("Ignoring unreadable binary policy " + fileBinary.getAbsolutePath() + ": " + ex, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Creates a new <code>PolicyDef</code> derived object from the given <code>File</code> containing a
+     * XACML 3.0 Policy or PolicySet, using the binary form next to the file.
+     *
+     * @param filePolicy the <code>File</code> containing the XACML Policy or PolicySet
+     * @return the newly created <code>PolicyDef</code>
+     * @throws DOMStructureException if the XML has to be parsed and there is an error loading it
+     */
+    public static PolicyDef load(File filePolicy) throws DOMStructureException {
+        return load(filePolicy, getBinaryFile(filePolicy));
+    }
+
+    /**
+     * Creates a new <code>PolicyDef</code> derived object from the given <code>File</code> containing a
+     * XACML 3.0 Policy or PolicySet. The given binary <code>File</code> is used if it matches the XML.
+     * Otherwise the XML is parsed and the binary form is rewritten for the next load.
+     *
+     * @param filePolicy the <code>File</code> containing the XACML Policy or PolicySet
+     * @param fileBinary the <code>File</code> containing the binary form
+     * @return the newly created <code>PolicyDef</code>
+     * @throws DOMStructureException if the XML has to be parsed and there is an error loading it
+     */
+    public static PolicyDef load(File filePolicy, File fileBinary) throws DOMStructureException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(filePolicy.toPath());
+        } catch (IOException ex) {
+            throw new DOMStructureException("Exception loading Policy file \"" + filePolicy.getAbsolutePath()
+                                            + "\": " + ex.getMessage(), ex);
+        }
+        return load(bytes, digest(bytes), fileBinary);
+    }
+
+    /**
+     * Creates a new <code>PolicyDef</code> derived object from the given XACML 3.0 Policy or PolicySet XML
+     * that has already been read and digested. The given binary <code>File</code> is used if it matches the
+     * XML. Otherwise the XML is parsed and the binary form is rewritten for the next load.
+     *
+     * @param bytes the XML bytes
+     * @param sourceDigest the <code>digest</code> of the bytes
+     * @param fileBinary the <code>File</code> containing the binary form
+     * @return the newly created <code>PolicyDef</code>
+     * @throws DOMStructureException if the XML has to be parsed and there is an error loading it
+     */
+    public static PolicyDef load(byte[] bytes, byte[] sourceDigest, File fileBinary)
+        throws DOMStructureException {
+        PolicyDef policyDef = load(fileBinary, sourceDigest);
+        if (policyDef != null) {
+            return policyDef;
+        }
+
+        /*
+         * Parse the bytes that were digested, so the binary form matches them even if the file changes
+         */
+        policyDef = DOMPolicyDef.load(new ByteArrayInputStream(bytes));
+        try {
+            if (store(policyDef, sourceDigest, fileBinary)) {
+                logger.info("Stored binary policy " + fileBinary.getAbsolutePath());
+            }
+        } catch (IOException ex) {
+            logger.warn("Failed to store binary policy " + fileBinary.getAbsolutePath() + ": "
+                        + ex.getMessage());
+        }
+        return policyDef;
+    }
+}
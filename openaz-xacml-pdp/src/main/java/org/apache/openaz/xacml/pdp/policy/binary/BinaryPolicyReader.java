@@ -0,0 +1,617 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.policy.binary;
+
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.openaz.xacml.api.AttributeValue;
+import org.apache.openaz.xacml.api.DataType;
+import org.apache.openaz.xacml.api.DataTypeException;
+import org.apache.openaz.xacml.api.DataTypeFactory;
+import org.apache.openaz.xacml.api.Identifier;
+import org.apache.openaz.xacml.api.StatusCode;
+import org.apache.openaz.xacml.api.VersionMatch;
+import org.apache.openaz.xacml.pdp.policy.AdviceExpression;
+import org.apache.openaz.xacml.pdp.policy.AllOf;
+import org.apache.openaz.xacml.pdp.policy.AnyOf;
+import org.apache.openaz.xacml.pdp.policy.AttributeAssignmentExpression;
+import org.apache.openaz.xacml.pdp.policy.CombinerParameter;
+import org.apache.openaz.xacml.pdp.policy.CombiningAlgorithm;
+import org.apache.openaz.xacml.pdp.policy.CombiningAlgorithmFactory;
+import org.apache.openaz.xacml.pdp.policy.Condition;
+import org.apache.openaz.xacml.pdp.policy.Expression;
+import org.apache.openaz.xacml.pdp.policy.Match;
+import org.apache.openaz.xacml.pdp.policy.ObligationExpression;
+import org.apache.openaz.xacml.pdp.policy.Policy;
+import org.apache.openaz.xacml.pdp.policy.PolicyDef;
+import org.apache.openaz.xacml.pdp.policy.PolicyDefaults;
+import org.apache.openaz.xacml.pdp.policy.PolicyIdReference;
+import org.apache.openaz.xacml.pdp.policy.PolicyIdReferenceBase;
+import org.apache.openaz.xacml.pdp.policy.PolicySet;
+import org.apache.openaz.xacml.pdp.policy.PolicySetChild;
+import org.apache.openaz.xacml.pdp.policy.PolicySetIdReference;
+import org.apache.openaz.xacml.pdp.policy.Rule;
+import org.apache.openaz.xacml.pdp.policy.RuleEffect;
+import org.apache.openaz.xacml.pdp.policy.Target;
+import org.apache.openaz.xacml.pdp.policy.TargetedCombinerParameter;
+import org.apache.openaz.xacml.pdp.policy.VariableDefinition;
+import org.apache.openaz.xacml.pdp.policy.expressions.Apply;
+import org.apache.openaz.xacml.pdp.policy.expressions.AttributeDesignator;
+import org.apache.openaz.xacml.pdp.policy.expressions.AttributeRetrievalBase;
+import org.apache.openaz.xacml.pdp.policy.expressions.AttributeSelector;
+import org.apache.openaz.xacml.pdp.policy.expressions.AttributeValueExpression;
+import org.apache.openaz.xacml.pdp.policy.expressions.Function;
+import org.apache.openaz.xacml.pdp.policy.expressions.VariableReference;
+import org.apache.openaz.xacml.std.IdentifierImpl;
+import org.apache.openaz.xacml.std.StdAttributeValue;
+import org.apache.openaz.xacml.std.StdIdReferenceMatch;
+import org.apache.openaz.xacml.std.StdStatusCode;
+import org.apache.openaz.xacml.std.StdVersion;
+import org.apache.openaz.xacml.std.StdVersionMatch;
+import org.apache.openaz.xacml.util.FactoryException;
+
+/**
+ * BinaryPolicyReader decodes a {@link org.apache.openaz.xacml.pdp.policy.PolicyDef} from the format written
+ * by {@link BinaryPolicyWriter}. The <code>ByteBuffer</code> is normally a memory-mapped file, so only the
+ * pages that are actually read are brought in, and the whole file is read exactly once.
+ * <p>
+ * A reader is used for a single <code>read</code>. Each distinct <code>Identifier</code> in the file is
+ * created once and shared by every component that uses it.
+ */
+class BinaryPolicyReader {
+    private static final int CRC_CHUNK = 64 * 1024;
+    private static final RuleEffect[] RULE_EFFECTS = RuleEffect.values();
+
+    private final ByteBuffer byteBuffer;
+    private String[] strings;
+    private Identifier[] identifiers;
+    private final Map<Identifier, StatusCode> mapStatusCodes = new HashMap<Identifier, StatusCode>();
+    private DataTypeFactory dataTypeFactory;
+    private CombiningAlgorithmFactory combiningAlgorithmFactory;
+
+    /*
+     * Thrown when the contents of the buffer are not a valid binary policy
+     */
+    private static class CorruptPolicyException extends Exception {
+        private static final long serialVersionUID = -1729435542377851206L;
+
+        CorruptPolicyException(String message) {
+            super(message);
+        }
+    }
+
+    BinaryPolicyReader(ByteBuffer byteBufferIn) {
+        this.byteBuffer = byteBufferIn.duplicate();
+    }
+
+    private int readByte() {
+        return this.byteBuffer.get() & 0xFF;
+    }
+
+    private int readVarInt() throws CorruptPolicyException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = this.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new CorruptPolicyException("Invalid varint");
+    }
+
+    private String readString() throws CorruptPolicyException {
+        int index = this.readVarInt();
+        if (index == 0) {
+            return null;
+        } else if (index > this.strings.length) {
+            throw new CorruptPolicyException("Invalid string index " + index);
+        }
+        return this.strings[index - 1];
+    }
+
+    private Identifier readIdentifier() throws CorruptPolicyException {
+        int index = this.readVarInt();
+        if (index == 0) {
+            return null;
+        } else if (index > this.strings.length) {
+            throw new CorruptPolicyException("Invalid string index " + index);
+        }
+        Identifier identifier = this.identifiers[index - 1];
+        if (identifier == null) {
+            identifier = IdentifierImpl.valueOf(this.strings[index - 1]);
+            this.identifiers[index - 1] = identifier;
+        }
+        return identifier;
+    }
+
+    private Boolean readBoolean() throws CorruptPolicyException {
+        switch (this.readByte()) {
+        case 0:
+            return null;
+        case 1:
+            return Boolean.FALSE;
+        case 2:
+            return Boolean.TRUE;
+        default:
+            throw new CorruptPolicyException("Invalid boolean");
+        }
+    }
+
+    private RuleEffect readRuleEffect() throws CorruptPolicyException {
+        int ordinal = this.readByte();
+        if (ordinal == 0) {
+            return null;
+        } else if (ordinal > RULE_EFFECTS.length) {
+            throw new CorruptPolicyException("Invalid RuleEffect " + ordinal);
+        }
+        return RULE_EFFECTS[ordinal - 1];
+    }
+
+    private StatusCode readStatusCode() throws CorruptPolicyException {
+        Identifier statusCodeValue = this.readIdentifier();
+        if (statusCodeValue == null) {
+            return null;
+        }
+        StatusCode statusCode = this.mapStatusCodes.get(statusCodeValue);
+        if (statusCode == null) {
+            statusCode = new StdStatusCode(statusCodeValue);
+            this.mapStatusCodes.put(statusCodeValue, statusCode);
+        }
+        return statusCode;
+    }
+
+    private StdVersion readVersion() throws CorruptPolicyException {
+        int count = this.readVarInt();
+        if (count == 0) {
+            return null;
+        }
+        int[] digits = new int[count - 1];
+        for (int i = 0; i < digits.length; i++) {
+            digits[i] = this.readVarInt();
+        }
+        return new StdVersion(digits);
+    }
+
+    private VersionMatch readVersionMatch() throws CorruptPolicyException, ParseException {
+        String versionMatch = this.readString();
+        return versionMatch == null ? null : StdVersionMatch.newInstance(versionMatch);
+    }
+
+    private DataTypeFactory getDataTypeFactory() throws FactoryException {
+        if (this.dataTypeFactory == null) {
+            this.dataTypeFactory = DataTypeFactory.newInstance();
+        }
+        return this.dataTypeFactory;
+    }
+
+    private CombiningAlgorithmFactory getCombiningAlgorithmFactory() throws FactoryException {
+        if (this.combiningAlgorithmFactory == null) {
+            this.combiningAlgorithmFactory = CombiningAlgorithmFactory.newInstance();
+        }
+        return this.combiningAlgorithmFactory;
+    }
+
+    private AttributeValue<?> readAttributeValue() throws CorruptPolicyException, FactoryException,
+        DataTypeException {
+        int kind = this.readByte();
+        if (kind == BinaryPolicyDef.TAG_NULL) {
+            return null;
+        }
+        Identifier dataTypeId = this.readIdentifier();
+        Identifier xpathCategory = this.readIdentifier();
+        Object value;
+        switch (kind) {
+        case BinaryPolicyDef.VALUE_STRING:
+            value = this.readString();
+            break;
+        case BinaryPolicyDef.VALUE_BOOLEAN:
+            value = this.readBoolean();
+            break;
+        case BinaryPolicyDef.VALUE_INTEGER:
+            byte[] bytes = new byte[this.readVarInt()];
+            this.byteBuffer.get(bytes);
+            value = new BigInteger(bytes);
+            break;
+        case BinaryPolicyDef.VALUE_DOUBLE:
+            value = Double.longBitsToDouble(this.byteBuffer.getLong());
+            break;
+        case BinaryPolicyDef.VALUE_TEXT:
+            DataType<?> dataType = this.getDataTypeFactory().getDataType(dataTypeId);
+            if (dataType == null) {
+                throw new CorruptPolicyException("Unknown data type " + dataTypeId);
+            }
+            value = dataType.convert(this.readString());
+            break;
+        default:
+            throw new CorruptPolicyException("Invalid value kind " + kind);
+        }
+        return new StdAttributeValue<Object>(dataTypeId, value, xpathCategory);
+    }
+
+    private void readAttributeRetrievalBase(AttributeRetrievalBase attributeRetrievalBase)
+        throws CorruptPolicyException {
+        attributeRetrievalBase.setCategory(this.readIdentifier());
+        attributeRetrievalBase.setDataTypeId(this.readIdentifier());
+        Boolean mustBePresent = this.readBoolean();
+        if (mustBePresent != null) {
+            attributeRetrievalBase.setMustBePresent(mustBePresent);
+        }
+    }
+
+    private Expression readExpression(Policy policy) throws CorruptPolicyException, FactoryException,
+        DataTypeException {
+        int tag = this.readByte();
+        switch (tag) {
+        case BinaryPolicyDef.TAG_NULL:
+            return null;
+        case BinaryPolicyDef.TAG_APPLY:
+            Apply apply = new Apply(this.readStatusCode(), this.readString());
+            apply.setFunctionId(this.readIdentifier());
+            apply.setDescription(this.readString());
+            for (int i = this.readVarInt(); i > 0; i--) {
+                apply.addArgument(this.readExpression(policy));
+            }
+            return apply;
+        case BinaryPolicyDef.TAG_ATTRIBUTEDESIGNATOR:
+            AttributeDesignator attributeDesignator = new AttributeDesignator(this.readStatusCode(),
+                                                                              this.readString());
+            this.readAttributeRetrievalBase(attributeDesignator);
+            attributeDesignator.setAttributeId(this.readIdentifier());
+            attributeDesignator.setIssuer(this.readString());
+            return attributeDesignator;
+        case BinaryPolicyDef.TAG_ATTRIBUTESELECTOR:
+            AttributeSelector attributeSelector = new AttributeSelector(this.readStatusCode(), this.readString());
+            this.readAttributeRetrievalBase(attributeSelector);
+            attributeSelector.setContextSelectorId(this.readIdentifier());
+            attributeSelector.setPath(this.readString());
+            return attributeSelector;
+        case BinaryPolicyDef.TAG_ATTRIBUTEVALUE:
+            AttributeValueExpression attributeValueExpression = new AttributeValueExpression(this
+                .readStatusCode(), this.readString());
+            attributeValueExpression.setAttributeValue(this.readAttributeValue());
+            return attributeValueExpression;
+        case BinaryPolicyDef.TAG_FUNCTION:
+            Function function = new Function(this.readStatusCode(), this.readString());
+            function.setFunctionId(this.readIdentifier());
+            return function;
+        case BinaryPolicyDef.TAG_VARIABLEREFERENCE:
+            if (policy == null) {
+                throw new CorruptPolicyException("VariableReference outside of a Policy");
+            }
+            VariableReference variableReference = new VariableReference(this.readStatusCode(),
+                                                                        this.readString());
+            variableReference.setPolicy(policy);
+            variableReference.setVariableId(this.readString());
+            return variableReference;
+        default:
+            throw new CorruptPolicyException("Invalid expression tag " + tag);
+        }
+    }
+
+    private Target readTarget() throws CorruptPolicyException, FactoryException, DataTypeException {
+        if (this.readByte() == BinaryPolicyDef.TAG_NULL) {
+            return null;
+        }
+        Target target = new Target(this.readStatusCode(), this.readString());
+        for (int i = this.readVarInt(); i > 0; i--) {
+            AnyOf anyOf = new AnyOf(this.readStatusCode(), this.readString());
+            for (int j = this.readVarInt(); j > 0; j--) {
+                AllOf allOf = new AllOf(this.readStatusCode(), this.readString());
+                for (int k = this.readVarInt(); k > 0; k--) {
+                    Match match = new Match(this.readStatusCode(), this.readString());
+                    match.setMatchId(this.readIdentifier());
+                    match.setAttributeValue(this.readAttributeValue());
+                    Expression expression = this.readExpression(null);
+                    if (expression != null && !(expression instanceof AttributeRetrievalBase)) {
+                        throw new CorruptPolicyException("Invalid Match expression");
+                    }
+                    match.setAttributeRetrievalBase((AttributeRetrievalBase)expression);
+                    allOf.addMatch(match);
+                }
+                anyOf.addAllOf(allOf);
+            }
+            target.addAnyOf(anyOf);
+        }
+        return target;
+    }
+
+    private void readCombinerParameter(CombinerParameter combinerParameter) throws CorruptPolicyException,
+        FactoryException, DataTypeException {
+        combinerParameter.setName(this.readString());
+        combinerParameter.setAttributeValue(this.readAttributeValue());
+    }
+
+    private AttributeAssignmentExpression readAttributeAssignmentExpression(Policy policy)
+        throws CorruptPolicyException, FactoryException, DataTypeException {
+        AttributeAssignmentExpression attributeAssignmentExpression = new AttributeAssignmentExpression(this
+            .readStatusCode(), this.readString());
+        attributeAssignmentExpression.setAttributeId(this.readIdentifier());
+        attributeAssignmentExpression.setCategory(this.readIdentifier());
+        attributeAssignmentExpression.setIssuer(this.readString());
+        attributeAssignmentExpression.setExpression(this.readExpression(policy));
+        return attributeAssignmentExpression;
+    }
+
+    private ObligationExpression readObligationExpression(Policy policy) throws CorruptPolicyException,
+        FactoryException, DataTypeException {
+        ObligationExpression obligationExpression = new ObligationExpression(this.readStatusCode(), this.readString());
+        obligationExpression.setObligationId(this.readIdentifier());
+        obligationExpression.setRuleEffect(this.readRuleEffect());
+        for (int i = this.readVarInt(); i > 0; i--) {
+            obligationExpression.addAttributeAssignmentExpression(this.readAttributeAssignmentExpression(policy));
+        }
+        return obligationExpression;
+    }
+
+    private AdviceExpression readAdviceExpression(Policy policy) throws CorruptPolicyException,
+        FactoryException, DataTypeException {
+        AdviceExpression adviceExpression = new AdviceExpression(this.readStatusCode(), this.readString());
+        adviceExpression.setAdviceId(this.readIdentifier());
+        adviceExpression.setAppliesTo(this.readRuleEffect());
+        for (int i = this.readVarInt(); i > 0; i--) {
+            adviceExpression.addAttributeAssignmentExpression(this.readAttributeAssignmentExpression(policy));
+        }
+        return adviceExpression;
+    }
+
+    private Rule readRule(Policy policy) throws CorruptPolicyException, FactoryException, DataTypeException {
+        Rule rule = new Rule(this.readStatusCode(), this.readString());
+        rule.setPolicy(policy);
+        rule.setRuleId(this.readString());
+        rule.setRuleEffect(this.readRuleEffect());
+        rule.setDescription(this.readString());
+        rule.setTarget(this.readTarget());
+        if (this.readByte() != BinaryPolicyDef.TAG_NULL) {
+            Condition condition = new Condition(this.readStatusCode(), this.readString());
+            condition.setExpression(this.readExpression(policy));
+            rule.setCondition(condition);
+        }
+        for (int i = this.readVarInt(); i > 0; i--) {
+            rule.addObligationExpression(this.readObligationExpression(policy));
+        }
+        for (int i = this.readVarInt(); i > 0; i--) {
+            rule.addAdviceExpression(this.readAdviceExpression(policy));
+        }
+        return rule;
+    }
+
+    private PolicyDefaults readPolicyDefaults(PolicyDefaults policyDefaultsParent) throws CorruptPolicyException {
+        int kind = this.readByte();
+        switch (kind) {
+        case BinaryPolicyDef.DEFAULTS_NONE:
+            return null;
+        case BinaryPolicyDef.DEFAULTS_PARENT:
+            return policyDefaultsParent;
+        case BinaryPolicyDef.DEFAULTS_OWN:
+            String xpathVersion = this.readString();
+            if (xpathVersion == null) {
+                throw new CorruptPolicyException("PolicyDefaults without an XPath version");
+            }
+            return new PolicyDefaults(URI.create(xpathVersion), policyDefaultsParent);
+        default:
+            throw new CorruptPolicyException("Invalid PolicyDefaults kind " + kind);
+        }
+    }
+
+    private void readPolicyDef(PolicyDef policyDef, Policy policy) throws CorruptPolicyException,
+        FactoryException, DataTypeException {
+        policyDef.setDescription(this.readString());
+        policyDef.setVersion(this.readVersion());
+        int maxDelegationDepth = this.readVarInt();
+        if (maxDelegationDepth > 0) {
+            policyDef.setMaxDelegationDepth(maxDelegationDepth - 1);
+        }
+        policyDef.setTarget(this.readTarget());
+        for (int i = this.readVarInt(); i > 0; i--) {
+            CombinerParameter combinerParameter = new CombinerParameter(this.readStatusCode(), this.readString());
+            this.readCombinerParameter(combinerParameter);
+            policyDef.add(combinerParameter);
+        }
+        for (int i = this.readVarInt(); i > 0; i--) {
+            policyDef.add(this.readObligationExpression(policy));
+        }
+        for (int i = this.readVarInt(); i > 0; i--) {
+            policyDef.add(this.readAdviceExpression(policy));
+        }
+    }
+
+    private CombiningAlgorithm<?> readCombiningAlgorithm(boolean isPolicy) throws CorruptPolicyException,
+        FactoryException {
+        Identifier combiningAlgorithmId = this.readIdentifier();
+        if (combiningAlgorithmId == null) {
+            return null;
+        }
+        CombiningAlgorithm<?> combiningAlgorithm = isPolicy
+            ? this.getCombiningAlgorithmFactory().getRuleCombiningAlgorithm(combiningAlgorithmId)
+            : this.getCombiningAlgorithmFactory().getPolicyCombiningAlgorithm(combiningAlgorithmId);
+        if (combiningAlgorithm == null) {
+            throw new CorruptPolicyException("Unknown combining algorithm " + combiningAlgorithmId);
+        }
+        return combiningAlgorithm;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readPolicy(Policy policy) throws CorruptPolicyException, FactoryException, DataTypeException {
+        this.readPolicyDef(policy, policy);
+        for (int i = this.readVarInt(); i > 0; i--) {
+            TargetedCombinerParameter<String, Rule> ruleCombinerParameter = new TargetedCombinerParameter<String, Rule>(
+                this.readStatusCode(), this.readString());
+            this.readCombinerParameter(ruleCombinerParameter);
+            ruleCombinerParameter.setTargetId(this.readString());
+            policy.addRuleCombinerParameter(ruleCombinerParameter);
+        }
+        for (int i = this.readVarInt(); i > 0; i--) {
+            VariableDefinition variableDefinition = new VariableDefinition(this.readStatusCode(), this.readString());
+            variableDefinition.setId(this.readString());
+            variableDefinition.setExpression(this.readExpression(policy));
+            policy.addVariableDefinition(variableDefinition);
+        }
+        for (int i = this.readVarInt(); i > 0; i--) {
+            policy.addRule(this.readRule(policy));
+        }
+        policy.setRuleCombiningAlgorithm((CombiningAlgorithm<Rule>)this.readCombiningAlgorithm(true));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readPolicySet(PolicySet policySet) throws CorruptPolicyException, FactoryException,
+        DataTypeException, ParseException {
+        this.readPolicyDef(policySet, null);
+        for (int i = this.readVarInt(); i > 0; i--) {
+            TargetedCombinerParameter<Identifier, PolicySetChild> policyCombinerParameter = new TargetedCombinerParameter<Identifier, PolicySetChild>(
+                this.readStatusCode(), this.readString());
+            this.readCombinerParameter(policyCombinerParameter);
+            policyCombinerParameter.setTargetId(this.readIdentifier());
+            policySet.addPolicyCombinerParameter(policyCombinerParameter);
+        }
+        for (int i = this.readVarInt(); i > 0; i--) {
+            policySet.addChild(this.readPolicySetChild(policySet));
+        }
+        policySet
+            .setPolicyCombiningAlgorithm((CombiningAlgorithm<PolicySetChild>)this.readCombiningAlgorithm(false));
+    }
+
+    private void readIdReference(PolicyIdReferenceBase<?> policyIdReference) throws CorruptPolicyException,
+        ParseException {
+        if (this.readByte() == BinaryPolicyDef.TAG_NULL) {
+            return;
+        }
+        Identifier id = this.readIdentifier();
+        VersionMatch version = this.readVersionMatch();
+        VersionMatch earliestVersion = this.readVersionMatch();
+        VersionMatch latestVersion = this.readVersionMatch();
+        policyIdReference.setIdReferenceMatch(new StdIdReferenceMatch(id, version, earliestVersion,
+                                                                      latestVersion));
+    }
+
+    private PolicySetChild readPolicySetChild(PolicySet policySetParent) throws CorruptPolicyException,
+        FactoryException, DataTypeException, ParseException {
+        int tag = this.readByte();
+        PolicySetChild policySetChild;
+        switch (tag) {
+        case BinaryPolicyDef.TAG_POLICY:
+            policySetChild = new Policy(policySetParent);
+            break;
+        case BinaryPolicyDef.TAG_POLICYSET:
+            policySetChild = new PolicySet(policySetParent);
+            break;
+        case BinaryPolicyDef.TAG_POLICYIDREFERENCE:
+            policySetChild = new PolicyIdReference(policySetParent);
+            break;
+        case BinaryPolicyDef.TAG_POLICYSETIDREFERENCE:
+            policySetChild = new PolicySetIdReference(policySetParent);
+            break;
+        default:
+            throw new CorruptPolicyException("Invalid PolicySet child tag " + tag);
+        }
+        policySetChild.setStatus(this.readStatusCode(), this.readString());
+        policySetChild.setIdentifier(this.readIdentifier());
+        policySetChild.setPolicyDefaults(this.readPolicyDefaults(policySetParent == null
+            ? null : policySetParent.getPolicyDefaults()));
+        if (policySetChild instanceof Policy) {
+            this.readPolicy((Policy)policySetChild);
+        } else if (policySetChild instanceof PolicySet) {
+            this.readPolicySet((PolicySet)policySetChild);
+        } else {
+            this.readIdReference((PolicyIdReferenceBase<?>)policySetChild);
+        }
+        return policySetChild;
+    }
+
+    private boolean checkHeader(byte[] sourceDigest) {
+        if (this.byteBuffer.remaining() < 10 || this.byteBuffer.getInt() != BinaryPolicyDef.MAGIC
+            || this.byteBuffer.getInt() != BinaryPolicyDef.FORMAT_VERSION) {
+            return false;
+        }
+        int digestLength = this.byteBuffer.getShort() & 0xFFFF;
+        if (this.byteBuffer.remaining() < digestLength + 4) {
+            return false;
+        }
+        byte[] digest = new byte[digestLength];
+        this.byteBuffer.get(digest);
+        if (!Arrays.equals(digest, sourceDigest)) {
+            return false;
+        }
+        int crcExpected = this.byteBuffer.getInt();
+
+        /*
+         * Check the payload without moving the position, reading through a heap buffer in chunks
+         */
+        ByteBuffer byteBufferPayload = this.byteBuffer.slice();
+        CRC32 crc32 = new CRC32();
+        byte[] chunk = new byte[Math.min(CRC_CHUNK, byteBufferPayload.remaining())];
+        while (byteBufferPayload.hasRemaining()) {
+            int length = Math.min(chunk.length, byteBufferPayload.remaining());
+            byteBufferPayload.get(chunk, 0, length);
+            crc32.update(chunk, 0, length);
+        }
+        return (int)crc32.getValue() == crcExpected;
+    }
+
+    private void readStrings() throws CorruptPolicyException {
+        int count = this.byteBuffer.getInt();
+        if (count < 0 || count > this.byteBuffer.remaining() / 4) {
+            throw new CorruptPolicyException("Invalid string count " + count);
+        }
+        this.strings = new String[count];
+        this.identifiers = new Identifier[count];
+        byte[] bytes = new byte[0];
+        for (int i = 0; i < count; i++) {
+            int length = this.byteBuffer.getInt();
+            if (length < 0 || length > this.byteBuffer.remaining()) {
+                throw new CorruptPolicyException("Invalid string length " + length);
+            }
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, 2 * bytes.length)];
+            }
+            this.byteBuffer.get(bytes, 0, length);
+            this.strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Decodes the <code>PolicyDef</code> in the buffer.
+     *
+     * @param sourceDigest the digest of the XML the <code>PolicyDef</code> is wanted for
+     * @return the <code>PolicyDef</code>, or null if the buffer was written for different XML, by another
+     *         version of the format, or is corrupt
+     * @throws Exception if the contents cannot be decoded
+     */
+    PolicyDef read(byte[] sourceDigest) throws Exception {
+        if (!this.checkHeader(sourceDigest)) {
+            return null;
+        }
+        this.readStrings();
+        PolicySetChild policySetChild = this.readPolicySetChild(null);
+        if (!(policySetChild instanceof PolicyDef) || this.byteBuffer.hasRemaining()) {
+            throw new CorruptPolicyException("Invalid root PolicyDef");
+        }
+        return (PolicyDef)policySetChild;
+    }
+}
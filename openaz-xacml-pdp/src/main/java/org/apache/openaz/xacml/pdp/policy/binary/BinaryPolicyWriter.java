@@ -0,0 +1,561 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.policy.binary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.openaz.xacml.api.AttributeValue;
+import org.apache.openaz.xacml.api.DataType;
+import org.apache.openaz.xacml.api.DataTypeException;
+import org.apache.openaz.xacml.api.DataTypeFactory;
+import org.apache.openaz.xacml.api.IdReferenceMatch;
+import org.apache.openaz.xacml.api.Identifier;
+import org.apache.openaz.xacml.api.StatusCode;
+import org.apache.openaz.xacml.api.Version;
+import org.apache.openaz.xacml.api.VersionMatch;
+import org.apache.openaz.xacml.pdp.policy.AdviceExpression;
+import org.apache.openaz.xacml.pdp.policy.AllOf;
+import org.apache.openaz.xacml.pdp.policy.AnyOf;
+import org.apache.openaz.xacml.pdp.policy.AttributeAssignmentExpression;
+import org.apache.openaz.xacml.pdp.policy.CombinerParameter;
+import org.apache.openaz.xacml.pdp.policy.CombiningAlgorithm;
+import org.apache.openaz.xacml.pdp.policy.Condition;
+import org.apache.openaz.xacml.pdp.policy.Expression;
+import org.apache.openaz.xacml.pdp.policy.Match;
+import org.apache.openaz.xacml.pdp.policy.ObligationExpression;
+import org.apache.openaz.xacml.pdp.policy.Policy;
+import org.apache.openaz.xacml.pdp.policy.PolicyDef;
+import org.apache.openaz.xacml.pdp.policy.PolicyDefaults;
+import org.apache.openaz.xacml.pdp.policy.PolicyIdReference;
+import org.apache.openaz.xacml.pdp.policy.PolicyIdReferenceBase;
+import org.apache.openaz.xacml.pdp.policy.PolicySet;
+import org.apache.openaz.xacml.pdp.policy.PolicySetChild;
+import org.apache.openaz.xacml.pdp.policy.PolicySetIdReference;
+import org.apache.openaz.xacml.pdp.policy.Rule;
+import org.apache.openaz.xacml.pdp.policy.RuleEffect;
+import org.apache.openaz.xacml.pdp.policy.Target;
+import org.apache.openaz.xacml.pdp.policy.TargetedCombinerParameter;
+import org.apache.openaz.xacml.pdp.policy.VariableDefinition;
+import org.apache.openaz.xacml.pdp.policy.expressions.Apply;
+import org.apache.openaz.xacml.pdp.policy.expressions.AttributeDesignator;
+import org.apache.openaz.xacml.pdp.policy.expressions.AttributeRetrievalBase;
+import org.apache.openaz.xacml.pdp.policy.expressions.AttributeSelector;
+import org.apache.openaz.xacml.pdp.policy.expressions.AttributeValueExpression;
+import org.apache.openaz.xacml.pdp.policy.expressions.Function;
+import org.apache.openaz.xacml.pdp.policy.expressions.VariableReference;
+import org.apache.openaz.xacml.util.FactoryException;
+
+/**
+ * BinaryPolicyWriter encodes a {@link org.apache.openaz.xacml.pdp.policy.PolicyDef} in the format read by
+ * {@link BinaryPolicyReader}. Every <code>String</code>, including the <code>Identifier</code> values, is
+ * written once to a table at the start of the file and referred to by its index, so the reader creates one
+ * object for each distinct value.
+ */
+class BinaryPolicyWriter {
+    /*
+     * Thrown when the PolicyDef uses something the binary form cannot represent
+     */
+    static class UnsupportedPolicyException extends Exception {
+        private static final long serialVersionUID = 3958153087226370291L;
+
+        UnsupportedPolicyException(String message) {
+            super(message);
+        }
+    }
+
+    private final Map<String, Integer> mapStrings = new LinkedHashMap<String, Integer>();
+    private final ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+    private final DataOutputStream body = new DataOutputStream(this.bodyBytes);
+    private DataTypeFactory dataTypeFactory;
+
+    private static <T> List<T> toList(Iterator<T> iterator) {
+        List<T> list = new ArrayList<T>();
+        if (iterator != null) {
+            while (iterator.hasNext()) {
+                list.add(iterator.next());
+            }
+        }
+        return list;
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            this.body.write((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        this.body.write(remaining);
+    }
+
+    private void writeString(String string) throws IOException {
+        if (string == null) {
+            this.writeVarInt(0);
+            return;
+        }
+        Integer index = this.mapStrings.get(string);
+        if (index == null) {
+            index = this.mapStrings.size();
+            this.mapStrings.put(string, index);
+        }
+        this.writeVarInt(index + 1);
+    }
+
+    private void writeIdentifier(Identifier identifier) throws IOException {
+        this.writeString(identifier == null ? null : identifier.stringValue());
+    }
+
+    private void writeBoolean(Boolean value) throws IOException {
+        if (value == null) {
+            this.body.write(0);
+        } else {
+            this.body.write(value ? 2 : 1);
+        }
+    }
+
+    private void writeRuleEffect(RuleEffect ruleEffect) throws IOException {
+        this.body.write(ruleEffect == null ? 0 : ruleEffect.ordinal() + 1);
+    }
+
+    private void writeStatus(StatusCode statusCode, String statusMessage) throws IOException,
+        UnsupportedPolicyException {
+        if (statusCode != null && statusCode.getChild() != null) {
+            throw new UnsupportedPolicyException("Nested status code " + statusCode);
+        }
+        this.writeIdentifier(statusCode == null ? null : statusCode.getStatusCodeValue());
+        this.writeString(statusMessage);
+    }
+
+    private void writeVersion(Version version) throws IOException {
+        if (version == null) {
+            this.writeVarInt(0);
+            return;
+        }
+        int[] digits = version.getVersionDigits();
+        this.writeVarInt(digits.length + 1);
+        for (int digit : digits) {
+            this.writeVarInt(digit);
+        }
+    }
+
+    private void writeVersionMatch(VersionMatch versionMatch) throws IOException {
+        this.writeString(versionMatch == null ? null : versionMatch.getVersionMatch());
+    }
+
+    private DataType<?> getDataType(Identifier dataTypeId) throws UnsupportedPolicyException {
+        try {
+            if (this.dataTypeFactory == null) {
+                this.dataTypeFactory = DataTypeFactory.newInstance();
+            }
+        } catch (FactoryException ex) {
+            throw new UnsupportedPolicyException("No DataTypeFactory: " + ex.getMessage());
+        }
+        DataType<?> dataType = this.dataTypeFactory.getDataType(dataTypeId);
+        if (dataType == null) {
+            throw new UnsupportedPolicyException("Unknown data type " + dataTypeId);
+        }
+        return dataType;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeAttributeValue(AttributeValue<?> attributeValue) throws IOException,
+        UnsupportedPolicyException {
+        if (attributeValue == null) {
+            this.body.write(TAG_NULL);
+            return;
+        }
+        Object value = attributeValue.getValue();
+        if (value instanceof String) {
+            this.body.write(BinaryPolicyDef.VALUE_STRING);
+        } else if (value instanceof Boolean) {
+            this.body.write(BinaryPolicyDef.VALUE_BOOLEAN);
+        } else if (value instanceof BigInteger) {
+            this.body.write(BinaryPolicyDef.VALUE_INTEGER);
+        } else if (value instanceof Double) {
+            this.body.write(BinaryPolicyDef.VALUE_DOUBLE);
+        } else {
+            this.body.write(BinaryPolicyDef.VALUE_TEXT);
+        }
+        this.writeIdentifier(attributeValue.getDataTypeId());
+        this.writeIdentifier(attributeValue.getXPathCategory());
+        if (value instanceof String) {
+            this.writeString((String)value);
+        } else if (value instanceof Boolean) {
+            this.writeBoolean((Boolean)value);
+        } else if (value instanceof BigInteger) {
+            byte[] bytes = ((BigInteger)value).toByteArray();
+            this.writeVarInt(bytes.length);
+            this.body.write(bytes);
+        } else if (value instanceof Double) {
+            this.body.writeLong(Double.doubleToRawLongBits((Double)value));
+        } else {
+            /*
+             * Anything else is stored as its string form, but only if converting that back gives an equal
+             * value
+             */
+            DataType<Object> dataType = (DataType<Object>)this.getDataType(attributeValue.getDataTypeId());
+            String text;
+            try {
+                text = dataType.toStringValue(value);
+                if (text == null || !value.equals(dataType.convert(text))) {
+                    throw new UnsupportedPolicyException("Value does not round trip: " + attributeValue);
+                }
+            } catch (DataTypeException ex) {
+                throw new UnsupportedPolicyException("Value does not round trip: " + attributeValue);
+            }
+            this.writeString(text);
+        }
+    }
+
+    private void writeExpression(Expression expression, Policy policy) throws IOException,
+        UnsupportedPolicyException {
+        if (expression == null) {
+            this.body.write(TAG_NULL);
+        } else if (expression instanceof Apply) {
+            Apply apply = (Apply)expression;
+            this.body.write(BinaryPolicyDef.TAG_APPLY);
+            this.writeStatus(apply.getStatusCode(), apply.getStatusMessage());
+            this.writeIdentifier(apply.getFunctionId());
+            this.writeString(apply.getDescription());
+            List<Expression> listArguments = toList(apply.getArguments());
+            this.writeVarInt(listArguments.size());
+            for (Expression argument : listArguments) {
+                this.writeExpression(argument, policy);
+            }
+        } else if (expression instanceof AttributeDesignator) {
+            AttributeDesignator attributeDesignator = (AttributeDesignator)expression;
+            this.body.write(BinaryPolicyDef.TAG_ATTRIBUTEDESIGNATOR);
+            this.writeAttributeRetrievalBase(attributeDesignator);
+            this.writeIdentifier(attributeDesignator.getAttributeId());
+            this.writeString(attributeDesignator.getIssuer());
+        } else if (expression instanceof AttributeSelector) {
+            AttributeSelector attributeSelector = (AttributeSelector)expression;
+            this.body.write(BinaryPolicyDef.TAG_ATTRIBUTESELECTOR);
+            this.writeAttributeRetrievalBase(attributeSelector);
+            this.writeIdentifier(attributeSelector.getContextSelectorId());
+            this.writeString(attributeSelector.getPath());
+        } else if (expression instanceof AttributeValueExpression) {
+            this.body.write(BinaryPolicyDef.TAG_ATTRIBUTEVALUE);
+            this.writeStatus(expression.getStatusCode(), expression.getStatusMessage());
+            this.writeAttributeValue(((AttributeValueExpression)expression).getAttributeValue());
+        } else if (expression instanceof Function) {
+            this.body.write(BinaryPolicyDef.TAG_FUNCTION);
+            this.writeStatus(expression.getStatusCode(), expression.getStatusMessage());
+            this.writeIdentifier(((Function)expression).getFunctionId());
+        } else if (expression instanceof VariableReference) {
+            VariableReference variableReference = (VariableReference)expression;
+            if (variableReference.getPolicy() != policy) {
+                throw new UnsupportedPolicyException("VariableReference outside of its Policy");
+            }
+            this.body.write(BinaryPolicyDef.TAG_VARIABLEREFERENCE);
+            this.writeStatus(variableReference.getStatusCode(), variableReference.getStatusMessage());
+            this.writeString(variableReference.getVariableId());
+        } else {
+            throw new UnsupportedPolicyException("Unknown expression " + expression.getClass().getName());
+        }
+    }
+
+    private void writeAttributeRetrievalBase(AttributeRetrievalBase attributeRetrievalBase)
+        throws IOException, UnsupportedPolicyException {
+        this.writeStatus(attributeRetrievalBase.getStatusCode(), attributeRetrievalBase.getStatusMessage());
+        this.writeIdentifier(attributeRetrievalBase.getCategory());
+        this.writeIdentifier(attributeRetrievalBase.getDataTypeId());
+        this.writeBoolean(attributeRetrievalBase.getMustBePresent());
+    }
+
+    private void writeTarget(Target target) throws IOException, UnsupportedPolicyException {
+        if (target == null) {
+            this.body.write(TAG_NULL);
+            return;
+        }
+        this.body.write(1);
+        this.writeStatus(target.getStatusCode(), target.getStatusMessage());
+        List<AnyOf> listAnyOfs = toList(target.getAnyOfs());
+        this.writeVarInt(listAnyOfs.size());
+        for (AnyOf anyOf : listAnyOfs) {
+            this.writeStatus(anyOf.getStatusCode(), anyOf.getStatusMessage());
+            List<AllOf> listAllOfs = toList(anyOf.getAllOfs());
+            this.writeVarInt(listAllOfs.size());
+            for (AllOf allOf : listAllOfs) {
+                this.writeStatus(allOf.getStatusCode(), allOf.getStatusMessage());
+                List<Match> listMatches = toList(allOf.getMatches());
+                this.writeVarInt(listMatches.size());
+                for (Match match : listMatches) {
+                    if (match.getPolicyDefaults() != null) {
+                        throw new UnsupportedPolicyException("Match with PolicyDefaults");
+                    }
+                    this.writeStatus(match.getStatusCode(), match.getStatusMessage());
+                    this.writeIdentifier(match.getMatchId());
+                    this.writeAttributeValue(match.getAttributeValue());
+                    this.writeExpression(match.getAttributeRetrievalBase(), null);
+                }
+            }
+        }
+    }
+
+    private void writeCombinerParameter(CombinerParameter combinerParameter) throws IOException,
+        UnsupportedPolicyException {
+        this.writeStatus(combinerParameter.getStatusCode(), combinerParameter.getStatusMessage());
+        this.writeString(combinerParameter.getName());
+        this.writeAttributeValue(combinerParameter.getAttributeValue());
+    }
+
+    private void writeAttributeAssignmentExpressions(Iterator<AttributeAssignmentExpression> iterAttributeAssignmentExpressions,
+                                                     Policy policy) throws IOException,
+        UnsupportedPolicyException {
+        List<AttributeAssignmentExpression> listAttributeAssignmentExpressions = toList(iterAttributeAssignmentExpressions);
+        this.writeVarInt(listAttributeAssignmentExpressions.size());
+        for (AttributeAssignmentExpression attributeAssignmentExpression : listAttributeAssignmentExpressions) {
+            this.writeStatus(attributeAssignmentExpression.getStatusCode(),
+                             attributeAssignmentExpression.getStatusMessage());
+            this.writeIdentifier(attributeAssignmentExpression.getAttributeId());
+            this.writeIdentifier(attributeAssignmentExpression.getCategory());
+            this.writeString(attributeAssignmentExpression.getIssuer());
+            this.writeExpression(attributeAssignmentExpression.getExpression(), policy);
+        }
+    }
+
+    private void writeObligationExpressions(Iterator<ObligationExpression> iterObligationExpressions,
+                                            Policy policy) throws IOException, UnsupportedPolicyException {
+        List<ObligationExpression> listObligationExpressions = toList(iterObligationExpressions);
+        this.writeVarInt(listObligationExpressions.size());
+        for (ObligationExpression obligationExpression : listObligationExpressions) {
+            this.writeStatus(obligationExpression.getStatusCode(), obligationExpression.getStatusMessage());
+            this.writeIdentifier(obligationExpression.getObligationId());
+            this.writeRuleEffect(obligationExpression.getRuleEffect());
+            this.writeAttributeAssignmentExpressions(obligationExpression.getAttributeAssignmentExpressions(),
+                                                     policy);
+        }
+    }
+
+    private void writeAdviceExpressions(Iterator<AdviceExpression> iterAdviceExpressions, Policy policy)
+        throws IOException, UnsupportedPolicyException {
+        List<AdviceExpression> listAdviceExpressions = toList(iterAdviceExpressions);
+        this.writeVarInt(listAdviceExpressions.size());
+        for (AdviceExpression adviceExpression : listAdviceExpressions) {
+            this.writeStatus(adviceExpression.getStatusCode(), adviceExpression.getStatusMessage());
+            this.writeIdentifier(adviceExpression.getAdviceId());
+            this.writeRuleEffect(adviceExpression.getAppliesTo());
+            this.writeAttributeAssignmentExpressions(adviceExpression.getAttributeAssignmentExpressions(),
+                                                     policy);
+        }
+    }
+
+    private void writeRule(Rule rule, Policy policy) throws IOException, UnsupportedPolicyException {
+        if (rule.getPolicy() != policy) {
+            throw new UnsupportedPolicyException("Rule " + rule.getRuleId() + " outside of its Policy");
+        }
+        this.writeStatus(rule.getStatusCode(), rule.getStatusMessage());
+        this.writeString(rule.getRuleId());
+        this.writeRuleEffect(rule.getRuleEffect());
+        this.writeString(rule.getDescription());
+        this.writeTarget(rule.getTarget());
+        Condition condition = rule.getCondition();
+        if (condition == null) {
+            this.body.write(TAG_NULL);
+        } else {
+            this.body.write(1);
+            this.writeStatus(condition.getStatusCode(), condition.getStatusMessage());
+            this.writeExpression(condition.getExpression(), policy);
+        }
+        this.writeObligationExpressions(rule.getObligationExpressions(), policy);
+        this.writeAdviceExpressions(rule.getAdviceExpressions(), policy);
+    }
+
+    private void writePolicyDefaults(PolicyDefaults policyDefaults, PolicyDefaults policyDefaultsParent)
+        throws IOException, UnsupportedPolicyException {
+        if (policyDefaults == null) {
+            this.body.write(BinaryPolicyDef.DEFAULTS_NONE);
+        } else if (policyDefaults == policyDefaultsParent) {
+            this.body.write(BinaryPolicyDef.DEFAULTS_PARENT);
+        } else if (policyDefaults.getPolicyDefaultsParent() == policyDefaultsParent) {
+            this.body.write(BinaryPolicyDef.DEFAULTS_OWN);
+            this.writeString(policyDefaults.getXPathVersion().toString());
+        } else {
+            throw new UnsupportedPolicyException("PolicyDefaults not inherited from the parent");
+        }
+    }
+
+    private void writePolicyDef(PolicyDef policyDef) throws IOException, UnsupportedPolicyException {
+        if (policyDef.getPolicyIssuer() != null) {
+            throw new UnsupportedPolicyException("PolicyIssuer in " + policyDef.getIdentifier());
+        }
+        Policy policy = policyDef instanceof Policy ? (Policy)policyDef : null;
+        this.writeString(policyDef.getDescription());
+        this.writeVersion(policyDef.getVersion());
+        this.writeVarInt(policyDef.getMaxDelegationDepth() == null ? 0 : policyDef.getMaxDelegationDepth() + 1);
+        this.writeTarget(policyDef.getTarget());
+        List<CombinerParameter> listCombinerParameters = toList(policyDef.getCombinerParameters());
+        this.writeVarInt(listCombinerParameters.size());
+        for (CombinerParameter combinerParameter : listCombinerParameters) {
+            if (combinerParameter instanceof TargetedCombinerParameter) {
+                throw new UnsupportedPolicyException("Targeted CombinerParameter in "
+                                                     + policyDef.getIdentifier());
+            }
+            this.writeCombinerParameter(combinerParameter);
+        }
+        this.writeObligationExpressions(policyDef.getObligationExpressions(), policy);
+        this.writeAdviceExpressions(policyDef.getAdviceExpressions(), policy);
+    }
+
+    private void writeCombiningAlgorithm(CombiningAlgorithm<?> combiningAlgorithm) throws IOException {
+        this.writeIdentifier(combiningAlgorithm == null ? null : combiningAlgorithm.getId());
+    }
+
+    private void writePolicy(Policy policy) throws IOException, UnsupportedPolicyException {
+        this.writePolicyDef(policy);
+        List<TargetedCombinerParameter<String, Rule>> listRuleCombinerParameters = toList(policy
+            .getRuleCombinerParameters());
+        this.writeVarInt(listRuleCombinerParameters.size());
+        for (TargetedCombinerParameter<String, Rule> ruleCombinerParameter : listRuleCombinerParameters) {
+            this.writeCombinerParameter(ruleCombinerParameter);
+            this.writeString(ruleCombinerParameter.getTargetId());
+        }
+        List<VariableDefinition> listVariableDefinitions = toList(policy.getVariableDefinitions());
+        this.writeVarInt(listVariableDefinitions.size());
+        for (VariableDefinition variableDefinition : listVariableDefinitions) {
+            this.writeStatus(variableDefinition.getStatusCode(), variableDefinition.getStatusMessage());
+            this.writeString(variableDefinition.getId());
+            this.writeExpression(variableDefinition.getExpression(), policy);
+        }
+        List<Rule> listRules = toList(policy.getRules());
+        this.writeVarInt(listRules.size());
+        for (Rule rule : listRules) {
+            this.writeRule(rule, policy);
+        }
+        this.writeCombiningAlgorithm(policy.getRuleCombiningAlgorithm());
+    }
+
+    private void writePolicySet(PolicySet policySet) throws IOException, UnsupportedPolicyException {
+        this.writePolicyDef(policySet);
+        List<TargetedCombinerParameter<Identifier, PolicySetChild>> listPolicyCombinerParameters = toList(policySet
+            .getPolicyCombinerParameters());
+        this.writeVarInt(listPolicyCombinerParameters.size());
+        for (TargetedCombinerParameter<Identifier, PolicySetChild> policyCombinerParameter : listPolicyCombinerParameters) {
+            this.writeCombinerParameter(policyCombinerParameter);
+            this.writeIdentifier(policyCombinerParameter.getTargetId());
+        }
+        List<PolicySetChild> listChildren = toList(policySet.getChildren());
+        this.writeVarInt(listChildren.size());
+        for (PolicySetChild policySetChild : listChildren) {
+            if (policySetChild.getParent() != policySet) {
+                throw new UnsupportedPolicyException("Child of " + policySet.getIdentifier()
+                                                     + " with another parent");
+            }
+            this.writePolicySetChild(policySetChild, policySet.getPolicyDefaults());
+        }
+        this.writeCombiningAlgorithm(policySet.getPolicyCombiningAlgorithm());
+    }
+
+    private void writeIdReference(PolicyIdReferenceBase<?> policyIdReference) throws IOException {
+        IdReferenceMatch idReferenceMatch = policyIdReference.getIdReferenceMatch();
+        if (idReferenceMatch == null) {
+            this.body.write(TAG_NULL);
+            return;
+        }
+        this.body.write(1);
+        this.writeIdentifier(idReferenceMatch.getId());
+        this.writeVersionMatch(idReferenceMatch.getVersion());
+        this.writeVersionMatch(idReferenceMatch.getEarliestVersion());
+        this.writeVersionMatch(idReferenceMatch.getLatestVersion());
+    }
+
+    private void writePolicySetChild(PolicySetChild policySetChild, PolicyDefaults policyDefaultsParent)
+        throws IOException, UnsupportedPolicyException {
+        if (policySetChild instanceof Policy) {
+            this.body.write(BinaryPolicyDef.TAG_POLICY);
+        } else if (policySetChild instanceof PolicySet) {
+            this.body.write(BinaryPolicyDef.TAG_POLICYSET);
+        } else if (policySetChild instanceof PolicyIdReference) {
+            this.body.write(BinaryPolicyDef.TAG_POLICYIDREFERENCE);
+        } else if (policySetChild instanceof PolicySetIdReference) {
+            this.body.write(BinaryPolicyDef.TAG_POLICYSETIDREFERENCE);
+        } else {
+            throw new UnsupportedPolicyException("Unknown PolicySet child " + policySetChild.getClass().getName());
+        }
+        this.writeStatus(policySetChild.getStatusCode(), policySetChild.getStatusMessage());
+        this.writeIdentifier(policySetChild.getIdentifier());
+        this.writePolicyDefaults(policySetChild.getPolicyDefaults(), policyDefaultsParent);
+        if (policySetChild instanceof Policy) {
+            this.writePolicy((Policy)policySetChild);
+        } else if (policySetChild instanceof PolicySet) {
+            this.writePolicySet((PolicySet)policySetChild);
+        } else {
+            this.writeIdReference((PolicyIdReferenceBase<?>)policySetChild);
+        }
+    }
+
+    /**
+     * Encodes the given root <code>PolicyDef</code>.
+     *
+     * @param policyDef the root <code>PolicyDef</code>
+     * @param sourceDigest the digest of the XML the <code>PolicyDef</code> was loaded from
+     * @return the bytes of the binary form
+     * @throws UnsupportedPolicyException if the <code>PolicyDef</code> cannot be represented
+     */
+    byte[] write(PolicyDef policyDef, byte[] sourceDigest) throws UnsupportedPolicyException {
+        try {
+            if (policyDef.getParent() != null) {
+                throw new UnsupportedPolicyException("Not a root PolicyDef");
+            }
+            this.writePolicySetChild(policyDef, null);
+            this.body.flush();
+
+            ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(this.bodyBytes.size()
+                                                                           + 32 * this.mapStrings.size());
+            DataOutputStream payload = new DataOutputStream(payloadBytes);
+            payload.writeInt(this.mapStrings.size());
+            for (String string : this.mapStrings.keySet()) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                payload.writeInt(bytes.length);
+                payload.write(bytes);
+            }
+            this.bodyBytes.writeTo(payload);
+            payload.flush();
+            CRC32 crc32 = new CRC32();
+            crc32.update(payloadBytes.toByteArray());
+
+            ByteArrayOutputStream fileBytes = new ByteArrayOutputStream(payloadBytes.size() + 64);
+            DataOutputStream file = new DataOutputStream(fileBytes);
+            file.writeInt(BinaryPolicyDef.MAGIC);
+            file.writeInt(BinaryPolicyDef.FORMAT_VERSION);
+            file.writeShort(sourceDigest.length);
+            file.write(sourceDigest);
+            file.writeInt((int)crc32.getValue());
+            payloadBytes.writeTo(file);
+            file.flush();
+            return fileBytes.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalStateException("IOException writing to memory", ex);
+        }
+    }
+
+    private static final int TAG_NULL = BinaryPolicyDef.TAG_NULL;
+}
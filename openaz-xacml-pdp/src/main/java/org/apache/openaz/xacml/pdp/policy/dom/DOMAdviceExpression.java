@@ -93,9 +93,9 @@ public class DOMAdviceExpression extends AdviceExpression {
                 }
             }
 
-            domAdviceExpression.setAdviceId(DOMUtil.getIdentifierAttribute(elementAdviceExpression,
-                                                                           XACML3.ATTRIBUTE_ADVICEID,
-                                                                           !bLenient));
+            domAdviceExpression.setAdviceId(DOMUtil.getCanonicalIdentifierAttribute(elementAdviceExpression,
+                                                                                    XACML3.ATTRIBUTE_ADVICEID,
+                                                                                    !bLenient));
 
             String string = DOMUtil.getStringAttribute(elementAdviceExpression, XACML3.ATTRIBUTE_APPLIESTO,
                                                        !bLenient);
@@ -88,8 +88,9 @@ public class DOMApply extends Apply {
                 }
             }
 
-            domApply.setFunctionId(DOMUtil.getIdentifierAttribute(elementApply, XACML3.ATTRIBUTE_FUNCTIONID,
-                                                                  !bLenient));
+            domApply.setFunctionId(DOMUtil.getCanonicalIdentifierAttribute(elementApply,
+                                                                           XACML3.ATTRIBUTE_FUNCTIONID,
+                                                                           !bLenient));
         } catch (DOMStructureException ex) {
             domApply.setStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR, ex.getMessage());
             if (DOMProperties.throwsExceptions()) {
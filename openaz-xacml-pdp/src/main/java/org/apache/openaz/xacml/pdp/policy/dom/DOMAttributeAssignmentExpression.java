@@ -83,10 +83,10 @@ public class DOMAttributeAssignmentExpression extends AttributeAssignmentExpress
 
             Identifier identifier;
             domAttributeAssignmentExpression.setAttributeId(DOMUtil
-                .getIdentifierAttribute(elementAttributeAssignmentExpression, XACML3.ATTRIBUTE_ATTRIBUTEID,
-                                        !bLenient));
-            if ((identifier = DOMUtil.getIdentifierAttribute(elementAttributeAssignmentExpression,
-                                                             XACML3.ATTRIBUTE_CATEGORY)) != null) {
+                .getCanonicalIdentifierAttribute(elementAttributeAssignmentExpression,
+                                                 XACML3.ATTRIBUTE_ATTRIBUTEID, !bLenient));
+            if ((identifier = DOMUtil.getCanonicalIdentifierAttribute(elementAttributeAssignmentExpression,
+                                                                      XACML3.ATTRIBUTE_CATEGORY)) != null) {
                 domAttributeAssignmentExpression.setCategory(identifier);
             }
 
@@ -115,8 +115,9 @@ public class DOMAttributeAssignmentExpression extends AttributeAssignmentExpress
              * See if we can repair the <AttributeAssignmentExpression
              * DataType="">string</AttributeAssignmentExpression> pattern
              */
-            Identifier identifier = DOMUtil.getIdentifierAttribute(elementAttributeAssignmentExpression,
-                                                                   XACML3.ATTRIBUTE_DATATYPE);
+            Identifier identifier = DOMUtil
+                .getCanonicalIdentifierAttribute(elementAttributeAssignmentExpression,
+                                                 XACML3.ATTRIBUTE_DATATYPE);
             String textContent = elementAttributeAssignmentExpression.getTextContent();
             if (textContent != null) {
                 textContent = textContent.trim();
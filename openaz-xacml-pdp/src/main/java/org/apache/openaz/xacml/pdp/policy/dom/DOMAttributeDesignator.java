@@ -66,14 +66,15 @@ public class DOMAttributeDesignator extends AttributeDesignator {
         DOMAttributeDesignator domAttributeDesignator = new DOMAttributeDesignator();
 
         try {
-            domAttributeDesignator.setCategory(DOMUtil.getIdentifierAttribute(elementAttributeDesignator,
-                                                                              XACML3.ATTRIBUTE_CATEGORY,
-                                                                              !bLenient));
+            domAttributeDesignator.setCategory(DOMUtil
+                .getCanonicalIdentifierAttribute(elementAttributeDesignator, XACML3.ATTRIBUTE_CATEGORY,
+                                                 !bLenient));
             domAttributeDesignator.setAttributeId(DOMUtil
-                .getIdentifierAttribute(elementAttributeDesignator, XACML3.ATTRIBUTE_ATTRIBUTEID, !bLenient));
-            domAttributeDesignator.setDataTypeId(DOMUtil.getIdentifierAttribute(elementAttributeDesignator,
-                                                                                XACML3.ATTRIBUTE_DATATYPE,
-                                                                                !bLenient));
+                .getCanonicalIdentifierAttribute(elementAttributeDesignator, XACML3.ATTRIBUTE_ATTRIBUTEID,
+                                                 !bLenient));
+            domAttributeDesignator.setDataTypeId(DOMUtil
+                .getCanonicalIdentifierAttribute(elementAttributeDesignator, XACML3.ATTRIBUTE_DATATYPE,
+                                                 !bLenient));
 
             String string;
             if ((string = DOMUtil.getStringAttribute(elementAttributeDesignator, XACML3.ATTRIBUTE_ISSUER)) != null) {
@@ -67,21 +67,22 @@ public class DOMAttributeSelector extends AttributeSelector {
         DOMAttributeSelector domAttributeSelector = new DOMAttributeSelector();
 
         try {
-            domAttributeSelector.setCategory(DOMUtil.getIdentifierAttribute(elementAttributeSelector,
-                                                                            XACML3.ATTRIBUTE_CATEGORY,
-                                                                            !bLenient));
+            domAttributeSelector.setCategory(DOMUtil
+                .getCanonicalIdentifierAttribute(elementAttributeSelector, XACML3.ATTRIBUTE_CATEGORY,
+                                                 !bLenient));
 
             Identifier identifier;
-            if ((identifier = DOMUtil.getIdentifierAttribute(elementAttributeSelector,
-                                                             XACML3.ATTRIBUTE_CONTEXTSELECTORID)) != null) {
+            if ((identifier = DOMUtil
+                .getCanonicalIdentifierAttribute(elementAttributeSelector,
+                                                 XACML3.ATTRIBUTE_CONTEXTSELECTORID)) != null) {
                 domAttributeSelector.setContextSelectorId(identifier);
             }
 
             domAttributeSelector.setPath(DOMUtil.getStringAttribute(elementAttributeSelector,
                                                                     XACML3.ATTRIBUTE_PATH, !bLenient));
-            domAttributeSelector.setDataTypeId(DOMUtil.getIdentifierAttribute(elementAttributeSelector,
-                                                                              XACML3.ATTRIBUTE_DATATYPE,
-                                                                              !bLenient));
+            domAttributeSelector.setDataTypeId(DOMUtil
+                .getCanonicalIdentifierAttribute(elementAttributeSelector, XACML3.ATTRIBUTE_DATATYPE,
+                                                 !bLenient));
             Boolean mustBePresent = DOMUtil.getBooleanAttribute(elementAttributeSelector,
                                                                 XACML3.ATTRIBUTE_MUSTBEPRESENT, !bLenient);
             if (mustBePresent != null) {
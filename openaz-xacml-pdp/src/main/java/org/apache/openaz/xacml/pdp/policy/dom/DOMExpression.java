@@ -95,8 +95,8 @@ public abstract class DOMExpression extends Expression {
                 }
                 return new AttributeValueExpression(attributeValue);
             } else if (elementExpression.getLocalName().equals(XACML3.ELEMENT_FUNCTION)) {
-                return new Function(DOMUtil.getIdentifierAttribute(elementExpression,
-                                                                   XACML3.ATTRIBUTE_FUNCTIONID));
+                return new Function(DOMUtil.getCanonicalIdentifierAttribute(elementExpression,
+                                                                            XACML3.ATTRIBUTE_FUNCTIONID));
             } else if (elementExpression.getLocalName().equals(XACML3.ELEMENT_VARIABLEREFERENCE)) {
                 return new VariableReference(policy, DOMUtil.getStringAttribute(elementExpression,
                                                                                 XACML3.ATTRIBUTE_VARIABLEID));
@@ -111,8 +111,8 @@ public class DOMMatch extends Match {
                                                          XACML3.ELEMENT_ATTRIBUTEVALUE);
             }
 
-            domMatch.setMatchId(DOMUtil.getIdentifierAttribute(elementMatch, XACML3.ATTRIBUTE_MATCHID,
-                                                               !bLenient));
+            domMatch.setMatchId(DOMUtil.getCanonicalIdentifierAttribute(elementMatch,
+                                                                        XACML3.ATTRIBUTE_MATCHID, !bLenient));
 
         } catch (DOMStructureException ex) {
             domMatch.setStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR, ex.getMessage());
@@ -95,8 +95,9 @@ public class DOMObligationExpression extends ObligationExpression {
             }
 
             domObligationExpression
-                .setObligationId(DOMUtil.getIdentifierAttribute(elementObligationExpression,
-                                                                XACML3.ATTRIBUTE_OBLIGATIONID, !bLenient));
+                .setObligationId(DOMUtil.getCanonicalIdentifierAttribute(elementObligationExpression,
+                                                                         XACML3.ATTRIBUTE_OBLIGATIONID,
+                                                                         !bLenient));
 
             String string = DOMUtil.getStringAttribute(elementObligationExpression,
                                                        XACML3.ATTRIBUTE_FULFILLON, !bLenient);
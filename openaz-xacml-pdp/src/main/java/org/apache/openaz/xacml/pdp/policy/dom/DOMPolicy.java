@@ -161,13 +161,15 @@ public class DOMPolicy {
                     }
                 }
             }
-            domPolicy.setIdentifier(DOMUtil.getIdentifierAttribute(elementPolicy, XACML3.ATTRIBUTE_POLICYID,
-                                                                   !bLenient));
+            domPolicy.setIdentifier(DOMUtil.getCanonicalIdentifierAttribute(elementPolicy,
+                                                                            XACML3.ATTRIBUTE_POLICYID,
+                                                                            !bLenient));
             domPolicy.setVersion(DOMUtil.getVersionAttribute(elementPolicy, XACML3.ATTRIBUTE_VERSION,
                                                              !bLenient));
 
-            identifier = DOMUtil.getIdentifierAttribute(elementPolicy, XACML3.ATTRIBUTE_RULECOMBININGALGID,
-                                                        !bLenient);
+            identifier = DOMUtil.getCanonicalIdentifierAttribute(elementPolicy,
+                                                                 XACML3.ATTRIBUTE_RULECOMBININGALGID,
+                                                                 !bLenient);
             CombiningAlgorithm<Rule> combiningAlgorithmRule = null;
             try {
                 combiningAlgorithmRule = CombiningAlgorithmFactory.newInstance()
@@ -291,8 +293,8 @@ public class DOMPolicy {
         result = DOMUtil.repairIdentifierAttribute(elementPolicy, XACML3.ATTRIBUTE_RULECOMBININGALGID,
                                                    XACML3.ID_RULE_DENY_OVERRIDES, logger) || result;
 
-        Identifier identifier = DOMUtil.getIdentifierAttribute(elementPolicy,
-                                                               XACML3.ATTRIBUTE_RULECOMBININGALGID);
+        Identifier identifier = DOMUtil.getCanonicalIdentifierAttribute(elementPolicy,
+                                                                        XACML3.ATTRIBUTE_RULECOMBININGALGID);
         CombiningAlgorithm<Rule> combiningAlgorithmRule = null;
         try {
             combiningAlgorithmRule = CombiningAlgorithmFactory.newInstance()
@@ -99,8 +99,8 @@ public class DOMPolicyCombinerParameter extends TargetedCombinerParameter<Identi
                                                                           XACML3.ATTRIBUTE_PARAMETERNAME,
                                                                           !bLenient));
             domPolicyCombinerParameter.setTargetId(DOMUtil
-                .getIdentifierAttribute(elementPolicyCombinerParameter, XACML3.ATTRIBUTE_POLICYIDREF,
-                                        !bLenient));
+                .getCanonicalIdentifierAttribute(elementPolicyCombinerParameter, XACML3.ATTRIBUTE_POLICYIDREF,
+                                                 !bLenient));
 
         } catch (DOMStructureException ex) {
             domPolicyCombinerParameter.setStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR, ex.getMessage());
@@ -51,8 +51,8 @@ import org.w3c.dom.NodeList;
  */
 public class DOMPolicyIssuer extends PolicyIssuer {
     private static Log logger = LogFactory.getLog(DOMPolicyIssuer.class);
-    private static Identifier identifierCategoryPolicyIssuer = new IdentifierImpl(
-                                                                                  "urn:att:names:tc:xacml:3.0:policy-issuer");
+    private static Identifier identifierCategoryPolicyIssuer = IdentifierImpl.intern(
+                                                                                     "urn:att:names:tc:xacml:3.0:policy-issuer");
 
     protected DOMPolicyIssuer() {
         super();
@@ -181,13 +181,15 @@ public class DOMPolicySet {
             /*
              * Get the attributes
              */
-            domPolicySet.setIdentifier(DOMUtil
-                .getIdentifierAttribute(elementPolicySet, XACML3.ATTRIBUTE_POLICYSETID, !bLenient));
+            domPolicySet.setIdentifier(DOMUtil.getCanonicalIdentifierAttribute(elementPolicySet,
+                                                                               XACML3.ATTRIBUTE_POLICYSETID,
+                                                                               !bLenient));
             domPolicySet.setVersion(DOMUtil.getVersionAttribute(elementPolicySet, XACML3.ATTRIBUTE_VERSION,
                                                                 !bLenient));
 
-            identifier = DOMUtil.getIdentifierAttribute(elementPolicySet,
-                                                        XACML3.ATTRIBUTE_POLICYCOMBININGALGID, !bLenient);
+            identifier = DOMUtil.getCanonicalIdentifierAttribute(elementPolicySet,
+                                                                 XACML3.ATTRIBUTE_POLICYCOMBININGALGID,
+                                                                 !bLenient);
             CombiningAlgorithm<PolicySetChild> combiningAlgorithm = null;
             try {
                 combiningAlgorithm = CombiningAlgorithmFactory.newInstance()
@@ -333,8 +335,8 @@ public class DOMPolicySet {
         result = DOMUtil.repairIdentifierAttribute(elementPolicySet, XACML3.ATTRIBUTE_POLICYCOMBININGALGID,
                                                    XACML3.ID_POLICY_DENY_OVERRIDES, logger) || result;
 
-        Identifier identifier = DOMUtil.getIdentifierAttribute(elementPolicySet,
-                                                               XACML3.ATTRIBUTE_POLICYCOMBININGALGID);
+        Identifier identifier = DOMUtil
+            .getCanonicalIdentifierAttribute(elementPolicySet, XACML3.ATTRIBUTE_POLICYCOMBININGALGID);
         CombiningAlgorithm<PolicySetChild> combiningAlgorithm = null;
         try {
             combiningAlgorithm = CombiningAlgorithmFactory.newInstance()
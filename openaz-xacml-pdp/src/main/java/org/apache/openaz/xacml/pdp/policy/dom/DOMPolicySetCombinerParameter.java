@@ -103,8 +103,8 @@ public class DOMPolicySetCombinerParameter extends TargetedCombinerParameter<Ide
                 .getStringAttribute(elementPolicySetCombinerParameter, XACML3.ATTRIBUTE_PARAMETERNAME,
                                     !bLenient));
             domPolicySetCombinerParameter.setTargetId(DOMUtil
-                .getIdentifierAttribute(elementPolicySetCombinerParameter, XACML3.ATTRIBUTE_POLICYSETIDREF,
-                                        !bLenient));
+                .getCanonicalIdentifierAttribute(elementPolicySetCombinerParameter,
+                                                 XACML3.ATTRIBUTE_POLICYSETIDREF, !bLenient));
         } catch (DOMStructureException ex) {
             domPolicySetCombinerParameter.setStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR, ex.getMessage());
             if (DOMProperties.throwsExceptions()) {
@@ -42,6 +42,7 @@ import org.apache.openaz.xacml.pdp.eval.EvaluationException;
 import org.apache.openaz.xacml.pdp.policy.Expression;
 import org.apache.openaz.xacml.pdp.policy.ExpressionResult;
 import org.apache.openaz.xacml.pdp.policy.FunctionArgument;
+import org.apache.openaz.xacml.pdp.policy.FunctionArgumentCompiler;
 import org.apache.openaz.xacml.pdp.policy.FunctionArgumentExpression;
 import org.apache.openaz.xacml.pdp.policy.FunctionDefinition;
 import org.apache.openaz.xacml.pdp.policy.FunctionDefinitionFactory;
@@ -59,6 +60,7 @@ public class Apply extends Expression {
     private FunctionDefinition functionDefinition;
     private String description;
     private List<Expression> arguments = new ArrayList<Expression>();
+    private volatile FunctionArgument[] compiledArguments;
 
     protected List<Expression> getArgumentList() {
         return this.arguments;
@@ -66,6 +68,7 @@ public class Apply extends Expression {
 
     protected void clearArgumentList() {
         this.getArgumentList().clear();
+        this.compiledArguments = null;
     }
 
     public Apply(StatusCode statusCodeIn, String statusMessageIn) {
@@ -94,6 +97,7 @@ public class Apply extends Expression {
     public void setFunctionId(Identifier identifier) {
         this.functionId = identifier;
         this.functionDefinition = null;
+        this.compiledArguments = null;
     }
 
     /**
@@ -140,10 +144,44 @@ public class Apply extends Expression {
 
     public void addArgument(Expression expression) {
         this.getArgumentList().add(expression);
+        this.compiledArguments = null;
     }
 
     public void addArguments(Collection<Expression> listExpressions) {
         this.getArgumentList().addAll(listExpressions);
+        this.compiledArguments = null;
+    }
+
+    /**
+     * Gets the arguments the given {@link org.apache.openaz.xacml.pdp.policy.FunctionArgumentCompiler} has
+     * prepared for the literal <code>AttributeValueExpression</code> arguments of this <code>Apply</code>.
+     * They are prepared on the first evaluation and reused afterwards. The array is filled in completely
+     * before it is published through a volatile field, as other threads may be evaluating this
+     * <code>Apply</code> at the same time.
+     *
+     * @param thisFunctionDefinition the <code>FunctionDefinition</code> for this <code>Apply</code>
+     * @return an array with a prepared <code>FunctionArgument</code> or null for each argument, or null if
+     *         the <code>FunctionDefinition</code> does not prepare arguments
+     */
+    protected FunctionArgument[] getCompiledArguments(FunctionDefinition thisFunctionDefinition) {
+        if (!(thisFunctionDefinition instanceof FunctionArgumentCompiler)) {
+            return null;
+        }
+        FunctionArgument[] functionArguments = this.compiledArguments;
+        if (functionArguments == null) {
+            List<Expression> listExpressions = this.getArgumentList();
+            functionArguments = new FunctionArgument[listExpressions.size()];
+            for (int i = 0; i < functionArguments.length; i++) {
+                Expression expression = listExpressions.get(i);
+                if (expression instanceof AttributeValueExpression
+                    && ((AttributeValueExpression)expression).getAttributeValue() != null) {
+                    functionArguments[i] = ((FunctionArgumentCompiler)thisFunctionDefinition)
+                        .compileArgument(i, ((AttributeValueExpression)expression).getAttributeValue());
+                }
+            }
+            this.compiledArguments = functionArguments;
+        }
+        return functionArguments;
     }
 
     @Override
@@ -166,12 +204,20 @@ public class Apply extends Expression {
         /*
          * Get all of the arguments and convert them into FunctionArgument objects.
          */
+        FunctionArgument[] functionArgumentsCompiled = this.getCompiledArguments(thisFunctionDefinition);
         List<FunctionArgument> listFunctionArguments = new ArrayList<FunctionArgument>();
         Iterator<Expression> iterExpressionArguments = this.getArguments();
         if (iterExpressionArguments != null) {
             while (iterExpressionArguments.hasNext()) {
-                listFunctionArguments.add(new FunctionArgumentExpression(iterExpressionArguments.next(),
-                                                                         evaluationContext, policyDefaults));
+                Expression expression = iterExpressionArguments.next();
+                int index = listFunctionArguments.size();
+                if (functionArgumentsCompiled != null && index < functionArgumentsCompiled.length
+                    && functionArgumentsCompiled[index] != null) {
+                    listFunctionArguments.add(functionArgumentsCompiled[index]);
+                } else {
+                    listFunctionArguments.add(new FunctionArgumentExpression(expression, evaluationContext,
+                                                                             policyDefaults));
+                }
             }
         }
 
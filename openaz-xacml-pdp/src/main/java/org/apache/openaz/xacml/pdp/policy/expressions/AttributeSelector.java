@@ -34,11 +34,9 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.apache.openaz.xacml.api.Attribute;
 import org.apache.openaz.xacml.api.AttributeValue;
@@ -49,6 +47,7 @@ import org.apache.openaz.xacml.api.Identifier;
 import org.apache.openaz.xacml.api.Request;
 import org.apache.openaz.xacml.api.RequestAttributes;
 import org.apache.openaz.xacml.api.StatusCode;
+import org.apache.openaz.xacml.pdp.eval.ContentRootCache;
 import org.apache.openaz.xacml.pdp.eval.EvaluationContext;
 import org.apache.openaz.xacml.pdp.eval.EvaluationException;
 import org.apache.openaz.xacml.pdp.policy.Bag;
@@ -58,6 +57,7 @@ import org.apache.openaz.xacml.std.StdStatus;
 import org.apache.openaz.xacml.std.StdStatusCode;
 import org.apache.openaz.xacml.std.datatypes.DataTypes;
 import org.apache.openaz.xacml.std.datatypes.NodeNamespaceContext;
+import org.apache.openaz.xacml.std.datatypes.XPathExpressionCache;
 import org.apache.openaz.xacml.std.datatypes.XPathExpressionWrapper;
 import org.apache.openaz.xacml.std.dom.DOMStructureException;
 import org.apache.openaz.xacml.std.dom.DOMUtil;
@@ -230,13 +230,14 @@ public class AttributeSelector extends AttributeRetrievalBase {
                     for (Node nodeToQuery : listNodesToQuery) {
                         NodeList nodeList = null;
                         try {
-                            XPath xPath = XPathFactory.newInstance().newXPath();
-                            xPath
-                                .setNamespaceContext(new NodeNamespaceContext(nodeToQuery.getOwnerDocument()));
-                            XPathExpression xPathExpression = xPath.compile(this.getPath());
+                            XPathExpression xPathExpression = XPathExpressionCache
+                                .getXPathExpression(this.getPath(),
+                                                    new NodeNamespaceContext(nodeToQuery.getOwnerDocument()));
                             Node nodeToQueryDocumentRoot = null;
                             try {
-                                nodeToQueryDocumentRoot = DOMUtil.getDirectDocumentChild(nodeToQuery);
+                                nodeToQueryDocumentRoot = evaluationContext instanceof ContentRootCache
+                                    ? ((ContentRootCache)evaluationContext).getContentDocumentRoot(nodeToQuery)
+                                    : DOMUtil.getDirectDocumentChild(nodeToQuery);
                             } catch (DOMStructureException ex) {
                                 return ExpressionResult
                                     .newError(new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR,
@@ -34,6 +34,7 @@ import org.apache.openaz.xacml.api.StatusCode;
 import org.apache.openaz.xacml.api.trace.Traceable;
 import org.apache.openaz.xacml.pdp.eval.EvaluationContext;
 import org.apache.openaz.xacml.pdp.eval.EvaluationException;
+import org.apache.openaz.xacml.pdp.eval.VariableResultCache;
 import org.apache.openaz.xacml.pdp.policy.Expression;
 import org.apache.openaz.xacml.pdp.policy.ExpressionResult;
 import org.apache.openaz.xacml.pdp.policy.Policy;
@@ -119,7 +120,25 @@ public class VariableReference extends Expression implements Traceable {
             return ER_SE_NO_EXPRESSION;
         }
 
-        ExpressionResult result = expression.evaluate(evaluationContext, policyDefaults);
+        /*
+         * A VariableDefinition evaluates to the same result every time it is referenced while evaluating a
+         * single Request, so only evaluate it the first time if the EvaluationContext remembers results.
+         */
+        VariableResultCache variableResultCache = evaluationContext instanceof VariableResultCache
+            ? (VariableResultCache)evaluationContext : null;
+        ExpressionResult result = variableResultCache == null
+            ? null : variableResultCache.getVariableResult(variableDefinition);
+        if (result != null) {
+            if (evaluationContext.isTracing()) {
+                evaluationContext.trace(new StdTraceEvent<ExpressionResult>("Variable (cached)", this, result));
+            }
+            return result;
+        }
+
+        result = expression.evaluate(evaluationContext, policyDefaults);
+        if (result != null && variableResultCache != null) {
+            variableResultCache.setVariableResult(variableDefinition, result);
+        }
 
         if (evaluationContext.isTracing()) {
             evaluationContext.trace(new StdTraceEvent<ExpressionResult>("Variable", this, result));
@@ -49,7 +49,7 @@ import org.apache.openaz.xacml.pdp.policy.Rule;
 public class StdCombiningAlgorithmFactory extends CombiningAlgorithmFactory {
     private static Map<Identifier, CombiningAlgorithm<Rule>> mapRuleCombiningAlgorithms = new HashMap<Identifier, CombiningAlgorithm<Rule>>();
     private static Map<Identifier, CombiningAlgorithm<PolicySetChild>> mapPolicyCombiningAlgorithms = new HashMap<Identifier, CombiningAlgorithm<PolicySetChild>>();
-    private static boolean needInit = true;
+    private static volatile boolean needInit = true;
 
     protected static void registerRuleCombiningAlgorithm(CombiningAlgorithm<Rule> ruleCombiningAlgorithm) {
         mapRuleCombiningAlgorithms.put(ruleCombiningAlgorithm.getId(), ruleCombiningAlgorithm);
@@ -64,7 +64,6 @@ public class StdCombiningAlgorithmFactory extends CombiningAlgorithmFactory {
         if (needInit) {
             synchronized (mapRuleCombiningAlgorithms) {
                 if (needInit) {
-                    needInit = false;
                     Field[] declaredFields = StdCombiningAlgorithms.class.getFields();
                     for (Field field : declaredFields) {
                         if (Modifier.isStatic(field.getModifiers())
@@ -83,6 +82,10 @@ public class StdCombiningAlgorithmFactory extends CombiningAlgorithmFactory {
                             }
                         }
                     }
+                    //
+                    // Only publish the map once it is completely filled in
+                    //
+                    needInit = false;
                 }
             }
         }
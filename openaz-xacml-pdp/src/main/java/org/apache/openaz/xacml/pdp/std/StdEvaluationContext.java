@@ -31,6 +31,8 @@
 package org.apache.openaz.xacml.pdp.std;
 
 import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -44,26 +46,36 @@ import org.apache.openaz.xacml.api.pip.PIPResponse;
 import org.apache.openaz.xacml.api.trace.TraceEngine;
 import org.apache.openaz.xacml.api.trace.TraceEngineFactory;
 import org.apache.openaz.xacml.api.trace.TraceEvent;
+import org.apache.openaz.xacml.pdp.eval.ContentRootCache;
 import org.apache.openaz.xacml.pdp.eval.EvaluationContext;
+import org.apache.openaz.xacml.pdp.eval.VariableResultCache;
+import org.apache.openaz.xacml.pdp.policy.ExpressionResult;
 import org.apache.openaz.xacml.pdp.policy.Policy;
 import org.apache.openaz.xacml.pdp.policy.PolicyDef;
 import org.apache.openaz.xacml.pdp.policy.PolicyFinder;
 import org.apache.openaz.xacml.pdp.policy.PolicyFinderResult;
 import org.apache.openaz.xacml.pdp.policy.PolicySet;
+import org.apache.openaz.xacml.pdp.policy.VariableDefinition;
+import org.apache.openaz.xacml.std.dom.DOMStructureException;
+import org.apache.openaz.xacml.std.dom.DOMUtil;
 import org.apache.openaz.xacml.std.pip.engines.RequestEngine;
 import org.apache.openaz.xacml.std.pip.finders.RequestFinder;
 import org.apache.openaz.xacml.util.FactoryException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
 
 /**
  * StdEvaluationContext implements the {@link org.apache.openaz.xacml.pdp.eval.EvaluationContext} interface
  * using default factories to load the XACML policies, and get the PIP engines.
  */
-public class StdEvaluationContext implements EvaluationContext {
+public class StdEvaluationContext implements EvaluationContext, VariableResultCache, ContentRootCache {
     private Log logger = LogFactory.getLog(this.getClass());
     private Request request;
     private RequestFinder requestFinder;
     private PolicyFinder policyFinder;
     private TraceEngine traceEngine;
+    private Map<VariableDefinition, ExpressionResult> variableResults;
+    private Map<Node, Node> contentDocumentRoots;
 
     /**
      * Creates a new <code>StdEvaluationContext</code> with the given
@@ -164,4 +176,34 @@ public class StdEvaluationContext implements EvaluationContext {
     public Collection<PIPEngine> getPIPEngines() {
         return this.requestFinder.getPIPEngines();
     }
+
+    @Override
+    public ExpressionResult getVariableResult(VariableDefinition variableDefinition) {
+        return this.variableResults == null ? null : this.variableResults.get(variableDefinition);
+    }
+
+    @Override
+    public void setVariableResult(VariableDefinition variableDefinition, ExpressionResult expressionResult) {
+        if (this.variableResults == null) {
+            this.variableResults = new IdentityHashMap<VariableDefinition, ExpressionResult>();
+        }
+        this.variableResults.put(variableDefinition, expressionResult);
+    }
+
+    @Override
+    public Node getContentDocumentRoot(Node node) throws DOMStructureException {
+        Document document = node.getOwnerDocument();
+        if (document != null && document.getDocumentElement() == node) {
+            return node;
+        }
+        if (this.contentDocumentRoots == null) {
+            this.contentDocumentRoots = new IdentityHashMap<Node, Node>();
+        }
+        Node nodeDocumentRoot = this.contentDocumentRoots.get(node);
+        if (nodeDocumentRoot == null) {
+            nodeDocumentRoot = DOMUtil.getDirectDocumentChild(node);
+            this.contentDocumentRoots.put(node, nodeDocumentRoot);
+        }
+        return nodeDocumentRoot;
+    }
 }
@@ -51,9 +51,9 @@ import org.apache.openaz.xacml.pdp.policy.PolicyFinderFactory;
  */
 public class StdEvaluationContextFactory extends EvaluationContextFactory {
     private Log logger = LogFactory.getLog(this.getClass());
-    private PolicyFinder policyFinder;
-    private PIPFinder pipFinder;
-    private TraceEngine traceEngine;
+    private volatile PolicyFinder policyFinder;
+    private volatile PIPFinder pipFinder;
+    private volatile TraceEngine traceEngine;
 
     /**
      * Should this properties file be passed onward when instantiating the PolicyFinder and the PIPFinder? If
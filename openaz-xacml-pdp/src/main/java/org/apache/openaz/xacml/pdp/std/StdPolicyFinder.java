@@ -35,16 +35,21 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.openaz.xacml.api.IdReferenceMatch;
 import org.apache.openaz.xacml.api.Identifier;
+import org.apache.openaz.xacml.api.Status;
 import org.apache.openaz.xacml.api.Version;
 import org.apache.openaz.xacml.pdp.eval.EvaluationContext;
 import org.apache.openaz.xacml.pdp.eval.EvaluationException;
@@ -53,8 +58,12 @@ import org.apache.openaz.xacml.pdp.policy.Policy;
 import org.apache.openaz.xacml.pdp.policy.PolicyDef;
 import org.apache.openaz.xacml.pdp.policy.PolicyFinder;
 import org.apache.openaz.xacml.pdp.policy.PolicyFinderResult;
+import org.apache.openaz.xacml.pdp.policy.PolicyIdReference;
 import org.apache.openaz.xacml.pdp.policy.PolicySet;
 import org.apache.openaz.xacml.pdp.policy.PolicySetChild;
+import org.apache.openaz.xacml.pdp.policy.PolicySetIdReference;
+import org.apache.openaz.xacml.pdp.policy.Target;
+import org.apache.openaz.xacml.pdp.policy.TargetIndex;
 import org.apache.openaz.xacml.pdp.policy.dom.DOMPolicyDef;
 import org.apache.openaz.xacml.std.StdStatus;
 import org.apache.openaz.xacml.std.StdStatusCode;
@@ -62,6 +71,14 @@ import org.apache.openaz.xacml.std.StdStatusCode;
 /**
  * StdPolicyFinder implements the {@link org.apache.openaz.xacml.pdp.policy.PolicyFinder} interface to look
  * up policies by their internal ID or an externally visible ID.
+ * <p>
+ * The set of root policies is fixed at construction time and indexed with a
+ * {@link org.apache.openaz.xacml.pdp.policy.TargetIndex} so that only the roots whose <code>Target</code>
+ * can match a request are evaluated. Every <code>PolicyIdReference</code> and <code>PolicySetIdReference</code>
+ * is linked to its referencee at construction time, so evaluation never looks up or loads a policy. References
+ * that cannot be resolved, or that would make a <code>PolicySet</code> refer to itself, are linked to nothing
+ * and reported by <code>getLinkErrors</code>. A <code>StdPolicyFinder</code> may be shared by any number of
+ * threads.
  */
 public class StdPolicyFinder implements PolicyFinder {
     private static final PolicyFinderResult<PolicyDef> PFR_MULTIPLE = new StdPolicyFinderResult<PolicyDef>(
@@ -91,8 +108,10 @@ public class StdPolicyFinder implements PolicyFinder {
                                                                                                                                 "Not a policy set"));
 
     private Log logger = LogFactory.getLog(this.getClass());
-    private List<PolicyDef> listRoots = new ArrayList<PolicyDef>();
-    private Map<Identifier, List<PolicyDef>> mapPolicies = new HashMap<Identifier, List<PolicyDef>>();
+    private final List<PolicyDef> listRoots;
+    private final TargetIndex rootIndex;
+    private final ConcurrentMap<Identifier, List<PolicyDef>> mapPolicies = new ConcurrentHashMap<Identifier, List<PolicyDef>>();
+    private volatile List<String> listLinkErrors = Collections.emptyList();
 
     public static class StdPolicyFinderException extends Exception {
         private static final long serialVersionUID = -8969282995787463288L;
@@ -106,13 +125,17 @@ public class StdPolicyFinder implements PolicyFinder {
         }
     }
 
-    private void storeInPolicyMap(PolicyDef policyDef) {
+    private synchronized void storeInPolicyMap(PolicyDef policyDef) {
+        /*
+         * The lists in the map are never modified once published, so readers need no locking
+         */
         List<PolicyDef> listPolicyDefs = this.mapPolicies.get(policyDef.getIdentifier());
-        if (listPolicyDefs == null) {
-            listPolicyDefs = new ArrayList<PolicyDef>();
-            this.mapPolicies.put(policyDef.getIdentifier(), listPolicyDefs);
+        List<PolicyDef> listPolicyDefsNew = new ArrayList<PolicyDef>();
+        if (listPolicyDefs != null) {
+            listPolicyDefsNew.addAll(listPolicyDefs);
         }
-        listPolicyDefs.add(policyDef);
+        listPolicyDefsNew.add(policyDef);
+        this.mapPolicies.put(policyDef.getIdentifier(), Collections.unmodifiableList(listPolicyDefsNew));
     }
 
     private <T extends PolicyDef> List<T> getFromPolicyMap(IdReferenceMatch idReferenceMatch,
@@ -222,8 +245,7 @@ public class StdPolicyFinder implements PolicyFinder {
                     }
                     if (policyDef != null) {
                         if (policyDef instanceof Policy) {
-                            List<PolicyDef> listPolicyDefs = new ArrayList<PolicyDef>();
-                            listPolicyDefs.add(policyDef);
+                            List<PolicyDef> listPolicyDefs = Collections.singletonList(policyDef);
                             this.mapPolicies.put(id, listPolicyDefs);
                             this.mapPolicies.put(policyDef.getIdentifier(), listPolicyDefs);
                             return new StdPolicyFinderResult<Policy>((Policy)policyDef);
@@ -269,8 +291,7 @@ public class StdPolicyFinder implements PolicyFinder {
                     }
                     if (policyDef != null) {
                         if (policyDef instanceof PolicySet) {
-                            List<PolicyDef> listPolicyDefs = new ArrayList<PolicyDef>();
-                            listPolicyDefs.add(policyDef);
+                            List<PolicyDef> listPolicyDefs = Collections.singletonList(policyDef);
                             this.mapPolicies.put(id, listPolicyDefs);
                             this.mapPolicies.put(policyDef.getIdentifier(), listPolicyDefs);
                             return new StdPolicyFinderResult<PolicySet>((PolicySet)policyDef);
@@ -311,10 +332,111 @@ public class StdPolicyFinder implements PolicyFinder {
         }
     }
 
+    /**
+     * Builds the <code>TargetIndex</code> over the root <code>PolicyDef</code>s. Roots that do not validate
+     * are left unindexed so that their error status is reported by the normal match.
+     *
+     * @param roots the root <code>PolicyDef</code>s in evaluation order
+     * @return the <code>TargetIndex</code> for the roots
+     */
+    private static TargetIndex buildRootIndex(List<PolicyDef> roots) {
+        List<Target> listTargets = new ArrayList<Target>(roots.size());
+        for (PolicyDef policyDef : roots) {
+            listTargets.add(policyDef.validate() ? policyDef.getTarget() : null);
+        }
+        return new TargetIndex(listTargets);
+    }
+
+    private static String describeUnresolved(String type, IdReferenceMatch idReferenceMatch,
+                                             PolicySet policySet, Status status) {
+        return "Unresolved " + type + " " + idReferenceMatch.toString() + " in PolicySet "
+               + policySet.getIdentifier().stringValue()
+               + (status == null ? "" : ": " + status.getStatusMessage());
+    }
+
+    /**
+     * Links the references in the given <code>PolicyDef</code>, and in every <code>PolicySet</code> it
+     * refers to, depth first. A <code>PolicySetIdReference</code> to a <code>PolicySet</code> that is still
+     * being linked closes a cycle and is linked to nothing.
+     *
+     * @param policyDef the <code>PolicyDef</code> to link
+     * @param path the <code>PolicySet</code>s being linked, from the starting point to the current one
+     * @param done the <code>PolicySet</code>s that are completely linked
+     * @param linkErrors the <code>List</code> to add the messages for unresolved references to
+     */
+    private void link(PolicyDef policyDef, Set<PolicySet> path, Set<PolicySet> done, List<String> linkErrors) {
+        if (!(policyDef instanceof PolicySet) || done.contains(policyDef)) {
+            return;
+        }
+        PolicySet policySet = (PolicySet)policyDef;
+        path.add(policySet);
+        Iterator<PolicySetChild> iterChildren = policySet.getChildren();
+        if (iterChildren != null) {
+            while (iterChildren.hasNext()) {
+                PolicySetChild policySetChild = iterChildren.next();
+                if (policySetChild instanceof PolicySet) {
+                    this.link((PolicySet)policySetChild, path, done, linkErrors);
+                } else if (policySetChild instanceof PolicyIdReference) {
+                    PolicyIdReference policyIdReference = (PolicyIdReference)policySetChild;
+                    PolicyFinderResult<Policy> policyFinderResult = this.lookupPolicyByIdentifier(policyIdReference
+                        .getIdReferenceMatch());
+                    Policy policy = policyFinderResult.getPolicyDef();
+                    policyIdReference.link(policy, policyFinderResult.getStatus());
+                    if (policy == null) {
+                        linkErrors.add(describeUnresolved("PolicyIdReference",
+                                                          policyIdReference.getIdReferenceMatch(), policySet,
+                                                          policyFinderResult.getStatus()));
+                    }
+                } else if (policySetChild instanceof PolicySetIdReference) {
+                    PolicySetIdReference policySetIdReference = (PolicySetIdReference)policySetChild;
+                    IdReferenceMatch idReferenceMatch = policySetIdReference.getIdReferenceMatch();
+                    PolicyFinderResult<PolicySet> policyFinderResult = this
+                        .lookupPolicySetByIdentifier(idReferenceMatch);
+                    PolicySet policySetReferencee = policyFinderResult.getPolicyDef();
+                    Status status = policyFinderResult.getStatus();
+                    if (policySetReferencee != null && path.contains(policySetReferencee)) {
+                        policySetReferencee = null;
+                        status = new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR,
+                                               "Circular reference to " + idReferenceMatch.toString());
+                    } else if (policySetReferencee != null) {
+                        this.link(policySetReferencee, path, done, linkErrors);
+                    }
+                    policySetIdReference.link(policySetReferencee, status);
+                    if (policySetReferencee == null) {
+                        linkErrors.add(describeUnresolved("PolicySetIdReference", idReferenceMatch, policySet,
+                                                          status));
+                    }
+                }
+            }
+        }
+        path.remove(policySet);
+        done.add(policySet);
+    }
+
+    /**
+     * Links the references in the root <code>PolicyDef</code>s and in every other known
+     * <code>PolicyDef</code>, and publishes the messages for the references that could not be resolved.
+     */
+    private synchronized void linkPolicyDefs() {
+        Set<PolicySet> path = Collections.newSetFromMap(new IdentityHashMap<PolicySet, Boolean>());
+        Set<PolicySet> done = Collections.newSetFromMap(new IdentityHashMap<PolicySet, Boolean>());
+        List<String> linkErrors = new ArrayList<String>();
+        for (PolicyDef policyDef : this.listRoots) {
+            this.link(policyDef, path, done, linkErrors);
+        }
+        for (List<PolicyDef> listPolicyDefs : new ArrayList<List<PolicyDef>>(this.mapPolicies.values())) {
+            for (PolicyDef policyDef : listPolicyDefs) {
+                this.link(policyDef, path, done, linkErrors);
+            }
+        }
+        this.listLinkErrors = Collections.unmodifiableList(linkErrors);
+    }
+
     public StdPolicyFinder(Collection<PolicyDef> listRootPolicies, Collection<PolicyDef> referencedPolicyDefs) {
+        List<PolicyDef> roots = new ArrayList<PolicyDef>();
         if (listRootPolicies != null) {
             for (PolicyDef policyDef : listRootPolicies) {
-                this.listRoots.add(policyDef);
+                roots.add(policyDef);
                 this.updatePolicyMap(policyDef);
             }
         }
@@ -323,6 +445,9 @@ public class StdPolicyFinder implements PolicyFinder {
                 this.storeInPolicyMap(policyDef);
             }
         }
+        this.listRoots = Collections.unmodifiableList(roots);
+        this.rootIndex = buildRootIndex(this.listRoots);
+        this.linkPolicyDefs();
     }
 
     /**
@@ -331,8 +456,9 @@ public class StdPolicyFinder implements PolicyFinder {
      * @param rootPolicyDef the <code>PolicyDef</code> acting as the root element
      */
     public StdPolicyFinder(PolicyDef rootPolicyDef, Collection<PolicyDef> referencedPolicyDefs) {
+        List<PolicyDef> roots = new ArrayList<PolicyDef>();
         if (rootPolicyDef != null) {
-            this.listRoots.add(rootPolicyDef);
+            roots.add(rootPolicyDef);
             this.updatePolicyMap(rootPolicyDef);
         }
 
@@ -341,15 +467,42 @@ public class StdPolicyFinder implements PolicyFinder {
                 this.storeInPolicyMap(policyDef);
             }
         }
+        this.listRoots = Collections.unmodifiableList(roots);
+        this.rootIndex = buildRootIndex(this.listRoots);
+        this.linkPolicyDefs();
+    }
+
+    /**
+     * Gets the root <code>PolicyDef</code>s in the order they are evaluated.
+     *
+     * @return an unmodifiable <code>List</code> of the root <code>PolicyDef</code>s
+     */
+    public List<PolicyDef> getRootPolicyDefs() {
+        return this.listRoots;
+    }
+
+    /**
+     * Gets the messages describing the <code>PolicyIdReference</code>s and <code>PolicySetIdReference</code>s
+     * that could not be linked to a referencee. Evaluating one of them gives an indeterminate result.
+     *
+     * @return an unmodifiable <code>List</code> of the link error messages, empty if every reference resolved
+     */
+    public List<String> getLinkErrors() {
+        return this.listLinkErrors;
     }
 
     @Override
     public PolicyFinderResult<PolicyDef> getRootPolicyDef(EvaluationContext evaluationContext) {
         PolicyDef policyDefFirstMatch = null;
-        Iterator<PolicyDef> iterRootPolicies = this.listRoots.iterator();
         PolicyFinderResult<PolicyDef> firstIndeterminate = null;
-        while (iterRootPolicies.hasNext()) {
-            PolicyDef policyDef = iterRootPolicies.next();
+
+        /*
+         * Only the candidate roots are matched, in their original order. Every other root is known to
+         * return NOMATCH, so the result is the same as matching all of them.
+         */
+        BitSet candidates = this.rootIndex.getCandidates(evaluationContext);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            PolicyDef policyDef = this.listRoots.get(i);
             MatchResult matchResult = null;
             try {
                 matchResult = policyDef.match(evaluationContext);
@@ -400,7 +553,8 @@ public class StdPolicyFinder implements PolicyFinder {
         return this.lookupPolicySetByIdentifier(idReferenceMatch);
     }
 
-    public void addReferencedPolicy(PolicyDef policyDef) {
+    public synchronized void addReferencedPolicy(PolicyDef policyDef) {
         this.updatePolicyMap(policyDef);
+        this.linkPolicyDefs();
     }
 }
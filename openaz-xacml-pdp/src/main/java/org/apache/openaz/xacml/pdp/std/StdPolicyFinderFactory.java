@@ -53,6 +53,7 @@ import org.apache.openaz.xacml.pdp.policy.PolicyFinderFactory;
 import org.apache.openaz.xacml.pdp.policy.PolicySet;
 import org.apache.openaz.xacml.pdp.policy.PolicySetChild;
 import org.apache.openaz.xacml.pdp.policy.Target;
+import org.apache.openaz.xacml.pdp.policy.TargetIndex;
 import org.apache.openaz.xacml.pdp.policy.dom.DOMPolicyDef;
 import org.apache.openaz.xacml.pdp.util.OpenAZPDPProperties;
 import org.apache.openaz.xacml.std.IdentifierImpl;
@@ -184,7 +185,7 @@ public class StdPolicyFinderFactory extends PolicyFinderFactory {
                     // Find the combining algorithm
                     //
                     CombiningAlgorithm<PolicySetChild> algorithm = CombiningAlgorithmFactory.newInstance()
-                        .getPolicyCombiningAlgorithm(new IdentifierImpl(combiningAlgorithm));
+                        .getPolicyCombiningAlgorithm(IdentifierImpl.valueOf(combiningAlgorithm));
                     //
                     // Create our root policy
                     //
@@ -215,6 +216,16 @@ public class StdPolicyFinderFactory extends PolicyFinderFactory {
             }
 
             this.referencedPolicies = this.getPolicyDefs(XACMLProperties.PROP_REFERENCEDPOLICIES, properties);
+
+            //
+            // Check for property that compiles the child targets into indexes
+            //
+            if (Boolean.parseBoolean(properties
+                .getProperty(OpenAZPDPProperties.PROP_POLICYFINDERFACTORY_COMPILETARGETS))) {
+                logger.info("Compiling policy targets");
+                TargetIndex.compileTargets(this.rootPolicies);
+                TargetIndex.compileTargets(this.referencedPolicies);
+            }
             this.needsInit = false;
         }
     }
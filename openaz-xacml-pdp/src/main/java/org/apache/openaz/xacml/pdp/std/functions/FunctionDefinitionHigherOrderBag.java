@@ -32,8 +32,11 @@ package org.apache.openaz.xacml.pdp.std.functions;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.openaz.xacml.api.AttributeValue;
 import org.apache.openaz.xacml.api.DataType;
@@ -315,27 +318,39 @@ public class FunctionDefinitionHigherOrderBag<O, I> extends FunctionDefinitionBa
                             .getShortFunctionId() + " Bag is empty at index " + i));
                 }
             }
+
+            // with an equality predicate and two arguments this is just a test for a common value, which a
+            // hashed lookup answers without calling the predicate for every pair
+            if (arguments.size() == 3 && predicate.getClass() == FunctionDefinitionEquality.class) {
+                List<Object> equalityValues1 = getEqualityValues(predicate, arguments.get(1));
+                List<Object> equalityValues2 = getEqualityValues(predicate, arguments.get(2));
+                if (equalityValues1 != null && equalityValues2 != null) {
+                    return anyEqual(equalityValues1, equalityValues2) ? ER_TRUE : ER_FALSE;
+                }
+            }
+
             // This is different from all the other Higher-order bag functions because it can take an
             // unbounded number of arguments any/all of which may be bags.
             // (The others take either an unbounded number of args of which exactly 1 is a bag, or they take
             // exactly 2 bags)
             // To handle the possibility of multiple bags without knowing a priori how many there might be,
-            // we first create all possible lists of arguments to be passed to the predicate.
-            // This is done using a depth-first search of the total argument space.
-            List<List<FunctionArgument>> listOfPredicateLists = new ArrayList<List<FunctionArgument>>();
-
-            /*
-             * Start the recursive append process
-             */
-            appendCrossProduct(new ArrayList<FunctionArgument>(), arguments.subList(1, arguments.size()), 0,
-                               listOfPredicateLists);
-
-            // we now have all possible argument lists for the predicate to work on, so do the ANY operation
-            // now
-            for (List<FunctionArgument> predicateArgumentList : listOfPredicateLists) {
-                // all of the predicate arguments have been created except that the one from the bag needs to
-                // replace the place-holder in the list
-                ExpressionResult res = predicate.evaluate(evaluationContext, predicateArgumentList);
+            // we walk the total argument space like an odometer, with the last argument changing fastest.
+            // This visits the argument lists in the same order as a depth-first search, but only one list
+            // exists at a time and we stop at the first TRUE.
+            FunctionArgument[][] argumentChoices = new FunctionArgument[arguments.size() - 1][];
+            for (int i = 1; i < arguments.size(); i++) {
+                if (arguments.get(i).isBag()) {
+                    argumentChoices[i - 1] = toFunctionArguments(arguments.get(i).getBag());
+                } else {
+                    argumentChoices[i - 1] = new FunctionArgument[] {
+                        arguments.get(i)
+                    };
+                }
+                predicateArguments.add(argumentChoices[i - 1][0]);
+            }
+            int[] choiceIndexes = new int[argumentChoices.length];
+            while (true) {
+                ExpressionResult res = predicate.evaluate(evaluationContext, predicateArguments);
                 if (!res.isOk()) {
                     return ExpressionResult
                         .newError(new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR, this
@@ -344,28 +359,46 @@ public class FunctionDefinitionHigherOrderBag<O, I> extends FunctionDefinitionBa
                 if ((Boolean)(res.getValue().getValue()) == Boolean.TRUE) {
                     return ER_TRUE;
                 }
-            }
 
-            // if we get here then none of the combinations gave a TRUE result
-            return ER_FALSE;
+                // move on to the next argument list, rolling positions that are exhausted back to the start
+                int position = choiceIndexes.length - 1;
+                while (position >= 0 && ++choiceIndexes[position] == argumentChoices[position].length) {
+                    choiceIndexes[position] = 0;
+                    predicateArguments.set(position, argumentChoices[position][0]);
+                    position--;
+                }
+                if (position < 0) {
+                    // if we get here then none of the combinations gave a TRUE result
+                    return ER_FALSE;
+                }
+                predicateArguments.set(position, argumentChoices[position][choiceIndexes[position]]);
+            }
 
         case ALL_OF_ANY:
-            // TODO - it might be more efficient to extract all the attributes from the first bag and convert
-            // them to FunctionArguments just once, then use that list each time
+            // with an equality predicate some value in bag2 has to equal every value in bag1, so bag1 can
+            // only hold copies of one value and that value must be in bag2
+            if (predicate.getClass() == FunctionDefinitionEquality.class) {
+                List<Object> equalityValues1 = getEqualityValues(predicate, arguments.get(1));
+                List<Object> equalityValues2 = getEqualityValues(predicate, arguments.get(2));
+                if (equalityValues1 != null && equalityValues2 != null) {
+                    return allEqualAny(equalityValues1, equalityValues2) ? ER_TRUE : ER_FALSE;
+                }
+            }
+
+            // the values of the 1st bag are checked against every value of the 2nd, so only wrap them once
+            FunctionArgument[] bagArguments1 = toFunctionArguments(arguments.get(1).getBag());
+            predicateArguments.add(null);
+            predicateArguments.add(null);
 
             // get the element from the 2nd bag that we want to check all elements from the 1st bag against
             bagIterator2 = arguments.get(2).getBag().getAttributeValues();
             while (bagIterator2.hasNext()) {
-                FunctionArgument predicateArgument2 = new FunctionArgumentAttributeValue(bagIterator2.next());
+                predicateArguments.set(1, new FunctionArgumentAttributeValue(bagIterator2.next()));
                 boolean allMatch = true;
 
                 // now look at every value of the first bag operating with the selected value from the 2nd
-                bagIterator1 = arguments.get(1).getBag().getAttributeValues();
-                while (bagIterator1.hasNext()) {
-
-                    predicateArguments.clear();
-                    predicateArguments.add(new FunctionArgumentAttributeValue(bagIterator1.next()));
-                    predicateArguments.add(predicateArgument2);
+                for (FunctionArgument predicateArgument1 : bagArguments1) {
+                    predicateArguments.set(0, predicateArgument1);
 
                     ExpressionResult res = predicate.evaluate(evaluationContext, predicateArguments);
                     if (!res.isOk()) {
@@ -390,21 +423,20 @@ public class FunctionDefinitionHigherOrderBag<O, I> extends FunctionDefinitionBa
             return ER_FALSE;
 
         case ANY_OF_ALL:
-            // TODO - it might be more efficient to extract all the attributes from the 2nd bag and convert
-            // them to FunctionArguments just once, then use that list each time
+            // the values of the 2nd bag are checked against every value of the 1st, so only wrap them once
+            FunctionArgument[] bagArguments2 = toFunctionArguments(arguments.get(2).getBag());
+            predicateArguments.add(null);
+            predicateArguments.add(null);
 
             // get the element from the 1st bag that we want to check all elements from the 1st bag against
             bagIterator1 = arguments.get(1).getBag().getAttributeValues();
             while (bagIterator1.hasNext()) {
-                FunctionArgument predicateArgument1 = new FunctionArgumentAttributeValue(bagIterator1.next());
+                predicateArguments.set(0, new FunctionArgumentAttributeValue(bagIterator1.next()));
                 boolean allMatch = true;
 
                 // now look at every value of the 2nd bag operating with the selected value from the first
-                bagIterator2 = arguments.get(2).getBag().getAttributeValues();
-                while (bagIterator2.hasNext()) {
-                    predicateArguments.clear();
-                    predicateArguments.add(predicateArgument1);
-                    predicateArguments.add(new FunctionArgumentAttributeValue(bagIterator2.next()));
+                for (FunctionArgument predicateArgument2 : bagArguments2) {
+                    predicateArguments.set(1, predicateArgument2);
 
                     ExpressionResult res = predicate.evaluate(evaluationContext, predicateArguments);
                     if (!res.isOk()) {
@@ -429,20 +461,19 @@ public class FunctionDefinitionHigherOrderBag<O, I> extends FunctionDefinitionBa
             return ER_FALSE;
 
         case ALL_OF_ALL:
-            // TODO - it might be more efficient to extract all the attributes from the 2nd bag and convert
-            // them to FunctionArguments just once, then use that list each time
+            // the values of the 2nd bag are checked against every value of the 1st, so only wrap them once
+            FunctionArgument[] allBagArguments2 = toFunctionArguments(arguments.get(2).getBag());
+            predicateArguments.add(null);
+            predicateArguments.add(null);
 
             // get the element from the 1st bag that we want to check all elements from the 1st bag against
             bagIterator1 = arguments.get(1).getBag().getAttributeValues();
             while (bagIterator1.hasNext()) {
-                FunctionArgument predicateArgument1 = new FunctionArgumentAttributeValue(bagIterator1.next());
+                predicateArguments.set(0, new FunctionArgumentAttributeValue(bagIterator1.next()));
 
                 // now look at every value of the 2nd bag operating with the selected value from the first
-                bagIterator2 = arguments.get(2).getBag().getAttributeValues();
-                while (bagIterator2.hasNext()) {
-                    predicateArguments.clear();
-                    predicateArguments.add(predicateArgument1);
-                    predicateArguments.add(new FunctionArgumentAttributeValue(bagIterator2.next()));
+                for (FunctionArgument predicateArgument2 : allBagArguments2) {
+                    predicateArguments.set(1, predicateArgument2);
 
                     ExpressionResult res = predicate.evaluate(evaluationContext, predicateArguments);
                     if (!res.isOk()) {
@@ -517,52 +548,93 @@ public class FunctionDefinitionHigherOrderBag<O, I> extends FunctionDefinitionBa
     }
 
     /**
-     * Performs the depth-first walk to generate argument lists. Needed by any-of-any because of the variable
-     * number of bags it might get. This code was salvaged from the R2 version of the product and adjusted to
-     * fit the new way of doing business.
+     * Wraps each value of the given <code>Bag</code> in a <code>FunctionArgument</code> once, so the
+     * predicate argument lists can share them instead of wrapping a value again for every combination it is
+     * used in.
+     *
+     * @param bag the <code>Bag</code> whose values are wrapped
+     * @return an array with a <code>FunctionArgument</code> for each value of the <code>Bag</code>
+     */
+    private static FunctionArgument[] toFunctionArguments(Bag bag) {
+        FunctionArgument[] functionArguments = new FunctionArgument[bag.size()];
+        Iterator<AttributeValue<?>> iterBagValues = bag.getAttributeValues();
+        for (int i = 0; iterBagValues.hasNext(); i++) {
+            functionArguments[i] = new FunctionArgumentAttributeValue(iterBagValues.next());
+        }
+        return functionArguments;
+    }
+
+    /**
+     * Converts the value, or the values of the bag, of an argument to an equality predicate to the java
+     * objects the predicate would compare. If any value does not convert, <code>null</code> is returned and
+     * the caller must call the predicate itself, so that it reports the same error it always has.
+     *
+     * @param predicate the {@link FunctionDefinitionEquality} predicate
+     * @param argument the <code>FunctionArgument</code> holding the values
+     * @return the converted values, or <code>null</code> if any of them could not be converted
+     */
+    private static List<Object> getEqualityValues(FunctionDefinition predicate, FunctionArgument argument) {
+        DataType<?> dataTypeArgs = ((FunctionDefinitionEquality<?>)predicate).getDataTypeArgs();
+        Iterator<AttributeValue<?>> iterValues;
+        if (argument.isBag()) {
+            iterValues = argument.getBag().getAttributeValues();
+        } else {
+            iterValues = Collections.<AttributeValue<?>> singletonList(argument.getValue()).iterator();
+        }
+        List<Object> equalityValues = new ArrayList<Object>();
+        while (iterValues.hasNext()) {
+            AttributeValue<?> attributeValue = iterValues.next();
+            if (attributeValue == null || attributeValue.getValue() == null
+                || !dataTypeArgs.getId().equals(attributeValue.getDataTypeId())) {
+                return null;
+            }
+            try {
+                equalityValues.add(dataTypeArgs.convert(attributeValue.getValue()));
+            } catch (Exception ex) {
+                return null;
+            }
+        }
+        return equalityValues;
+    }
+
+    /**
+     * Determines whether any of the first values equals any of the second values, by hashing the smaller
+     * list and probing it with the larger one.
      *
-     * @param argListInProgress the current argument list being generated in this pass
-     * @param valueList the list of expression result values
-     * @param nPosition the position within the expression result values to use to append to the base argument
-     *            list
-     * @param listArgLists the <code>List</code> where final argument lists are appended
+     * @param values1 the first converted values
+     * @param values2 the second converted values
+     * @return true if the two lists have a value in common
      */
-    private static void appendCrossProduct(List<FunctionArgument> argListInProgress,
-                                           List<FunctionArgument> valueList, int nPosition,
-                                           List<List<FunctionArgument>> listArgLists) {
-        /*
-         * Have we hit a leaf?
-         */
-        if (nPosition >= valueList.size()) {
-            List<FunctionArgument> copy = new ArrayList<FunctionArgument>();
-            copy.addAll(argListInProgress);
-            listArgLists.add(copy);
-            return;
+    private static boolean anyEqual(List<Object> values1, List<Object> values2) {
+        List<Object> valuesProbe = values1.size() < values2.size() ? values2 : values1;
+        Set<Object> setValues = new HashSet<Object>(values1.size() < values2.size() ? values1 : values2);
+        for (Object value : valuesProbe) {
+            if (setValues.contains(value)) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        /*
-         * Check to see if the value at the current position is a primitive or a bag
-         */
-        FunctionArgument FunctionArgument = valueList.get(nPosition);
-        if (FunctionArgument.isBag() && FunctionArgument.getBag().getAttributeValues() != null
-            && FunctionArgument.getBag().size() > 0) {
-            Iterator<AttributeValue<?>> iterBagValues = FunctionArgument.getBag().getAttributeValues();
-            while (iterBagValues.hasNext()) {
-                AttributeValue<?> attributeValue = iterBagValues.next();
-                FunctionArgument functionArgument = new FunctionArgumentAttributeValue(attributeValue);
-                argListInProgress.add(functionArgument);
-                appendCrossProduct(argListInProgress, valueList, nPosition + 1, listArgLists);
-                argListInProgress.remove(argListInProgress.size() - 1);
+    /**
+     * Determines whether one of the second values equals all of the first values.
+     *
+     * @param values1 the first converted values
+     * @param values2 the second converted values
+     * @return true if some value in <code>values2</code> equals every value in <code>values1</code>
+     */
+    private static boolean allEqualAny(List<Object> values1, List<Object> values2) {
+        if (values1.isEmpty()) {
+            // every value of the 2nd bag trivially matches all of an empty 1st bag
+            return !values2.isEmpty();
+        }
+        Object value1 = values1.get(0);
+        for (Object value : values1) {
+            if (!value1.equals(value)) {
+                return false;
             }
-        } else {
-            /*
-             * This is a simple value, so we can just append to the argListInProgress and continue the
-             * recursion
-             */
-            argListInProgress.add(FunctionArgument);
-            appendCrossProduct(argListInProgress, valueList, nPosition + 1, listArgLists);
-            argListInProgress.remove(argListInProgress.size() - 1);
         }
+        return values2.contains(value1);
     }
 
 }
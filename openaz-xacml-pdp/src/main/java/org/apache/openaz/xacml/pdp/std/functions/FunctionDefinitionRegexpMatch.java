@@ -31,17 +31,25 @@
 package org.apache.openaz.xacml.pdp.std.functions;
 
 import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
+import org.apache.openaz.xacml.api.AttributeValue;
 import org.apache.openaz.xacml.api.DataType;
 import org.apache.openaz.xacml.api.DataTypeException;
 import org.apache.openaz.xacml.api.Identifier;
 import org.apache.openaz.xacml.pdp.eval.EvaluationContext;
 import org.apache.openaz.xacml.pdp.policy.ExpressionResult;
 import org.apache.openaz.xacml.pdp.policy.FunctionArgument;
+import org.apache.openaz.xacml.pdp.policy.FunctionArgumentAttributeValue;
+import org.apache.openaz.xacml.pdp.policy.FunctionArgumentCompiler;
 import org.apache.openaz.xacml.std.StdStatus;
 import org.apache.openaz.xacml.std.StdStatusCode;
 import org.apache.openaz.xacml.std.datatypes.DataTypes;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 /**
  * FunctionDefinitionRegexMatch implements {@link org.apache.openaz.xacml.pdp.policy.FunctionDefinition} to
  * implement the XACML 'type'-regex-match predicates as functions taking two arguments, the first of
@@ -53,10 +61,37 @@ import org.apache.openaz.xacml.std.datatypes.DataTypes;
  * rfc822Name-regexp-match (in sub-class
  * {@link org.apache.openaz.xacml.pdp.policy.FunctionDefinition.FunctionDefinitionRegexpMatchRFC822} )
  * ipAddress-regexp-match dnsName-regexp-match
+ * <p>
+ * Regular expressions are compiled into {@link java.util.regex.Pattern}s only once: a literal regular
+ * expression in an <code>Apply</code> or <code>Match</code> is compiled through
+ * {@link #compileArgument(int, AttributeValue)} and kept with the policy, and all other regular expressions
+ * go through a bounded cache shared by every regexp-match function.
  *
  * @param <I> the java class for the data type of the function Input arguments
  */
-public class FunctionDefinitionRegexpMatch<I> extends FunctionDefinitionBase<Boolean, I> {
+public class FunctionDefinitionRegexpMatch<I> extends FunctionDefinitionBase<Boolean, I> implements
+    FunctionArgumentCompiler {
+    public static final int MAX_CACHED_PATTERNS = 1024;
+
+    private static final Cache<String, Pattern> PATTERN_CACHE = CacheBuilder.newBuilder()
+        .maximumSize(MAX_CACHED_PATTERNS).build();
+
+    /**
+     * FunctionArgumentPattern is the literal regular expression argument together with its compiled
+     * <code>Pattern</code>.
+     */
+    public static class FunctionArgumentPattern extends FunctionArgumentAttributeValue {
+        private final Pattern pattern;
+
+        public FunctionArgumentPattern(AttributeValue<?> attributeValueIn, Pattern patternIn) {
+            super(attributeValueIn);
+            this.pattern = patternIn;
+        }
+
+        public Pattern getPattern() {
+            return this.pattern;
+        }
+    }
 
     /**
      * Constructor - need dataTypeArgs input because of java Generic type-erasure during compilation.
@@ -68,6 +103,40 @@ public class FunctionDefinitionRegexpMatch<I> extends FunctionDefinitionBase<Boo
         super(idIn, DataTypes.DT_BOOLEAN, dataTypeArgsIn, false);
     }
 
+    /**
+     * Gets the compiled <code>Pattern</code> for the given regular expression from the shared cache,
+     * compiling and caching it if needed.
+     *
+     * @param regexp the <code>String</code> regular expression
+     * @return the compiled <code>Pattern</code>
+     * @throws PatternSyntaxException if the regular expression is not valid
+     */
+    public static Pattern getPattern(String regexp) {
+        Pattern pattern = PATTERN_CACHE.getIfPresent(regexp);
+        if (pattern == null) {
+            pattern = Pattern.compile(regexp);
+            PATTERN_CACHE.put(regexp, pattern);
+        }
+        return pattern;
+    }
+
+    @Override
+    public FunctionArgument compileArgument(int index, AttributeValue<?> attributeValue) {
+        if (index != 0 || !DataTypes.DT_STRING.getId().equals(attributeValue.getDataTypeId())
+            || !(attributeValue.getValue() instanceof String)) {
+            return null;
+        }
+        try {
+            return new FunctionArgumentPattern(attributeValue, Pattern.compile((String)attributeValue
+                .getValue()));
+        } catch (PatternSyntaxException ex) {
+            /*
+             * Leave it to evaluate to report the error
+             */
+            return null;
+        }
+    }
+
     @Override
     public ExpressionResult evaluate(EvaluationContext evaluationContext, List<FunctionArgument> arguments) {
 
@@ -82,15 +151,28 @@ public class FunctionDefinitionRegexpMatch<I> extends FunctionDefinitionBase<Boo
         // get the regular expression
         FunctionArgument regexpArgument = arguments.get(0);
 
-        ConvertedArgument<String> convertedArgument = new ConvertedArgument<String>(regexpArgument,
-                                                                                    DataTypes.DT_STRING,
-                                                                                    false);
-        if (!convertedArgument.isOk()) {
-            return ExpressionResult.newError(getFunctionStatus(convertedArgument.getStatus()));
-        }
+        Pattern pattern;
+        if (regexpArgument instanceof FunctionArgumentPattern) {
+            pattern = ((FunctionArgumentPattern)regexpArgument).getPattern();
+        } else {
+            ConvertedArgument<String> convertedArgument = new ConvertedArgument<String>(regexpArgument,
+                                                                                        DataTypes.DT_STRING,
+                                                                                        false);
+            if (!convertedArgument.isOk()) {
+                return ExpressionResult.newError(getFunctionStatus(convertedArgument.getStatus()));
+            }
 
-        // String regexpValue = (String)regexpArgument.getValue().getValue();
-        String regexpValue = convertedArgument.getValue();
+            // String regexpValue = (String)regexpArgument.getValue().getValue();
+            String regexpValue = convertedArgument.getValue();
+            try {
+                pattern = getPattern(regexpValue);
+            } catch (PatternSyntaxException ex) {
+                return ExpressionResult.newError(new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR,
+                                                               this.getShortFunctionId()
+                                                                   + " Invalid regular expression: "
+                                                                   + ex.getMessage()));
+            }
+        }
 
         // now get the element to match
         FunctionArgument elementArgument = arguments.get(1);
@@ -117,7 +199,7 @@ public class FunctionDefinitionRegexpMatch<I> extends FunctionDefinitionBase<Boo
 
         // ConvertedArgument checks for null value, so do not need to do again here
 
-        if (elementValueString.matches(regexpValue)) {
+        if (pattern.matcher(elementValueString).matches()) {
             return ER_TRUE;
         } else {
             return ER_FALSE;
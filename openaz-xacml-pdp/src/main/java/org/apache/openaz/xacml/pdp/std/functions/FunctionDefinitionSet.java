@@ -30,8 +30,9 @@
  */
 package org.apache.openaz.xacml.pdp.std.functions;
 
-import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.openaz.xacml.api.AttributeValue;
 import org.apache.openaz.xacml.api.DataType;
@@ -126,29 +127,25 @@ public class FunctionDefinitionSet<O, I> extends FunctionDefinitionBase<O, I> {
 
         // some functions return a bag rather than boolean
         Bag outBag;
-        List<AttributeValue<?>> outList;
+        Set<AttributeValue<?>> outSet;
+
+        // membership tests go through Bag.contains, which uses a hashed view of larger bags
 
         switch (operation) {
         case INTERSECTION:
-            outList = new ArrayList<AttributeValue<?>>();
+            outBag = new Bag();
+            outSet = new HashSet<AttributeValue<?>>();
 
             for (AttributeValue<?> element : list1) {
-                if (outList.contains(element)) {
+                if (outSet.contains(element)) {
                     continue;
                 }
-                if (list2.contains(element)) {
-                    outList.add(element);
+                if (bag2.contains(element)) {
+                    outSet.add(element);
+                    outBag.add(element);
                 }
             }
 
-            // now have the intersection; put it in a bag
-
-            outBag = new Bag();
-
-            for (AttributeValue<?> element : outList) {
-                outBag.add(element);
-            }
-
             expressionResult = ExpressionResult.newBag(outBag);
             return expressionResult;
 
@@ -161,7 +158,7 @@ public class FunctionDefinitionSet<O, I> extends FunctionDefinitionBase<O, I> {
             // in the second set
             // (because there IS no element in first set).
             for (AttributeValue<?> element : list1) {
-                if (list2.contains(element)) {
+                if (bag2.contains(element)) {
                     return ER_TRUE;
                 }
             }
@@ -169,26 +166,21 @@ public class FunctionDefinitionSet<O, I> extends FunctionDefinitionBase<O, I> {
             return ER_FALSE;
 
         case UNION:
-            outList = new ArrayList<AttributeValue<?>>();
+            outBag = new Bag();
+            outSet = new HashSet<AttributeValue<?>>();
 
             for (AttributeValue<?> element : list1) {
-                if (outList.contains(element)) {
+                if (outSet.contains(element)) {
                     continue;
                 }
-                outList.add(element);
+                outSet.add(element);
+                outBag.add(element);
             }
             for (AttributeValue<?> element : list2) {
-                if (outList.contains(element)) {
+                if (outSet.contains(element)) {
                     continue;
                 }
-                outList.add(element);
-            }
-
-            // now have the intersection; put it in a bag
-
-            outBag = new Bag();
-
-            for (AttributeValue<?> element : outList) {
+                outSet.add(element);
                 outBag.add(element);
             }
 
@@ -202,7 +194,7 @@ public class FunctionDefinitionSet<O, I> extends FunctionDefinitionBase<O, I> {
             // If the first set is empty we return TRUE because all elements (i.e. none) in the first set are
             // in the second.
             for (AttributeValue<?> element : list1) {
-                if (!list2.contains(element)) {
+                if (!bag2.contains(element)) {
                     return ER_FALSE;
                 }
             }
@@ -216,12 +208,12 @@ public class FunctionDefinitionSet<O, I> extends FunctionDefinitionBase<O, I> {
             // are all elements in list 1 in list 2 (ignoring duplicates)
             // are all elements in list 2 in list 1 (ignoring duplicates)
             for (AttributeValue<?> element : list1) {
-                if (!list2.contains(element)) {
+                if (!bag2.contains(element)) {
                     return ER_FALSE;
                 }
             }
             for (AttributeValue<?> element : list2) {
-                if (!list1.contains(element)) {
+                if (!bag1.contains(element)) {
                     return ER_FALSE;
                 }
             }
@@ -40,8 +40,12 @@ public class OpenAZPDPProperties extends XACMLProperties {
     public static final String PROP_FUNCTIONDEFINITIONFACTORY = "xacml.openaz.functionDefinitionFactory";
     public static final String PROP_POLICYFINDERFACTORY = "xacml.openaz.policyFinderFactory";
     public static final String PROP_POLICYFINDERFACTORY_COMBINEROOTPOLICIES = "xacml.openaz.policyFinderFactory.combineRootPolicies";
+    public static final String PROP_POLICYFINDERFACTORY_COMPILETARGETS = "xacml.openaz.policyFinderFactory.compileTargets";
+    public static final String PROP_PDP_PARALLEL_THREADS = "xacml.pdp.parallel.threads";
+    public static final String PROP_PDP_PARALLEL_THRESHOLD = "xacml.pdp.parallel.threshold";
+    public static final String PROP_PDP_MAXINDIVIDUALDECISIONS = "xacml.pdp.maxIndividualDecisions";
 
-    public static final Identifier ID_POLICY_COMBINEDPERMITOVERRIDES = new IdentifierImpl("urn:org:apache:openaz:xacml:3.0:policy-combining-algorithm:combined-permit-overrides");
+    public static final Identifier ID_POLICY_COMBINEDPERMITOVERRIDES = IdentifierImpl.intern("urn:org:apache:openaz:xacml:3.0:policy-combining-algorithm:combined-permit-overrides");
 
     protected OpenAZPDPProperties() {
     }
@@ -0,0 +1,250 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.openaz.xacml.api.Attribute;
+import org.apache.openaz.xacml.api.Decision;
+import org.apache.openaz.xacml.api.Request;
+import org.apache.openaz.xacml.api.Response;
+import org.apache.openaz.xacml.api.Result;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.api.pdp.ScopeQualifier;
+import org.apache.openaz.xacml.api.pdp.ScopeResolver;
+import org.apache.openaz.xacml.api.pdp.ScopeResolverResult;
+import org.apache.openaz.xacml.pdp.eval.EvaluationContextFactory;
+import org.apache.openaz.xacml.pdp.policy.dom.DOMPolicyDef;
+import org.apache.openaz.xacml.pdp.std.StdEvaluationContextFactory;
+import org.apache.openaz.xacml.pdp.std.StdPolicyFinder;
+import org.apache.openaz.xacml.std.StdAttributeValue;
+import org.apache.openaz.xacml.std.StdMutableAttribute;
+import org.apache.openaz.xacml.std.StdScopeResolverResult;
+import org.apache.openaz.xacml.std.StdStatusCode;
+import org.apache.openaz.xacml.std.json.JSONRequest;
+import org.apache.openaz.xacml.std.pip.finders.EngineFinder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that evaluating the individual decisions of a multiple decision request in parallel gives the same
+ * <code>Response</code>, in the same order, as evaluating them one at a time.
+ */
+public class OpenAZPDPEngineTest {
+    private static final String RESOURCE_ID = "urn:oasis:names:tc:xacml:1.0:resource:resource-id";
+
+    /*
+     * Permits even resources, denies multiples of five with an obligation, and does not apply to the rest
+     */
+    private static final String POLICY = "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" PolicyId=\"urn:test:policy\" Version=\"1.0\""
+                                         + " RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:1.0:rule-combining-algorithm:first-applicable\"><Target/>"
+                                         + "<Rule RuleId=\"urn:test:rule:even\" Effect=\"Permit\"><Target><AnyOf><AllOf>"
+                                         + "<Match MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-regexp-match\">"
+                                         + "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\">[02468]$</AttributeValue>"
+                                         + "<AttributeDesignator Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\" AttributeId=\""
+                                         + RESOURCE_ID
+                                         + "\" DataType=\"http://www.w3.org/2001/XMLSchema#string\" MustBePresent=\"false\"/></Match>"
+                                         + "</AllOf></AnyOf></Target></Rule>"
+                                         + "<Rule RuleId=\"urn:test:rule:five\" Effect=\"Deny\"><Target><AnyOf><AllOf>"
+                                         + "<Match MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-regexp-match\">"
+                                         + "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\">5$</AttributeValue>"
+                                         + "<AttributeDesignator Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\" AttributeId=\""
+                                         + RESOURCE_ID
+                                         + "\" DataType=\"http://www.w3.org/2001/XMLSchema#string\" MustBePresent=\"false\"/></Match>"
+                                         + "</AllOf></AnyOf></Target><ObligationExpressions>"
+                                         + "<ObligationExpression ObligationId=\"urn:test:obligation\" FulfillOn=\"Deny\"/>"
+                                         + "</ObligationExpressions></Rule></Policy>";
+
+    private EvaluationContextFactory evaluationContextFactory;
+    private ForkJoinPool forkJoinPool;
+    private OpenAZPDPEngine engineSequential;
+    private OpenAZPDPEngine engineParallel;
+
+    @Before
+    public void before() throws Exception {
+        this.evaluationContextFactory = new StdEvaluationContextFactory();
+        this.evaluationContextFactory.setPolicyFinder(new StdPolicyFinder(DOMPolicyDef
+            .load(new ByteArrayInputStream(POLICY.getBytes("UTF-8"))), null));
+        this.evaluationContextFactory.setPIPFinder(new EngineFinder());
+
+        this.forkJoinPool = new ForkJoinPool(4);
+        this.engineSequential = new OpenAZPDPEngine(this.evaluationContextFactory, Decision.INDETERMINATE,
+                                                    null);
+        this.engineParallel = new OpenAZPDPEngine(this.evaluationContextFactory, Decision.INDETERMINATE, null,
+                                                  this.forkJoinPool, 2);
+    }
+
+    @After
+    public void after() {
+        this.forkJoinPool.shutdownNow();
+    }
+
+    private static Request newRequest(int[] resources, boolean combinedDecision) throws Exception {
+        StringBuilder json = new StringBuilder("{\"Request\":{\"CombinedDecision\":" + combinedDecision
+                                               + ",\"ReturnPolicyIdList\":true,\"Resource\":[");
+        for (int i = 0; i < resources.length; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"Attribute\":[{\"AttributeId\":\"" + RESOURCE_ID
+                                                      + "\",\"IncludeInResult\":true,\"Value\":\"res-"
+                                                      + resources[i] + "\"}]}");
+        }
+        json.append("]}}");
+        return JSONRequest.load(json.toString());
+    }
+
+    private void assertSameResponse(int[] resources, boolean combinedDecision) throws Exception {
+        Request request = newRequest(resources, combinedDecision);
+        Response expected = this.engineSequential.decide(request);
+        Response actual = this.engineParallel.decide(request);
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(expected.getResults().size(), actual.getResults().size());
+
+        Iterator<Result> iterExpected = expected.getResults().iterator();
+        Iterator<Result> iterActual = actual.getResults().iterator();
+        while (iterExpected.hasNext()) {
+            Result resultExpected = iterExpected.next();
+            Result resultActual = iterActual.next();
+            assertEquals(resultExpected.getDecision(), resultActual.getDecision());
+            assertEquals(resultExpected.getAttributes().toString(), resultActual.getAttributes().toString());
+        }
+    }
+
+    @Test
+    public void testParallelResultsKeepRequestOrder() throws Exception {
+        int[] resources = new int[500];
+        for (int i = 0; i < resources.length; i++) {
+            resources[i] = i;
+        }
+        this.assertSameResponse(resources, false);
+        assertEquals(500, this.engineParallel.decide(newRequest(resources, false)).getResults().size());
+    }
+
+    /*
+     * Expands every resource-id to two children
+     */
+    private static final ScopeResolver SCOPE_RESOLVER = new ScopeResolver() {
+        @Override
+        public ScopeResolverResult resolveScope(Attribute attributeResourceId,
+                                                ScopeQualifier scopeQualifier) {
+            String resourceId = attributeResourceId.getValues().iterator().next().getValue().toString();
+            List<Attribute> listAttributes = new ArrayList<Attribute>();
+            for (String child : new String[] {
+                "0", "5"
+            }) {
+                listAttributes.add(new StdMutableAttribute(attributeResourceId.getCategory(),
+                                                           attributeResourceId.getAttributeId(),
+                                                           new StdAttributeValue<String>(
+                                                                                         XACML3.ID_DATATYPE_STRING,
+                                                                                         resourceId + child)));
+            }
+            return new StdScopeResolverResult(listAttributes);
+        }
+    };
+
+    @Test
+    public void testLimitExceededDuringScopeExpansion() throws Exception {
+        String request = "{\"Request\":{\"Resource\":[";
+        for (int i = 1; i <= 2; i++) {
+            request += (i == 1 ? "" : ",") + "{\"Attribute\":[{\"AttributeId\":\"" + RESOURCE_ID
+                       + "\",\"Value\":\"res-" + i + "\"},{\"AttributeId\":\""
+                       + XACML3.ID_RESOURCE_SCOPE.stringValue() + "\",\"Value\":\"Children\"}]}";
+        }
+        request += "]}}";
+
+        /*
+         * The two resources are under the limit, but their children only go over it once the first resource
+         * has been expanded, and those results are dropped
+         */
+        OpenAZPDPEngine engine = new OpenAZPDPEngine(this.evaluationContextFactory, Decision.INDETERMINATE,
+                                                     SCOPE_RESOLVER, null, Integer.MAX_VALUE, 3);
+        Response response = engine.decide(JSONRequest.load(request));
+        assertEquals(1, response.getResults().size());
+        Result result = response.getResults().iterator().next();
+        assertEquals(Decision.INDETERMINATE, result.getDecision());
+        assertEquals(StdStatusCode.STATUS_CODE_PROCESSING_ERROR, result.getStatus().getStatusCode());
+
+        engine = new OpenAZPDPEngine(this.evaluationContextFactory, Decision.INDETERMINATE, SCOPE_RESOLVER,
+                                     null, Integer.MAX_VALUE, 4);
+        assertEquals(4, engine.decide(JSONRequest.load(request)).getResults().size());
+    }
+
+    @Test
+    public void testParallelThreshold() throws Exception {
+        this.engineParallel = new OpenAZPDPEngine(this.evaluationContextFactory, Decision.INDETERMINATE, null,
+                                                  this.forkJoinPool, 16);
+        // Fewer than the threshold are evaluated one at a time
+        this.assertSameResponse(new int[] {
+            0, 1, 2, 3, 4
+        }, false);
+        // More than the threshold are evaluated in batches of at most the threshold
+        int[] resources = new int[37];
+        for (int i = 0; i < resources.length; i++) {
+            resources[i] = i;
+        }
+        this.assertSameResponse(resources, false);
+        this.assertSameResponse(resources, true);
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        final AtomicInteger closed = new AtomicInteger();
+        this.engineParallel.addCloseable(new Closeable() {
+            @Override
+            public void close() {
+                closed.incrementAndGet();
+                OpenAZPDPEngineTest.this.forkJoinPool.shutdown();
+            }
+        });
+        this.engineParallel.close();
+        this.engineParallel.close();
+        assertEquals(1, closed.get());
+        assertTrue(this.forkJoinPool.isShutdown());
+        // A request that still reaches the closed engine is evaluated one at a time
+        this.assertSameResponse(new int[] {
+            0, 1, 2, 3
+        }, false);
+    }
+
+    @Test
+    public void testParallelCombinedDecision() throws Exception {
+        // All permit
+        this.assertSameResponse(new int[] {
+            0, 2, 4, 6, 8, 10, 12
+        }, true);
+        // Mixed permit and not applicable
+        this.assertSameResponse(new int[] {
+            0, 1, 2, 3
+        }, true);
+        // Obligations are not allowed in a combined decision
+        this.assertSameResponse(new int[] {
+            5, 15, 25
+        }, true);
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.openaz.xacml.api.Decision;
+import org.apache.openaz.xacml.api.Obligation;
+import org.apache.openaz.xacml.api.Permissions;
+import org.apache.openaz.xacml.api.PermissionsResponse;
+import org.apache.openaz.xacml.api.PermissionsResult;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.api.pip.PIPEngine;
+import org.apache.openaz.xacml.api.pip.PIPException;
+import org.apache.openaz.xacml.api.pip.PIPFinder;
+import org.apache.openaz.xacml.api.pip.PIPRequest;
+import org.apache.openaz.xacml.api.pip.PIPResponse;
+import org.apache.openaz.xacml.pdp.eval.EvaluationContextFactory;
+import org.apache.openaz.xacml.pdp.policy.dom.DOMPolicyDef;
+import org.apache.openaz.xacml.pdp.std.StdEvaluationContextFactory;
+import org.apache.openaz.xacml.pdp.std.StdPolicyFinder;
+import org.apache.openaz.xacml.std.IdentifierImpl;
+import org.apache.openaz.xacml.std.StdAttributeValue;
+import org.apache.openaz.xacml.std.StdMutableAttribute;
+import org.apache.openaz.xacml.std.StdStatus;
+import org.apache.openaz.xacml.std.json.JSONRequest;
+import org.apache.openaz.xacml.std.pip.StdPIPRequest;
+import org.apache.openaz.xacml.std.pip.StdPIPResponse;
+import org.apache.openaz.xacml.std.pip.finders.EngineFinder;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that <code>decidePermissions</code> finds the actions in the policy targets, decides each of them
+ * the same way <code>decide</code> does, and retrieves PIP attributes only once.
+ */
+public class PermissionsEvaluatorTest {
+    private static final String ROLE = "urn:test:role";
+    private static final String URGENT = "urn:test:urgent";
+
+    private static String match(String category, String attributeId, String value) {
+        return "<AnyOf><AllOf><Match MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\">"
+               + "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\">" + value
+               + "</AttributeValue><AttributeDesignator Category=\"" + category + "\" AttributeId=\""
+               + attributeId + "\" DataType=\"http://www.w3.org/2001/XMLSchema#string\" MustBePresent=\"false\"/>"
+               + "</Match></AllOf></AnyOf>";
+    }
+
+    private static String action(String action) {
+        return match(XACML3.ID_ATTRIBUTE_CATEGORY_ACTION.stringValue(), XACML3.ID_ACTION_ACTION_ID.stringValue(),
+                     action);
+    }
+
+    /*
+     * Anyone may read, admins may write, users may not delete and alice is permitted everything else
+     */
+    private static final String POLICY = "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" PolicyId=\"urn:test:policy\" Version=\"1.0\""
+                                         + " RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\"><Target/>"
+                                         + "<Rule RuleId=\"urn:test:rule:read\" Effect=\"Permit\"><Target>"
+                                         + action("read")
+                                         + "</Target></Rule>"
+                                         + "<Rule RuleId=\"urn:test:rule:write\" Effect=\"Permit\"><Target>"
+                                         + match(XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT.stringValue(), ROLE,
+                                                 "admin")
+                                         + action("write")
+                                         + "</Target></Rule>"
+                                         + "<Rule RuleId=\"urn:test:rule:delete\" Effect=\"Deny\"><Target>"
+                                         + match(XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT.stringValue(), ROLE,
+                                                 "user")
+                                         + action("delete")
+                                         + "</Target><ObligationExpressions>"
+                                         + "<ObligationExpression ObligationId=\"urn:test:obligation:deny\" FulfillOn=\"Deny\"/>"
+                                         + "</ObligationExpressions></Rule>"
+                                         + "<Rule RuleId=\"urn:test:rule:alice\" Effect=\"Permit\"><Target>"
+                                         + match(XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT.stringValue(),
+                                                 XACML3.ID_SUBJECT_SUBJECT_ID.stringValue(), "alice")
+                                         + "</Target><ObligationExpressions>"
+                                         + "<ObligationExpression ObligationId=\"urn:test:obligation:audit\" FulfillOn=\"Permit\"/>"
+                                         + "</ObligationExpressions></Rule></Policy>";
+
+    /*
+     * Archiving is only permitted for urgent actions
+     */
+    private static final String POLICY_URGENT = "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" PolicyId=\"urn:test:policy:urgent\" Version=\"1.0\""
+                                                + " RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\"><Target/>"
+                                                + "<Rule RuleId=\"urn:test:rule:archive\" Effect=\"Permit\"><Target>"
+                                                + action("archive")
+                                                + match(XACML3.ID_ATTRIBUTE_CATEGORY_ACTION.stringValue(), URGENT,
+                                                        "true")
+                                                + "</Target></Rule></Policy>";
+
+    /*
+     * Gives admin the admin role and everyone else the user role, counting its lookups
+     */
+    private static class RoleEngine implements PIPEngine {
+        private final AtomicInteger calls = new AtomicInteger();
+        private final PIPRequest pipRequestSubjectId = new StdPIPRequest(
+                                                                         XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT,
+                                                                         XACML3.ID_SUBJECT_SUBJECT_ID,
+                                                                         XACML3.ID_DATATYPE_STRING);
+
+        @Override
+        public String getName() {
+            return "roles";
+        }
+
+        @Override
+        public String getDescription() {
+            return "Test roles";
+        }
+
+        @Override
+        public Collection<PIPRequest> attributesRequired() {
+            return Collections.singletonList(this.pipRequestSubjectId);
+        }
+
+        @Override
+        public Collection<PIPRequest> attributesProvided() {
+            return Collections.<PIPRequest> singletonList(new StdPIPRequest(
+                                                                           XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT,
+                                                                           new IdentifierImpl(ROLE),
+                                                                           XACML3.ID_DATATYPE_STRING));
+        }
+
+        @Override
+        public PIPResponse getAttributes(PIPRequest pipRequest, PIPFinder pipFinder) throws PIPException {
+            if (!ROLE.equals(pipRequest.getAttributeId().stringValue())) {
+                return StdPIPResponse.PIP_RESPONSE_EMPTY;
+            }
+            this.calls.incrementAndGet();
+            PIPResponse pipResponse = pipFinder.getMatchingAttributes(this.pipRequestSubjectId, this);
+            String subjectId = pipResponse.getAttributes().iterator().next().getValues().iterator().next()
+                .getValue().toString();
+            return new StdPIPResponse(new StdMutableAttribute(pipRequest.getCategory(), pipRequest
+                .getAttributeId(), new StdAttributeValue<String>(XACML3.ID_DATATYPE_STRING, "admin"
+                .equals(subjectId) ? "admin" : "user")));
+        }
+    }
+
+    private RoleEngine roleEngine;
+    private OpenAZPDPEngine pdpEngine;
+
+    private OpenAZPDPEngine newEngine(String policy) throws Exception {
+        EngineFinder engineFinder = new EngineFinder();
+        engineFinder.register(this.roleEngine);
+        EvaluationContextFactory evaluationContextFactory = new StdEvaluationContextFactory();
+        evaluationContextFactory.setPolicyFinder(new StdPolicyFinder(DOMPolicyDef
+            .load(new ByteArrayInputStream(policy.getBytes("UTF-8"))), null));
+        evaluationContextFactory.setPIPFinder(engineFinder);
+        return new OpenAZPDPEngine(evaluationContextFactory, Decision.NOTAPPLICABLE, null);
+    }
+
+    @Before
+    public void before() throws Exception {
+        this.roleEngine = new RoleEngine();
+        this.pdpEngine = this.newEngine(POLICY);
+    }
+
+    private static String newRequest(String subjectId, String actionId) {
+        return "{\"Request\":{\"AccessSubject\":{\"Attribute\":{\"AttributeId\":\""
+               + XACML3.ID_SUBJECT_SUBJECT_ID.stringValue() + "\",\"Value\":\"" + subjectId + "\"}}"
+               + (actionId == null ? "" : ",\"Action\":{\"Attribute\":{\"AttributeId\":\""
+                                          + XACML3.ID_ACTION_ACTION_ID.stringValue() + "\",\"Value\":\""
+                                          + actionId + "\"}}") + "}}";
+    }
+
+    private PermissionsResult decidePermissions(String subjectId, String actionId) throws Exception {
+        PermissionsResponse permissionsResponse = this.pdpEngine.decidePermissions(JSONRequest
+            .load(newRequest(subjectId, actionId)));
+        assertEquals(StdStatus.STATUS_OK, permissionsResponse.getStatus());
+        assertEquals(1, permissionsResponse.getPermissionsResults().size());
+        return permissionsResponse.getPermissionsResults().iterator().next();
+    }
+
+    private static String getActions(PermissionsResult permissionsResult, Decision decision) {
+        Permissions permissions = permissionsResult.getPermissions(decision);
+        return permissions == null ? "[]" : new TreeSet<String>(permissions.getActions()).toString();
+    }
+
+    private static List<String> getObligationIds(Permissions permissions, String action) {
+        List<String> obligationIds = new ArrayList<String>();
+        for (Obligation obligation : permissions.getPoliciesAndObligations(action).getObligations()) {
+            obligationIds.add(obligation.getId().stringValue());
+        }
+        return obligationIds;
+    }
+
+    /*
+     * Each action in the result gets the decision decide gives for it
+     */
+    private void checkAgainstDecide(String subjectId, PermissionsResult permissionsResult) throws Exception {
+        for (Decision decision : permissionsResult.getDecisions()) {
+            for (String action : permissionsResult.getPermissions(decision).getActions()) {
+                assertEquals(decision, this.pdpEngine.decide(JSONRequest.load(newRequest(subjectId, action)))
+                    .getResults().iterator().next().getDecision());
+            }
+        }
+    }
+
+    @Test
+    public void testUnboundAction() throws Exception {
+        PermissionsResult permissionsResult = this.decidePermissions("bob", null);
+        assertEquals("[read]", getActions(permissionsResult, Decision.PERMIT));
+        assertEquals("[delete]", getActions(permissionsResult, Decision.DENY));
+        assertEquals("[write]", getActions(permissionsResult, Decision.NOTAPPLICABLE));
+        Permissions permissions = permissionsResult.getPermissions(Decision.DENY);
+        assertEquals("[urn:test:obligation:deny]", getObligationIds(permissions, "delete").toString());
+        assertEquals("[urn:test:policy]", permissions.getPoliciesAndObligations("delete").getPolicies()
+            .toString());
+
+        /*
+         * The write and delete rules both need the role, but it is looked up once for all the actions
+         */
+        assertEquals(1, this.roleEngine.calls.get());
+        checkAgainstDecide("bob", permissionsResult);
+
+        permissionsResult = this.decidePermissions("admin", null);
+        assertEquals("[read, write]", getActions(permissionsResult, Decision.PERMIT));
+        assertEquals("[delete]", getActions(permissionsResult, Decision.NOTAPPLICABLE));
+        assertNull(permissionsResult.getPermissions(Decision.DENY));
+        checkAgainstDecide("admin", permissionsResult);
+    }
+
+    @Test
+    public void testActionIndependentRule() throws Exception {
+        /*
+         * The alice rule applies to every action and carries its obligation into each permitted one
+         */
+        PermissionsResult permissionsResult = this.decidePermissions("alice", null);
+        assertEquals("[read, write]", getActions(permissionsResult, Decision.PERMIT));
+        assertEquals("[delete]", getActions(permissionsResult, Decision.DENY));
+        Permissions permissions = permissionsResult.getPermissions(Decision.PERMIT);
+        assertEquals("[urn:test:obligation:audit]", getObligationIds(permissions, "read").toString());
+        assertEquals("[urn:test:obligation:audit]", getObligationIds(permissions, "write").toString());
+        assertTrue(getObligationIds(permissionsResult.getPermissions(Decision.DENY), "delete")
+            .contains("urn:test:obligation:deny"));
+        checkAgainstDecide("alice", permissionsResult);
+    }
+
+    @Test
+    public void testRequestedAction() throws Exception {
+        PermissionsResult permissionsResult = this.decidePermissions("bob", "read");
+        assertEquals("[read]", getActions(permissionsResult, Decision.PERMIT));
+        assertEquals(1, permissionsResult.getDecisions().size());
+
+        permissionsResult = this.decidePermissions("bob", "print");
+        assertEquals("[print]", getActions(permissionsResult, Decision.NOTAPPLICABLE));
+    }
+
+    private static String newRequest(String actionId, boolean urgent) {
+        String attributes = "{\"AttributeId\":\"" + URGENT + "\",\"Value\":\"" + urgent + "\"}";
+        if (actionId != null) {
+            attributes = "[" + attributes + ",{\"AttributeId\":\"" + XACML3.ID_ACTION_ACTION_ID.stringValue()
+                         + "\",\"Value\":\"" + actionId + "\"}]";
+        }
+        return "{\"Request\":{\"Action\":{\"Attribute\":" + attributes + "}}}";
+    }
+
+    @Test
+    public void testOtherActionAttributes() throws Exception {
+        this.pdpEngine = this.newEngine(POLICY_URGENT);
+        for (String actionId : new String[] {
+            null, "archive"
+        }) {
+            for (boolean urgent : new boolean[] {
+                true, false
+            }) {
+                PermissionsResponse permissionsResponse = this.pdpEngine.decidePermissions(JSONRequest
+                    .load(newRequest(actionId, urgent)));
+                PermissionsResult permissionsResult = permissionsResponse.getPermissionsResults().iterator()
+                    .next();
+                Decision decision = urgent ? Decision.PERMIT : Decision.NOTAPPLICABLE;
+                assertEquals("[archive]", getActions(permissionsResult, decision));
+                assertEquals(1, permissionsResult.getDecisions().size());
+                assertEquals(decision, this.pdpEngine.decide(JSONRequest.load(newRequest("archive", urgent)))
+                    .getResults().iterator().next().getDecision());
+            }
+        }
+    }
+
+    @Test
+    public void testActionDependence() throws Exception {
+        PermissionsEvaluator permissionsEvaluator = new PermissionsEvaluator(this.pdpEngine, null, null);
+        org.apache.openaz.xacml.pdp.policy.Policy policy = (org.apache.openaz.xacml.pdp.policy.Policy)DOMPolicyDef
+            .load(new ByteArrayInputStream(POLICY.getBytes("UTF-8")));
+        List<Boolean> listDependent = new ArrayList<Boolean>();
+        java.util.Iterator<org.apache.openaz.xacml.pdp.policy.Rule> iterRules = policy.getRules();
+        while (iterRules.hasNext()) {
+            listDependent.add(permissionsEvaluator.isActionDependent(iterRules.next()));
+        }
+        assertEquals("[true, true, true, false]", listDependent.toString());
+        assertTrue(permissionsEvaluator.isActionDependent(policy));
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.policy;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.openaz.xacml.api.Decision;
+import org.apache.openaz.xacml.api.Identifier;
+import org.apache.openaz.xacml.api.Request;
+import org.apache.openaz.xacml.api.XACML1;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.pdp.eval.EvaluationContext;
+import org.apache.openaz.xacml.pdp.eval.EvaluationResult;
+import org.apache.openaz.xacml.pdp.policy.dom.DOMPolicyDef;
+import org.apache.openaz.xacml.pdp.std.StdEvaluationContext;
+import org.apache.openaz.xacml.std.json.JSONRequest;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that evaluating a <code>PolicySet</code> with compiled child targets gives exactly the same result as
+ * evaluating every child, for each of the standard combining algorithms.
+ */
+public class TargetIndexTest {
+    private static final String STRING = "http://www.w3.org/2001/XMLSchema#string";
+    private static final String RESOURCE = "urn:oasis:names:tc:xacml:3.0:attribute-category:resource";
+    private static final String ACTION = "urn:oasis:names:tc:xacml:3.0:attribute-category:action";
+    private static final String SUBJECT = "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject";
+    private static final String RESOURCE_ID = "urn:oasis:names:tc:xacml:1.0:resource:resource-id";
+    private static final String ACTION_ID = "urn:oasis:names:tc:xacml:1.0:action:action-id";
+    private static final String SUBJECT_ID = "urn:oasis:names:tc:xacml:1.0:subject:subject-id";
+
+    private static final Identifier[] POLICY_ALGORITHMS = {
+        XACML3.ID_POLICY_DENY_OVERRIDES, XACML3.ID_POLICY_PERMIT_OVERRIDES,
+        XACML3.ID_POLICY_ORDERED_DENY_OVERRIDES, XACML3.ID_POLICY_DENY_UNLESS_PERMIT,
+        XACML3.ID_POLICY_PERMIT_UNLESS_DENY, XACML1.ID_POLICY_FIRST_APPLICABLE,
+        XACML1.ID_POLICY_ONLY_ONE_APPLICABLE, XACML1.ID_POLICY_DENY_OVERRIDES, XACML1.ID_POLICY_PERMIT_OVERRIDES
+    };
+    private static final Identifier[] RULE_ALGORITHMS = {
+        XACML3.ID_RULE_DENY_OVERRIDES, XACML3.ID_RULE_PERMIT_OVERRIDES, XACML3.ID_RULE_DENY_UNLESS_PERMIT,
+        XACML3.ID_RULE_PERMIT_UNLESS_DENY, XACML1.ID_RULE_FIRST_APPLICABLE, XACML1.ID_RULE_DENY_OVERRIDES,
+        XACML1.ID_RULE_PERMIT_OVERRIDES
+    };
+
+    private final Random random = new Random(20140317L);
+
+    private static String match(String value, String category, String attributeId, boolean mustBePresent) {
+        return "<Match MatchId=\"" + XACML3.ID_FUNCTION_STRING_EQUAL.getUri() + "\"><AttributeValue DataType=\""
+               + STRING + "\">" + value + "</AttributeValue><AttributeDesignator Category=\"" + category
+               + "\" AttributeId=\"" + attributeId + "\" DataType=\"" + STRING + "\" MustBePresent=\""
+               + mustBePresent + "\"/></Match>";
+    }
+
+    private String target() {
+        String resource = match("res-" + this.random.nextInt(10), RESOURCE, RESOURCE_ID, false);
+        String action = match("act-" + this.random.nextInt(3), ACTION, ACTION_ID, false);
+        switch (this.random.nextInt(8)) {
+        case 0:
+            return "<Target/>";
+        case 1:
+            return "<Target><AnyOf><AllOf>" + action + "</AllOf></AnyOf></Target>";
+        case 2:
+            return "<Target><AnyOf><AllOf>" + resource + action + "</AllOf><AllOf>"
+                   + match("res-" + this.random.nextInt(10), RESOURCE, RESOURCE_ID, false)
+                   + "</AllOf></AnyOf></Target>";
+        case 3:
+            return "<Target><AnyOf><AllOf>"
+                   + match("subject-" + this.random.nextInt(2), SUBJECT, SUBJECT_ID, true)
+                   + "</AllOf></AnyOf></Target>";
+        case 4:
+            return "<Target><AnyOf><AllOf>" + resource + "</AllOf></AnyOf><AnyOf><AllOf>" + action
+                   + "</AllOf></AnyOf></Target>";
+        default:
+            return "<Target><AnyOf><AllOf>" + resource + "</AllOf></AnyOf></Target>";
+        }
+    }
+
+    private String rule(String id) {
+        String effect = this.random.nextBoolean() ? "Permit" : "Deny";
+        return "<Rule RuleId=\"" + id + "\" Effect=\"" + effect + "\">" + this.target()
+               + "<ObligationExpressions><ObligationExpression ObligationId=\"" + id + ":obligation\" FulfillOn=\""
+               + effect + "\"/></ObligationExpressions></Rule>";
+    }
+
+    private String policy(String id) {
+        StringBuilder xml = new StringBuilder("<Policy PolicyId=\"" + id
+                                              + "\" Version=\"1.0\" RuleCombiningAlgId=\""
+                                              + RULE_ALGORITHMS[this.random.nextInt(RULE_ALGORITHMS.length)]
+                                                  .getUri() + "\">");
+        xml.append(this.target());
+        int ruleCount = 1 + this.random.nextInt(6);
+        for (int i = 0; i < ruleCount; i++) {
+            xml.append(this.rule(id + ":rule:" + i));
+        }
+        return xml.append("</Policy>").toString();
+    }
+
+    private String policySet(String id, int depth) {
+        StringBuilder xml = new StringBuilder("<PolicySet PolicySetId=\"" + id
+                                              + "\" Version=\"1.0\" PolicyCombiningAlgId=\""
+                                              + POLICY_ALGORITHMS[this.random.nextInt(POLICY_ALGORITHMS.length)]
+                                                  .getUri() + "\">");
+        xml.append(depth == 0 ? "<Target/>" : this.target());
+        int childCount = 1 + this.random.nextInt(25);
+        for (int i = 0; i < childCount; i++) {
+            if (depth == 0 && this.random.nextInt(8) == 0) {
+                xml.append(this.policySet(id + ":set:" + i, depth + 1));
+            } else {
+                xml.append(this.policy(id + ":policy:" + i));
+            }
+        }
+        return xml.append("</PolicySet>").toString();
+    }
+
+    private static PolicyDef load(String xml) throws Exception {
+        return DOMPolicyDef.load(new ByteArrayInputStream(
+                                                          xml.replaceFirst(">",
+                                                                           " xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\">")
+                                                              .getBytes("UTF-8")));
+    }
+
+    private Request newRequest() throws Exception {
+        StringBuilder json = new StringBuilder("{\"Request\":{\"ReturnPolicyIdList\":true");
+        int resourceCount = this.random.nextInt(3);
+        if (resourceCount > 0) {
+            json.append(",\"Resource\":{\"Attribute\":[{\"AttributeId\":\"" + RESOURCE_ID + "\",\"Value\":[");
+            for (int i = 0; i < resourceCount; i++) {
+                json.append(i == 0 ? "" : ",").append("\"res-" + this.random.nextInt(12) + "\"");
+            }
+            json.append("]}]}");
+        }
+        if (this.random.nextInt(4) > 0) {
+            json.append(",\"Action\":{\"Attribute\":[{\"AttributeId\":\"" + ACTION_ID + "\",\"Value\":\"act-"
+                        + this.random.nextInt(3) + "\"}]}");
+        }
+        if (this.random.nextBoolean()) {
+            json.append(",\"AccessSubject\":{\"Attribute\":[{\"AttributeId\":\"" + SUBJECT_ID
+                        + "\",\"Value\":\"subject-" + this.random.nextInt(2) + "\"}]}");
+        }
+        json.append("}}");
+        return JSONRequest.load(json.toString());
+    }
+
+    @Test
+    public void testCompiledTargetsMatchFullEvaluation() throws Exception {
+        Map<Decision, Integer> decisions = new EnumMap<Decision, Integer>(Decision.class);
+        for (int trial = 0; trial < 30; trial++) {
+            String xml = this.policySet("urn:test:root:" + trial, 0);
+            PolicyDef policyDefPlain = load(xml);
+            PolicyDef policyDefCompiled = load(xml);
+            policyDefCompiled.compileTargets();
+
+            for (int i = 0; i < 40; i++) {
+                Request request = this.newRequest();
+                EvaluationResult expected = policyDefPlain.evaluate(new StdEvaluationContext(request, null,
+                                                                                             null));
+                EvaluationResult actual = policyDefCompiled.evaluate(new StdEvaluationContext(request, null,
+                                                                                              null));
+                assertEquals(xml, expected.toString(), actual.toString());
+                Integer count = decisions.get(actual.getDecision());
+                decisions.put(actual.getDecision(), count == null ? 1 : count + 1);
+            }
+        }
+        assertTrue(decisions.toString(), decisions.containsKey(Decision.PERMIT));
+        assertTrue(decisions.toString(), decisions.containsKey(Decision.DENY));
+        assertTrue(decisions.toString(), decisions.containsKey(Decision.NOTAPPLICABLE));
+    }
+
+    /*
+     * Wraps the given context so that any attempt to retrieve attributes fails the test.
+     */
+    private static EvaluationContext withoutAttributeRetrieval(final EvaluationContext evaluationContext) {
+        InvocationHandler invocationHandler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().endsWith("Attributes")) {
+                    throw new AssertionError(method.getName());
+                }
+                try {
+                    return method.invoke(evaluationContext, args);
+                } catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            }
+        };
+        Class<?>[] interfaces = {
+            EvaluationContext.class
+        };
+        return (EvaluationContext)Proxy.newProxyInstance(EvaluationContext.class.getClassLoader(), interfaces,
+                                                         invocationHandler);
+    }
+
+    @Test
+    public void testCandidatesFromRequestOnly() throws Exception {
+        String xml = "<Policy PolicyId=\"urn:test:policy\" Version=\"1.0\" RuleCombiningAlgId=\""
+                     + XACML3.ID_RULE_DENY_OVERRIDES.getUri() + "\"><Target/>"
+                     + "<Rule RuleId=\"act-0\" Effect=\"Permit\"><Target><AnyOf><AllOf>"
+                     + match("act-0", ACTION, ACTION_ID, false) + "</AllOf></AnyOf></Target></Rule>"
+                     + "<Rule RuleId=\"act-1\" Effect=\"Permit\"><Target><AnyOf><AllOf>"
+                     + match("act-1", ACTION, ACTION_ID, false) + "</AllOf></AnyOf></Target></Rule>"
+                     + "<Rule RuleId=\"subject-0\" Effect=\"Permit\"><Target><AnyOf><AllOf>"
+                     + match("subject-0", SUBJECT, SUBJECT_ID, true) + "</AllOf></AnyOf></Target></Rule>"
+                     + "<Rule RuleId=\"any\" Effect=\"Permit\"><Target/></Rule></Policy>";
+        List<Target> targets = new ArrayList<Target>();
+        Iterator<Rule> iterRules = ((Policy)load(xml)).getRules();
+        while (iterRules.hasNext()) {
+            targets.add(iterRules.next().getTarget());
+        }
+        TargetIndex targetIndex = new TargetIndex(targets);
+
+        /*
+         * The action is taken from the request, the subject is not in the request so its rule is left to the
+         * normal evaluation path instead of being retrieved from a PIP
+         */
+        Request request = JSONRequest.load("{\"Request\":{\"Action\":{\"Attribute\":[{\"AttributeId\":\""
+                                           + ACTION_ID + "\",\"Value\":\"act-1\"}]}}}");
+        BitSet candidates = targetIndex
+            .getCandidates(withoutAttributeRetrieval(new StdEvaluationContext(request, null, null)));
+        assertEquals("{1, 2, 3}", candidates.toString());
+    }
+}
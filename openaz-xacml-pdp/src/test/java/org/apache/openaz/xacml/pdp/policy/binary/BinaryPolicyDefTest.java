@@ -0,0 +1,216 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.policy.binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.apache.openaz.xacml.api.Decision;
+import org.apache.openaz.xacml.api.Request;
+import org.apache.openaz.xacml.pdp.eval.EvaluationResult;
+import org.apache.openaz.xacml.pdp.policy.PolicyDef;
+import org.apache.openaz.xacml.pdp.policy.dom.DOMPolicyDef;
+import org.apache.openaz.xacml.pdp.std.StdEvaluationContext;
+import org.apache.openaz.xacml.pdp.std.StdPolicyFinder;
+import org.apache.openaz.xacml.std.json.JSONRequest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a <code>PolicyDef</code> loaded from its binary form is the same as the one parsed from the XML,
+ * and that stale, corrupt or unsupported binary forms fall back to the XML.
+ */
+public class BinaryPolicyDefTest {
+    private static final String NAMESPACE = "xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\"";
+    private static final String XS = "http://www.w3.org/2001/XMLSchema#";
+    private static final String SUBJECT = "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject";
+    private static final String RESOURCE = "urn:oasis:names:tc:xacml:3.0:attribute-category:resource";
+
+    private static final String POLICY_SET = "<PolicySet "
+        + NAMESPACE
+        + " PolicySetId=\"urn:test:root\" Version=\"1.2.3\""
+        + " PolicyCombiningAlgId=\"urn:oasis:names:tc:xacml:1.0:policy-combining-algorithm:first-applicable\">"
+        + "<Description>Binary round trip</Description>"
+        + "<PolicySetDefaults><XPathVersion>http://www.w3.org/TR/1999/REC-xpath-19991116</XPathVersion></PolicySetDefaults>"
+        + "<Target/>"
+        + "<Policy PolicyId=\"urn:test:policy\" Version=\"1.0\""
+        + " RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">"
+        + "<Target/>"
+        + "<VariableDefinition VariableId=\"isAdmin\">"
+        + "<Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:string-is-in\">"
+        + "<AttributeValue DataType=\"" + XS + "string\">admin</AttributeValue>"
+        + "<AttributeDesignator Category=\"" + SUBJECT + "\" AttributeId=\"urn:test:role\" DataType=\"" + XS
+        + "string\" MustBePresent=\"false\"/>"
+        + "</Apply></VariableDefinition>"
+        + "<Rule RuleId=\"urn:test:rule:admin\" Effect=\"Permit\"><Target/>"
+        + "<Condition><VariableReference VariableId=\"isAdmin\"/></Condition>"
+        + "<ObligationExpressions><ObligationExpression ObligationId=\"urn:test:audit\" FulfillOn=\"Permit\">"
+        + "<AttributeAssignmentExpression AttributeId=\"urn:test:level\">"
+        + "<AttributeValue DataType=\"" + XS + "integer\">12345678901234567890</AttributeValue>"
+        + "</AttributeAssignmentExpression>"
+        + "<AttributeAssignmentExpression AttributeId=\"urn:test:until\">"
+        + "<AttributeValue DataType=\"" + XS + "date\">2014-01-31</AttributeValue>"
+        + "</AttributeAssignmentExpression>"
+        + "</ObligationExpression></ObligationExpressions></Rule>"
+        + "<Rule RuleId=\"urn:test:rule:heavy\" Effect=\"Deny\">"
+        + "<Description>Heavy flagged resources</Description>"
+        + "<Target><AnyOf><AllOf><Match MatchId=\"urn:oasis:names:tc:xacml:1.0:function:double-equal\">"
+        + "<AttributeValue DataType=\"" + XS + "double\">1.5</AttributeValue>"
+        + "<AttributeDesignator Category=\"" + RESOURCE + "\" AttributeId=\"urn:test:weight\" DataType=\"" + XS
+        + "double\" MustBePresent=\"false\"/>"
+        + "</Match></AllOf></AnyOf></Target>"
+        + "<Condition><Apply FunctionId=\"urn:oasis:names:tc:xacml:3.0:function:any-of\">"
+        + "<Function FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:boolean-equal\"/>"
+        + "<AttributeValue DataType=\"" + XS + "boolean\">true</AttributeValue>"
+        + "<AttributeDesignator Category=\"" + RESOURCE + "\" AttributeId=\"urn:test:flag\" DataType=\"" + XS
+        + "boolean\" MustBePresent=\"true\"/>"
+        + "</Apply></Condition>"
+        + "<AdviceExpressions><AdviceExpression AdviceId=\"urn:test:advice\" AppliesTo=\"Deny\">"
+        + "<AttributeAssignmentExpression AttributeId=\"urn:test:reason\" Issuer=\"urn:test:issuer\">"
+        + "<AttributeValue DataType=\"" + XS + "anyURI\">http://example.com/reason</AttributeValue>"
+        + "</AttributeAssignmentExpression></AdviceExpression></AdviceExpressions></Rule>"
+        + "</Policy>"
+        + "<PolicyIdReference Version=\"1.*\" LatestVersion=\"1.+\">urn:test:missing</PolicyIdReference>"
+        + "</PolicySet>";
+
+    private static final String[] REQUESTS = {
+        "{\"Request\":{}}",
+        "{\"Request\":{\"AccessSubject\":{\"Attribute\":[{\"AttributeId\":\"urn:test:role\",\"Value\":[\"user\",\"admin\"]}]}}}",
+        "{\"Request\":{\"AccessSubject\":{\"Attribute\":[{\"AttributeId\":\"urn:test:role\",\"Value\":\"user\"}]}}}",
+        "{\"Request\":{\"Resource\":{\"Attribute\":[{\"AttributeId\":\"urn:test:weight\",\"DataType\":\"" + XS
+            + "double\",\"Value\":1.5},{\"AttributeId\":\"urn:test:flag\",\"DataType\":\"" + XS
+            + "boolean\",\"Value\":true}]}}}",
+        "{\"Request\":{\"Resource\":{\"Attribute\":[{\"AttributeId\":\"urn:test:weight\",\"DataType\":\"" + XS
+            + "double\",\"Value\":1.5}]}}}"
+    };
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File newPolicyFile(String xml) throws Exception {
+        File filePolicy = this.temporaryFolder.newFile();
+        Files.write(filePolicy.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        return filePolicy;
+    }
+
+    private static EvaluationResult evaluate(PolicyDef policyDef, String request) throws Exception {
+        Request requestIn = JSONRequest.load(request);
+        StdPolicyFinder policyFinder = new StdPolicyFinder(Collections.singletonList(policyDef), null);
+        return policyDef.evaluate(new StdEvaluationContext(requestIn, policyFinder, null));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File filePolicy = this.newPolicyFile(POLICY_SET);
+        File fileBinary = BinaryPolicyDef.getBinaryFile(filePolicy);
+        PolicyDef policyDefXml = DOMPolicyDef.load(new ByteArrayInputStream(POLICY_SET
+            .getBytes(StandardCharsets.UTF_8)));
+
+        /*
+         * The first load parses the XML and stores the binary form, the second one reads it back
+         */
+        PolicyDef policyDefFirst = BinaryPolicyDef.load(filePolicy);
+        assertTrue(fileBinary.isFile());
+        assertEquals(policyDefXml.toString(), policyDefFirst.toString());
+        byte[] sourceDigest = BinaryPolicyDef.digest(Files.readAllBytes(filePolicy.toPath()));
+        PolicyDef policyDefBinary = BinaryPolicyDef.load(fileBinary, sourceDigest);
+        assertNotNull(policyDefBinary);
+        assertEquals(policyDefXml.toString(), policyDefBinary.toString());
+
+        Set<Decision> decisions = EnumSet.noneOf(Decision.class);
+        for (String request : REQUESTS) {
+            EvaluationResult evaluationResultXml = evaluate(policyDefXml, request);
+            assertEquals(request, evaluationResultXml.toString(), evaluate(policyDefBinary, request).toString());
+            decisions.add(evaluationResultXml.getDecision());
+        }
+        assertTrue(decisions.toString(), decisions.containsAll(EnumSet.of(Decision.PERMIT, Decision.DENY)));
+    }
+
+    @Test
+    public void testStaleBinaryIsReplaced() throws Exception {
+        File filePolicy = this.newPolicyFile(POLICY_SET);
+        File fileBinary = BinaryPolicyDef.getBinaryFile(filePolicy);
+        BinaryPolicyDef.load(filePolicy);
+        byte[] sourceDigestOld = BinaryPolicyDef.digest(Files.readAllBytes(filePolicy.toPath()));
+
+        String xmlNew = POLICY_SET.replace("Version=\"1.2.3\"", "Version=\"1.2.4\"");
+        Files.write(filePolicy.toPath(), xmlNew.getBytes(StandardCharsets.UTF_8));
+        PolicyDef policyDef = BinaryPolicyDef.load(filePolicy);
+        assertEquals("1.2.4", policyDef.getVersion().stringValue());
+        assertNull(BinaryPolicyDef.load(fileBinary, sourceDigestOld));
+
+        byte[] sourceDigestNew = BinaryPolicyDef.digest(xmlNew.getBytes(StandardCharsets.UTF_8));
+        assertEquals("1.2.4", BinaryPolicyDef.load(fileBinary, sourceDigestNew).getVersion().stringValue());
+    }
+
+    @Test
+    public void testCorruptBinaryFallsBack() throws Exception {
+        File filePolicy = this.newPolicyFile(POLICY_SET);
+        File fileBinary = BinaryPolicyDef.getBinaryFile(filePolicy);
+        BinaryPolicyDef.load(filePolicy);
+        byte[] sourceDigest = BinaryPolicyDef.digest(Files.readAllBytes(filePolicy.toPath()));
+
+        byte[] bytes = Files.readAllBytes(fileBinary.toPath());
+        bytes[bytes.length - 3] ^= 0x5A;
+        Files.write(fileBinary.toPath(), bytes);
+        assertNull(BinaryPolicyDef.load(fileBinary, sourceDigest));
+
+        Files.write(fileBinary.toPath(), new byte[] {
+            1, 2, 3
+        });
+        assertNull(BinaryPolicyDef.load(fileBinary, sourceDigest));
+
+        /*
+         * Loading the policy file parses the XML again and repairs the binary form
+         */
+        PolicyDef policyDef = BinaryPolicyDef.load(filePolicy);
+        assertEquals("urn:test:root", policyDef.getIdentifier().stringValue());
+        assertNotNull(BinaryPolicyDef.load(fileBinary, sourceDigest));
+    }
+
+    @Test
+    public void testUnsupportedPolicyIsNotStored() throws Exception {
+        String xml = "<Policy " + NAMESPACE + " PolicyId=\"urn:test:issued\" Version=\"1.0\""
+                     + " RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">"
+                     + "<PolicyIssuer><Attribute AttributeId=\"urn:test:issuer\" IncludeInResult=\"false\">"
+                     + "<AttributeValue DataType=\"" + XS + "string\">issuer</AttributeValue></Attribute></PolicyIssuer>"
+                     + "<Target/><Rule RuleId=\"urn:test:rule\" Effect=\"Permit\"><Target/></Rule></Policy>";
+        File filePolicy = this.newPolicyFile(xml);
+        PolicyDef policyDef = BinaryPolicyDef.load(filePolicy);
+        assertEquals("urn:test:issued", policyDef.getIdentifier().stringValue());
+        assertNotNull(policyDef.getPolicyIssuer());
+        assertFalse(BinaryPolicyDef.getBinaryFile(filePolicy).exists());
+        assertFalse(BinaryPolicyDef.store(policyDef, BinaryPolicyDef.digest(new byte[0]),
+                                          BinaryPolicyDef.getBinaryFile(filePolicy)));
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.policy.expressions;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.openaz.xacml.api.Decision;
+import org.apache.openaz.xacml.api.trace.TraceEngine;
+import org.apache.openaz.xacml.api.trace.TraceEvent;
+import org.apache.openaz.xacml.pdp.eval.EvaluationContext;
+import org.apache.openaz.xacml.pdp.eval.EvaluationResult;
+import org.apache.openaz.xacml.pdp.eval.VariableResultCache;
+import org.apache.openaz.xacml.pdp.policy.PolicyDef;
+import org.apache.openaz.xacml.pdp.policy.dom.DOMPolicyDef;
+import org.apache.openaz.xacml.pdp.std.StdEvaluationContext;
+import org.apache.openaz.xacml.std.json.JSONRequest;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that a <code>VariableDefinition</code> referenced by several rules is evaluated only once per
+ * <code>EvaluationContext</code>.
+ */
+public class VariableReferenceTest {
+    private static final String RULE = "<Rule RuleId=\"urn:test:rule:%d\" Effect=\"Permit\"><Target/>"
+                                       + "<Condition><VariableReference VariableId=\"isAdmin\"/></Condition></Rule>";
+
+    private static final String POLICY = "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" PolicyId=\"urn:test:policy\" Version=\"1.0\""
+                                         + " RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\"><Target/>"
+                                         + "<VariableDefinition VariableId=\"isAdmin\">"
+                                         + "<Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:string-is-in\">"
+                                         + "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\">admin</AttributeValue>"
+                                         + "<AttributeDesignator Category=\"urn:oasis:names:tc:xacml:1.0:subject-category:access-subject\""
+                                         + " AttributeId=\"urn:oasis:names:tc:xacml:1.0:subject:subject-id\""
+                                         + " DataType=\"http://www.w3.org/2001/XMLSchema#string\" MustBePresent=\"false\"/>"
+                                         + "</Apply></VariableDefinition>"
+                                         + String.format(RULE, 1)
+                                         + String.format(RULE, 2)
+                                         + String.format(RULE, 3) + "</Policy>";
+
+    /*
+     * Collects the messages of the variable trace events
+     */
+    private static class VariableTraceEngine implements TraceEngine {
+        private List<String> messages = new ArrayList<String>();
+
+        @Override
+        public void trace(TraceEvent<?> traceEvent) {
+            if (traceEvent.getCause() instanceof VariableReference) {
+                this.messages.add(traceEvent.getMessage());
+            }
+        }
+
+        @Override
+        public boolean isTracing() {
+            return true;
+        }
+    }
+
+    private static StdEvaluationContext newEvaluationContext(String subjectId, TraceEngine traceEngine)
+        throws Exception {
+        return new StdEvaluationContext(
+                                                                          JSONRequest
+                                                                              .load("{\"Request\":{\"AccessSubject\":{\"Attribute\":[{\"AttributeId\":"
+                                                                                    + "\"urn:oasis:names:tc:xacml:1.0:subject:subject-id\",\"Value\":\""
+                                                                                    + subjectId + "\"}]}}}"),
+                                                                          null, null, traceEngine);
+    }
+
+    private static Decision evaluate(PolicyDef policyDef, String subjectId, TraceEngine traceEngine)
+        throws Exception {
+        EvaluationResult evaluationResult = policyDef.evaluate(newEvaluationContext(subjectId, traceEngine));
+        return evaluationResult.getDecision();
+    }
+
+    /*
+     * Wraps an EvaluationContext in one that does not implement VariableResultCache
+     */
+    private static EvaluationContext withoutVariableResultCache(final EvaluationContext evaluationContext) {
+        InvocationHandler invocationHandler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                try {
+                    return method.invoke(evaluationContext, args);
+                } catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            }
+        };
+        Class<?>[] interfaces = {
+            EvaluationContext.class
+        };
+        return (EvaluationContext)Proxy.newProxyInstance(EvaluationContext.class.getClassLoader(), interfaces,
+                                                         invocationHandler);
+    }
+
+    @Test
+    public void testVariableEvaluatedOncePerRequest() throws Exception {
+        PolicyDef policyDef = DOMPolicyDef.load(new ByteArrayInputStream(POLICY.getBytes("UTF-8")));
+
+        VariableTraceEngine traceEngine = new VariableTraceEngine();
+        assertEquals(Decision.PERMIT, evaluate(policyDef, "admin", traceEngine));
+        assertEquals(3, traceEngine.messages.size());
+        assertEquals("Variable", traceEngine.messages.get(0));
+        assertEquals("Variable (cached)", traceEngine.messages.get(1));
+        assertEquals("Variable (cached)", traceEngine.messages.get(2));
+
+        /*
+         * A new request starts with no cached variables
+         */
+        traceEngine = new VariableTraceEngine();
+        assertEquals(Decision.NOTAPPLICABLE, evaluate(policyDef, "guest", traceEngine));
+        assertEquals(3, traceEngine.messages.size());
+        assertEquals("Variable", traceEngine.messages.get(0));
+    }
+
+    @Test
+    public void testWithoutVariableResultCache() throws Exception {
+        PolicyDef policyDef = DOMPolicyDef.load(new ByteArrayInputStream(POLICY.getBytes("UTF-8")));
+        VariableTraceEngine traceEngine = new VariableTraceEngine();
+        EvaluationContext evaluationContext = withoutVariableResultCache(newEvaluationContext("admin",
+                                                                                             traceEngine));
+        assertFalse(evaluationContext instanceof VariableResultCache);
+        assertEquals(Decision.PERMIT, policyDef.evaluate(evaluationContext).getDecision());
+        assertEquals("[Variable, Variable, Variable]", traceEngine.messages.toString());
+    }
+}
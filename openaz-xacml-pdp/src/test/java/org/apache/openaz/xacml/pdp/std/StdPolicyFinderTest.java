@@ -0,0 +1,377 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.std;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.openaz.xacml.api.Decision;
+import org.apache.openaz.xacml.api.IdReferenceMatch;
+import org.apache.openaz.xacml.api.Request;
+import org.apache.openaz.xacml.api.Status;
+import org.apache.openaz.xacml.pdp.eval.EvaluationContext;
+import org.apache.openaz.xacml.pdp.eval.EvaluationException;
+import org.apache.openaz.xacml.pdp.eval.EvaluationResult;
+import org.apache.openaz.xacml.pdp.eval.MatchResult;
+import org.apache.openaz.xacml.pdp.policy.Policy;
+import org.apache.openaz.xacml.pdp.policy.PolicyDef;
+import org.apache.openaz.xacml.pdp.policy.PolicyFinderResult;
+import org.apache.openaz.xacml.pdp.policy.PolicyIdReferenceBase;
+import org.apache.openaz.xacml.pdp.policy.PolicySet;
+import org.apache.openaz.xacml.pdp.policy.PolicySetChild;
+import org.apache.openaz.xacml.pdp.policy.dom.DOMPolicyDef;
+import org.apache.openaz.xacml.std.StdStatus;
+import org.apache.openaz.xacml.std.StdStatusCode;
+import org.apache.openaz.xacml.std.json.JSONRequest;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the indexed root policy lookup in <code>StdPolicyFinder</code> returns exactly what matching
+ * every root in order would return, and that policy references are linked when it is constructed.
+ */
+public class StdPolicyFinderTest {
+    private static final String STRING = "http://www.w3.org/2001/XMLSchema#string";
+    private static final String INTEGER = "http://www.w3.org/2001/XMLSchema#integer";
+    private static final String RESOURCE = "urn:oasis:names:tc:xacml:3.0:attribute-category:resource";
+    private static final String ACTION = "urn:oasis:names:tc:xacml:3.0:attribute-category:action";
+    private static final String SUBJECT = "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject";
+    private static final String RESOURCE_ID = "urn:oasis:names:tc:xacml:1.0:resource:resource-id";
+    private static final String ACTION_ID = "urn:oasis:names:tc:xacml:1.0:action:action-id";
+    private static final String SUBJECT_ID = "urn:oasis:names:tc:xacml:1.0:subject:subject-id";
+    private static final String LEVEL_ID = "urn:test:level";
+    private static final String STRING_EQUAL = "urn:oasis:names:tc:xacml:1.0:function:string-equal";
+    private static final String STRING_EQUAL_IGNORE_CASE = "urn:oasis:names:tc:xacml:3.0:function:string-equal-ignore-case";
+    private static final String INTEGER_EQUAL = "urn:oasis:names:tc:xacml:1.0:function:integer-equal";
+
+    private final Random random = new Random(20131008L);
+
+    private static String match(String matchId, String dataType, String value, String category,
+                                String attributeId, boolean mustBePresent) {
+        return "<Match MatchId=\"" + matchId + "\"><AttributeValue DataType=\"" + dataType + "\">" + value
+               + "</AttributeValue><AttributeDesignator Category=\"" + category + "\" AttributeId=\""
+               + attributeId + "\" DataType=\"" + dataType + "\" MustBePresent=\"" + mustBePresent
+               + "\"/></Match>";
+    }
+
+    private String resourceMatch() {
+        return match(STRING_EQUAL, STRING, "res-" + this.random.nextInt(12), RESOURCE, RESOURCE_ID, false);
+    }
+
+    private String target(int kind) {
+        switch (kind) {
+        case 0:
+            return "<AnyOf><AllOf>" + this.resourceMatch() + "</AllOf></AnyOf>";
+        case 1:
+            return "<AnyOf><AllOf>"
+                   + match(STRING_EQUAL, STRING, "act-" + this.random.nextInt(3), ACTION, ACTION_ID, false)
+                   + this.resourceMatch() + "</AllOf><AllOf>" + this.resourceMatch() + "</AllOf></AnyOf>";
+        case 2:
+            return "<AnyOf><AllOf>"
+                   + match(STRING_EQUAL, STRING, "res-" + this.random.nextInt(12), RESOURCE, RESOURCE_ID, true)
+                   + "</AllOf></AnyOf>";
+        case 3:
+            return "<AnyOf><AllOf>"
+                   + match(STRING_EQUAL_IGNORE_CASE, STRING, "RES-" + this.random.nextInt(12), RESOURCE,
+                           RESOURCE_ID, false) + "</AllOf></AnyOf>";
+        case 4:
+            return "<AnyOf><AllOf>" + this.resourceMatch() + "</AllOf></AnyOf><AnyOf><AllOf>"
+                   + match(STRING_EQUAL, STRING, "subject-" + this.random.nextInt(2), SUBJECT, SUBJECT_ID, true)
+                   + "</AllOf></AnyOf>";
+        case 5:
+            return "<AnyOf><AllOf>"
+                   + match(INTEGER_EQUAL, INTEGER, Integer.toString(this.random.nextInt(4)), RESOURCE, LEVEL_ID,
+                           false) + "</AllOf></AnyOf>";
+        default:
+            return "";
+        }
+    }
+
+    private PolicyDef newPolicy(int id, int kind) throws Exception {
+        String xml = "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" PolicyId=\"urn:test:policy:"
+                     + id
+                     + "\" Version=\"1.0\" RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">"
+                     + "<Target>" + this.target(kind) + "</Target>"
+                     + "<Rule RuleId=\"urn:test:rule\" Effect=\"Permit\"><Target/></Rule></Policy>";
+        return DOMPolicyDef.load(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    private Request newRequest() throws Exception {
+        StringBuilder resource = new StringBuilder();
+        int resourceCount = this.random.nextInt(3);
+        if (resourceCount > 0) {
+            resource.append("{\"AttributeId\":\"" + RESOURCE_ID + "\",\"Value\":[");
+            for (int i = 0; i < resourceCount; i++) {
+                resource.append(i == 0 ? "" : ",").append("\"res-" + this.random.nextInt(14) + "\"");
+            }
+            resource.append("]}");
+        }
+        if (this.random.nextBoolean()) {
+            resource.append(resource.length() == 0 ? "" : ",").append("{\"AttributeId\":\"" + LEVEL_ID
+                                                                          + "\",\"DataType\":\"" + INTEGER
+                                                                          + "\",\"Value\":"
+                                                                          + this.random.nextInt(4) + "}");
+        }
+        StringBuilder json = new StringBuilder("{\"Request\":{\"Resource\":{\"Attribute\":[" + resource
+                                               + "]}");
+        if (this.random.nextBoolean()) {
+            json.append(",\"Action\":{\"Attribute\":[{\"AttributeId\":\"" + ACTION_ID + "\",\"Value\":\"act-"
+                        + this.random.nextInt(3) + "\"}]}");
+        }
+        if (this.random.nextBoolean()) {
+            json.append(",\"AccessSubject\":{\"Attribute\":[{\"AttributeId\":\"" + SUBJECT_ID
+                        + "\",\"Value\":\"subject-" + this.random.nextInt(2) + "\"}]}");
+        }
+        json.append("}}");
+        return JSONRequest.load(json.toString());
+    }
+
+    /*
+     * The original linear scan over every root policy
+     */
+    private static PolicyFinderResult<PolicyDef> linearScan(List<PolicyDef> roots,
+                                                            EvaluationContext evaluationContext) {
+        PolicyDef policyDefFirstMatch = null;
+        PolicyFinderResult<PolicyDef> firstIndeterminate = null;
+        for (PolicyDef policyDef : roots) {
+            try {
+                MatchResult matchResult = policyDef.match(evaluationContext);
+                switch (matchResult.getMatchCode()) {
+                case INDETERMINATE:
+                    if (firstIndeterminate == null) {
+                        firstIndeterminate = new StdPolicyFinderResult<PolicyDef>(matchResult.getStatus());
+                    }
+                    break;
+                case MATCH:
+                    if (policyDefFirstMatch == null) {
+                        policyDefFirstMatch = policyDef;
+                    } else {
+                        return new StdPolicyFinderResult<PolicyDef>(
+                                                                    new StdStatus(
+                                                                                  StdStatusCode.STATUS_CODE_PROCESSING_ERROR,
+                                                                                  "Multiple applicable root policies"));
+                    }
+                    break;
+                case NOMATCH:
+                    break;
+                }
+            } catch (EvaluationException ex) {
+                if (firstIndeterminate == null) {
+                    firstIndeterminate = new StdPolicyFinderResult<PolicyDef>(
+                                                                              new StdStatus(
+                                                                                            StdStatusCode.STATUS_CODE_PROCESSING_ERROR,
+                                                                                            ex.getMessage()));
+                }
+            }
+        }
+        if (policyDefFirstMatch != null) {
+            return new StdPolicyFinderResult<PolicyDef>(policyDefFirstMatch);
+        } else if (firstIndeterminate != null) {
+            return firstIndeterminate;
+        } else {
+            return new StdPolicyFinderResult<PolicyDef>(
+                                                        new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR,
+                                                                      "No matching root policy found"));
+        }
+    }
+
+    private static void assertSameResult(PolicyFinderResult<PolicyDef> expected,
+                                         PolicyFinderResult<PolicyDef> actual) {
+        assertSame(expected.getPolicyDef(), actual.getPolicyDef());
+        Status statusExpected = expected.getStatus();
+        Status statusActual = actual.getStatus();
+        assertEquals(statusExpected.getStatusCode(), statusActual.getStatusCode());
+        assertEquals(statusExpected.getStatusMessage(), statusActual.getStatusMessage());
+    }
+
+    @Test
+    public void testIndexedRootsMatchLinearScan() throws Exception {
+        int found = 0;
+        for (int trial = 0; trial < 40; trial++) {
+            List<PolicyDef> roots = new ArrayList<PolicyDef>();
+            int rootCount = 1 + this.random.nextInt(30);
+            for (int i = 0; i < rootCount; i++) {
+                roots.add(this.newPolicy(i, this.random.nextInt(40) == 0 ? 6 : this.random.nextInt(6)));
+            }
+            StdPolicyFinder policyFinder = new StdPolicyFinder(roots, null);
+            assertEquals(roots, policyFinder.getRootPolicyDefs());
+
+            for (int i = 0; i < 50; i++) {
+                Request request = this.newRequest();
+                PolicyFinderResult<PolicyDef> expected = linearScan(roots,
+                                                                    new StdEvaluationContext(request,
+                                                                                             policyFinder,
+                                                                                             null));
+                PolicyFinderResult<PolicyDef> actual = policyFinder
+                    .getRootPolicyDef(new StdEvaluationContext(request, policyFinder, null));
+                assertSameResult(expected, actual);
+                if (actual.getPolicyDef() != null) {
+                    found++;
+                }
+            }
+        }
+        assertTrue("no request matched a single root policy", found > 0);
+    }
+
+    private static final String NAMESPACE = "xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\"";
+
+    private static PolicyDef load(String xml) throws Exception {
+        return DOMPolicyDef.load(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    private static PolicyDef newPolicy(String id, String version) throws Exception {
+        return load("<Policy " + NAMESPACE + " PolicyId=\"" + id + "\" Version=\"" + version
+                    + "\" RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">"
+                    + "<Target/><Rule RuleId=\"urn:test:rule\" Effect=\"Permit\"><Target/></Rule></Policy>");
+    }
+
+    private static PolicyDef newPolicySet(String id, String children) throws Exception {
+        return load("<PolicySet " + NAMESPACE + " PolicySetId=\"" + id + "\" Version=\"1.0\""
+                    + " PolicyCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:policy-combining-algorithm:deny-overrides\">"
+                    + "<Target/>" + children + "</PolicySet>");
+    }
+
+    private static PolicyIdReferenceBase<?> getReference(PolicyDef policyDef, int index) {
+        PolicySetChild policySetChild = null;
+        Iterator<PolicySetChild> iterChildren = ((PolicySet)policyDef).getChildren();
+        for (int i = 0; i <= index; i++) {
+            policySetChild = iterChildren.next();
+        }
+        return (PolicyIdReferenceBase<?>)policySetChild;
+    }
+
+    /*
+     * An EvaluationContext that fails if anything tries to look up a policy while evaluating
+     */
+    private static EvaluationContext newNoLookupContext(Request request, StdPolicyFinder policyFinder) {
+        return new StdEvaluationContext(request, policyFinder, null) {
+            @Override
+            public PolicyFinderResult<Policy> getPolicy(IdReferenceMatch idReferenceMatch) {
+                fail("Policy lookup during evaluation: " + idReferenceMatch);
+                return null;
+            }
+
+            @Override
+            public PolicyFinderResult<PolicySet> getPolicySet(IdReferenceMatch idReferenceMatch) {
+                fail("PolicySet lookup during evaluation: " + idReferenceMatch);
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void testLinkReferences() throws Exception {
+        PolicyDef policyOld = newPolicy("urn:test:referenced", "1.0");
+        PolicyDef policyNew = newPolicy("urn:test:referenced", "1.2");
+        PolicyDef policyTooNew = newPolicy("urn:test:referenced", "2.0");
+        PolicyDef policySetChild = newPolicySet("urn:test:child", "");
+        PolicyDef root = newPolicySet("urn:test:root",
+                                      "<PolicyIdReference LatestVersion=\"1.*\">urn:test:referenced</PolicyIdReference>"
+                                          + "<PolicyIdReference Version=\"1.0\">urn:test:referenced</PolicyIdReference>"
+                                          + "<PolicySetIdReference>urn:test:child</PolicySetIdReference>");
+        StdPolicyFinder policyFinder = new StdPolicyFinder(Collections.singletonList(root),
+                                                           Arrays.asList(policyOld, policyTooNew, policyNew,
+                                                                         policySetChild));
+        assertEquals(Collections.emptyList(), policyFinder.getLinkErrors());
+
+        /*
+         * Each reference is linked to the latest version its constraints allow
+         */
+        assertTrue(getReference(root, 0).isLinked());
+        assertSame(policyNew, getReference(root, 0).getReferencee());
+        assertSame(policyOld, getReference(root, 1).getReferencee());
+        assertSame(policySetChild, getReference(root, 2).getReferencee());
+
+        Request request = JSONRequest.load("{\"Request\":{}}");
+        EvaluationResult evaluationResult = root.evaluate(newNoLookupContext(request, policyFinder));
+        assertEquals(Decision.PERMIT, evaluationResult.getDecision());
+    }
+
+    @Test
+    public void testUnresolvedReferences() throws Exception {
+        PolicyDef root = newPolicySet("urn:test:root",
+                                      "<PolicyIdReference>urn:test:missing</PolicyIdReference>"
+                                          + "<PolicySetIdReference Version=\"3.0\">urn:test:child</PolicySetIdReference>");
+        StdPolicyFinder policyFinder = new StdPolicyFinder(Collections.singletonList(root),
+                                                           Collections.singletonList(newPolicySet("urn:test:child",
+                                                                                                  "")));
+        List<String> linkErrors = policyFinder.getLinkErrors();
+        assertEquals(2, linkErrors.size());
+        assertTrue(linkErrors.get(0), linkErrors.get(0).startsWith("Unresolved PolicyIdReference"));
+        assertTrue(linkErrors.get(1), linkErrors.get(1).startsWith("Unresolved PolicySetIdReference"));
+        assertTrue(getReference(root, 0).isLinked());
+
+        Request request = JSONRequest.load("{\"Request\":{}}");
+        EvaluationResult evaluationResult = root.evaluate(newNoLookupContext(request, policyFinder));
+        assertEquals(Decision.INDETERMINATE, evaluationResult.getDecision());
+    }
+
+    @Test
+    public void testRelinkUnchanged() throws Exception {
+        PolicyDef policySetChild = newPolicySet("urn:test:child", "");
+        PolicyDef root = newPolicySet("urn:test:root",
+                                      "<PolicyIdReference>urn:test:missing</PolicyIdReference>"
+                                          + "<PolicySetIdReference>urn:test:child</PolicySetIdReference>");
+        new StdPolicyFinder(Collections.singletonList(root), Collections.singletonList(policySetChild));
+        Status linkStatus = getReference(root, 0).getLinkStatus();
+        assertTrue(linkStatus != null);
+
+        /*
+         * Another finder over the same policies, as on a reload where nothing changed, leaves the links alone
+         */
+        StdPolicyFinder policyFinder = new StdPolicyFinder(Collections.singletonList(root),
+                                                           Collections.singletonList(policySetChild));
+        assertEquals(1, policyFinder.getLinkErrors().size());
+        assertSame(linkStatus, getReference(root, 0).getLinkStatus());
+        assertSame(policySetChild, getReference(root, 1).getReferencee());
+    }
+
+    @Test
+    public void testCircularReferences() throws Exception {
+        PolicyDef policySetA = newPolicySet("urn:test:a", "<PolicySetIdReference>urn:test:b</PolicySetIdReference>");
+        PolicyDef policySetB = newPolicySet("urn:test:b", "<PolicySetIdReference>urn:test:a</PolicySetIdReference>");
+        StdPolicyFinder policyFinder = new StdPolicyFinder(Collections.singletonList(policySetA),
+                                                           Collections.singletonList(policySetB));
+
+        /*
+         * The reference that closes the cycle is cut, so evaluation terminates
+         */
+        assertEquals(1, policyFinder.getLinkErrors().size());
+        assertTrue(policyFinder.getLinkErrors().get(0).contains("Circular reference"));
+        assertSame(policySetB, getReference(policySetA, 0).getReferencee());
+        assertNull(getReference(policySetB, 0).getReferencee());
+
+        Request request = JSONRequest.load("{\"Request\":{}}");
+        EvaluationResult evaluationResult = policySetA.evaluate(newNoLookupContext(request, policyFinder));
+        assertEquals(Decision.INDETERMINATE, evaluationResult.getDecision());
+        assertTrue(evaluationResult.getStatus().getStatusMessage().contains("Circular reference"));
+    }
+}
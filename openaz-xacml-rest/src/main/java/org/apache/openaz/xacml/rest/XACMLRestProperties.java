@@ -65,6 +65,11 @@ public class XACMLRestProperties extends XACMLProperties {
      * Max content length accepted for an incoming POST XML/JSON request. Default is 32767 bytes.
      */
     public static final String PROP_PDP_MAX_CONTENT = "xacml.rest.pdp.maxcontent";
+    /**
+     * Number of threads the PDP servlet uses to download and parse policies concurrently when it loads its
+     * configuration. Default is the number of available processors.
+     */
+    public static final String PROP_PDP_LOAD_THREADS = "xacml.rest.pdp.load.threads";
     /**
      * Custom HTTP header used by PDP to send the value of the PROP_PDP_ID
      */
@@ -0,0 +1,165 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.std;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+
+import org.apache.openaz.xacml.api.Attribute;
+import org.apache.openaz.xacml.api.AttributeValue;
+import org.apache.openaz.xacml.api.Identifier;
+import org.apache.openaz.xacml.api.Request;
+import org.apache.openaz.xacml.api.RequestAttributes;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.pdp.policy.PolicyDef;
+import org.apache.openaz.xacml.pdp.policy.dom.DOMPolicyDef;
+import org.apache.openaz.xacml.std.IdentifierImpl;
+import org.apache.openaz.xacml.std.dom.DOMRequest;
+import org.apache.openaz.xacml.std.json.JSONRequest;
+import org.junit.Test;
+
+/**
+ * Tests that the parsers return the canonical <code>Identifier</code>s for the XACML constants, that ids
+ * only seen in requests do not become canonical, and that canonical and non-canonical <code>Identifier</code>s
+ * still compare by <code>URI</code>.
+ */
+public class IdentifierImplTest {
+    private static final String POLICY = "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\""
+                                         + " PolicyId=\"urn:test:identifier:policy\" Version=\"1.0\""
+                                         + " RuleCombiningAlgId="
+                                         + "\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-overrides\">"
+                                         + "<Target/></Policy>";
+
+    private static void assertCanonical(Request request) {
+        assertFalse(request.getRequestAttributes().isEmpty());
+        for (RequestAttributes requestAttributes : request.getRequestAttributes()) {
+            assertSame(XACML3.ID_ATTRIBUTE_CATEGORY_RESOURCE, requestAttributes.getCategory());
+            for (Attribute attribute : requestAttributes.getAttributes()) {
+                assertSame(XACML3.ID_RESOURCE_RESOURCE_ID, attribute.getAttributeId());
+                for (AttributeValue<?> attributeValue : attribute.getValues()) {
+                    assertSame(XACML3.ID_DATATYPE_STRING, attributeValue.getDataTypeId());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDOMRequest() throws Exception {
+        assertCanonical(DOMRequest.load("<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\""
+                                        + " ReturnPolicyIdList=\"false\" CombinedDecision=\"false\">"
+                                        + "<Attributes Category=\"" + XACML3.ID_ATTRIBUTE_CATEGORY_RESOURCE
+                                        + "\"><Attribute AttributeId=\"" + XACML3.ID_RESOURCE_RESOURCE_ID
+                                        + "\" IncludeInResult=\"false\"><AttributeValue DataType=\""
+                                        + XACML3.ID_DATATYPE_STRING + "\">doc</AttributeValue></Attribute>"
+                                        + "</Attributes></Request>"));
+    }
+
+    @Test
+    public void testJSONRequest() throws Exception {
+        assertCanonical(JSONRequest.load("{\"Request\":{\"Resource\":{\"Attribute\":[{\"AttributeId\":\""
+                                         + XACML3.ID_RESOURCE_RESOURCE_ID + "\",\"DataType\":\""
+                                         + XACML3.ID_DATATYPE_STRING + "\",\"Value\":\"doc\"}]}}}"));
+    }
+
+    @Test
+    public void testRequestIdentifiersNotInterned() throws Exception {
+        String attributeId = "urn:test:identifier:request-only";
+        Request request = JSONRequest.load("{\"Request\":{\"Resource\":{\"Attribute\":[{\"AttributeId\":\""
+                                           + attributeId + "\",\"Value\":\"doc\"}]}}}");
+        Attribute attribute = request.getRequestAttributes().iterator().next().getAttributes().iterator()
+            .next();
+        assertEquals(new IdentifierImpl(attributeId), attribute.getAttributeId());
+
+        /*
+         * Parsing the request must not have made its id canonical
+         */
+        assertNotSame(IdentifierImpl.lookup(attributeId), IdentifierImpl.lookup(attributeId));
+        assertSame(XACML3.ID_RESOURCE_RESOURCE_ID, IdentifierImpl.lookup(XACML3.ID_RESOURCE_RESOURCE_ID
+            .stringValue()));
+    }
+
+    @Test
+    public void testPolicyIdentifiersShared() throws Exception {
+        PolicyDef policyDef1 = DOMPolicyDef.load(new ByteArrayInputStream(POLICY.getBytes("UTF-8")));
+        PolicyDef policyDef2 = DOMPolicyDef.load(new ByteArrayInputStream(POLICY.getBytes("UTF-8")));
+        assertNotSame(policyDef1, policyDef2);
+        assertSame(policyDef1.getIdentifier(), policyDef2.getIdentifier());
+    }
+
+    @Test
+    public void testEquality() {
+        Identifier identifierCanonical = IdentifierImpl.valueOf("urn:test:identifier:equality");
+        Identifier identifierNew = new IdentifierImpl("urn:test:identifier:equality");
+        assertSame(identifierCanonical, IdentifierImpl.valueOf("urn:test:identifier:equality"));
+        assertSame(identifierCanonical, IdentifierImpl.intern("urn:test:identifier:equality"));
+        assertNotSame(identifierCanonical, identifierNew);
+        assertEquals(identifierCanonical, identifierNew);
+        assertEquals(identifierNew, identifierCanonical);
+        assertEquals(identifierCanonical.hashCode(), identifierNew.hashCode());
+
+        /*
+         * URI equality ignores the case of the scheme
+         */
+        Identifier identifierUpper = IdentifierImpl.valueOf("URN:test:identifier:equality");
+        assertEquals(identifierCanonical, identifierUpper);
+        assertEquals(identifierCanonical.hashCode(), identifierUpper.hashCode());
+        assertFalse(identifierCanonical.equals(IdentifierImpl.valueOf("urn:test:identifier:other")));
+
+        /*
+         * Other Identifier implementations compare by URI
+         */
+        Identifier identifierOther = new Identifier() {
+            @Override
+            public URI getUri() {
+                return URI.create("urn:test:identifier:equality");
+            }
+
+            @Override
+            public String stringValue() {
+                return this.getUri().toString();
+            }
+        };
+        assertTrue(identifierCanonical.equals(identifierOther));
+    }
+
+    @Test
+    public void testInvalid() {
+        try {
+            IdentifierImpl.valueOf("not a uri");
+            fail("Invalid URI accepted");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        try {
+            IdentifierImpl.lookup("not a uri");
+            fail("Invalid URI accepted");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+}
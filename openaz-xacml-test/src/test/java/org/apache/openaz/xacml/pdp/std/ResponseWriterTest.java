@@ -0,0 +1,215 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.std;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.openaz.xacml.api.Decision;
+import org.apache.openaz.xacml.api.Response;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.std.IdentifierImpl;
+import org.apache.openaz.xacml.std.StdAttributeValue;
+import org.apache.openaz.xacml.std.StdIdReference;
+import org.apache.openaz.xacml.std.StdMutableAdvice;
+import org.apache.openaz.xacml.std.StdMutableAttribute;
+import org.apache.openaz.xacml.std.StdMutableAttributeAssignment;
+import org.apache.openaz.xacml.std.StdMutableAttributeCategory;
+import org.apache.openaz.xacml.std.StdMutableMissingAttributeDetail;
+import org.apache.openaz.xacml.std.StdMutableObligation;
+import org.apache.openaz.xacml.std.StdMutableResponse;
+import org.apache.openaz.xacml.std.StdMutableResult;
+import org.apache.openaz.xacml.std.StdMutableStatus;
+import org.apache.openaz.xacml.std.StdMutableStatusDetail;
+import org.apache.openaz.xacml.std.StdStatusCode;
+import org.apache.openaz.xacml.std.StdVersion;
+import org.apache.openaz.xacml.std.datatypes.DataTypes;
+import org.apache.openaz.xacml.std.dom.DOMResponse;
+import org.apache.openaz.xacml.std.dom.DOMStructureException;
+import org.apache.openaz.xacml.std.json.JSONResponse;
+import org.apache.openaz.xacml.std.json.JSONResponseWriter;
+import org.apache.openaz.xacml.std.json.JSONStructureException;
+import org.apache.openaz.xacml.std.stax.StAXResponseWriter;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Tests that the streaming JSON and XML response writers produce output that reads back as the same
+ * Response, and that the JSON writer produces the same members as <code>JSONResponse</code>.
+ */
+public class ResponseWriterTest {
+    private static final String CONFORMANCE_DIRECTORY_PATH = "src/test/resources/testsets/conformance/xacml3.0-ct-v.0.4";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static String writeJSON(Response response, boolean prettyPrint) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        JSONResponseWriter.write(response, outputStream, prettyPrint);
+        return outputStream.toString("UTF-8");
+    }
+
+    private static String writeXML(Response response, boolean prettyPrint) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        StAXResponseWriter.write(response, outputStream, prettyPrint);
+        return outputStream.toString("UTF-8");
+    }
+
+    private static void checkRoundTrip(String name, Response response) throws Exception {
+        for (boolean prettyPrint : new boolean[] {
+            false, true
+        }) {
+            String json = writeJSON(response, prettyPrint);
+            assertEquals(name, OBJECT_MAPPER.readTree(JSONResponse.toString(response, false)),
+                         OBJECT_MAPPER.readTree(json));
+            assertEquals(name, JSONResponse.load(JSONResponse.toString(response, false)),
+                         JSONResponse.load(new ByteArrayInputStream(json.getBytes("UTF-8"))));
+
+            String xml = writeXML(response, prettyPrint);
+            assertEquals(name, response, DOMResponse.load(xml));
+        }
+    }
+
+    private static List<File> getResponsesInDirectory(File directory) {
+        List<File> fileList = new ArrayList<File>();
+        for (File f : directory.listFiles()) {
+            if (f.isDirectory()) {
+                fileList.addAll(getResponsesInDirectory(f));
+            } else if (f.getName().endsWith("Response.xml")) {
+                fileList.add(f);
+            }
+        }
+        return fileList;
+    }
+
+    @Test
+    public void testConformanceResponses() throws Exception {
+        List<File> files = getResponsesInDirectory(new File(CONFORMANCE_DIRECTORY_PATH));
+        assertTrue(files.size() > 0);
+        int count = 0;
+        for (File f : files) {
+            Response response;
+            try {
+                response = DOMResponse.load(f);
+            } catch (Exception ex) {
+                // some of the conformance responses are not valid, DOMResponseConformanceTest skips them too
+                continue;
+            }
+            checkRoundTrip(f.getName(), response);
+            count++;
+        }
+        assertTrue(count > 0);
+    }
+
+    @Test
+    public void testFullResponse() throws Exception {
+        StdMutableResponse response = new StdMutableResponse();
+
+        /*
+         * An Indeterminate result with a MissingAttributeDetail and text that must be escaped. The JSON
+         * StatusDetail is XML text that JSONResponse does not escape, so the detail itself is plain.
+         */
+        StdMutableStatus status = new StdMutableStatus(StdStatusCode.STATUS_CODE_MISSING_ATTRIBUTE);
+        status.setStatusMessage("missing <subject> & \"role\"");
+        StdMutableStatusDetail statusDetail = new StdMutableStatusDetail();
+        StdMutableMissingAttributeDetail mad = new StdMutableMissingAttributeDetail();
+        mad.setAttributeId(new IdentifierImpl("urn:test:role"));
+        mad.setCategory(XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT);
+        mad.setDataTypeId(XACML3.ID_DATATYPE_STRING);
+        mad.setIssuer("issuer1");
+        mad.addAttributeValue(new StdAttributeValue<String>(XACML3.ID_DATATYPE_STRING, "ab"));
+        statusDetail.addMissingAttributeDetail(mad);
+        status.setStatusDetail(statusDetail);
+        response.add(new StdMutableResult(status));
+
+        /*
+         * A Permit result with obligations, advice, attributes and policy identifiers
+         */
+        StdMutableResult result = new StdMutableResult(Decision.PERMIT,
+                                                       new StdMutableStatus(StdStatusCode.STATUS_CODE_OK));
+        StdMutableObligation obligation = new StdMutableObligation();
+        obligation.setId(new IdentifierImpl("urn:test:obligation"));
+        obligation.addAttributeAssignment(new StdMutableAttributeAssignment(
+                                                                            XACML3.ID_ATTRIBUTE_CATEGORY_RESOURCE,
+                                                                            new IdentifierImpl("urn:test:assignment"),
+                                                                            "issuer",
+                                                                            new StdAttributeValue<String>(
+                                                                                                          XACML3.ID_DATATYPE_STRING,
+                                                                                                          "x < y")));
+        result.addObligation(obligation);
+        StdMutableAdvice advice = new StdMutableAdvice(new IdentifierImpl("urn:test:advice"));
+        advice.addAttributeAssignment(new StdMutableAttributeAssignment(
+                                                                        null,
+                                                                        new IdentifierImpl("urn:test:count"),
+                                                                        null,
+                                                                        DataTypes.DT_INTEGER
+                                                                            .createAttributeValue(42)));
+        result.addAdvice(advice);
+        StdMutableAttributeCategory attributeCategory = new StdMutableAttributeCategory();
+        attributeCategory.setCategory(XACML3.ID_ATTRIBUTE_CATEGORY_RESOURCE);
+        attributeCategory.add(new StdMutableAttribute(XACML3.ID_ATTRIBUTE_CATEGORY_RESOURCE,
+                                                      XACML3.ID_RESOURCE_RESOURCE_ID,
+                                                      new StdAttributeValue<String>(XACML3.ID_DATATYPE_STRING,
+                                                                                    "doc&1"), null, true));
+        result.addAttributeCategory(attributeCategory);
+        result.addPolicyIdentifier(new StdIdReference(new IdentifierImpl("urn:test:policy"),
+                                                      StdVersion.newInstance("1.0")));
+        result.addPolicySetIdentifier(new StdIdReference(new IdentifierImpl("urn:test:policyset")));
+        response.add(result);
+
+        checkRoundTrip("full", response);
+
+        String xml = writeXML(response, false);
+        assertTrue(xml, xml.contains("missing &lt;subject&gt; &amp; \"role\""));
+    }
+
+    @Test(expected = DOMStructureException.class)
+    public void testDecisionStatusMismatch() throws Exception {
+        StdMutableResponse response = new StdMutableResponse();
+        response.add(new StdMutableResult(Decision.PERMIT,
+                                          new StdMutableStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR)));
+        writeXML(response, false);
+    }
+
+    @Test
+    public void testNoResults() throws Exception {
+        try {
+            writeJSON(new StdMutableResponse(), false);
+            fail("JSON writer accepted a Response with no Results");
+        } catch (Exception ex) {
+            assertTrue(ex.toString(), ex instanceof JSONStructureException);
+        }
+        try {
+            writeXML(new StdMutableResponse(), false);
+            fail("XML writer accepted a Response with no Results");
+        } catch (DOMStructureException ex) {
+            // expected
+            assertTrue(ex.getMessage().length() > 0);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.std;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.openaz.xacml.api.Request;
+import org.apache.openaz.xacml.api.RequestAttributes;
+import org.apache.openaz.xacml.std.StdIndividualDecisionRequestGenerator;
+import org.apache.openaz.xacml.std.StdStatusCode;
+import org.apache.openaz.xacml.std.json.JSONRequest;
+import org.junit.Test;
+
+/**
+ * Tests the lazy generation of individual decision requests from repeated attribute categories and multiple
+ * request references, including the limit on the number of individual decision requests.
+ */
+public class StdIndividualDecisionRequestGeneratorTest {
+
+    private static String category(String name, String prefix, int count) {
+        StringBuilder json = new StringBuilder("\"" + name + "\":[");
+        for (int i = 0; i < count; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"Id\":\"" + prefix + i
+                                                      + "\",\"Attribute\":[{\"AttributeId\":\"urn:test:"
+                                                      + prefix + "\",\"Value\":\"" + prefix + i + "\"}]}");
+        }
+        return json.append("]").toString();
+    }
+
+    private static Request repeatedCategoriesRequest() throws Exception {
+        return JSONRequest.load("{\"Request\":{" + category("AccessSubject", "subject", 4) + ","
+                                + category("Resource", "resource", 5) + "," + category("Action", "action", 3)
+                                + "}}");
+    }
+
+    private static Request multiRequest() throws Exception {
+        return JSONRequest.load("{\"Request\":{\"MultiRequests\":{\"RequestReference\":["
+                                + "{\"ReferenceId\":[\"subject0\",\"resource0\"]},"
+                                + "{\"ReferenceId\":[\"subject1\",\"resource1\"]},"
+                                + "{\"ReferenceId\":[\"subject0\",\"resource2\"]}]},"
+                                + category("AccessSubject", "subject", 2) + ","
+                                + category("Resource", "resource", 3) + "}}");
+    }
+
+    private static List<Request> generate(Request request, int maxIndividualDecisionRequests) {
+        List<Request> listRequests = new ArrayList<Request>();
+        Iterator<Request> iterRequests = new StdIndividualDecisionRequestGenerator(null, request,
+                                                                                   maxIndividualDecisionRequests)
+            .getIndividualDecisionRequests();
+        while (iterRequests.hasNext()) {
+            listRequests.add(iterRequests.next());
+        }
+        return listRequests;
+    }
+
+    private static void assertTooMany(Request request) {
+        assertNotNull(request.getStatus());
+        assertEquals(StdStatusCode.STATUS_CODE_PROCESSING_ERROR, request.getStatus().getStatusCode());
+    }
+
+    @Test
+    public void testRepeatedCategoriesShareRequestAttributes() throws Exception {
+        Request request = repeatedCategoriesRequest();
+        Map<RequestAttributes, Boolean> mapOriginal = new IdentityHashMap<RequestAttributes, Boolean>();
+        for (RequestAttributes requestAttributes : request.getRequestAttributes()) {
+            mapOriginal.put(requestAttributes, Boolean.TRUE);
+        }
+
+        List<Request> listRequests = generate(request, Integer.MAX_VALUE);
+        assertEquals(4 * 5 * 3, listRequests.size());
+        Set<String> setCombinations = new HashSet<String>();
+        for (Request requestIndividual : listRequests) {
+            assertTrue(requestIndividual.getStatus() == null || requestIndividual.getStatus().isOk());
+            assertEquals(3, requestIndividual.getRequestAttributes().size());
+            StringBuilder combination = new StringBuilder();
+            for (RequestAttributes requestAttributes : requestIndividual.getRequestAttributes()) {
+                assertTrue(mapOriginal.containsKey(requestAttributes));
+                combination.append(requestAttributes.getXmlId()).append(' ');
+            }
+            assertTrue(combination.toString(), setCombinations.add(combination.toString()));
+        }
+    }
+
+    @Test
+    public void testRepeatedCategoriesOverLimitFailsFast() throws Exception {
+        List<Request> listRequests = generate(repeatedCategoriesRequest(), 59);
+        assertEquals(1, listRequests.size());
+        assertTooMany(listRequests.get(0));
+
+        assertEquals(60, generate(repeatedCategoriesRequest(), 60).size());
+    }
+
+    @Test
+    public void testMultiRequestReferences() throws Exception {
+        Request request = multiRequest();
+        List<Request> listRequests = generate(request, Integer.MAX_VALUE);
+        assertEquals(3, listRequests.size());
+        String[][] expected = {
+            {
+                "subject0", "resource0"
+            }, {
+                "subject1", "resource1"
+            }, {
+                "subject0", "resource2"
+            }
+        };
+        for (int i = 0; i < expected.length; i++) {
+            Iterator<RequestAttributes> iterRequestAttributes = listRequests.get(i).getRequestAttributes()
+                .iterator();
+            for (String xmlId : expected[i]) {
+                assertSame(request.getRequestAttributesByXmlId(xmlId), iterRequestAttributes.next());
+            }
+            assertFalse(iterRequestAttributes.hasNext());
+        }
+    }
+
+    @Test
+    public void testMultiRequestReferencesOverLimit() throws Exception {
+        /*
+         * The references are counted before any of them are expanded, so no partial results are generated
+         */
+        List<Request> listRequests = generate(multiRequest(), 2);
+        assertEquals(1, listRequests.size());
+        assertTooMany(listRequests.get(0));
+
+        assertEquals(3, generate(multiRequest(), 3).size());
+    }
+
+    @Test
+    public void testRequestConstructor() throws Exception {
+        StdIndividualDecisionRequestGenerator requestGenerator = new StdIndividualDecisionRequestGenerator(
+            repeatedCategoriesRequest());
+        Iterator<Request> iterRequests = requestGenerator.getIndividualDecisionRequests();
+        int count = 0;
+        while (iterRequests.hasNext()) {
+            assertNull(iterRequests.next().getStatus());
+            count++;
+        }
+        assertEquals(4 * 5 * 3, count);
+        assertNull(requestGenerator.getLimitExceededStatus());
+    }
+}
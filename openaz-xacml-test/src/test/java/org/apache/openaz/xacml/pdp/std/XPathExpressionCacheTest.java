@@ -0,0 +1,208 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.std;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.apache.openaz.xacml.api.AttributeValue;
+import org.apache.openaz.xacml.api.Request;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.pdp.eval.EvaluationContext;
+import org.apache.openaz.xacml.pdp.policy.ExpressionResult;
+import org.apache.openaz.xacml.pdp.policy.expressions.AttributeSelector;
+import org.apache.openaz.xacml.std.IdentifierImpl;
+import org.apache.openaz.xacml.std.datatypes.NodeNamespaceContext;
+import org.apache.openaz.xacml.std.datatypes.XPathExpressionCache;
+import org.apache.openaz.xacml.std.dom.DOMRequest;
+import org.apache.openaz.xacml.std.dom.DOMUtil;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Tests that compiled XPath expressions are reused per thread only for matching namespace bindings, and that
+ * <code>AttributeSelector</code>s evaluate the same way against the normalized request content.
+ */
+public class XPathExpressionCacheTest {
+    private static final String REQUEST = "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\""
+                                          + " xmlns:md=\"urn:test:md\""
+                                          + " ReturnPolicyIdList=\"false\" CombinedDecision=\"false\">"
+                                          + "<Attributes Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\">"
+                                          + "<Content><md:record xmlns:md=\"urn:test:md\">"
+                                          + "<md:patient><md:name>Bart</md:name></md:patient>"
+                                          + "<md:patient><md:name>Lisa</md:name></md:patient>"
+                                          + "</md:record></Content>"
+                                          + "<Attribute AttributeId=\"urn:test:selector\" IncludeInResult=\"false\">"
+                                          + "<AttributeValue DataType=\"urn:oasis:names:tc:xacml:3.0:data-type:xpathExpression\""
+                                          + " XPathCategory=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\">"
+                                          + "md:patient[2]</AttributeValue></Attribute>"
+                                          + "</Attributes></Request>";
+
+    private static Document loadDocument(String xml) throws Exception {
+        return DOMUtil.loadDocument(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testCachedPerThreadAndNamespace() throws Exception {
+        Document document1 = loadDocument("<a xmlns:p=\"urn:test:one\"><p:b/><p:b/></a>");
+        Document document2 = loadDocument("<a xmlns:p=\"urn:test:two\" xmlns:q=\"urn:test:one\"><p:b/><q:b/></a>");
+
+        final XPathExpression xpathExpression1 = XPathExpressionCache
+            .getXPathExpression("/a/p:b", new NodeNamespaceContext(document1));
+        XPathExpression xpathExpression2 = XPathExpressionCache
+            .getXPathExpression("/a/p:b", new NodeNamespaceContext(document2));
+        assertNotSame(xpathExpression1, xpathExpression2);
+        assertSame(xpathExpression1,
+                   XPathExpressionCache.getXPathExpression("/a/p:b", new NodeNamespaceContext(document1)));
+        assertSame(xpathExpression2,
+                   XPathExpressionCache.getXPathExpression("/a/p:b", new NodeNamespaceContext(document2)));
+
+        /*
+         * Each expression keeps the namespace binding it was compiled with
+         */
+        assertEquals(2, ((NodeList)xpathExpression1.evaluate(document1, XPathConstants.NODESET)).getLength());
+        assertEquals(1, ((NodeList)xpathExpression2.evaluate(document2, XPathConstants.NODESET)).getLength());
+        assertEquals(1, ((NodeList)xpathExpression1.evaluate(document2, XPathConstants.NODESET)).getLength());
+
+        /*
+         * Another thread compiles its own copy
+         */
+        final AtomicReference<XPathExpression> xpathExpressionOther = new AtomicReference<XPathExpression>();
+        final Document document1Other = loadDocument("<a xmlns:p=\"urn:test:one\"/>");
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    xpathExpressionOther.set(XPathExpressionCache
+                        .getXPathExpression("/a/p:b", new NodeNamespaceContext(document1Other)));
+                } catch (XPathExpressionException ex) {
+                    fail(ex.toString());
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        assertTrue(xpathExpressionOther.get() != null);
+        assertNotSame(xpathExpression1, xpathExpressionOther.get());
+    }
+
+    @Test(expected = XPathExpressionException.class)
+    public void testInvalidPath() throws Exception {
+        XPathExpressionCache.getXPathExpression("/a/[", null);
+    }
+
+    private static List<Object> select(AttributeSelector attributeSelector, EvaluationContext context)
+        throws Exception {
+        ExpressionResult expressionResult = attributeSelector.evaluate(context, null);
+        assertTrue(expressionResult.isOk());
+        List<Object> values = new ArrayList<Object>();
+        Iterator<AttributeValue<?>> iterValues = expressionResult.getBag().getAttributeValues();
+        while (iterValues.hasNext()) {
+            values.add(iterValues.next().getValue());
+        }
+        return values;
+    }
+
+    @Test
+    public void testAttributeSelector() throws Exception {
+        Request request = DOMRequest.load(REQUEST);
+        StdEvaluationContext context = new StdEvaluationContext(request, null, null);
+
+        AttributeSelector attributeSelector = new AttributeSelector();
+        attributeSelector.setCategory(XACML3.ID_ATTRIBUTE_CATEGORY_RESOURCE);
+        attributeSelector.setDataTypeId(XACML3.ID_DATATYPE_STRING);
+        attributeSelector.setMustBePresent(false);
+        attributeSelector.setPath("md:patient/md:name/text()");
+        List<Object> values = select(attributeSelector, context);
+        assertEquals(2, values.size());
+        assertEquals("Bart", values.get(0));
+        assertEquals("Lisa", values.get(1));
+
+        /*
+         * With a context selector the selected node becomes the root for absolute paths
+         */
+        attributeSelector.setContextSelectorId(new IdentifierImpl("urn:test:selector"));
+        attributeSelector.setPath("/md:patient/md:name/text()");
+        for (int i = 0; i < 2; i++) {
+            values = select(attributeSelector, context);
+            assertEquals(1, values.size());
+            assertEquals("Lisa", values.get(0));
+        }
+
+        /*
+         * The content root is used as is, other nodes are copied once per request
+         */
+        Node nodeContentRoot = request.getRequestAttributes().iterator().next().getContentRoot();
+        assertSame(nodeContentRoot, context.getContentDocumentRoot(nodeContentRoot));
+        Node nodePatient = nodeContentRoot.getFirstChild();
+        Node nodePatientRoot = context.getContentDocumentRoot(nodePatient);
+        assertNotSame(nodePatient, nodePatientRoot);
+        assertSame(nodePatientRoot, nodePatientRoot.getOwnerDocument().getDocumentElement());
+        assertSame(nodePatientRoot, context.getContentDocumentRoot(nodePatient));
+
+        /*
+         * Contexts without a content root cache still see the selected node as the root
+         */
+        values = select(attributeSelector, withoutContentRootCache(context));
+        assertEquals(1, values.size());
+        assertEquals("Lisa", values.get(0));
+    }
+
+    /*
+     * Wraps the given context so that only the EvaluationContext interface is visible.
+     */
+    private static EvaluationContext withoutContentRootCache(final EvaluationContext evaluationContext) {
+        InvocationHandler invocationHandler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                try {
+                    return method.invoke(evaluationContext, args);
+                } catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            }
+        };
+        Class<?>[] interfaces = {
+            EvaluationContext.class
+        };
+        return (EvaluationContext)Proxy.newProxyInstance(EvaluationContext.class.getClassLoader(), interfaces,
+                                                         invocationHandler);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.std.annotations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.openaz.xacml.api.Attribute;
+import org.apache.openaz.xacml.api.AttributeValue;
+import org.apache.openaz.xacml.api.Request;
+import org.apache.openaz.xacml.api.RequestAttributes;
+import org.apache.openaz.xacml.api.RequestAttributesReference;
+import org.apache.openaz.xacml.api.RequestReference;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.std.IdentifierImpl;
+import org.apache.openaz.xacml.std.annotations.RequestParser;
+import org.apache.openaz.xacml.std.annotations.XACMLAction;
+import org.apache.openaz.xacml.std.annotations.XACMLAttribute;
+import org.apache.openaz.xacml.std.annotations.XACMLMultiRequest;
+import org.apache.openaz.xacml.std.annotations.XACMLRequest;
+import org.apache.openaz.xacml.std.annotations.XACMLRequestReference;
+import org.apache.openaz.xacml.std.annotations.XACMLResource;
+import org.apache.openaz.xacml.std.annotations.XACMLSubject;
+import org.apache.openaz.xacml.std.datatypes.ISO8601Time;
+import org.junit.Test;
+
+/**
+ * Tests that <code>RequestParser</code> builds the same request from the annotations of a class however
+ * many times instances of it are parsed.
+ */
+public class RequestParserTest {
+
+    @XACMLRequest(ReturnPolicyIdList = true)
+    public static class SimpleRequest {
+        @XACMLSubject(includeInResults = true, issuer = "com:foo:security")
+        String userId;
+
+        @XACMLSubject(attributeId = "urn:test:age")
+        long age = 42;
+
+        @XACMLSubject(attributeId = "urn:test:request-time", datatype = "http://www.w3.org/2001/XMLSchema#time")
+        String requestTime = "13:20:00-05:00";
+
+        @XACMLAction
+        String action;
+
+        @XACMLResource
+        URI resource = URI.create("file://repository/classes/x.java");
+
+        @XACMLResource(attributeId = "urn:test:tags")
+        List<String> tags = new ArrayList<String>();
+
+        @XACMLResource(attributeId = "urn:test:sizes")
+        int[] sizes = new int[] {
+            1, 2
+        };
+
+        @XACMLAttribute(category = "urn:test:category", attributeId = "urn:test:missing")
+        Object missing;
+
+        SimpleRequest(String userIdIn, String actionIn) {
+            this.userId = userIdIn;
+            this.action = actionIn;
+        }
+    }
+
+    @XACMLRequest(multiRequest = @XACMLMultiRequest(values = {
+        @XACMLRequestReference(values = {
+            "subject1", "action"
+        }), @XACMLRequestReference(values = {
+            "subject2", "action"
+        })
+    }))
+    public static class MultiRequest {
+        @XACMLSubject(id = "subject1")
+        String subject1 = "alice";
+
+        @XACMLSubject(id = "subject2")
+        String subject2 = "bob";
+
+        @XACMLAction(id = "action")
+        String action = "read";
+
+        @XACMLAction(attributeId = "urn:test:unreferenced")
+        String unreferenced = "write";
+    }
+
+    private static Attribute getAttribute(Request request, String category, String attributeId) {
+        for (RequestAttributes requestAttributes : request.getRequestAttributes()) {
+            if (requestAttributes.getCategory().stringValue().equals(category)) {
+                for (Attribute attribute : requestAttributes.getAttributes()) {
+                    if (attribute.getAttributeId().stringValue().equals(attributeId)) {
+                        return attribute;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static List<Object> getValues(Attribute attribute) {
+        List<Object> values = new ArrayList<Object>();
+        for (AttributeValue<?> attributeValue : attribute.getValues()) {
+            values.add(attributeValue.getValue());
+        }
+        return values;
+    }
+
+    private static void checkSimpleRequest(Request request, String userId, String action) {
+        assertTrue(request.getReturnPolicyIdList());
+        assertEquals(4, request.getRequestAttributes().size());
+
+        String subject = XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT.stringValue();
+        Attribute attribute = getAttribute(request, subject, XACML3.ID_SUBJECT_SUBJECT_ID.stringValue());
+        assertEquals(Arrays.<Object> asList(userId), getValues(attribute));
+        assertEquals("com:foo:security", attribute.getIssuer());
+        assertTrue(attribute.getIncludeInResults());
+
+        attribute = getAttribute(request, subject, "urn:test:age");
+        assertEquals(XACML3.ID_DATATYPE_INTEGER, attribute.getValues().iterator().next().getDataTypeId());
+        assertEquals("42", getValues(attribute).get(0).toString());
+        assertNull(attribute.getIssuer());
+
+        attribute = getAttribute(request, subject, "urn:test:request-time");
+        assertEquals(XACML3.ID_DATATYPE_TIME, attribute.getValues().iterator().next().getDataTypeId());
+        assertTrue(getValues(attribute).get(0) instanceof ISO8601Time);
+
+        attribute = getAttribute(request, XACML3.ID_ATTRIBUTE_CATEGORY_ACTION.stringValue(),
+                                 XACML3.ID_ACTION_ACTION_ID.stringValue());
+        assertEquals(Arrays.<Object> asList(action), getValues(attribute));
+
+        String resource = XACML3.ID_ATTRIBUTE_CATEGORY_RESOURCE.stringValue();
+        attribute = getAttribute(request, resource, XACML3.ID_RESOURCE_RESOURCE_ID.stringValue());
+        assertEquals(XACML3.ID_DATATYPE_ANYURI, attribute.getValues().iterator().next().getDataTypeId());
+
+        attribute = getAttribute(request, resource, "urn:test:sizes");
+        assertEquals("[1, 2]", getValues(attribute).toString());
+
+        attribute = getAttribute(request, "urn:test:category", "urn:test:missing");
+        assertTrue(attribute.getValues().isEmpty());
+    }
+
+    @Test
+    public void testSimpleRequest() throws Exception {
+        SimpleRequest simpleRequest = new SimpleRequest("alice", "read");
+        simpleRequest.tags.add("red");
+        simpleRequest.tags.add("green");
+        Request request = RequestParser.parseRequest(simpleRequest);
+        checkSimpleRequest(request, "alice", "read");
+        Attribute attribute = getAttribute(request, XACML3.ID_ATTRIBUTE_CATEGORY_RESOURCE.stringValue(),
+                                           "urn:test:tags");
+        assertEquals("[red, green]", getValues(attribute).toString());
+
+        /*
+         * A second instance of the class gets its own values
+         */
+        request = RequestParser.parseRequest(new SimpleRequest("bob", "write"));
+        checkSimpleRequest(request, "bob", "write");
+        attribute = getAttribute(request, XACML3.ID_ATTRIBUTE_CATEGORY_RESOURCE.stringValue(),
+                                 "urn:test:tags");
+        assertTrue(attribute.getValues().isEmpty());
+    }
+
+    @Test
+    public void testMultiRequest() throws Exception {
+        Request request = RequestParser.parseRequest(new MultiRequest());
+
+        /*
+         * Attributes of the same category are grouped by xml:id
+         */
+        List<String> groups = new ArrayList<String>();
+        for (RequestAttributes requestAttributes : request.getRequestAttributes()) {
+            groups.add(requestAttributes.getCategory().stringValue() + "#" + requestAttributes.getXmlId()
+                       + "=" + requestAttributes.getAttributes().size());
+        }
+        String subject = XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT.stringValue();
+        String action = XACML3.ID_ATTRIBUTE_CATEGORY_ACTION.stringValue();
+        assertEquals(Arrays.asList(subject + "#subject1=1", subject + "#subject2=1", action + "#action=1",
+                                   action + "#null=1"), groups);
+        assertEquals(new IdentifierImpl(subject), request.getRequestAttributesByXmlId("subject2")
+            .getCategory());
+
+        List<String> references = new ArrayList<String>();
+        for (RequestReference requestReference : request.getMultiRequests()) {
+            List<String> ids = new ArrayList<String>();
+            for (RequestAttributesReference reference : requestReference.getAttributesReferences()) {
+                ids.add(reference.getReferenceId());
+            }
+            references.add(ids.toString());
+        }
+        assertEquals("[[subject1, action], [subject2, action]]", references.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotAnnotated() throws Exception {
+        RequestParser.parseRequest("not a request");
+    }
+}
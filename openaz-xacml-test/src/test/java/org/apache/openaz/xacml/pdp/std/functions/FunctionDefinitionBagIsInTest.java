@@ -27,7 +27,9 @@ import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
+import org.apache.openaz.xacml.api.AttributeValue;
 import org.apache.openaz.xacml.api.XACML3;
 import org.apache.openaz.xacml.pdp.policy.Bag;
 import org.apache.openaz.xacml.pdp.policy.ExpressionResult;
@@ -215,4 +217,35 @@ public class FunctionDefinitionBagIsInTest {
     //
     //
 
+    @Test
+    public void testRandomizedLargeBags() throws Exception {
+        FunctionDefinitionBagIsIn<?> fd = (FunctionDefinitionBagIsIn<?>)StdFunctions.FD_INTEGER_IS_IN;
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            Bag bag = new Bag();
+            int size = random.nextInt(100);
+            for (int j = 0; j < size; j++) {
+                bag.add(DataTypes.DT_INTEGER.createAttributeValue(random.nextInt(200)));
+            }
+            /*
+             * Look up several values in the same bag so the hashed view is reused
+             */
+            for (int j = 0; j < 10; j++) {
+                AttributeValue<?> element = DataTypes.DT_INTEGER.createAttributeValue(random.nextInt(200));
+                arguments.clear();
+                arguments.add(new FunctionArgumentAttributeValue(element));
+                arguments.add(new FunctionArgumentBag(bag));
+                ExpressionResult res = fd.evaluate(null, arguments);
+                assertTrue(res.isOk());
+                assertEquals(bag.getAttributeValueList().contains(element), res.getValue().getValue());
+            }
+            /*
+             * A value added after the first lookup is found as well
+             */
+            AttributeValue<?> added = DataTypes.DT_INTEGER.createAttributeValue(1000 + i);
+            bag.add(added);
+            assertTrue(bag.contains(DataTypes.DT_INTEGER.createAttributeValue(1000 + i)));
+        }
+    }
+
 }
@@ -28,6 +28,7 @@ import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import org.apache.openaz.xacml.api.AttributeValue;
 import org.apache.openaz.xacml.api.XACML3;
@@ -36,6 +37,7 @@ import org.apache.openaz.xacml.pdp.policy.ExpressionResult;
 import org.apache.openaz.xacml.pdp.policy.FunctionArgument;
 import org.apache.openaz.xacml.pdp.policy.FunctionArgumentAttributeValue;
 import org.apache.openaz.xacml.pdp.policy.FunctionArgumentBag;
+import org.apache.openaz.xacml.pdp.policy.FunctionDefinition;
 import org.apache.openaz.xacml.pdp.std.StdFunctions;
 import org.apache.openaz.xacml.pdp.std.functions.FunctionDefinitionHigherOrderBag;
 import org.apache.openaz.xacml.std.datatypes.DataTypes;
@@ -2246,4 +2248,101 @@ public class FunctionDefinitionHigherOrderBagTest {
 
     }
 
+    //
+    // Randomized any-of-any and all-of-any tests against the pair-by-pair definition
+    //
+
+    /*
+     * Evaluates the predicate for every pair the way the spec describes any-of-any (allOfAny false) or
+     * all-of-any (allOfAny true), giving null where the function should return an error
+     */
+    private static Boolean evaluatePairs(FunctionDefinition predicate, Bag bag1, Bag bag2, boolean allOfAny) {
+        if (!allOfAny && (bag1.size() == 0 || bag2.size() == 0)) {
+            return null;
+        }
+        List<FunctionArgument> predicateArguments = new ArrayList<FunctionArgument>();
+        for (AttributeValue<?> outer : (allOfAny ? bag2 : bag1).getAttributeValueList()) {
+            boolean allMatch = true;
+            for (AttributeValue<?> inner : (allOfAny ? bag1 : bag2).getAttributeValueList()) {
+                predicateArguments.clear();
+                predicateArguments.add(new FunctionArgumentAttributeValue(allOfAny ? inner : outer));
+                predicateArguments.add(new FunctionArgumentAttributeValue(allOfAny ? outer : inner));
+                ExpressionResult res = predicate.evaluate(null, predicateArguments);
+                if (!res.isOk()) {
+                    return null;
+                }
+                boolean value = (Boolean)res.getValue().getValue();
+                if (!allOfAny && value) {
+                    return true;
+                }
+                if (allOfAny && !value) {
+                    allMatch = false;
+                    break;
+                }
+            }
+            if (allOfAny && allMatch) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Bag randomBag(Random random, boolean mixedTypes) {
+        Bag bag = new Bag();
+        int size = random.nextInt(20);
+        int distinct = 1 + random.nextInt(12);
+        try {
+            for (int i = 0; i < size; i++) {
+                if (mixedTypes && random.nextInt(8) == 0) {
+                    bag.add(DataTypes.DT_STRING.createAttributeValue("1"));
+                } else {
+                    bag.add(DataTypes.DT_INTEGER.createAttributeValue(random.nextInt(distinct)));
+                }
+            }
+        } catch (Exception e) {
+            fail("creating attributes e=" + e);
+        }
+        return bag;
+    }
+
+    @Test
+    public void testRandomizedAny_of_anyAndAll_of_any() throws Exception {
+        FunctionDefinitionHigherOrderBag<?, ?> fdAnyOfAny = (FunctionDefinitionHigherOrderBag<?, ?>)StdFunctions.FD_ANY_OF_ANY;
+        FunctionDefinitionHigherOrderBag<?, ?> fdAllOfAny = (FunctionDefinitionHigherOrderBag<?, ?>)StdFunctions.FD_ALL_OF_ANY;
+
+        /*
+         * integer-equal takes the hashed path, integer-greater-than calls the predicate for each pair
+         */
+        FunctionDefinition[] predicates = new FunctionDefinition[] {
+            StdFunctions.FD_INTEGER_EQUAL, StdFunctions.FD_INTEGER_GREATER_THAN
+        };
+        Random random = new Random(13);
+        for (int i = 0; i < 2000; i++) {
+            FunctionDefinition predicate = predicates[i % predicates.length];
+            boolean mixedTypes = random.nextInt(4) == 0;
+            Bag bag1 = randomBag(random, mixedTypes);
+            Bag bag2 = randomBag(random, mixedTypes);
+
+            arguments.clear();
+            arguments.add(new FunctionArgumentAttributeValue(DataTypes.DT_ANYURI.createAttributeValue(predicate
+                .getId())));
+            arguments.add(new FunctionArgumentBag(bag1));
+            arguments.add(new FunctionArgumentBag(bag2));
+
+            Boolean expected = evaluatePairs(predicate, bag1, bag2, false);
+            ExpressionResult res = fdAnyOfAny.evaluate(null, arguments);
+            assertEquals(expected != null, res.isOk());
+            if (expected != null) {
+                assertEquals(expected, res.getValue().getValue());
+            }
+
+            expected = evaluatePairs(predicate, bag1, bag2, true);
+            res = fdAllOfAny.evaluate(null, arguments);
+            assertEquals(expected != null, res.isOk());
+            if (expected != null) {
+                assertEquals(expected, res.getValue().getValue());
+            }
+        }
+    }
+
 }
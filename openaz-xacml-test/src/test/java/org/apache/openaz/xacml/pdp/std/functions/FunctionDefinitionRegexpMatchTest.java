@@ -22,6 +22,8 @@ package org.apache.openaz.xacml.pdp.std.functions;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -35,6 +37,7 @@ import org.apache.openaz.xacml.api.XACML3;
 import org.apache.openaz.xacml.pdp.policy.ExpressionResult;
 import org.apache.openaz.xacml.pdp.policy.FunctionArgument;
 import org.apache.openaz.xacml.pdp.policy.FunctionArgumentAttributeValue;
+import org.apache.openaz.xacml.pdp.policy.FunctionArgumentCompiler;
 import org.apache.openaz.xacml.pdp.std.StdFunctions;
 import org.apache.openaz.xacml.pdp.std.functions.FunctionDefinitionRegexpMatch;
 import org.apache.openaz.xacml.std.datatypes.DataTypes;
@@ -502,4 +505,53 @@ public class FunctionDefinitionRegexpMatchTest {
 
     }
 
+    @Test
+    public void testPrecompiledPattern() throws Exception {
+        FunctionDefinitionRegexpMatch<?> fd = (FunctionDefinitionRegexpMatch<?>)StdFunctions.FD_STRING_REGEXP_MATCH;
+        FunctionArgumentCompiler compiler = fd;
+
+        /*
+         * Only a literal string regular expression in the first position is compiled
+         */
+        FunctionArgument attrRegexp = compiler.compileArgument(0, DataTypes.DT_STRING
+            .createAttributeValue("/docs/[a-z]+\\.pdf"));
+        assertTrue(attrRegexp instanceof FunctionDefinitionRegexpMatch.FunctionArgumentPattern);
+        assertNull(compiler.compileArgument(1, DataTypes.DT_STRING.createAttributeValue("abc")));
+        assertNull(compiler.compileArgument(0, DataTypes.DT_INTEGER.createAttributeValue(1234)));
+        assertNull(compiler.compileArgument(0, DataTypes.DT_STRING.createAttributeValue("(abc")));
+
+        arguments.clear();
+        arguments.add(attrRegexp);
+        arguments.add(new FunctionArgumentAttributeValue(DataTypes.DT_STRING
+            .createAttributeValue("/docs/report.pdf")));
+        ExpressionResult res = fd.evaluate(null, arguments);
+        assertTrue(res.isOk());
+        assertEquals(true, res.getValue().getValue());
+
+        arguments.set(1, new FunctionArgumentAttributeValue(DataTypes.DT_STRING
+            .createAttributeValue("/docs/report.doc")));
+        res = fd.evaluate(null, arguments);
+        assertTrue(res.isOk());
+        assertEquals(false, res.getValue().getValue());
+
+        /*
+         * Other regular expressions share a cache
+         */
+        assertSame(FunctionDefinitionRegexpMatch.getPattern("a+b"), FunctionDefinitionRegexpMatch.getPattern("a+b"));
+    }
+
+    @Test
+    public void testInvalidPattern() throws Exception {
+        FunctionDefinitionRegexpMatch<?> fd = (FunctionDefinitionRegexpMatch<?>)StdFunctions.FD_STRING_REGEXP_MATCH;
+        arguments.clear();
+        arguments.add(new FunctionArgumentAttributeValue(DataTypes.DT_STRING.createAttributeValue("(abc")));
+        arguments.add(new FunctionArgumentAttributeValue(DataTypes.DT_STRING.createAttributeValue("abc")));
+        ExpressionResult res = fd.evaluate(null, arguments);
+        assertFalse(res.isOk());
+        assertTrue(res.getStatus().getStatusMessage()
+            .startsWith("function:string-regexp-match Invalid regular expression"));
+        assertEquals("urn:oasis:names:tc:xacml:1.0:status:processing-error", res.getStatus().getStatusCode()
+            .getStatusCodeValue().stringValue());
+    }
+
 }
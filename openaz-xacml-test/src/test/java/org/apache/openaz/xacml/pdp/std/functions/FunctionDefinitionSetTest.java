@@ -30,14 +30,17 @@ import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
 import org.apache.openaz.xacml.api.AttributeValue;
+import org.apache.openaz.xacml.api.DataType;
 import org.apache.openaz.xacml.api.XACML3;
 import org.apache.openaz.xacml.pdp.policy.Bag;
 import org.apache.openaz.xacml.pdp.policy.ExpressionResult;
 import org.apache.openaz.xacml.pdp.policy.FunctionArgument;
 import org.apache.openaz.xacml.pdp.policy.FunctionArgumentAttributeValue;
 import org.apache.openaz.xacml.pdp.policy.FunctionArgumentBag;
+import org.apache.openaz.xacml.pdp.policy.FunctionDefinition;
 import org.apache.openaz.xacml.pdp.std.StdFunctions;
 import org.apache.openaz.xacml.pdp.std.functions.FunctionDefinitionSet;
 import org.apache.openaz.xacml.std.datatypes.DataTypes;
@@ -1881,4 +1884,147 @@ public class FunctionDefinitionSetTest {
     //
     //
 
+    //
+    // Randomized comparison with the original List based implementation
+    //
+
+    /*
+     * Builds a bag of random values from a small range so the bags overlap and hold duplicates
+     */
+    private static Bag randomBag(Random random, DataType<?> dataType, String format, int range)
+        throws Exception {
+        Bag bag = new Bag();
+        int size = random.nextInt(40);
+        for (int i = 0; i < size; i++) {
+            bag.add(dataType.createAttributeValue(String.format(format, random.nextInt(range))));
+        }
+        return bag;
+    }
+
+    private static List<AttributeValue<?>> listIntersection(List<AttributeValue<?>> list1,
+                                                            List<AttributeValue<?>> list2) {
+        List<AttributeValue<?>> outList = new ArrayList<AttributeValue<?>>();
+        for (AttributeValue<?> element : list1) {
+            if (!outList.contains(element) && list2.contains(element)) {
+                outList.add(element);
+            }
+        }
+        return outList;
+    }
+
+    private static List<AttributeValue<?>> listUnion(List<AttributeValue<?>> list1,
+                                                     List<AttributeValue<?>> list2) {
+        List<AttributeValue<?>> outList = new ArrayList<AttributeValue<?>>();
+        for (AttributeValue<?> element : list1) {
+            if (!outList.contains(element)) {
+                outList.add(element);
+            }
+        }
+        for (AttributeValue<?> element : list2) {
+            if (!outList.contains(element)) {
+                outList.add(element);
+            }
+        }
+        return outList;
+    }
+
+    private static boolean listSubset(List<AttributeValue<?>> list1, List<AttributeValue<?>> list2) {
+        for (AttributeValue<?> element : list1) {
+            if (!list2.contains(element)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean listAtLeastOne(List<AttributeValue<?>> list1, List<AttributeValue<?>> list2) {
+        for (AttributeValue<?> element : list1) {
+            if (list2.contains(element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<AttributeValue<?>> evaluateBag(FunctionDefinition fd, Bag bag1, Bag bag2) {
+        arguments.clear();
+        arguments.add(new FunctionArgumentBag(bag1));
+        arguments.add(new FunctionArgumentBag(bag2));
+        ExpressionResult res = fd.evaluate(null, arguments);
+        assertTrue(res.isOk());
+        return res.getBag().getAttributeValueList();
+    }
+
+    private boolean evaluateBoolean(FunctionDefinition fd, Bag bag1, Bag bag2) {
+        arguments.clear();
+        arguments.add(new FunctionArgumentBag(bag1));
+        arguments.add(new FunctionArgumentBag(bag2));
+        ExpressionResult res = fd.evaluate(null, arguments);
+        assertTrue(res.isOk());
+        return (Boolean)res.getValue().getValue();
+    }
+
+    @Test
+    public void testRandomized() throws Exception {
+        Object[][] types = {
+            {
+                DataTypes.DT_STRING, "v%d", StdFunctions.FD_STRING_INTERSECTION, StdFunctions.FD_STRING_UNION,
+                StdFunctions.FD_STRING_SUBSET, StdFunctions.FD_STRING_SET_EQUALS,
+                StdFunctions.FD_STRING_AT_LEAST_ONE_MEMBER_OF
+            }, {
+                DataTypes.DT_INTEGER, "%d", StdFunctions.FD_INTEGER_INTERSECTION,
+                StdFunctions.FD_INTEGER_UNION, StdFunctions.FD_INTEGER_SUBSET,
+                StdFunctions.FD_INTEGER_SET_EQUALS, StdFunctions.FD_INTEGER_AT_LEAST_ONE_MEMBER_OF
+            }, {
+                DataTypes.DT_DOUBLE, "%d.5", StdFunctions.FD_DOUBLE_INTERSECTION,
+                StdFunctions.FD_DOUBLE_UNION, StdFunctions.FD_DOUBLE_SUBSET,
+                StdFunctions.FD_DOUBLE_SET_EQUALS, StdFunctions.FD_DOUBLE_AT_LEAST_ONE_MEMBER_OF
+            }, {
+                DataTypes.DT_HEXBINARY, "%04x", StdFunctions.FD_HEXBINARY_INTERSECTION,
+                StdFunctions.FD_HEXBINARY_UNION, StdFunctions.FD_HEXBINARY_SUBSET,
+                StdFunctions.FD_HEXBINARY_SET_EQUALS, StdFunctions.FD_HEXBINARY_AT_LEAST_ONE_MEMBER_OF
+            }, {
+                DataTypes.DT_DAYTIMEDURATION, "PT%dS", StdFunctions.FD_DAYTIMEDURATION_INTERSECTION,
+                StdFunctions.FD_DAYTIMEDURATION_UNION, StdFunctions.FD_DAYTIMEDURATION_SUBSET,
+                StdFunctions.FD_DAYTIMEDURATION_SET_EQUALS,
+                StdFunctions.FD_DAYTIMEDURATION_AT_LEAST_ONE_MEMBER_OF
+            }, {
+                DataTypes.DT_YEARMONTHDURATION, "P%dM", StdFunctions.FD_YEARMONTHDURATION_INTERSECTION,
+                StdFunctions.FD_YEARMONTHDURATION_UNION, StdFunctions.FD_YEARMONTHDURATION_SUBSET,
+                StdFunctions.FD_YEARMONTHDURATION_SET_EQUALS,
+                StdFunctions.FD_YEARMONTHDURATION_AT_LEAST_ONE_MEMBER_OF
+            }
+        };
+        Random random = new Random(42);
+        for (Object[] type : types) {
+            DataType<?> dataType = (DataType<?>)type[0];
+            String format = (String)type[1];
+            for (int i = 0; i < 200; i++) {
+                /*
+                 * Alternate between sparse and dense overlaps, and include subsets and equal sets
+                 */
+                int range = i % 2 == 0 ? 50 : 10;
+                Bag bag1 = randomBag(random, dataType, format, range);
+                Bag bag2 = randomBag(random, dataType, format, range);
+                if (i % 5 == 0) {
+                    for (AttributeValue<?> element : bag1.getAttributeValueList()) {
+                        bag2.add(dataType.createAttributeValue(element.getValue()));
+                    }
+                }
+                List<AttributeValue<?>> list1 = bag1.getAttributeValueList();
+                List<AttributeValue<?>> list2 = bag2.getAttributeValueList();
+
+                assertEquals(listIntersection(list1, list2),
+                             evaluateBag((FunctionDefinition)type[2], bag1, bag2));
+                assertEquals(listUnion(list1, list2), evaluateBag((FunctionDefinition)type[3], bag1, bag2));
+                assertEquals(listSubset(list1, list2),
+                             evaluateBoolean((FunctionDefinition)type[4], bag1, bag2));
+                assertEquals(listSubset(list1, list2) && listSubset(list2, list1),
+                             evaluateBoolean((FunctionDefinition)type[5], bag1, bag2));
+                assertEquals(listAtLeastOne(list1, list2),
+                             evaluateBoolean((FunctionDefinition)type[6], bag1, bag2));
+            }
+        }
+    }
+
 }
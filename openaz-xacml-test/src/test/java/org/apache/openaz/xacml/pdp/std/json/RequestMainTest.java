@@ -31,8 +31,11 @@
 package org.apache.openaz.xacml.pdp.std.json;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+
 import org.apache.openaz.xacml.api.Request;
 import org.apache.openaz.xacml.std.json.JSONRequest;
 import org.apache.openaz.xacml.std.json.JSONStructureException;
@@ -937,4 +940,40 @@ public class RequestMainTest {
         }
     }
 
+    // Streaming - the same Request whether read from a String or an InputStream, and in any member order
+    @Test
+    public void testInputStream() throws Exception {
+        request = JSONRequest.load(new ByteArrayInputStream(allFieldsRequest.getBytes("UTF-8")));
+        assertEquals(JSONRequest.load(allFieldsRequest).toString(), request.toString());
+
+        request = JSONRequest.load(new ByteArrayInputStream(exampleFromSpec.getBytes("UTF-8")));
+        assertEquals(JSONRequest.load(exampleFromSpec).toString(), request.toString());
+
+        String inOrder = "{\"Request\" : {\"CombinedDecision\" : true, "
+                         + "\"AccessSubject\" : {\"Attribute\" : {\"AttributeId\" : \"subject-id\", \"Value\" : \"Bart\"}}, "
+                         + "\"Resource\" : [{\"Attribute\" : [{\"Value\" : 1.5, \"Id\" : \"price\"}]}, {}]}}";
+        String outOfOrder = "{\"Request\" : {"
+                            + "\"Resource\" : [{\"Attribute\" : [{\"Id\" : \"price\", \"Value\" : 1.5}]}, {}], "
+                            + "\"AccessSubject\" : {\"Attribute\" : {\"Value\" : \"Bart\", \"AttributeId\" : \"subject-id\"}}, "
+                            + "\"CombinedDecision\" : true}}";
+        assertEquals(JSONRequest.load(inOrder).toString(), JSONRequest.load(outOfOrder).toString());
+
+        // a Request that is not an object
+        try {
+            request = JSONRequest.load(new ByteArrayInputStream("{\"Request\" : []}".getBytes("UTF-8")));
+            fail("Request array should throw exception");
+        } catch (JSONStructureException e) {
+            // correct response
+        }
+
+        // syntax errors report where they are found
+        try {
+            request = JSONRequest.load(new ByteArrayInputStream("{\"Request\" : {\n\"CombinedDecision\" : }}"
+                .getBytes("UTF-8")));
+            fail("Syntax error should throw exception");
+        } catch (JSONStructureException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("line 2 column"));
+        }
+    }
+
 }
@@ -0,0 +1,171 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.std.pip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.openaz.xacml.api.Attribute;
+import org.apache.openaz.xacml.api.AttributeValue;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.api.pip.PIPRequest;
+import org.apache.openaz.xacml.api.pip.PIPResponse;
+import org.apache.openaz.xacml.std.IdentifierImpl;
+import org.apache.openaz.xacml.std.json.JSONRequest;
+import org.apache.openaz.xacml.std.pip.StdPIPRequest;
+import org.apache.openaz.xacml.std.pip.engines.RequestEngine;
+import org.apache.openaz.xacml.std.pip.engines.csv.CSVEngine;
+import org.apache.openaz.xacml.std.pip.finders.RequestFinder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the column indexes and reloading of <code>CSVEngine</code>, both for files held in memory and for
+ * files over the maximum size that are read by record offset.
+ */
+public class CSVEngineTest {
+    private static final PIPRequest PIP_REQUEST_ROLE = new StdPIPRequest(
+                                                                         XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT,
+                                                                         new IdentifierImpl("urn:test:role"),
+                                                                         XACML3.ID_DATATYPE_STRING);
+
+    private static final String CSV = "name,level,role\n" + "alice,007,admin\r\n" + "alice,3,\"audit\ner\"\n"
+                                      + "bob,7,user\r" + "carol,x,guest\n";
+
+    private File csvFile;
+
+    @Before
+    public void setUp() throws Exception {
+        this.csvFile = File.createTempFile("csvenginetest", ".csv");
+        writeFile(this.csvFile, CSV);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.csvFile.delete();
+    }
+
+    private static void writeFile(File file, String content) throws Exception {
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(content.getBytes());
+        }
+    }
+
+    private CSVEngine newEngine(String maxSize) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("csv.source", this.csvFile.getAbsolutePath());
+        properties.setProperty("csv.maxsize", maxSize);
+        properties.setProperty("csv.delimiter", ",");
+        properties.setProperty("csv.quote", "\"");
+        properties.setProperty("csv.skip", "1");
+        properties.setProperty("csv.resolvers", "role");
+        String prefix = "csv.resolver.role.";
+        properties.setProperty(prefix + "classname",
+                               "org.apache.openaz.xacml.std.pip.engines.csv.ConfigurableCSVResolver");
+        properties.setProperty(prefix + "fields", "role");
+        properties.setProperty(prefix + "field.role.column", "2");
+        properties.setProperty(prefix + "field.role.id", "urn:test:role");
+        properties.setProperty(prefix + "field.role.datatype", XACML3.ID_DATATYPE_STRING.stringValue());
+        properties.setProperty(prefix + "field.role.category",
+                               XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT.stringValue());
+        properties.setProperty(prefix + "parameters", "name,level");
+        properties.setProperty(prefix + "parameter.name.column", "0");
+        properties.setProperty(prefix + "parameter.name.id", XACML3.ID_SUBJECT_SUBJECT_ID.stringValue());
+        properties.setProperty(prefix + "parameter.name.datatype", XACML3.ID_DATATYPE_STRING.stringValue());
+        properties.setProperty(prefix + "parameter.name.category",
+                               XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT.stringValue());
+        properties.setProperty(prefix + "parameter.level.column", "1");
+        properties.setProperty(prefix + "parameter.level.id", "urn:test:level");
+        properties.setProperty(prefix + "parameter.level.datatype", XACML3.ID_DATATYPE_INTEGER.stringValue());
+        properties.setProperty(prefix + "parameter.level.category",
+                               XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT.stringValue());
+        CSVEngine csvEngine = new CSVEngine();
+        csvEngine.configure("csv", properties);
+        return csvEngine;
+    }
+
+    private static List<String> getRoles(CSVEngine csvEngine, String subjectIds, String levels)
+        throws Exception {
+        RequestFinder requestFinder = new RequestFinder(
+                                                        null,
+                                                        new RequestEngine(
+                                                                          JSONRequest
+                                                                              .load("{\"Request\":{\"AccessSubject\":{\"Attribute\":["
+                                                                                    + "{\"AttributeId\":\""
+                                                                                    + XACML3.ID_SUBJECT_SUBJECT_ID
+                                                                                        .stringValue()
+                                                                                    + "\",\"Value\":["
+                                                                                    + subjectIds
+                                                                                    + "]},{\"AttributeId\":\"urn:test:level\","
+                                                                                    + "\"DataType\":\"integer\",\"Value\":["
+                                                                                    + levels + "]}]}}}")));
+        PIPResponse pipResponse = csvEngine.getAttributes(PIP_REQUEST_ROLE, requestFinder);
+        assertTrue(pipResponse.getStatus().isOk());
+        List<String> roles = new ArrayList<String>();
+        for (Attribute attribute : pipResponse.getAttributes()) {
+            Iterator<AttributeValue<?>> iterValues = attribute.getValues().iterator();
+            while (iterValues.hasNext()) {
+                roles.add(iterValues.next().getValue().toString());
+            }
+        }
+        return roles;
+    }
+
+    private void checkLookups(CSVEngine csvEngine) throws Exception {
+        /*
+         * The level column is compared as an integer, so 007 is 7, and carol's level never matches
+         */
+        assertEquals("[admin]", getRoles(csvEngine, "\"alice\"", "7").toString());
+        assertEquals("[admin, user]", getRoles(csvEngine, "\"alice\",\"bob\"", "7").toString());
+        assertEquals("[admin, audit\ner, user]", getRoles(csvEngine, "\"bob\",\"alice\"", "3,7").toString());
+        assertEquals("[]", getRoles(csvEngine, "\"carol\"", "7").toString());
+        assertEquals("[]", getRoles(csvEngine, "\"dave\"", "7").toString());
+        assertEquals("[]", getRoles(csvEngine, "\"name\"", "7").toString());
+
+        /*
+         * Replacing the file is picked up by the next lookup
+         */
+        long lastModified = this.csvFile.lastModified();
+        writeFile(this.csvFile, CSV + "dave,7,auditor\n");
+        this.csvFile.setLastModified(lastModified + 2000);
+        assertEquals("[auditor]", getRoles(csvEngine, "\"dave\"", "7").toString());
+        assertEquals("[admin, user]", getRoles(csvEngine, "\"alice\",\"bob\"", "7").toString());
+    }
+
+    @Test
+    public void testInMemory() throws Exception {
+        checkLookups(newEngine("100000"));
+    }
+
+    @Test
+    public void testBigFile() throws Exception {
+        checkLookups(newEngine("10"));
+    }
+}
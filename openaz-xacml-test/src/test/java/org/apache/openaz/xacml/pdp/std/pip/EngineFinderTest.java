@@ -0,0 +1,327 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.std.pip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.openaz.xacml.api.Identifier;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.api.pip.PIPEngine;
+import org.apache.openaz.xacml.api.pip.PIPException;
+import org.apache.openaz.xacml.api.pip.PIPFinder;
+import org.apache.openaz.xacml.api.pip.PIPRequest;
+import org.apache.openaz.xacml.api.pip.PIPResponse;
+import org.apache.openaz.xacml.std.IdentifierImpl;
+import org.apache.openaz.xacml.std.StdAttributeValue;
+import org.apache.openaz.xacml.std.StdMutableAttribute;
+import org.apache.openaz.xacml.std.StdStatus;
+import org.apache.openaz.xacml.std.StdStatusCode;
+import org.apache.openaz.xacml.std.pip.StdPIPRequest;
+import org.apache.openaz.xacml.std.pip.StdPIPResponse;
+import org.apache.openaz.xacml.std.pip.finders.ConfigurableEngineFinder;
+import org.apache.openaz.xacml.std.pip.finders.EngineCircuitBreaker;
+import org.apache.openaz.xacml.std.pip.finders.EngineFinder;
+import org.junit.Test;
+
+/**
+ * Tests that <code>EngineFinder</code> only calls the engines that provide the requested attribute, plus the
+ * engines that do not declare what they provide, and that it calls them concurrently with per-engine timeouts
+ * and circuit breakers when it is given an <code>ExecutorService</code>.
+ */
+public class EngineFinderTest {
+    private static final Identifier ID_ROLE = new IdentifierImpl("urn:test:role");
+    private static final Identifier ID_DEPARTMENT = new IdentifierImpl("urn:test:department");
+    private static final PIPRequest PIP_REQUEST_ROLE = new StdPIPRequest(
+                                                                         XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT,
+                                                                         ID_ROLE, XACML3.ID_DATATYPE_STRING);
+    private static final PIPRequest PIP_REQUEST_DEPARTMENT = new StdPIPRequest(
+                                                                               XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT,
+                                                                               ID_DEPARTMENT,
+                                                                               XACML3.ID_DATATYPE_STRING);
+
+    /*
+     * Answers any request with a single value and counts how often it is called
+     */
+    private static class CountingEngine implements PIPEngine {
+        private String name;
+        private List<PIPRequest> attributesProvided;
+        private AtomicInteger calls = new AtomicInteger();
+
+        CountingEngine(String nameIn, List<PIPRequest> attributesProvidedIn) {
+            this.name = nameIn;
+            this.attributesProvided = attributesProvidedIn;
+        }
+
+        @Override
+        public String getName() {
+            return this.name;
+        }
+
+        @Override
+        public String getDescription() {
+            return this.name;
+        }
+
+        @Override
+        public Collection<PIPRequest> attributesRequired() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Collection<PIPRequest> attributesProvided() {
+            return this.attributesProvided;
+        }
+
+        @Override
+        public PIPResponse getAttributes(PIPRequest pipRequest, PIPFinder pipFinder) throws PIPException {
+            this.calls.incrementAndGet();
+            return new StdPIPResponse(
+                                      new StdMutableAttribute(pipRequest.getCategory(),
+                                                              pipRequest.getAttributeId(),
+                                                              new StdAttributeValue<String>(
+                                                                                            XACML3.ID_DATATYPE_STRING,
+                                                                                            this.name)));
+        }
+    }
+
+    @Test
+    public void testRouteByAttribute() throws Exception {
+        CountingEngine engineRole = new CountingEngine("role", Collections.singletonList(PIP_REQUEST_ROLE));
+        CountingEngine engineDepartment = new CountingEngine("department",
+                                                             Collections.singletonList(PIP_REQUEST_DEPARTMENT));
+        CountingEngine engineIntegerRole = new CountingEngine(
+                                                              "integerRole",
+                                                              Collections
+                                                                  .<PIPRequest> singletonList(new StdPIPRequest(
+                                                                                                                XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT,
+                                                                                                                ID_ROLE,
+                                                                                                                XACML3.ID_DATATYPE_INTEGER)));
+        CountingEngine engineUndeclared = new CountingEngine("undeclared",
+                                                             Collections.<PIPRequest> emptyList());
+        EngineFinder engineFinder = new EngineFinder();
+        engineFinder.register(engineRole);
+        engineFinder.register(engineDepartment);
+        engineFinder.register(engineIntegerRole);
+        engineFinder.register(engineUndeclared);
+
+        PIPResponse pipResponse = engineFinder.getAttributes(PIP_REQUEST_ROLE, null);
+        assertEquals(2, pipResponse.getAttributes().size());
+        assertEquals(1, engineRole.calls.get());
+        assertEquals(0, engineDepartment.calls.get());
+        assertEquals(0, engineIntegerRole.calls.get());
+        assertEquals(1, engineUndeclared.calls.get());
+        assertEquals(2, engineFinder.getEngineCalls());
+        assertEquals(2, engineFinder.getSkippedEngineCalls());
+
+        /*
+         * A request without a data type goes to every engine that provides the attribute id
+         */
+        engineFinder.getAttributes(new StdPIPRequest(XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT, ID_ROLE, null),
+                                   null);
+        assertEquals(2, engineRole.calls.get());
+        assertEquals(1, engineIntegerRole.calls.get());
+        assertEquals(0, engineDepartment.calls.get());
+
+        /*
+         * Excluded engines are neither called nor counted as skipped
+         */
+        engineFinder.getAttributes(PIP_REQUEST_DEPARTMENT, engineUndeclared);
+        assertEquals(1, engineDepartment.calls.get());
+        assertEquals(2, engineUndeclared.calls.get());
+        assertEquals(6, engineFinder.getEngineCalls());
+        assertEquals(5, engineFinder.getSkippedEngineCalls());
+
+        engineFinder.setRouteByAttribute(false);
+        pipResponse = engineFinder.getAttributes(PIP_REQUEST_ROLE, null);
+        assertEquals(4, pipResponse.getAttributes().size());
+        assertEquals(5, engineFinder.getSkippedEngineCalls());
+    }
+
+    /*
+     * Waits for the given latch before answering, and gives up with an empty response after waitMillis
+     */
+    private static class WaitingEngine extends CountingEngine {
+        private CountDownLatch latch;
+        private long waitMillis;
+        private AtomicInteger entered = new AtomicInteger();
+
+        WaitingEngine(String nameIn, CountDownLatch latchIn, long waitMillisIn) {
+            super(nameIn, Collections.<PIPRequest> emptyList());
+            this.latch = latchIn;
+            this.waitMillis = waitMillisIn;
+        }
+
+        @Override
+        public PIPResponse getAttributes(PIPRequest pipRequest, PIPFinder pipFinder) throws PIPException {
+            this.entered.incrementAndGet();
+            try {
+                if (!this.latch.await(this.waitMillis, TimeUnit.MILLISECONDS)) {
+                    return StdPIPResponse.PIP_RESPONSE_EMPTY;
+                }
+            } catch (InterruptedException ex) {
+                throw new PIPException("interrupted");
+            }
+            return super.getAttributes(pipRequest, pipFinder);
+        }
+    }
+
+    @Test
+    public void testConcurrentFanOut() throws Exception {
+        /*
+         * The first engine waits for the second one to be called, which only happens in time if they are
+         * called concurrently
+         */
+        final CountDownLatch latch = new CountDownLatch(1);
+        WaitingEngine engineWaiting = new WaitingEngine("a-waiting", latch, 5000);
+        CountingEngine engineReleasing = new CountingEngine("b-releasing", Collections.<PIPRequest> emptyList()) {
+            @Override
+            public PIPResponse getAttributes(PIPRequest pipRequest, PIPFinder pipFinder) throws PIPException {
+                latch.countDown();
+                return super.getAttributes(pipRequest, pipFinder);
+            }
+        };
+        EngineFinder engineFinder = new EngineFinder();
+        engineFinder.register(engineWaiting);
+        engineFinder.register(engineReleasing);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            engineFinder.setExecutorService(executorService, 10000);
+            PIPResponse pipResponse = engineFinder.getAttributes(PIP_REQUEST_ROLE, null);
+            assertEquals(2, pipResponse.getAttributes().size());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTimeoutAndCircuitBreaker() throws Exception {
+        WaitingEngine engineStuck = new WaitingEngine("stuck", new CountDownLatch(1), 60000);
+        CountingEngine engineFast = new CountingEngine("fast", Collections.singletonList(PIP_REQUEST_ROLE));
+        EngineFinder engineFinder = new EngineFinder();
+        engineFinder.register(engineStuck);
+        engineFinder.register(engineFast);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            engineFinder.setExecutorService(executorService, 60000);
+            engineFinder.setEngineTimeout(engineStuck, 100);
+            engineFinder.setCircuitBreaker(2, 60000);
+
+            /*
+             * The stuck engine times out, but the fast engine still answers
+             */
+            long start = System.currentTimeMillis();
+            PIPResponse pipResponse = engineFinder.getAttributes(PIP_REQUEST_ROLE, null);
+            assertTrue(System.currentTimeMillis() - start < 30000);
+            assertEquals(1, pipResponse.getAttributes().size());
+
+            /*
+             * On its own, the stuck engine gives a processing error
+             */
+            pipResponse = engineFinder.getAttributes(PIP_REQUEST_DEPARTMENT, null);
+            assertEquals(StdStatusCode.STATUS_CODE_PROCESSING_ERROR, pipResponse.getStatus().getStatusCode());
+            assertEquals(2, engineStuck.entered.get());
+
+            /*
+             * After two timeouts in a row the circuit is open and the engine is not called any more
+             */
+            EngineCircuitBreaker circuitBreaker = engineFinder.getCircuitBreaker(engineStuck);
+            assertTrue(circuitBreaker.isOpen());
+            assertFalse(engineFinder.getCircuitBreaker(engineFast).isOpen());
+            pipResponse = engineFinder.getAttributes(PIP_REQUEST_DEPARTMENT, null);
+            assertEquals(StdStatusCode.STATUS_CODE_PROCESSING_ERROR, pipResponse.getStatus().getStatusCode());
+            assertEquals(2, engineStuck.entered.get());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCircuitBreakerOnErrorStatus() throws Exception {
+        CountingEngine engineError = new CountingEngine("error", Collections.<PIPRequest> emptyList()) {
+            @Override
+            public PIPResponse getAttributes(PIPRequest pipRequest, PIPFinder pipFinder) throws PIPException {
+                super.getAttributes(pipRequest, pipFinder);
+                return new StdPIPResponse(new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR, "down"));
+            }
+        };
+        CountingEngine engineFast = new CountingEngine("fast", Collections.singletonList(PIP_REQUEST_ROLE));
+        EngineFinder engineFinder = new EngineFinder();
+        engineFinder.register(engineError);
+        engineFinder.register(engineFast);
+        engineFinder.setCircuitBreaker(2, 60000);
+
+        /*
+         * Engines called on the calling thread go through the circuit breaker too, and an error status counts
+         * as a failure
+         */
+        assertEquals(1, engineFinder.getAttributes(PIP_REQUEST_ROLE, null).getAttributes().size());
+        PIPResponse pipResponse = engineFinder.getAttributes(PIP_REQUEST_DEPARTMENT, null);
+        assertEquals(StdStatusCode.STATUS_CODE_PROCESSING_ERROR, pipResponse.getStatus().getStatusCode());
+        assertEquals(2, engineError.calls.get());
+        assertTrue(engineFinder.getCircuitBreaker(engineError).isOpen());
+        assertEquals(0, engineFinder.getCircuitBreaker(engineFast).getConsecutiveFailures());
+
+        pipResponse = engineFinder.getAttributes(PIP_REQUEST_DEPARTMENT, null);
+        assertEquals(StdStatusCode.STATUS_CODE_PROCESSING_ERROR, pipResponse.getStatus().getStatusCode());
+        assertEquals(2, engineError.calls.get());
+        assertEquals(1, engineFinder.getAttributes(PIP_REQUEST_ROLE, null).getAttributes().size());
+        assertEquals(2, engineFast.calls.get());
+    }
+
+    @Test
+    public void testConfigurableFinderClose() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("xacml.pip.fanOut.threads", "2");
+        ConfigurableEngineFinder engineFinder = new ConfigurableEngineFinder();
+        engineFinder.configure(properties);
+        engineFinder.register(new CountingEngine("a", Collections.<PIPRequest> emptyList()));
+        engineFinder.register(new CountingEngine("b", Collections.<PIPRequest> emptyList()));
+
+        /*
+         * Idle fan-out threads exit on their own, and closing the finder shuts them down
+         */
+        ExecutorService executorService = engineFinder.getExecutorService();
+        assertTrue(((ThreadPoolExecutor)executorService).allowsCoreThreadTimeOut());
+        assertEquals(2, engineFinder.getAttributes(PIP_REQUEST_ROLE, null).getAttributes().size());
+        engineFinder.close();
+        assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+
+        /*
+         * Engines are still called after the finder is closed, on the calling thread
+         */
+        assertEquals(2, engineFinder.getAttributes(PIP_REQUEST_ROLE, null).getAttributes().size());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.std.pip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.openaz.xacml.api.Attribute;
+import org.apache.openaz.xacml.api.AttributeValue;
+import org.apache.openaz.xacml.api.Identifier;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.api.pip.PIPEngine;
+import org.apache.openaz.xacml.api.pip.PIPException;
+import org.apache.openaz.xacml.api.pip.PIPFinder;
+import org.apache.openaz.xacml.api.pip.PIPRequest;
+import org.apache.openaz.xacml.api.pip.PIPResponse;
+import org.apache.openaz.xacml.std.IdentifierImpl;
+import org.apache.openaz.xacml.std.StdAttributeValue;
+import org.apache.openaz.xacml.std.StdMutableAttribute;
+import org.apache.openaz.xacml.std.json.JSONRequest;
+import org.apache.openaz.xacml.std.pip.StdPIPRequest;
+import org.apache.openaz.xacml.std.pip.StdPIPResponse;
+import org.apache.openaz.xacml.std.pip.engines.RequestEngine;
+import org.apache.openaz.xacml.std.pip.engines.StdConfigurableEngine;
+import org.apache.openaz.xacml.std.pip.finders.ConfigurableEngineFinder;
+import org.apache.openaz.xacml.std.pip.finders.EngineResponseCache;
+import org.apache.openaz.xacml.std.pip.finders.RequestFinder;
+import org.junit.Test;
+
+/**
+ * Tests that a configured {@link EngineResponseCache} shares engine responses across requests for the same
+ * values of the engine's required attributes, and only for those.
+ */
+public class EngineResponseCacheTest {
+    private static final Identifier ID_ROLE = new IdentifierImpl("urn:test:role");
+    private static final PIPRequest PIP_REQUEST_SUBJECT = new StdPIPRequest(
+                                                                            XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT,
+                                                                            XACML3.ID_SUBJECT_SUBJECT_ID,
+                                                                            XACML3.ID_DATATYPE_STRING);
+    private static final PIPRequest PIP_REQUEST_ROLE = new StdPIPRequest(
+                                                                         XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT,
+                                                                         ID_ROLE, XACML3.ID_DATATYPE_STRING);
+
+    /**
+     * Looks up a role derived from the subject-id and counts how often it is called.
+     */
+    public static class RoleEngine extends StdConfigurableEngine {
+        private AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public PIPResponse getAttributes(PIPRequest pipRequest, PIPFinder pipFinder) throws PIPException {
+            if (!PIP_REQUEST_ROLE.equals(pipRequest)) {
+                return StdPIPResponse.PIP_RESPONSE_EMPTY;
+            }
+            this.calls.incrementAndGet();
+            PIPResponse pipResponseSubject = pipFinder.getMatchingAttributes(PIP_REQUEST_SUBJECT, this);
+            for (Attribute attribute : pipResponseSubject.getAttributes()) {
+                for (AttributeValue<?> attributeValue : attribute.getValues()) {
+                    return new StdPIPResponse(
+                                              new StdMutableAttribute(
+                                                                      XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT,
+                                                                      ID_ROLE,
+                                                                      new StdAttributeValue<String>(
+                                                                                                    XACML3.ID_DATATYPE_STRING,
+                                                                                                    "role-"
+                                                                                                        + attributeValue
+                                                                                                            .getValue())));
+                }
+            }
+            return StdPIPResponse.PIP_RESPONSE_EMPTY;
+        }
+
+        @Override
+        public Collection<PIPRequest> attributesRequired() {
+            return Collections.singletonList(PIP_REQUEST_SUBJECT);
+        }
+
+        @Override
+        public Collection<PIPRequest> attributesProvided() {
+            return Collections.singletonList(PIP_REQUEST_ROLE);
+        }
+    }
+
+    private static ConfigurableEngineFinder newFinder(String ttl) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("xacml.pip.engines", "roles");
+        properties.setProperty("roles.classname", RoleEngine.class.getName());
+        if (ttl != null) {
+            properties.setProperty("roles.responseCache.ttl", ttl);
+        }
+        ConfigurableEngineFinder engineFinder = new ConfigurableEngineFinder();
+        engineFinder.configure(properties);
+        return engineFinder;
+    }
+
+    private static String getRole(PIPFinder pipFinder, String subjectId) throws Exception {
+        RequestFinder requestFinder = new RequestFinder(
+                                                        pipFinder,
+                                                        new RequestEngine(
+                                                                          JSONRequest
+                                                                              .load("{\"Request\":{\"AccessSubject\":{\"Attribute\":[{\"AttributeId\":\""
+                                                                                    + XACML3.ID_SUBJECT_SUBJECT_ID
+                                                                                        .stringValue()
+                                                                                    + "\",\"Value\":\""
+                                                                                    + subjectId + "\"}]}}}")));
+        PIPResponse pipResponse = requestFinder.getMatchingAttributes(PIP_REQUEST_ROLE, null);
+        return pipResponse.getAttributes().iterator().next().getValues().iterator().next().getValue()
+            .toString();
+    }
+
+    @Test
+    public void testResponsesSharedAcrossRequests() throws Exception {
+        ConfigurableEngineFinder engineFinder = newFinder("60000");
+        PIPEngine pipEngine = engineFinder.getPIPEngines().iterator().next();
+        RoleEngine roleEngine = (RoleEngine)pipEngine;
+        EngineResponseCache responseCache = engineFinder.getResponseCache(pipEngine);
+        assertNotNull(responseCache);
+
+        assertEquals("role-alice", getRole(engineFinder, "alice"));
+        assertEquals("role-alice", getRole(engineFinder, "alice"));
+        assertEquals("role-bob", getRole(engineFinder, "bob"));
+        assertEquals("role-alice", getRole(engineFinder, "alice"));
+        assertEquals("role-bob", getRole(engineFinder, "bob"));
+
+        assertEquals(2, roleEngine.calls.get());
+        assertEquals(3, responseCache.getHitCount());
+        assertEquals(2, responseCache.getMissCount());
+
+        responseCache.invalidateAll();
+        assertEquals("role-alice", getRole(engineFinder, "alice"));
+        assertEquals(3, roleEngine.calls.get());
+    }
+
+    @Test
+    public void testNoCacheUnlessConfigured() throws Exception {
+        ConfigurableEngineFinder engineFinder = newFinder(null);
+        PIPEngine pipEngine = engineFinder.getPIPEngines().iterator().next();
+        assertNull(engineFinder.getResponseCache(pipEngine));
+
+        assertEquals("role-alice", getRole(engineFinder, "alice"));
+        assertEquals("role-alice", getRole(engineFinder, "alice"));
+        assertEquals(2, ((RoleEngine)pipEngine).calls.get());
+    }
+}
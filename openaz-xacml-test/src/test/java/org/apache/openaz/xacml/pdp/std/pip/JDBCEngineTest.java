@@ -0,0 +1,222 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.std.pip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.api.pip.PIPRequest;
+import org.apache.openaz.xacml.api.pip.PIPResponse;
+import org.apache.openaz.xacml.std.IdentifierImpl;
+import org.apache.openaz.xacml.std.json.JSONRequest;
+import org.apache.openaz.xacml.std.pip.StdPIPRequest;
+import org.apache.openaz.xacml.std.pip.engines.RequestEngine;
+import org.apache.openaz.xacml.std.pip.engines.jdbc.JDBCConnectionPool;
+import org.apache.openaz.xacml.std.pip.engines.jdbc.JDBCEngine;
+import org.apache.openaz.xacml.std.pip.finders.ConfigurableEngineFinder;
+import org.apache.openaz.xacml.std.pip.finders.RequestFinder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the connection pool, prepared statement reuse and result cache of <code>JDBCEngine</code> against an
+ * in-memory H2 database.
+ */
+public class JDBCEngineTest {
+    private static final String JDBC_URL = "jdbc:h2:mem:jdbcenginetest;DB_CLOSE_DELAY=-1";
+    private static final PIPRequest PIP_REQUEST_ROLE = new StdPIPRequest(
+                                                                         XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT,
+                                                                         new IdentifierImpl("urn:test:role"),
+                                                                         XACML3.ID_DATATYPE_STRING);
+
+    private Connection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.h2.Driver");
+        this.connection = DriverManager.getConnection(JDBC_URL, "sa", "");
+        Statement statement = this.connection.createStatement();
+        statement.execute("CREATE TABLE roles (name VARCHAR(32), role VARCHAR(32))");
+        statement.execute("INSERT INTO roles VALUES ('alice', 'admin'), ('bob', 'user')");
+        statement.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Statement statement = this.connection.createStatement();
+        statement.execute("DROP TABLE roles");
+        statement.close();
+        this.connection.close();
+    }
+
+    private static Properties newProperties(String poolSize, String cacheSpec) {
+        Properties properties = new Properties();
+        properties.setProperty("sql.jdbc.driver", "org.h2.Driver");
+        properties.setProperty("sql.jdbc.url", JDBC_URL);
+        properties.setProperty("sql.jdbc.conn.user", "sa");
+        properties.setProperty("sql.jdbc.conn.password", "");
+        if (poolSize != null) {
+            properties.setProperty("sql.jdbc.pool.size", poolSize);
+        }
+        if (cacheSpec != null) {
+            properties.setProperty("sql.cacheSpec", cacheSpec);
+        }
+        properties.setProperty("sql.resolvers", "role");
+        properties.setProperty("sql.resolver.role.classname",
+                               "org.apache.openaz.xacml.std.pip.engines.jdbc.ConfigurableJDBCResolver");
+        properties.setProperty("sql.resolver.role.select", "SELECT role FROM roles WHERE name=?");
+        properties.setProperty("sql.resolver.role.fields", "role");
+        properties.setProperty("sql.resolver.role.field.role.id", "urn:test:role");
+        properties.setProperty("sql.resolver.role.field.role.datatype", XACML3.ID_DATATYPE_STRING.stringValue());
+        properties.setProperty("sql.resolver.role.field.role.category",
+                               XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT.stringValue());
+        properties.setProperty("sql.resolver.role.parameters", "name");
+        properties.setProperty("sql.resolver.role.parameter.name.id",
+                               XACML3.ID_SUBJECT_SUBJECT_ID.stringValue());
+        properties.setProperty("sql.resolver.role.parameter.name.datatype",
+                               XACML3.ID_DATATYPE_STRING.stringValue());
+        properties.setProperty("sql.resolver.role.parameter.name.category",
+                               XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT.stringValue());
+        return properties;
+    }
+
+    private static JDBCEngine newEngine(String poolSize, String cacheSpec) throws Exception {
+        JDBCEngine jdbcEngine = new JDBCEngine();
+        jdbcEngine.configure("sql", newProperties(poolSize, cacheSpec));
+        return jdbcEngine;
+    }
+
+    private static String getRole(JDBCEngine jdbcEngine, String subjectId) throws Exception {
+        RequestFinder requestFinder = new RequestFinder(
+                                                        null,
+                                                        new RequestEngine(
+                                                                          JSONRequest
+                                                                              .load("{\"Request\":{\"AccessSubject\":{\"Attribute\":[{\"AttributeId\":\""
+                                                                                    + XACML3.ID_SUBJECT_SUBJECT_ID
+                                                                                        .stringValue()
+                                                                                    + "\",\"Value\":\""
+                                                                                    + subjectId + "\"}]}}}")));
+        PIPResponse pipResponse = jdbcEngine.getAttributes(PIP_REQUEST_ROLE, requestFinder);
+        if (pipResponse.getAttributes().size() == 0) {
+            return null;
+        }
+        return pipResponse.getAttributes().iterator().next().getValues().iterator().next().getValue()
+            .toString();
+    }
+
+    @Test
+    public void testPooledConnections() throws Exception {
+        JDBCEngine jdbcEngine = newEngine("2", null);
+        JDBCConnectionPool connectionPool = jdbcEngine.getConnectionPool();
+        assertNotNull(connectionPool);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("admin", getRole(jdbcEngine, "alice"));
+            assertEquals("user", getRole(jdbcEngine, "bob"));
+        }
+        assertNull(getRole(jdbcEngine, "carol"));
+
+        /*
+         * Sequential lookups share one connection and one prepared statement
+         */
+        assertEquals(1, connectionPool.getConnectionsCreated());
+        assertEquals(1, connectionPool.getStatementsPrepared());
+        assertEquals(1, connectionPool.getIdleCount());
+
+        /*
+         * A connection returned to the pool can no longer be used through the old handle
+         */
+        Connection connectionPooled = connectionPool.getConnection();
+        connectionPooled.close();
+        assertTrue(connectionPooled.isClosed());
+        connectionPool.close();
+        assertEquals(0, connectionPool.getIdleCount());
+    }
+
+    @Test
+    public void testFinderClosesPool() throws Exception {
+        Properties properties = newProperties("2", null);
+        properties.setProperty("xacml.pip.engines", "sql");
+        properties.setProperty("sql.classname", JDBCEngine.class.getName());
+        ConfigurableEngineFinder configurableEngineFinder = new ConfigurableEngineFinder();
+        configurableEngineFinder.configure(properties);
+        assertEquals(1, configurableEngineFinder.getPIPEngines().size());
+        JDBCEngine jdbcEngine = (JDBCEngine)configurableEngineFinder.getPIPEngines().iterator().next();
+        assertEquals("admin", getRole(jdbcEngine, "alice"));
+        JDBCConnectionPool connectionPool = jdbcEngine.getConnectionPool();
+        assertEquals(1, connectionPool.getIdleCount());
+
+        /*
+         * Retiring the finder closes the idle connections, and a connection still in use when it is returned
+         */
+        Connection connectionInUse = connectionPool.getConnection();
+        configurableEngineFinder.close();
+        assertEquals(0, connectionPool.getIdleCount());
+        connectionInUse.close();
+        assertEquals(0, connectionPool.getIdleCount());
+        try {
+            connectionPool.getConnection();
+            fail("Connection taken from a closed pool");
+        } catch (SQLException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNoPoolUnlessConfigured() throws Exception {
+        JDBCEngine jdbcEngine = newEngine(null, null);
+        assertNull(jdbcEngine.getConnectionPool());
+        assertEquals("admin", getRole(jdbcEngine, "alice"));
+    }
+
+    @Test
+    public void testCachedResults() throws Exception {
+        JDBCEngine jdbcEngine = newEngine("2", "maximumSize=100");
+        assertEquals("admin", getRole(jdbcEngine, "alice"));
+        assertNull(getRole(jdbcEngine, "carol"));
+
+        /*
+         * Repeated lookups, including ones that found nothing, are answered from the cache
+         */
+        Statement statement = this.connection.createStatement();
+        statement.execute("UPDATE roles SET role='guest' WHERE name='alice'");
+        statement.execute("INSERT INTO roles VALUES ('carol', 'user')");
+        statement.close();
+        assertEquals("admin", getRole(jdbcEngine, "alice"));
+        assertNull(getRole(jdbcEngine, "carol"));
+        assertEquals("user", getRole(jdbcEngine, "bob"));
+
+        jdbcEngine.getCache().invalidateAll();
+        assertEquals("guest", getRole(jdbcEngine, "alice"));
+        assertEquals("user", getRole(jdbcEngine, "carol"));
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.std.pip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.spi.InitialContextFactory;
+
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.api.pip.PIPRequest;
+import org.apache.openaz.xacml.api.pip.PIPResponse;
+import org.apache.openaz.xacml.std.IdentifierImpl;
+import org.apache.openaz.xacml.std.json.JSONRequest;
+import org.apache.openaz.xacml.std.pip.StdPIPRequest;
+import org.apache.openaz.xacml.std.pip.engines.RequestEngine;
+import org.apache.openaz.xacml.std.pip.engines.ldap.LDAPContextPool;
+import org.apache.openaz.xacml.std.pip.engines.ldap.LDAPEngine;
+import org.apache.openaz.xacml.std.pip.finders.RequestFinder;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the context pool, batched searches and result cache of <code>LDAPEngine</code> against an in-memory
+ * directory plugged in through the JNDI initial context factory.
+ */
+public class LDAPEngineTest {
+    private static final PIPRequest PIP_REQUEST_ROLE = new StdPIPRequest(
+                                                                         XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT,
+                                                                         new IdentifierImpl("urn:test:role"),
+                                                                         XACML3.ID_DATATYPE_STRING);
+
+    private static final String[][] PEOPLE = {
+        {
+            "alice", "admin"
+        }, {
+            "bob", "user"
+        }, {
+            "Carol", "auditor"
+        }, {
+            "dave", "user"
+        }, {
+            "frank", "guest"
+        }
+    };
+
+    /*
+     * What the in-memory directory has been asked to do
+     */
+    private static final AtomicInteger contextsCreated = new AtomicInteger();
+    private static final AtomicInteger contextsClosed = new AtomicInteger();
+    private static final List<String> filters = Collections.synchronizedList(new ArrayList<String>());
+    private static final List<String> returningAttributes = Collections
+        .synchronizedList(new ArrayList<String>());
+    private static final AtomicBoolean healthy = new AtomicBoolean(true);
+
+    /**
+     * Creates <code>DirContext</code>s over a handful of in-memory entries. Searches understand equality
+     * filters and OR filters of them, which is all the engine sends, and match values without regard to case
+     * or spaces.
+     */
+    public static class InMemoryContextFactory implements InitialContextFactory {
+        @Override
+        public Context getInitialContext(Hashtable<?, ?> environment) {
+            contextsCreated.incrementAndGet();
+            return (Context)Proxy.newProxyInstance(LDAPEngineTest.class.getClassLoader(), new Class<?>[] {
+                DirContext.class
+            }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+                    if ("search".equals(method.getName()) && args.length == 3 && args[1] instanceof String) {
+                        if (!healthy.get()) {
+                            throw new CommunicationException("connection reset");
+                        }
+                        filters.add((String)args[1]);
+                        returningAttributes.add(Arrays.toString(((SearchControls)args[2])
+                            .getReturningAttributes()));
+                        return search((String)args[1]);
+                    } else if ("getAttributes".equals(method.getName())) {
+                        if (!healthy.get()) {
+                            throw new CommunicationException("connection reset");
+                        }
+                        return new BasicAttributes(true);
+                    } else if ("close".equals(method.getName())) {
+                        contextsClosed.incrementAndGet();
+                        return null;
+                    }
+                    throw new OperationNotSupportedException(method.getName());
+                }
+            });
+        }
+    }
+
+    private static boolean matches(String filter, Attributes attributes) throws Exception {
+        if (filter.startsWith("(|")) {
+            int depth = 0;
+            int start = 0;
+            for (int i = 2; i < filter.length() - 1; i++) {
+                if (filter.charAt(i) == '(') {
+                    if (depth++ == 0) {
+                        start = i;
+                    }
+                } else if (filter.charAt(i) == ')' && --depth == 0
+                           && matches(filter.substring(start, i + 1), attributes)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String item = filter.startsWith("(") ? filter.substring(1, filter.length() - 1) : filter;
+        int equals = item.indexOf('=');
+        javax.naming.directory.Attribute attribute = attributes.get(item.substring(0, equals));
+        return attribute != null
+               && ((String)attribute.get()).replace(" ", "")
+                   .equalsIgnoreCase(item.substring(equals + 1).replace(" ", ""));
+    }
+
+    private static NamingEnumeration<SearchResult> search(String filter) throws Exception {
+        final List<SearchResult> results = new ArrayList<SearchResult>();
+        for (String[] person : PEOPLE) {
+            Attributes attributes = new BasicAttributes(true);
+            attributes.put("uid", person[0]);
+            attributes.put("role", person[1]);
+            if (matches(filter, attributes)) {
+                SearchResult searchResult = new SearchResult("uid=" + person[0], null, attributes);
+                searchResult.setNameInNamespace("uid=" + person[0] + ",ou=people,o=test");
+                results.add(searchResult);
+            }
+        }
+        final Iterator<SearchResult> iterResults = results.iterator();
+        return new NamingEnumeration<SearchResult>() {
+            @Override
+            public boolean hasMoreElements() {
+                return iterResults.hasNext();
+            }
+
+            @Override
+            public SearchResult nextElement() {
+                return iterResults.next();
+            }
+
+            @Override
+            public boolean hasMore() {
+                return iterResults.hasNext();
+            }
+
+            @Override
+            public SearchResult next() {
+                return iterResults.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Before
+    public void setUp() {
+        contextsCreated.set(0);
+        contextsClosed.set(0);
+        filters.clear();
+        returningAttributes.clear();
+        healthy.set(true);
+    }
+
+    private static LDAPEngine newEngine(Properties properties) throws Exception {
+        properties.setProperty("ldap." + Context.INITIAL_CONTEXT_FACTORY, InMemoryContextFactory.class.getName());
+        properties.setProperty("ldap." + Context.PROVIDER_URL, "ldap://localhost:10389/o=test");
+        properties.setProperty("ldap.resolvers", "role");
+        String prefix = "ldap.resolver.role.";
+        properties.setProperty(prefix + "classname",
+                               "org.apache.openaz.xacml.std.pip.engines.ldap.ConfigurableLDAPResolver");
+        properties.setProperty(prefix + "base", "ou=people");
+        properties.setProperty(prefix + "base.parameters", "");
+        properties.setProperty(prefix + "filter", "(uid=${uid})");
+        properties.setProperty(prefix + "filter.parameters", "uid");
+        properties.setProperty(prefix + "filter.parameters.uid.id", XACML3.ID_SUBJECT_SUBJECT_ID.stringValue());
+        properties.setProperty(prefix + "filter.parameters.uid.datatype", XACML3.ID_DATATYPE_STRING.stringValue());
+        properties.setProperty(prefix + "filter.parameters.uid.category",
+                               XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT.stringValue());
+        properties.setProperty(prefix + "filter.view", "role");
+        properties.setProperty(prefix + "filter.view.role.id", "urn:test:role");
+        properties.setProperty(prefix + "filter.view.role.datatype", XACML3.ID_DATATYPE_STRING.stringValue());
+        properties.setProperty(prefix + "filter.view.role.category",
+                               XACML3.ID_SUBJECT_CATEGORY_ACCESS_SUBJECT.stringValue());
+        LDAPEngine ldapEngine = new LDAPEngine();
+        ldapEngine.configure("ldap", properties);
+        return ldapEngine;
+    }
+
+    private static String getRole(LDAPEngine ldapEngine, String subjectId) throws Exception {
+        RequestFinder requestFinder = new RequestFinder(
+                                                        null,
+                                                        new RequestEngine(
+                                                                          JSONRequest
+                                                                              .load("{\"Request\":{\"AccessSubject\":{\"Attribute\":[{\"AttributeId\":\""
+                                                                                    + XACML3.ID_SUBJECT_SUBJECT_ID
+                                                                                        .stringValue()
+                                                                                    + "\",\"Value\":\""
+                                                                                    + subjectId + "\"}]}}}")));
+        PIPResponse pipResponse = ldapEngine.getAttributes(PIP_REQUEST_ROLE, requestFinder);
+        if (pipResponse.getAttributes().size() == 0) {
+            return null;
+        }
+        return pipResponse.getAttributes().iterator().next().getValues().iterator().next().getValue()
+            .toString();
+    }
+
+    @Test
+    public void testNoPoolUnlessConfigured() throws Exception {
+        LDAPEngine ldapEngine = newEngine(new Properties());
+        assertNull(ldapEngine.getContextPool());
+        assertEquals("admin", getRole(ldapEngine, "alice"));
+        assertEquals("user", getRole(ldapEngine, "bob"));
+        assertEquals(2, contextsCreated.get());
+        assertEquals(2, contextsClosed.get());
+    }
+
+    @Test
+    public void testPooledContexts() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("ldap.pool.size", "2");
+        LDAPEngine ldapEngine = newEngine(properties);
+        LDAPContextPool contextPool = ldapEngine.getContextPool();
+        assertNotNull(contextPool);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("admin", getRole(ldapEngine, "alice"));
+            assertEquals("user", getRole(ldapEngine, "bob"));
+        }
+        assertNull(getRole(ldapEngine, "eve"));
+        assertEquals(1, contextsCreated.get());
+        assertEquals(0, contextsClosed.get());
+        assertEquals(1, contextPool.getIdleCount());
+
+        /*
+         * A context that fails a search is closed rather than pooled
+         */
+        healthy.set(false);
+        assertNull(getRole(ldapEngine, "alice"));
+        assertEquals(1, contextsClosed.get());
+        assertEquals(0, contextPool.getIdleCount());
+        healthy.set(true);
+        assertEquals("admin", getRole(ldapEngine, "alice"));
+        assertEquals(2, contextsCreated.get());
+
+        contextPool.close();
+        assertEquals(2, contextsClosed.get());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("ldap.pool.size", "2");
+        LDAPEngine ldapEngine = newEngine(properties);
+        LDAPContextPool contextPool = ldapEngine.getContextPool();
+        DirContext dirContext = contextPool.getContext();
+        assertEquals("admin", getRole(ldapEngine, "alice"));
+        assertEquals(2, contextsCreated.get());
+        assertEquals(1, contextPool.getIdleCount());
+
+        /*
+         * Closing the engine closes the idle context now and the one in use when it is returned
+         */
+        ldapEngine.close();
+        assertEquals(1, contextsClosed.get());
+        contextPool.release(dirContext, false);
+        assertEquals(2, contextsClosed.get());
+        assertEquals(0, contextPool.getIdleCount());
+    }
+
+    @Test
+    public void testHealthCheck() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("ldap.pool.size", "2");
+        properties.setProperty("ldap.pool.validationInterval", "0");
+        LDAPEngine ldapEngine = newEngine(properties);
+        assertEquals("admin", getRole(ldapEngine, "alice"));
+        assertEquals("admin", getRole(ldapEngine, "alice"));
+        assertEquals(1, contextsCreated.get());
+
+        /*
+         * The idle context fails its check and is replaced by a new one
+         */
+        healthy.set(false);
+        LDAPContextPool contextPool = ldapEngine.getContextPool();
+        DirContext dirContext = contextPool.getContext();
+        assertEquals(2, contextsCreated.get());
+        assertEquals(1, contextsClosed.get());
+        contextPool.release(dirContext, false);
+        healthy.set(true);
+        assertEquals("admin", getRole(ldapEngine, "alice"));
+        assertEquals(2, contextsCreated.get());
+    }
+
+    @Test
+    public void testCachedResults() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("ldap.pool.size", "1");
+        properties.setProperty("ldap.cacheSpec", "maximumSize=100");
+        LDAPEngine ldapEngine = newEngine(properties);
+        assertEquals("admin", getRole(ldapEngine, "alice"));
+        assertNull(getRole(ldapEngine, "eve"));
+        assertEquals("admin", getRole(ldapEngine, "alice"));
+        assertNull(getRole(ldapEngine, "eve"));
+        assertEquals(2, filters.size());
+    }
+
+    @Test
+    public void testBatchedSearches() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("ldap.pool.size", "4");
+        properties.setProperty("ldap.batch.size", "5");
+        properties.setProperty("ldap.batch.window", "2000");
+        final LDAPEngine ldapEngine = newEngine(properties);
+
+        /*
+         * Five concurrent lookups fill one batch, so they share one search
+         */
+        final String[] subjects = {
+            "alice", "bob", "carol", "dave", "eve"
+        };
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(subjects.length);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (final String subject : subjects) {
+                futures.add(executorService.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        start.await();
+                        return getRole(ldapEngine, subject);
+                    }
+                }));
+            }
+            start.countDown();
+            assertEquals("admin", futures.get(0).get());
+            assertEquals("user", futures.get(1).get());
+            assertEquals("auditor", futures.get(2).get());
+            assertEquals("user", futures.get(3).get());
+            assertNull(futures.get(4).get());
+        } finally {
+            executorService.shutdown();
+        }
+        assertEquals(filters.toString(), 7, filters.get(0).split("\\(").length);
+        assertEquals("[*, uid]", returningAttributes.get(0));
+        assertEquals(1, contextsCreated.get());
+
+        /*
+         * No entry holds the missing value, which the directory confirms on its own rather than the combined
+         * search being trusted to say so
+         */
+        assertEquals(filters.toString(), 2, filters.size());
+        assertEquals("(uid=eve)", filters.get(1));
+        assertEquals("null", returningAttributes.get(1));
+
+        /*
+         * A lookup on its own is searched for on its own once the window closes
+         */
+        properties.setProperty("ldap.batch.window", "10");
+        LDAPEngine ldapEngineShortWindow = newEngine(properties);
+        assertEquals("user", getRole(ldapEngineShortWindow, "bob"));
+        assertEquals("(uid=bob)", filters.get(2));
+    }
+
+    @Test
+    public void testBatchedSearchesFallBack() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("ldap.batch.size", "2");
+        properties.setProperty("ldap.batch.window", "2000");
+        final LDAPEngine ldapEngine = newEngine(properties);
+
+        /*
+         * The directory ignores spaces, so the combined search returns an entry that holds neither value as
+         * far as the batcher can tell, and both lookups are searched for on their own
+         */
+        final String[] subjects = {
+            "fr ank", "bob"
+        };
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(subjects.length);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (final String subject : subjects) {
+                futures.add(executorService.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        start.await();
+                        return getRole(ldapEngine, subject);
+                    }
+                }));
+            }
+            start.countDown();
+            assertEquals("guest", futures.get(0).get());
+            assertEquals("user", futures.get(1).get());
+        } finally {
+            executorService.shutdown();
+        }
+        assertEquals(filters.toString(), 3, filters.size());
+        assertEquals(filters.toString(), 4, filters.get(0).split("\\(").length);
+        assertTrue(filters.toString(), filters.contains("(uid=fr ank)"));
+        assertTrue(filters.toString(), filters.contains("(uid=bob)"));
+    }
+}
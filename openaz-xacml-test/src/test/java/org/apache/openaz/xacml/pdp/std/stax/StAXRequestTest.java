@@ -0,0 +1,194 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.pdp.std.stax;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.openaz.xacml.api.AttributeValue;
+import org.apache.openaz.xacml.api.Request;
+import org.apache.openaz.xacml.api.RequestAttributes;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.pdp.policy.ExpressionResult;
+import org.apache.openaz.xacml.pdp.policy.expressions.AttributeSelector;
+import org.apache.openaz.xacml.pdp.std.StdEvaluationContext;
+import org.apache.openaz.xacml.std.IdentifierImpl;
+import org.apache.openaz.xacml.std.dom.DOMProperties;
+import org.apache.openaz.xacml.std.dom.DOMRequest;
+import org.apache.openaz.xacml.std.dom.DOMStructureException;
+import org.apache.openaz.xacml.std.stax.StAXRequest;
+import org.junit.Test;
+import org.w3c.dom.Node;
+
+/**
+ * Tests that <code>StAXRequest</code> loads the same Requests as <code>DOMRequest</code>, including the
+ * <code>Content</code> used by <code>AttributeSelector</code>s.
+ */
+public class StAXRequestTest {
+    private static final String CONFORMANCE_DIRECTORY_PATH = "src/test/resources/testsets/conformance/xacml3.0-ct-v.0.4";
+
+    private static final String REQUEST = "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\""
+                                          + " xmlns:md=\"urn:test:md\""
+                                          + " ReturnPolicyIdList=\"false\" CombinedDecision=\"false\">"
+                                          + "<Attributes Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\">"
+                                          + "<Content>\n<!-- records -->\n<md:record xmlns:md=\"urn:test:md\" md:kind=\"x\">"
+                                          + "<md:patient><md:name>Bart</md:name></md:patient>"
+                                          + "<md:patient><md:name><![CDATA[Li]]>sa</md:name></md:patient>"
+                                          + "<note>default &amp; namespace</note>"
+                                          + "</md:record></Content>"
+                                          + "<Attribute AttributeId=\"urn:test:selector\" IncludeInResult=\"false\">"
+                                          + "<AttributeValue DataType=\"urn:oasis:names:tc:xacml:3.0:data-type:xpathExpression\""
+                                          + " XPathCategory=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\">"
+                                          + "md:patient[2]</AttributeValue></Attribute>"
+                                          + "<Attribute AttributeId=\"urn:test:count\" IncludeInResult=\"true\" Issuer=\"me\">"
+                                          + "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#integer\">4<!-- two -->2</AttributeValue>"
+                                          + "</Attribute>"
+                                          + "</Attributes></Request>";
+
+    private static List<File> getRequestsInDirectory(File directory) {
+        List<File> fileList = new ArrayList<File>();
+        for (File f : directory.listFiles()) {
+            if (f.isDirectory()) {
+                fileList.addAll(getRequestsInDirectory(f));
+            } else if (f.getName().endsWith("Request.xml")) {
+                fileList.add(f);
+            }
+        }
+        return fileList;
+    }
+
+    private static void checkSameRequest(String name, Request domRequest, Request stAXRequest) {
+        assertEquals(name, domRequest, stAXRequest);
+
+        /*
+         * Request.equals ignores comments, whitespace and namespace declarations in Content, so check that
+         * the Content is the same node for node too
+         */
+        Iterator<RequestAttributes> iterStAX = stAXRequest.getRequestAttributes().iterator();
+        for (RequestAttributes requestAttributes : domRequest.getRequestAttributes()) {
+            Node nodeContentRoot = requestAttributes.getContentRoot();
+            Node nodeContentRootStAX = iterStAX.next().getContentRoot();
+            if (nodeContentRoot == null) {
+                assertTrue(name, nodeContentRootStAX == null);
+            } else {
+                assertTrue(name, nodeContentRoot.isEqualNode(nodeContentRootStAX));
+                assertTrue(name, nodeContentRootStAX == nodeContentRootStAX.getOwnerDocument()
+                    .getDocumentElement());
+            }
+        }
+    }
+
+    private static int checkConformanceRequests() {
+        int count = 0;
+        for (File f : getRequestsInDirectory(new File(CONFORMANCE_DIRECTORY_PATH))) {
+            Request domRequest;
+            try {
+                domRequest = DOMRequest.load(f);
+            } catch (DOMStructureException ex) {
+                try {
+                    StAXRequest.load(f);
+                    fail(f.getName() + " loaded with StAXRequest but not with DOMRequest: " + ex.getMessage());
+                } catch (DOMStructureException exStAX) {
+                    // expected
+                    assertTrue(exStAX.getMessage().length() > 0);
+                }
+                continue;
+            }
+            try {
+                checkSameRequest(f.getName(), domRequest, StAXRequest.load(f));
+            } catch (DOMStructureException ex) {
+                fail(f.getName() + " loaded with DOMRequest but not with StAXRequest: " + ex.getMessage());
+            }
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testConformanceRequests() throws Exception {
+        assertTrue(checkConformanceRequests() > 0);
+    }
+
+    @Test
+    public void testConformanceRequestsLenient() throws Exception {
+        DOMProperties.setLenient(true);
+        try {
+            assertTrue(checkConformanceRequests() > 0);
+        } finally {
+            DOMProperties.setLenient(false);
+        }
+    }
+
+    @Test
+    public void testContent() throws Exception {
+        Request stAXRequest = StAXRequest.load(REQUEST);
+        checkSameRequest("content", DOMRequest.load(REQUEST), stAXRequest);
+
+        StdEvaluationContext context = new StdEvaluationContext(stAXRequest, null, null);
+        AttributeSelector attributeSelector = new AttributeSelector();
+        attributeSelector.setCategory(XACML3.ID_ATTRIBUTE_CATEGORY_RESOURCE);
+        attributeSelector.setDataTypeId(XACML3.ID_DATATYPE_STRING);
+        attributeSelector.setMustBePresent(false);
+        attributeSelector.setContextSelectorId(new IdentifierImpl("urn:test:selector"));
+        attributeSelector.setPath("/md:patient/md:name");
+        ExpressionResult expressionResult = attributeSelector.evaluate(context, null);
+        assertTrue(expressionResult.isOk());
+        List<Object> values = new ArrayList<Object>();
+        Iterator<AttributeValue<?>> iterValues = expressionResult.getBag().getAttributeValues();
+        while (iterValues.hasNext()) {
+            values.add(iterValues.next().getValue());
+        }
+        assertEquals(1, values.size());
+        assertEquals("Lisa", values.get(0));
+    }
+
+    private static void checkError(String xml, String expected) {
+        try {
+            StAXRequest.load(xml);
+            fail("Loaded invalid Request " + xml);
+        } catch (DOMStructureException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains(expected));
+        }
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        String xmlns = " xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\"";
+        checkError("<Response" + xmlns + "/>", "Unexpected element");
+        checkError("<Request" + xmlns + " ReturnPolicyIdList=\"false\" CombinedDecision=\"false\"/>",
+                   "Missing element");
+        checkError("<Request" + xmlns + " ReturnPolicyIdList=\"maybe\" CombinedDecision=\"false\"/>",
+                   "Illegal Boolean value");
+        checkError("<Request" + xmlns + " ReturnPolicyIdList=\"false\" CombinedDecision=\"false\">\n"
+                   + "<Attributes Category=\"urn:test\"><Other/></Attributes></Request>", "line 2");
+        checkError("<Request" + xmlns + " ReturnPolicyIdList=\"false\" CombinedDecision=\"false\">"
+                   + "<Attributes Category=\"urn:test\"><Attribute AttributeId=\"urn:test:a\" IncludeInResult=\"false\">"
+                   + "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#integer\">x</AttributeValue>"
+                   + "</Attribute></Attributes></Request>", "Unable to convert");
+        checkError("<Request" + xmlns + ">", "Exception loading Request");
+    }
+}
@@ -33,6 +33,8 @@ package org.apache.openaz.xacml.std;
 
 import java.net.URI;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.openaz.xacml.api.Identifier;
 import org.apache.openaz.xacml.util.ObjUtil;
@@ -40,9 +42,25 @@ import org.apache.openaz.xacml.util.ObjUtil;
 /**
  * IdentifierImpl provides a common implementation of the {@link org.apache.openaz.xacml.api.Identifier}
  * interface with a stored, fixed <code>URI</code>.
+ * <p>
+ * The constants in {@link org.apache.openaz.xacml.api.XACML}, {@link org.apache.openaz.xacml.api.XACML1},
+ * {@link org.apache.openaz.xacml.api.XACML2} and {@link org.apache.openaz.xacml.api.XACML3} are created with
+ * {@link #intern(String)}, policy loaders get their identifiers with {@link #valueOf(String)}, and request
+ * parsers get theirs with {@link #lookup(String)}, so that the identifiers a policy and a request share are
+ * usually the same object and compare without looking at the <code>URI</code>. Only constants and policies
+ * add to the table of canonical identifiers; ids that appear only in requests never do.
  */
 public class IdentifierImpl implements Identifier {
-    private URI uri;
+    /*
+     * Bounds the number of identifiers valueOf adds on its own, so that a large policy set cannot grow the
+     * table without limit
+     */
+    private static final int MAX_INTERNED = 16384;
+    private static final ConcurrentMap<String, Identifier> mapIdentifiers =
+        new ConcurrentHashMap<String, Identifier>();
+
+    private final URI uri;
+    private final int hashCode;
 
     /**
      * Creates a new <code>IdentifierImpl</code> with the given <code>URI</code> id.
@@ -54,6 +72,7 @@ public class IdentifierImpl implements Identifier {
             throw new IllegalArgumentException("Null URI");
         }
         this.uri = uriIn;
+        this.hashCode = uriIn.hashCode();
     }
 
     /**
@@ -69,6 +88,73 @@ public class IdentifierImpl implements Identifier {
         this(URI.create(identifierBase.stringValue() + ":" + id));
     }
 
+    /**
+     * Gets the canonical <code>Identifier</code> for the given <code>String</code> id, creating it if there is
+     * none yet. This is meant for constants; use {@link #valueOf(String)} for ids that come from policies and
+     * {@link #lookup(String)} for ids that come from requests.
+     *
+     * @param idIn the <code>String</code> for the identifier
+     * @return the canonical <code>Identifier</code> for <code>idIn</code>
+     * @throws IllegalArgumentException if <code>idIn</code> is not a valid <code>URI</code>
+     */
+    public static Identifier intern(String idIn) {
+        Identifier identifier = mapIdentifiers.get(idIn);
+        if (identifier == null) {
+            identifier = new IdentifierImpl(idIn);
+            Identifier identifierExisting = mapIdentifiers.putIfAbsent(idIn, identifier);
+            if (identifierExisting != null) {
+                identifier = identifierExisting;
+            }
+        }
+        return identifier;
+    }
+
+    /**
+     * Gets the canonical <code>Identifier</code> for the given id within the given base
+     * <code>Identifier</code>, creating it if there is none yet.
+     *
+     * @param identifierBase the base <code>Identifier</code>
+     * @param id the <code>String</code> id within <code>identifierBase</code>
+     * @return the canonical <code>Identifier</code> for <code>identifierBase:id</code>
+     */
+    public static Identifier intern(Identifier identifierBase, String id) {
+        return intern(identifierBase.stringValue() + ":" + id);
+    }
+
+    /**
+     * Gets an <code>Identifier</code> for the given <code>String</code> id. This is the canonical one if there
+     * is one, otherwise a new <code>IdentifierImpl</code> that becomes canonical while the table of canonical
+     * identifiers has room. This is meant for ids that come from policies.
+     *
+     * @param idIn the <code>String</code> for the identifier
+     * @return an <code>Identifier</code> for <code>idIn</code>
+     * @throws IllegalArgumentException if <code>idIn</code> is not a valid <code>URI</code>
+     */
+    public static Identifier valueOf(String idIn) {
+        Identifier identifier = mapIdentifiers.get(idIn);
+        if (identifier != null) {
+            return identifier;
+        } else if (mapIdentifiers.size() >= MAX_INTERNED) {
+            return new IdentifierImpl(idIn);
+        } else {
+            return intern(idIn);
+        }
+    }
+
+    /**
+     * Gets an <code>Identifier</code> for the given <code>String</code> id without ever adding to the table
+     * of canonical identifiers. This is the canonical one if there is one, otherwise a new
+     * <code>IdentifierImpl</code>. This is meant for ids that come from requests.
+     *
+     * @param idIn the <code>String</code> for the identifier
+     * @return an <code>Identifier</code> for <code>idIn</code>
+     * @throws IllegalArgumentException if <code>idIn</code> is not a valid <code>URI</code>
+     */
+    public static Identifier lookup(String idIn) {
+        Identifier identifier = mapIdentifiers.get(idIn);
+        return identifier != null ? identifier : new IdentifierImpl(idIn);
+    }
+
     public static Identifier gensym(String pfx) {
         UUID uuid = UUID.randomUUID();
         return new IdentifierImpl(pfx + ":" + uuid.toString());
@@ -92,6 +178,9 @@ public class IdentifierImpl implements Identifier {
     public boolean equals(Object obj) {
         if (obj == this) {
             return true;
+        } else if (obj instanceof IdentifierImpl) {
+            IdentifierImpl identifierImpl = (IdentifierImpl)obj;
+            return this.hashCode == identifierImpl.hashCode && this.uri.equals(identifierImpl.uri);
         } else if (obj == null || !(obj instanceof Identifier)) {
             return false;
         } else {
@@ -101,8 +190,7 @@ public class IdentifierImpl implements Identifier {
 
     @Override
     public int hashCode() {
-        URI thisURI = this.getUri();
-        return (thisURI == null ? super.hashCode() : thisURI.hashCode());
+        return this.hashCode;
     }
 
     @Override
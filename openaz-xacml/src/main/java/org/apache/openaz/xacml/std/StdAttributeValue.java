@@ -94,7 +94,9 @@ public class StdAttributeValue<T> implements AttributeValue<T> {
         int result = 1;
         result = prime * result + ((dataTypeId == null) ? 0 : dataTypeId.hashCode());
         result = prime * result + ((value == null) ? 0 : value.hashCode());
-        result = prime * result + ((xpathCategory == null) ? 0 : xpathCategory.hashCode());
+        /*
+         * The xpathCategory is not part of equals, so it must not be part of the hash code either
+         */
         return result;
     }
 
@@ -35,8 +35,10 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
@@ -63,6 +65,16 @@ import org.w3c.dom.NodeList;
  * {@link org.apache.openaz.xacml.api.Request} and turn it into a sequence of individual decision
  * <code>Request</code>s. This class implements all of the multiple-decision profiles specified in
  * "XACML v3.0 Multiple Decision Profile Version 1.0"
+ * <p>
+ * The individual decision <code>Request</code>s are generated lazily as they are iterated over, so the
+ * Cartesian product of repeated attribute categories is never held in memory all at once. Unchanged
+ * <code>RequestAttributes</code> are shared by reference between the individual decision
+ * <code>Request</code>s. If more than the maximum number of individual decision <code>Request</code>s would
+ * be generated, the only <code>Request</code> is one carrying a processing error status. The number of
+ * <code>Request</code>s from multiple request references and repeated categories is checked before any of
+ * them are generated. Multiple scope and multiple content selector expansion can only be counted as it
+ * happens, so if it goes over the maximum the sequence ends with the error <code>Request</code> and
+ * {@link #getLimitExceededStatus()} tells the caller to discard the <code>Request</code>s before it.
  */
 public class StdIndividualDecisionRequestGenerator {
     private static final Identifier[] idArray = new Identifier[0];
@@ -79,8 +91,105 @@ public class StdIndividualDecisionRequestGenerator {
 
     private Log logger = LogFactory.getLog(StdIndividualDecisionRequestGenerator.class);
     private Request originalRequest;
-    private List<Request> individualDecisionRequests = new ArrayList<Request>();
     private ScopeResolver scopeResolver;
+    private int maxIndividualDecisionRequests = Integer.MAX_VALUE;
+    private int countIndividualDecisionRequests;
+    private Status statusLimitExceeded;
+
+    /*
+     * Individual decision requests that have been generated but not yet returned by the iterator
+     */
+    private LinkedList<Request> pendingRequests = new LinkedList<Request>();
+
+    /*
+     * Requests resolved from the multi request references that have not been expanded yet
+     */
+    private Iterator<Request> iterRequestsFromReferences;
+
+    /*
+     * State of the repeated category explosion in progress: for each category, the candidate
+     * RequestAttributes and the position of the one used in the next combination.
+     */
+    private Request categoryRequest;
+    private List<List<RequestAttributes>> categoryAttributes;
+    private int[] categoryPositions;
+
+    private final Iterator<Request> iterIndividualDecisionRequests = new Iterator<Request>() {
+        @Override
+        public boolean hasNext() {
+            return StdIndividualDecisionRequestGenerator.this.fillPendingRequests();
+        }
+
+        @Override
+        public Request next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return StdIndividualDecisionRequestGenerator.this.pendingRequests.removeFirst();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    /**
+     * Adds the given individual decision <code>Request</code> to the ones waiting to be returned, unless that
+     * would go over the maximum number of individual decision <code>Request</code>s, in which case it is
+     * replaced by a single <code>Request</code> with a processing error status and nothing more is generated.
+     *
+     * @param request the individual decision <code>Request</code>
+     */
+    protected void addIndividualDecisionRequest(Request request) {
+        if (this.statusLimitExceeded != null) {
+            return;
+        }
+        if (this.countIndividualDecisionRequests >= this.maxIndividualDecisionRequests) {
+            this.setTooManyIndividualDecisionRequests();
+            return;
+        }
+        this.countIndividualDecisionRequests++;
+        this.pendingRequests.add(request);
+    }
+
+    private void setTooManyIndividualDecisionRequests() {
+        this.statusLimitExceeded = new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR,
+                                                 "More than " + this.maxIndividualDecisionRequests
+                                                     + " individual decision requests");
+        this.categoryPositions = null;
+        this.iterRequestsFromReferences = null;
+        this.pendingRequests.clear();
+        this.pendingRequests.add(new StdMutableRequest(this.statusLimitExceeded));
+    }
+
+    /**
+     * Generates individual decision <code>Request</code>s until there is at least one waiting to be returned
+     * or there are no more to generate.
+     *
+     * @return true if there is an individual decision <code>Request</code> waiting to be returned
+     */
+    private boolean fillPendingRequests() {
+        while (this.pendingRequests.isEmpty() && this.statusLimitExceeded == null) {
+            if (this.categoryPositions != null) {
+                this.processScopes(this.nextCategoryCombination());
+            } else if (this.iterRequestsFromReferences != null && this.iterRequestsFromReferences.hasNext()) {
+                Request requestFromReferences = this.iterRequestsFromReferences.next();
+                if (requestFromReferences.getStatus() == null || requestFromReferences.getStatus().isOk()) {
+                    this.processRepeatedCategories(requestFromReferences);
+                } else {
+                    /*
+                     * Just add the bad request to the list. It will be cause a Result with the same bad
+                     * status when the PDP actually runs the request.
+                     */
+                    this.addIndividualDecisionRequest(requestFromReferences);
+                }
+            } else {
+                return false;
+            }
+        }
+        return !this.pendingRequests.isEmpty();
+    }
 
     private static StdMutableRequestAttributes removeMultipleContentSelector(RequestAttributes requestAttributes) {
         StdMutableRequestAttributes stdRequestAttributes = new StdMutableRequestAttributes();
@@ -121,8 +230,7 @@ public class StdIndividualDecisionRequestGenerator {
                     .hasNext();
                 Attribute attributeMultipleContentSelector = iterAttributesMultipleContentSelector.next();
                 if (iterAttributesMultipleContentSelector.hasNext()) {
-                    this.individualDecisionRequests
-                        .add(new StdMutableRequest(new StdStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR,
+                    this.addIndividualDecisionRequest(new StdMutableRequest(new StdStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR,
                                                                  "multiple "
                                                                      + XACML3.ID_MULTIPLE_CONTENT_SELECTOR
                                                                          .stringValue()
@@ -139,8 +247,7 @@ public class StdIndividualDecisionRequestGenerator {
                 Iterator<AttributeValue<XPathExpressionWrapper>> iterXPathExpressions = attributeMultipleContentSelector
                     .findValues(DataTypes.DT_XPATHEXPRESSION);
                 if (iterXPathExpressions == null || !iterXPathExpressions.hasNext()) {
-                    this.individualDecisionRequests
-                        .add(new StdMutableRequest(new StdStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR,
+                    this.addIndividualDecisionRequest(new StdMutableRequest(new StdStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR,
                                                                  "no XPathExpression values in "
                                                                      + XACML3.ID_MULTIPLE_CONTENT_SELECTOR
                                                                          .stringValue()
@@ -158,8 +265,7 @@ public class StdIndividualDecisionRequestGenerator {
                 AttributeValue<XPathExpressionWrapper> attributeValueXPathExpression = iterXPathExpressions
                     .next();
                 if (iterXPathExpressions.hasNext()) {
-                    this.individualDecisionRequests
-                        .add(new StdMutableRequest(new StdStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR,
+                    this.addIndividualDecisionRequest(new StdMutableRequest(new StdStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR,
                                                                  "multiple XPathExpression values in "
                                                                      + XACML3.ID_MULTIPLE_CONTENT_SELECTOR
                                                                          .stringValue()
@@ -170,8 +276,7 @@ public class StdIndividualDecisionRequestGenerator {
                 }
                 XPathExpressionWrapper xpathExpression = attributeValueXPathExpression.getValue();
                 if (xpathExpression == null) {
-                    this.individualDecisionRequests
-                        .add(new StdMutableRequest(new StdStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR,
+                    this.addIndividualDecisionRequest(new StdMutableRequest(new StdStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR,
                                                                  "null XPathExpression")));
                     return;
                 }
@@ -182,8 +287,7 @@ public class StdIndividualDecisionRequestGenerator {
                 NodeList nodeListXPathExpressionResults = requestAttributes
                     .getContentNodeListByXpathExpression(xpathExpression);
                 if (nodeListXPathExpressionResults == null || nodeListXPathExpressionResults.getLength() == 0) {
-                    this.individualDecisionRequests
-                        .add(new StdMutableRequest(new StdStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR,
+                    this.addIndividualDecisionRequest(new StdMutableRequest(new StdStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR,
                                                                  "no matching nodes in the Content for XPathExpression "
                                                                      + xpathExpression.toString()
                                                                      + " in category "
@@ -227,8 +331,7 @@ public class StdIndividualDecisionRequestGenerator {
                         this.explodeOnContentSelector(listRequestAttributes, listPos,
                                                       stdRequestSingleContentSelector);
                     } catch (Exception ex) {
-                        this.individualDecisionRequests
-                            .add(new StdMutableRequest(
+                        this.addIndividualDecisionRequest(new StdMutableRequest(
                                                        new StdStatus(
                                                                      StdStatusCode.STATUS_CODE_PROCESSING_ERROR,
                                                                      ex.getMessage())));
@@ -249,7 +352,7 @@ public class StdIndividualDecisionRequestGenerator {
         /*
          * If we get here, then the request in progress is complete and should be added to the set
          */
-        this.individualDecisionRequests.add(requestInProgress);
+        this.addIndividualDecisionRequest(requestInProgress);
     }
 
     /**
@@ -261,7 +364,7 @@ public class StdIndividualDecisionRequestGenerator {
     protected void processContentSelectors(Request request) {
         Iterator<RequestAttributes> iterRequestAttributes = request.getRequestAttributes().iterator();
         if (!iterRequestAttributes.hasNext()) {
-            this.individualDecisionRequests.add(request);
+            this.addIndividualDecisionRequest(request);
             return;
         }
 
@@ -279,7 +382,7 @@ public class StdIndividualDecisionRequestGenerator {
          * multiple:content-selector
          */
         if (!hasMultipleContentSelectors) {
-            this.individualDecisionRequests.add(request);
+            this.addIndividualDecisionRequest(request);
         } else {
             List<RequestAttributes> listRequestAttributes = new ArrayList<RequestAttributes>();
             listRequestAttributes.addAll(request.getRequestAttributes());
@@ -415,8 +518,7 @@ public class StdIndividualDecisionRequestGenerator {
         try {
             scopeQualifier = getScopeQualifier(requestAttributesResource);
         } catch (ScopeResolverException ex) {
-            this.individualDecisionRequests
-                .add(new StdMutableRequest(new StdStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR, ex
+            this.addIndividualDecisionRequest(new StdMutableRequest(new StdStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR, ex
                     .getMessage())));
             return;
         }
@@ -432,7 +534,7 @@ public class StdIndividualDecisionRequestGenerator {
         Iterator<Attribute> iterAttributesResourceId = requestAttributesResource
             .getAttributes(XACML3.ID_RESOURCE_RESOURCE_ID);
         if (iterAttributesResourceId == null || !iterAttributesResourceId.hasNext()) {
-            this.individualDecisionRequests.add(new StdMutableRequest(STATUS_NO_RESOURCE_ID));
+            this.addIndividualDecisionRequest(new StdMutableRequest(STATUS_NO_RESOURCE_ID));
             return;
         }
 
@@ -457,7 +559,7 @@ public class StdIndividualDecisionRequestGenerator {
                                   + ex.getMessage(), ex);
             }
             if (scopeResolverResult.getStatus() != null && !scopeResolverResult.getStatus().isOk()) {
-                this.individualDecisionRequests.add(new StdMutableRequest(scopeResolverResult.getStatus()));
+                this.addIndividualDecisionRequest(new StdMutableRequest(scopeResolverResult.getStatus()));
                 return;
             }
             Iterator<Attribute> iterAttributesResourceIdResolved = scopeResolverResult.getAttributes();
@@ -487,37 +589,30 @@ public class StdIndividualDecisionRequestGenerator {
     }
 
     /**
-     * Checks to see if the category with the <code>Identifier</code> at the current <code>Iterator</code>
-     * position has multiple <code>RequestAttribute</code>s associated with it. If so, then for each copy,
-     * explode on the remaining categories. Otherwise store the single value in the requestInProgress and
-     * explode on the remaining values.
+     * Builds the <code>Request</code> for the current combination of repeated category
+     * <code>RequestAttributes</code> and then advances to the next combination, with the last category
+     * varying fastest. The <code>RequestAttributes</code> are added by reference, not copied.
      *
-     * @param identifiers
-     * @param pos
-     * @param requestInProgress
-     * @param mapCategories
+     * @return the <code>Request</code> for the current combination
      */
-    private void explodeOnCategory(Identifier[] identifiers, int pos, StdMutableRequest requestInProgress,
-                                   Map<Identifier, List<RequestAttributes>> mapCategories) {
-        if (pos >= identifiers.length) {
-            /*
-             * Tail out of the recursion by performing the next stage of processing on the request in proress
-             */
-            this.processScopes(requestInProgress);
-        } else {
-            List<RequestAttributes> listCategoryAttributes = mapCategories.get(identifiers[pos]);
-            assert listCategoryAttributes != null && listCategoryAttributes.size() > 0;
-            if (listCategoryAttributes.size() == 1) {
-                requestInProgress.add(listCategoryAttributes.get(0));
-                this.explodeOnCategory(identifiers, pos + 1, requestInProgress, mapCategories);
-            } else {
-                for (RequestAttributes requestAttributes : listCategoryAttributes) {
-                    StdMutableRequest stdRequestCopy = new StdMutableRequest(requestInProgress);
-                    stdRequestCopy.add(requestAttributes);
-                    this.explodeOnCategory(identifiers, pos + 1, stdRequestCopy, mapCategories);
-                }
-            }
+    private Request nextCategoryCombination() {
+        StdMutableRequest requestCombination = new StdMutableRequest();
+        requestCombination.setRequestDefaults(this.categoryRequest.getRequestDefaults());
+        requestCombination.setReturnPolicyIdList(this.categoryRequest.getReturnPolicyIdList());
+        for (int i = 0; i < this.categoryPositions.length; i++) {
+            requestCombination.add(this.categoryAttributes.get(i).get(this.categoryPositions[i]));
         }
+
+        int pos = this.categoryPositions.length - 1;
+        while (pos >= 0 && ++this.categoryPositions[pos] == this.categoryAttributes.get(pos).size()) {
+            this.categoryPositions[pos--] = 0;
+        }
+        if (pos < 0) {
+            this.categoryRequest = null;
+            this.categoryAttributes = null;
+            this.categoryPositions = null;
+        }
+        return requestCombination;
     }
 
     /**
@@ -532,7 +627,7 @@ public class StdIndividualDecisionRequestGenerator {
             /*
              * There are no attributes to process anyway. The PDP will give an indeterminate result from this
              */
-            this.individualDecisionRequests.add(request);
+            this.addIndividualDecisionRequest(request);
             return;
         }
 
@@ -545,7 +640,7 @@ public class StdIndividualDecisionRequestGenerator {
             RequestAttributes requestAttributes = iterRequestAttributes.next();
             Identifier identifierCategory = requestAttributes.getCategory();
             if (identifierCategory == null) {
-                this.individualDecisionRequests.add(new StdMutableRequest(STATUS_NO_CATEGORY));
+                this.addIndividualDecisionRequest(new StdMutableRequest(STATUS_NO_CATEGORY));
                 return;
             }
             if (setCategories.contains(identifierCategory)) {
@@ -575,13 +670,52 @@ public class StdIndividualDecisionRequestGenerator {
                 listRequestAttributes.add(requestAttributes);
             }
 
-            StdMutableRequest requestRoot = new StdMutableRequest();
-            requestRoot.setRequestDefaults(request.getRequestDefaults());
-            requestRoot.setReturnPolicyIdList(request.getReturnPolicyIdList());
-            this.explodeOnCategory(mapCategories.keySet().toArray(idArray), 0, requestRoot, mapCategories);
+            /*
+             * Check the size of the Cartesian product before generating any of it, then generate the
+             * combinations one at a time as they are asked for.
+             */
+            Identifier[] identifiers = mapCategories.keySet().toArray(idArray);
+            List<List<RequestAttributes>> listCategoryAttributes = new ArrayList<List<RequestAttributes>>();
+            long combinations = 1;
+            for (Identifier identifier : identifiers) {
+                List<RequestAttributes> listRequestAttributes = mapCategories.get(identifier);
+                combinations = Math.min(combinations * listRequestAttributes.size(), Integer.MAX_VALUE);
+                listCategoryAttributes.add(listRequestAttributes);
+            }
+            if (combinations > this.maxIndividualDecisionRequests - this.countIndividualDecisionRequests) {
+                this.setTooManyIndividualDecisionRequests();
+                return;
+            }
+            this.categoryRequest = request;
+            this.categoryAttributes = listCategoryAttributes;
+            this.categoryPositions = new int[identifiers.length];
         }
     }
 
+    /**
+     * Counts the individual decision <code>Request</code>s the repeated categories of the given
+     * <code>Request</code> expand to, without expanding them.
+     *
+     * @param request the <code>Request</code> to count
+     * @return the size of the Cartesian product of its repeated categories, at most
+     *         <code>Integer.MAX_VALUE</code>
+     */
+    private static long countCategoryCombinations(Request request) {
+        if (request.getStatus() != null && !request.getStatus().isOk()) {
+            return 1;
+        }
+        Map<Identifier, Integer> mapCategoryCounts = new HashMap<Identifier, Integer>();
+        for (RequestAttributes requestAttributes : request.getRequestAttributes()) {
+            Integer count = mapCategoryCounts.get(requestAttributes.getCategory());
+            mapCategoryCounts.put(requestAttributes.getCategory(), count == null ? 1 : count + 1);
+        }
+        long combinations = 1;
+        for (Integer count : mapCategoryCounts.values()) {
+            combinations = Math.min(combinations * count, Integer.MAX_VALUE);
+        }
+        return combinations;
+    }
+
     /**
      * Tries to resolve the given <code>RequestReference</code> in order to create a fully qualified
      * <code>Request</code> to pass on to the next stage of individual request processing.
@@ -615,8 +749,10 @@ public class StdIndividualDecisionRequestGenerator {
     }
 
     /**
-     * Populates the individual decision <code>Request</code>s from the given <code>Request</code> using all
-     * supported profiles. The process here is documented as step 1. of Section 4 of the XACML document.
+     * Starts generating the individual decision <code>Request</code>s from the given <code>Request</code> using
+     * all supported profiles. The process here is documented as step 1. of Section 4 of the XACML document.
+     * Multiple request references and repeated categories are only expanded as the individual decision
+     * <code>Request</code>s are iterated over.
      *
      * @param request the <code>Request</code> to explode
      */
@@ -625,40 +761,66 @@ public class StdIndividualDecisionRequestGenerator {
          * If the request is bad to begin with, just add it to the list and be done.
          */
         if (request.getStatus() != null && !request.getStatus().isOk()) {
-            this.individualDecisionRequests.add(request);
+            this.addIndividualDecisionRequest(request);
             return;
         }
 
         /*
-         * Check to see if this Request is a MultiRequest
+         * Check to see if this Request is a MultiRequest. Resolving a reference only collects the
+         * RequestAttributes it refers to, so they are all resolved up front to count them.
          */
+        List<Request> listRequests = new ArrayList<Request>();
         Iterator<RequestReference> iterRequestReferences = request.getMultiRequests().iterator();
-        if (iterRequestReferences != null && iterRequestReferences.hasNext()) {
-            while (iterRequestReferences.hasNext()) {
-                Request requestFromReferences = this.processMultiRequest(request,
-                                                                         iterRequestReferences.next());
-                assert requestFromReferences != null;
-                if (requestFromReferences.getStatus() == null || requestFromReferences.getStatus().isOk()) {
-                    this.processRepeatedCategories(requestFromReferences);
-                } else {
-                    /*
-                     * Just add the bad request to the list. It will be cause a Result with the same bad
-                     * status when the PDP actually runs the request.
-                     */
-                    this.individualDecisionRequests.add(requestFromReferences);
-                }
-            }
+        while (iterRequestReferences != null && iterRequestReferences.hasNext()) {
+            Request requestFromReferences = this.processMultiRequest(request, iterRequestReferences.next());
+            assert requestFromReferences != null;
+            listRequests.add(requestFromReferences);
+        }
+        boolean isMultiRequest = !listRequests.isEmpty();
+        if (!isMultiRequest) {
+            listRequests.add(request);
+        }
+
+        /*
+         * Check the number of individual decision requests before generating any of them
+         */
+        long count = 0;
+        for (Request requestToCount : listRequests) {
+            count = Math.min(count + countCategoryCombinations(requestToCount), Integer.MAX_VALUE);
+        }
+        if (count > this.maxIndividualDecisionRequests) {
+            this.setTooManyIndividualDecisionRequests();
+        } else if (isMultiRequest) {
+            /*
+             * The references are expanded one at a time as the individual decision requests are asked for
+             */
+            this.iterRequestsFromReferences = listRequests.iterator();
         } else {
             this.processRepeatedCategories(request);
         }
     }
 
-    public StdIndividualDecisionRequestGenerator(ScopeResolver scopeResolverIn, Request request) {
+    /**
+     * Creates a new <code>StdIndividualDecisionRequestGenerator</code> for the given <code>Request</code>
+     * that generates at most <code>maxIndividualDecisionRequestsIn</code> individual decision
+     * <code>Request</code>s.
+     *
+     * @param scopeResolverIn the <code>ScopeResolver</code> for the multiple scope profile, or null
+     * @param request the original <code>Request</code>
+     * @param maxIndividualDecisionRequestsIn the maximum number of individual decision <code>Request</code>s
+     */
+    public StdIndividualDecisionRequestGenerator(ScopeResolver scopeResolverIn, Request request,
+                                                 int maxIndividualDecisionRequestsIn) {
         this.originalRequest = request;
         this.scopeResolver = scopeResolverIn;
+        this.maxIndividualDecisionRequests = Math.max(maxIndividualDecisionRequestsIn, 1);
         this.createIndividualDecisionRequests(request);
     }
 
+    public StdIndividualDecisionRequestGenerator(ScopeResolver scopeResolverIn, Request request) {
+        this(scopeResolverIn, request, Integer.MAX_VALUE);
+    }
+
     public StdIndividualDecisionRequestGenerator(Request request) {
         this(null, request);
     }
@@ -674,11 +836,23 @@ public class StdIndividualDecisionRequestGenerator {
 
     /**
      * Gets an <code>Iterator</code> over the individual decision <code>Request</code>s for the original
-     * <code>Request</code>.
+     * <code>Request</code>. The <code>Request</code>s are generated as the <code>Iterator</code> advances, so
+     * there is only one <code>Iterator</code> per <code>StdIndividualDecisionRequestGenerator</code>.
      *
      * @return an <code>Iterator</code> over the individual decision <code>Request</code>s.
      */
     public Iterator<Request> getIndividualDecisionRequests() {
-        return this.individualDecisionRequests.iterator();
+        return this.iterIndividualDecisionRequests;
+    }
+
+    /**
+     * Gets the processing error <code>Status</code> of the <code>Request</code> that replaced the individual
+     * decision <code>Request</code>s because there would have been more than the maximum. If it is not null,
+     * the results of any individual decision <code>Request</code>s already returned should be discarded.
+     *
+     * @return the <code>Status</code> if the maximum was exceeded, otherwise null
+     */
+    public Status getLimitExceededStatus() {
+        return this.statusLimitExceeded;
     }
 }
@@ -42,6 +42,9 @@ import org.w3c.dom.xpath.XPathExpression;
 
 import javax.security.auth.x500.X500Principal;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.net.URI;
@@ -70,113 +73,256 @@ public class RequestParser {
         return dataTypeFactory;
     }
 
+    /*
+     * What parseRequest needs to know about a class, worked out from its annotations the first time an
+     * instance of it is parsed
+     */
+    private static final ClassValue<RequestBinding> REQUEST_BINDINGS = new ClassValue<RequestBinding>() {
+        @Override
+        protected RequestBinding computeValue(Class<?> type) {
+            return new RequestBinding(type);
+        }
+    };
+
+    /*
+     * The DataType deciphered from the Java class of a value when the annotation does not give one
+     */
+    private static final ClassValue<DataType<?>> INFERRED_DATATYPES = new ClassValue<DataType<?>>() {
+        @Override
+        protected DataType<?> computeValue(Class<?> type) {
+            DataTypeFactory dtFactory = getDataTypeFactory();
+            return dtFactory == null ? null : dtFactory.getDataType(inferDataTypeId(type));
+        }
+    };
+
+    /**
+     * The binding of one annotated field to an attribute: its resolved identifiers and data type, the index
+     * of the attribute category (and xml:id) it belongs to and a <code>MethodHandle</code> that reads it.
+     */
+    private static final class FieldBinding {
+        private final Identifier category;
+        private final Identifier attributeId;
+        private final boolean includeInResults;
+        private final String datatype;
+        private final DataType<?> dataType;
+        private final String issuer;
+        private final String id;
+        private final MethodHandle getter;
+        private int group;
+
+        FieldBinding(String categoryIn, String attributeIdIn, boolean includeInResultsIn, String datatypeIn,
+                     String issuerIn, String idIn, MethodHandle getterIn) {
+            this.category = new IdentifierImpl(categoryIn);
+            this.attributeId = new IdentifierImpl(attributeIdIn);
+            this.includeInResults = includeInResultsIn;
+            this.datatype = datatypeIn.equals(XACMLRequest.nullString) ? null : datatypeIn;
+            DataTypeFactory dtFactory = getDataTypeFactory();
+            this.dataType = this.datatype == null || dtFactory == null
+                ? null : dtFactory.getDataType(new IdentifierImpl(this.datatype));
+            this.issuer = issuerIn.equals(XACMLRequest.nullString) || issuerIn.isEmpty() ? null : issuerIn;
+            this.id = idIn.equals(XACMLRequest.nullString) ? null : idIn;
+            this.getter = getterIn;
+        }
+
+        Object getFieldValue(Object object) {
+            try {
+                return (Object)this.getter.invokeExact(object);
+            } catch (RuntimeException | Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        AttributeValue<?> createAttributeValue(Object value) throws DataTypeException {
+            if (this.dataType != null) {
+                return this.dataType.createAttributeValue(value);
+            } else if (this.datatype != null) {
+                //
+                // Let extractValue report the unknown data type
+                //
+                return extractValue(this.datatype, value);
+            }
+            DataType<?> dataTypeInferred = value == null ? null : INFERRED_DATATYPES.get(value.getClass());
+            return dataTypeInferred == null
+                ? extractValue(null, value) : dataTypeInferred.createAttributeValue(value);
+        }
+
+        StdMutableAttribute createAttribute(Object object) throws DataTypeException {
+            StdMutableAttribute mutableAttribute = new StdMutableAttribute();
+            mutableAttribute.setCategory(this.category);
+            mutableAttribute.setAttributeId(this.attributeId);
+            mutableAttribute.setIncludeInResults(this.includeInResults);
+            if (this.issuer != null) {
+                mutableAttribute.setIssuer(this.issuer);
+            }
+            Object fieldObject = this.getFieldValue(object);
+            if (fieldObject == null) {
+                return mutableAttribute;
+            }
+            Collection<AttributeValue<?>> values = new ArrayList<AttributeValue<?>>();
+            if (fieldObject instanceof Collection || fieldObject instanceof Map) {
+                for (Object obj : (Collection<?>)fieldObject) {
+                    values.add(this.createAttributeValue(obj));
+                }
+            } else if (fieldObject.getClass().isArray()) {
+                for (int i = 0; i < Array.getLength(fieldObject); i++) {
+                    values.add(this.createAttributeValue(Array.get(fieldObject, i)));
+                }
+            } else {
+                values.add(this.createAttributeValue(fieldObject));
+            }
+            mutableAttribute.addValues(values);
+            return mutableAttribute;
+        }
+    }
+
+    /**
+     * The binding of an <code>XACMLRequest</code> annotated class: the request level settings, and the
+     * bindings of its annotated fields in declaration order.
+     */
+    private static final class RequestBinding {
+        private final Class<?> type;
+        private XACMLRequest requestAnnotation;
+        private RequestDefaults requestDefaults;
+        private final List<RequestReference> requestReferences = new ArrayList<RequestReference>();
+        private final List<FieldBinding> fieldBindings = new ArrayList<FieldBinding>();
+        //
+        // The category and xml:id of each attribute group, in the order they are first used
+        //
+        private final List<FieldBinding> groups = new ArrayList<FieldBinding>();
+        private IllegalAccessException failure;
+
+        RequestBinding(Class<?> typeIn) {
+            this.type = typeIn;
+            this.requestAnnotation = typeIn.getAnnotation(XACMLRequest.class);
+            if (this.requestAnnotation == null) {
+                return;
+            }
+            if (!this.requestAnnotation.Defaults().equals(XACMLRequest.nullString)) {
+                this.requestDefaults = new StdRequestDefaults(URI.create(this.requestAnnotation.Defaults()));
+            }
+            XACMLMultiRequest multi = this.requestAnnotation.multiRequest();
+            if (multi != null) {
+                for (XACMLRequestReference reference : multi.values()) {
+                    Collection<RequestAttributesReference> refs = new ArrayList<RequestAttributesReference>();
+                    for (String refId : reference.values()) {
+                        refs.add(new StdRequestAttributesReference(refId));
+                    }
+                    if (!refs.isEmpty()) {
+                        this.requestReferences.add(new StdRequestReference(refs));
+                    }
+                }
+            }
+            try {
+                this.bindFields();
+            } catch (IllegalAccessException ex) {
+                this.failure = ex;
+            }
+        }
+
+        private void bindFields() throws IllegalAccessException {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodType getterType = MethodType.methodType(Object.class, Object.class);
+            for (Field field : this.type.getDeclaredFields()) {
+                XACMLSubject subject = field.getAnnotation(XACMLSubject.class);
+                XACMLAction action = field.getAnnotation(XACMLAction.class);
+                XACMLResource resource = field.getAnnotation(XACMLResource.class);
+                XACMLEnvironment environment = field.getAnnotation(XACMLEnvironment.class);
+                XACMLAttribute attribute = field.getAnnotation(XACMLAttribute.class);
+                if (subject == null && action == null && resource == null && environment == null
+                    && attribute == null) {
+                    continue;
+                }
+                field.setAccessible(true);
+                MethodHandle getter = lookup.unreflectGetter(field).asType(getterType);
+                if (subject != null) {
+                    this.add(new FieldBinding(subject.category(), subject.attributeId(), subject
+                        .includeInResults(), subject.datatype(), subject.issuer(), subject.id(), getter));
+                }
+                if (action != null) {
+                    this.add(new FieldBinding(action.category(), action.attributeId(), action
+                        .includeInResults(), action.datatype(), action.issuer(), action.id(), getter));
+                }
+                if (resource != null) {
+                    this.add(new FieldBinding(resource.category(), resource.attributeId(), resource
+                        .includeInResults(), resource.datatype(), resource.issuer(), resource.id(), getter));
+                }
+                if (environment != null) {
+                    this.add(new FieldBinding(environment.category(), environment.attributeId(), environment
+                        .includeInResults(), environment.datatype(), environment.issuer(), environment.id(),
+                                              getter));
+                }
+                if (attribute != null) {
+                    this.add(new FieldBinding(attribute.category(), attribute.attributeId(), attribute
+                        .includeInResults(), attribute.datatype(), attribute.issuer(), attribute.id(), getter));
+                }
+            }
+        }
+
+        private void add(FieldBinding fieldBinding) {
+            fieldBinding.group = -1;
+            for (int i = 0; i < this.groups.size(); i++) {
+                FieldBinding groupBinding = this.groups.get(i);
+                if (groupBinding.category.equals(fieldBinding.category)
+                    && isSameXmlId(fieldBinding.id, groupBinding.id)) {
+                    fieldBinding.group = i;
+                    break;
+                }
+            }
+            if (fieldBinding.group < 0) {
+                fieldBinding.group = this.groups.size();
+                this.groups.add(fieldBinding);
+            }
+            this.fieldBindings.add(fieldBinding);
+        }
+    }
+
+    private static boolean isSameXmlId(String id1, String id2) {
+        return id1 == null ? id2 == null : id1.equals(id2);
+    }
+
     public static Request parseRequest(Object obj) throws IllegalArgumentException, IllegalAccessException,
         DataTypeException {
         //
-        // Our returned object
-        //
-        StdMutableRequest stdMutableRequest = new StdMutableRequest();
+        // Get the bindings worked out from the class annotations
         //
-        // Our collection of attribute values
-        //
-        List<StdMutableRequestAttributes> attributes = new ArrayList<StdMutableRequestAttributes>();
+        RequestBinding requestBinding = REQUEST_BINDINGS.get(obj.getClass());
+        if (requestBinding.requestAnnotation == null) {
+            throw new IllegalArgumentException(obj.getClass().getName() + " is not annotated with "
+                                               + XACMLRequest.class.getSimpleName());
+        }
+        if (requestBinding.failure != null) {
+            throw requestBinding.failure;
+        }
         //
-        // Get overall XACML request annotation fields
+        // Our returned object
         //
-        XACMLRequest requestAnnotation = obj.getClass().getAnnotation(XACMLRequest.class);
+        StdMutableRequest stdMutableRequest = new StdMutableRequest();
         //
-        // Add these annotations into the request
+        // Add the request annotations into the request
         //
-        stdMutableRequest.setReturnPolicyIdList(requestAnnotation.ReturnPolicyIdList());
-        stdMutableRequest.setCombinedDecision(requestAnnotation.CombinedDecision());
-        if (!requestAnnotation.Defaults().equals(XACMLRequest.nullString)) {
-            stdMutableRequest.setRequestDefaults(new StdRequestDefaults(URI.create(requestAnnotation
-                .Defaults())));
+        stdMutableRequest.setReturnPolicyIdList(requestBinding.requestAnnotation.ReturnPolicyIdList());
+        stdMutableRequest.setCombinedDecision(requestBinding.requestAnnotation.CombinedDecision());
+        if (requestBinding.requestDefaults != null) {
+            stdMutableRequest.setRequestDefaults(requestBinding.requestDefaults);
         }
-        //
-        // Check for multi-request
-        //
-        XACMLMultiRequest multi = requestAnnotation.multiRequest();
-        if (multi != null) {
-            for (XACMLRequestReference reference : multi.values()) {
-                Collection<RequestAttributesReference> refs = new ArrayList<RequestAttributesReference>();
-                for (String id : reference.values()) {
-                    refs.add(new StdRequestAttributesReference(id));
-                }
-                if (!refs.isEmpty()) {
-                    stdMutableRequest.add(new StdRequestReference(refs));
-                }
-            }
+        for (RequestReference requestReference : requestBinding.requestReferences) {
+            stdMutableRequest.add(requestReference);
         }
         //
-        // Iterate all the fields in the object
+        // One set of attributes per category and xml:id, then read each bound field into its set
         //
-        for (Field field : obj.getClass().getDeclaredFields()) {
-            if (logger.isTraceEnabled()) {
-                logger.trace("Field: " + field);
-            }
-            XACMLSubject subject = field.getAnnotation(XACMLSubject.class);
-            if (subject != null) {
-                RequestParser.addAttribute(attributes,
-                                           new IdentifierImpl(subject.category()),
-                                           new IdentifierImpl(subject.attributeId()),
-                                           subject.includeInResults(),
-                                           (subject.datatype().equals(XACMLRequest.nullString)
-                                               ? null : subject.datatype()),
-                                           (subject.issuer().equals(XACMLRequest.nullString) ? null : subject
-                                               .issuer()), (subject.id().equals(XACMLRequest.nullString)
-                                               ? null : subject.id()), field, obj);
-            }
-            XACMLAction action = field.getAnnotation(XACMLAction.class);
-            if (action != null) {
-                RequestParser
-                    .addAttribute(attributes,
-                                  new IdentifierImpl(action.category()),
-                                  new IdentifierImpl(action.attributeId()),
-                                  action.includeInResults(),
-                                  (action.datatype().equals(XACMLRequest.nullString) ? null : action
-                                      .datatype()), (action.issuer().equals(XACMLRequest.nullString)
-                                      ? null : action.issuer()), (action.id().equals(XACMLRequest.nullString)
-                                      ? null : action.id()), field, obj);
-            }
-            XACMLResource resource = field.getAnnotation(XACMLResource.class);
-            if (resource != null) {
-                RequestParser.addAttribute(attributes,
-                                           new IdentifierImpl(resource.category()),
-                                           new IdentifierImpl(resource.attributeId()),
-                                           resource.includeInResults(),
-                                           (resource.datatype().equals(XACMLRequest.nullString)
-                                               ? null : resource.datatype()),
-                                           (resource.issuer().equals(XACMLRequest.nullString)
-                                               ? null : resource.issuer()),
-                                           (resource.id().equals(XACMLRequest.nullString) ? null : resource
-                                               .id()), field, obj);
-            }
-            XACMLEnvironment environment = field.getAnnotation(XACMLEnvironment.class);
-            if (environment != null) {
-                RequestParser.addAttribute(attributes, new IdentifierImpl(environment.category()),
-                                           new IdentifierImpl(environment.attributeId()), environment
-                                               .includeInResults(),
-                                           (environment.datatype().equals(XACMLRequest.nullString)
-                                               ? null : environment.datatype()),
-                                           (environment.issuer().equals(XACMLRequest.nullString)
-                                               ? null : environment.issuer()),
-                                           (environment.id().equals(XACMLRequest.nullString)
-                                               ? null : environment.id()), field, obj);
-            }
-            XACMLAttribute attribute = field.getAnnotation(XACMLAttribute.class);
-            if (attribute != null) {
-                RequestParser.addAttribute(attributes,
-                                           new IdentifierImpl(attribute.category()),
-                                           new IdentifierImpl(attribute.attributeId()),
-                                           attribute.includeInResults(),
-                                           (attribute.datatype().equals(XACMLRequest.nullString)
-                                               ? null : attribute.datatype()),
-                                           (attribute.issuer().equals(XACMLRequest.nullString)
-                                               ? null : attribute.issuer()),
-                                           (attribute.id().equals(XACMLRequest.nullString) ? null : attribute
-                                               .id()), field, obj);
-            }
+        StdMutableRequestAttributes[] attributes = new StdMutableRequestAttributes[requestBinding.groups
+            .size()];
+        for (int i = 0; i < attributes.length; i++) {
+            FieldBinding groupBinding = requestBinding.groups.get(i);
+            attributes[i] = new StdMutableRequestAttributes();
+            attributes[i].setCategory(groupBinding.category);
+            attributes[i].setXmlId(groupBinding.id);
+        }
+        for (FieldBinding fieldBinding : requestBinding.fieldBindings) {
+            attributes[fieldBinding.group].add(fieldBinding.createAttribute(obj));
         }
         //
         // Add in all the attributes
@@ -219,8 +365,7 @@ public class RequestParser {
         //
         boolean added = false;
         for (StdMutableRequestAttributes a : attributes) {
-            if (a.getCategory().equals(mutableAttribute.getCategory())
-                && id != null ? a.getXmlId().equals(id) : a.getXmlId() == null ? true : false) {
+            if (a.getCategory().equals(mutableAttribute.getCategory()) && isSameXmlId(id, a.getXmlId())) {
                 //
                 // Category exists, add in the attribute values
                 //
@@ -311,49 +456,7 @@ public class RequestParser {
             // The data type is not specified, we will decipher it based
             // on its Java class.
             //
-            if (object instanceof String) {
-                datatypeId = XACML3.ID_DATATYPE_STRING;
-            } else if (object instanceof Integer || object instanceof Long) {
-                datatypeId = XACML3.ID_DATATYPE_INTEGER;
-            } else if (object instanceof Boolean) {
-                datatypeId = XACML3.ID_DATATYPE_BOOLEAN;
-            } else if (object instanceof Double || object instanceof Float) {
-                datatypeId = XACML3.ID_DATATYPE_DOUBLE;
-            } else if (object instanceof Date || object instanceof Calendar
-                       || object instanceof ISO8601DateTime) {
-                datatypeId = XACML3.ID_DATATYPE_DATETIME;
-            } else if (object instanceof URI) {
-                datatypeId = XACML3.ID_DATATYPE_ANYURI;
-            } else if (object instanceof ISO8601Date) {
-                datatypeId = XACML3.ID_DATATYPE_DATE;
-            } else if (object instanceof ISO8601Time) {
-                datatypeId = XACML3.ID_DATATYPE_TIME;
-            } else if (object instanceof RFC2396DomainName) {
-                datatypeId = XACML3.ID_DATATYPE_DNSNAME;
-            } else if (object instanceof byte[] || object instanceof HexBinary) {
-                datatypeId = XACML3.ID_DATATYPE_HEXBINARY;
-            } else if (object instanceof Base64Binary) {
-                datatypeId = XACML3.ID_DATATYPE_BASE64BINARY;
-            } else if (object instanceof XPathDayTimeDuration) {
-                datatypeId = XACML3.ID_DATATYPE_DAYTIMEDURATION;
-            } else if (object instanceof IPAddress) {
-                datatypeId = XACML3.ID_DATATYPE_IPADDRESS;
-            } else if (object instanceof RFC822Name) {
-                datatypeId = XACML3.ID_DATATYPE_RFC822NAME;
-            } else if (object instanceof X500Principal) {
-                datatypeId = XACML3.ID_DATATYPE_X500NAME;
-            } else if (object instanceof XPathExpression || object instanceof Node) {
-                datatypeId = XACML3.ID_DATATYPE_XPATHEXPRESSION;
-            } else if (object instanceof XPathYearMonthDuration) {
-                datatypeId = XACML3.ID_DATATYPE_YEARMONTHDURATION;
-            } else {
-                logger
-                    .warn("Cannot decipher java object, defaulting to String datatype. If this is not correct, you must specify the datatype in the annotation.");
-                //
-                // Default to a string
-                //
-                datatypeId = XACML3.ID_DATATYPE_STRING;
-            }
+            datatypeId = inferDataTypeId(object == null ? null : object.getClass());
         } else {
             datatypeId = new IdentifierImpl(datatype);
         }
@@ -365,4 +468,56 @@ public class RequestParser {
         return dataTypeExtended.createAttributeValue(object);
     }
 
+    /**
+     * Deciphers the XACML data type of a value from its Java class.
+     *
+     * @param type the <code>Class</code> of the value
+     * @return the data type <code>Identifier</code>, string if the class is not recognized
+     */
+    protected static Identifier inferDataTypeId(Class<?> type) {
+        if (type == null) {
+            return XACML3.ID_DATATYPE_STRING;
+        } else if (String.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_STRING;
+        } else if (Integer.class.isAssignableFrom(type) || Long.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_INTEGER;
+        } else if (Boolean.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_BOOLEAN;
+        } else if (Double.class.isAssignableFrom(type) || Float.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_DOUBLE;
+        } else if (Date.class.isAssignableFrom(type) || Calendar.class.isAssignableFrom(type)
+                   || ISO8601DateTime.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_DATETIME;
+        } else if (URI.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_ANYURI;
+        } else if (ISO8601Date.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_DATE;
+        } else if (ISO8601Time.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_TIME;
+        } else if (RFC2396DomainName.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_DNSNAME;
+        } else if (byte[].class.equals(type) || HexBinary.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_HEXBINARY;
+        } else if (Base64Binary.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_BASE64BINARY;
+        } else if (XPathDayTimeDuration.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_DAYTIMEDURATION;
+        } else if (IPAddress.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_IPADDRESS;
+        } else if (RFC822Name.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_RFC822NAME;
+        } else if (X500Principal.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_X500NAME;
+        } else if (XPathExpression.class.isAssignableFrom(type) || Node.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_XPATHEXPRESSION;
+        } else if (XPathYearMonthDuration.class.isAssignableFrom(type)) {
+            return XACML3.ID_DATATYPE_YEARMONTHDURATION;
+        }
+        logger
+            .warn("Cannot decipher java object, defaulting to String datatype. If this is not correct, you must specify the datatype in the annotation.");
+        //
+        // Default to a string
+        //
+        return XACML3.ID_DATATYPE_STRING;
+    }
 }
@@ -78,7 +78,7 @@ public class HexBinary implements SemanticString {
 
     @Override
     public int hashCode() {
-        return (this.getData() == null ? 0 : this.getData().hashCode());
+        return Arrays.hashCode(this.getData());
     }
 
     @Override
@@ -59,6 +59,16 @@ public class XPathDayTimeDuration extends ISO8601Duration implements Comparable<
         return this.fractionalSeconds;
     }
 
+    @Override
+    public int hashCode() {
+        /*
+         * equals compares with ==, so 0.0 and -0.0 must hash the same
+         */
+        double fractionalSecondsHash = this.getFractionalSeconds() == 0 ? 0 : this.getFractionalSeconds();
+        long bits = Double.doubleToLongBits(fractionalSecondsHash);
+        return (int)(bits ^ (bits >>> 32));
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null || !(obj instanceof XPathDayTimeDuration)) {
@@ -0,0 +1,173 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.std.datatypes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.apache.openaz.xacml.util.ObjUtil;
+
+/**
+ * XPathExpressionCache keeps compiled {@link javax.xml.xpath.XPathExpression}s per thread, since neither
+ * <code>XPathFactory</code>, <code>XPath</code> nor <code>XPathExpression</code> objects are thread-safe.
+ * <p>
+ * Namespace prefixes are resolved when a path is compiled, so each cached expression remembers the prefixes
+ * that were looked up while compiling it and is only reused for a <code>NamespaceContext</code> that binds
+ * those prefixes to the same namespace URIs. The cached expression keeps a copy of those bindings rather than
+ * the <code>NamespaceContext</code> itself, so it does not hold on to the request <code>Document</code> a
+ * <code>NodeNamespaceContext</code> was created from.
+ */
+public class XPathExpressionCache {
+    private static final int MAX_CACHED_PATHS = 256;
+    private static final int MAX_CACHED_CONTEXTS = 8;
+
+    private static final ThreadLocal<XPath> THREAD_XPATH = new ThreadLocal<XPath>() {
+        @Override
+        protected XPath initialValue() {
+            return XPathFactory.newInstance().newXPath();
+        }
+    };
+
+    private static final ThreadLocal<Map<String, List<CachedXPathExpression>>> THREAD_CACHE = new ThreadLocal<Map<String, List<CachedXPathExpression>>>() {
+        @Override
+        protected Map<String, List<CachedXPathExpression>> initialValue() {
+            return new LinkedHashMap<String, List<CachedXPathExpression>>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<CachedXPathExpression>> eldest) {
+                    return this.size() > MAX_CACHED_PATHS;
+                }
+            };
+        }
+    };
+
+    /*
+     * A compiled XPathExpression along with the namespace bindings it was compiled with. While compiling it
+     * records the prefixes looked up in the NamespaceContext it wraps; after that it only answers from the
+     * recorded bindings.
+     */
+    private static final class CachedXPathExpression implements NamespaceContext {
+        private NamespaceContext namespaceContext;
+        private final Map<String, String> bindings = new HashMap<String, String>();
+        private XPathExpression xpathExpression;
+
+        CachedXPathExpression(NamespaceContext namespaceContextIn) {
+            this.namespaceContext = namespaceContextIn;
+        }
+
+        void compile(XPath xpath, String path) throws XPathExpressionException {
+            xpath.reset();
+            xpath.setNamespaceContext(this);
+            this.xpathExpression = xpath.compile(path);
+            this.namespaceContext = null;
+        }
+
+        boolean matches(NamespaceContext namespaceContextIn) {
+            for (Map.Entry<String, String> binding : this.bindings.entrySet()) {
+                String namespaceURI = namespaceContextIn == null ? null : namespaceContextIn
+                    .getNamespaceURI(binding.getKey());
+                if (!ObjUtil.equalsAllowNull(binding.getValue(), namespaceURI)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String getNamespaceURI(String prefix) {
+            if (this.namespaceContext == null) {
+                return this.bindings.get(prefix);
+            }
+            String namespaceURI = this.namespaceContext.getNamespaceURI(prefix);
+            this.bindings.put(prefix, namespaceURI);
+            return namespaceURI;
+        }
+
+        @Override
+        public String getPrefix(String namespaceURI) {
+            if (this.namespaceContext != null) {
+                return this.namespaceContext.getPrefix(namespaceURI);
+            }
+            for (Map.Entry<String, String> binding : this.bindings.entrySet()) {
+                if (namespaceURI.equals(binding.getValue())) {
+                    return binding.getKey();
+                }
+            }
+            return null;
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public Iterator getPrefixes(String namespaceURI) {
+            return this.namespaceContext == null ? null : this.namespaceContext.getPrefixes(namespaceURI);
+        }
+    }
+
+    protected XPathExpressionCache() {
+    }
+
+    /**
+     * Gets the <code>XPathExpression</code> for the given path compiled with the given
+     * <code>NamespaceContext</code>, compiling it only if this thread has not compiled the same path with the
+     * same bindings for the prefixes it uses. The returned <code>XPathExpression</code> must only be used by
+     * the calling thread.
+     *
+     * @param path the XPath expression <code>String</code>
+     * @param namespaceContext the <code>NamespaceContext</code> used to resolve prefixes in the path, may be
+     *            null
+     * @return the compiled <code>XPathExpression</code>
+     * @throws XPathExpressionException if the path cannot be compiled
+     */
+    public static XPathExpression getXPathExpression(String path, NamespaceContext namespaceContext)
+        throws XPathExpressionException {
+        Map<String, List<CachedXPathExpression>> cache = THREAD_CACHE.get();
+        List<CachedXPathExpression> cachedXPathExpressions = cache.get(path);
+        if (cachedXPathExpressions != null) {
+            for (CachedXPathExpression cachedXPathExpression : cachedXPathExpressions) {
+                if (cachedXPathExpression.matches(namespaceContext)) {
+                    return cachedXPathExpression.xpathExpression;
+                }
+            }
+        }
+
+        CachedXPathExpression cachedXPathExpression = new CachedXPathExpression(namespaceContext);
+        cachedXPathExpression.compile(THREAD_XPATH.get(), path);
+        if (cachedXPathExpressions == null) {
+            cachedXPathExpressions = new ArrayList<CachedXPathExpression>();
+            cache.put(path, cachedXPathExpressions);
+        } else if (cachedXPathExpressions.size() >= MAX_CACHED_CONTEXTS) {
+            cachedXPathExpressions.remove(0);
+        }
+        cachedXPathExpressions.add(cachedXPathExpression);
+        return cachedXPathExpression.xpathExpression;
+    }
+}
@@ -30,12 +30,9 @@
  */
 package org.apache.openaz.xacml.std.datatypes;
 
-import javax.xml.namespace.NamespaceContext;
 import javax.xml.namespace.QName;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.apache.openaz.xacml.api.Status;
 import org.apache.openaz.xacml.std.StdStatus;
@@ -52,7 +49,7 @@ public class XPathExpressionWrapper implements XPathExpression {
     private XPathExpression xpathExpressionWrapped;
     private String path;
     private ExtendedNamespaceContext namespaceContext;
-    private Status status;
+    private volatile Status status;
 
     public XPathExpressionWrapper(ExtendedNamespaceContext namespaceContextIn, String pathIn) {
         this.namespaceContext = namespaceContextIn;
@@ -78,24 +75,29 @@ public class XPathExpressionWrapper implements XPathExpression {
         this.xpathExpressionWrapped = xpathExpression;
     }
 
-    public synchronized XPathExpression getXpathExpressionWrapped() {
-        if (this.xpathExpressionWrapped == null && (this.getStatus() == null || this.getStatus().isOk())) {
-            String thisPath = this.getPath();
-            if (thisPath != null) {
-                XPath xPath = XPathFactory.newInstance().newXPath();
-                NamespaceContext namespaceContextThis = this.getNamespaceContext();
-                if (namespaceContextThis != null) {
-                    xPath.setNamespaceContext(namespaceContextThis);
-                }
-                try {
-                    this.xpathExpressionWrapped = xPath.compile(thisPath);
-                } catch (XPathExpressionException ex) {
-                    this.status = new StdStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR,
-                                                "Error compiling XPath " + thisPath + ": " + ex.getMessage());
-                }
-            }
+    /**
+     * Gets the <code>XPathExpression</code> to evaluate. When this <code>XPathExpressionWrapper</code> was
+     * created from a path, the path is compiled through {@link XPathExpressionCache} so each thread gets its
+     * own compiled copy, and the result must not be handed to another thread.
+     *
+     * @return the <code>XPathExpression</code> or null if the path could not be compiled
+     */
+    public XPathExpression getXpathExpressionWrapped() {
+        if (this.xpathExpressionWrapped != null) {
+            return this.xpathExpressionWrapped;
+        }
+        String thisPath = this.getPath();
+        Status thisStatus = this.getStatus();
+        if (thisPath == null || thisStatus != null && !thisStatus.isOk()) {
+            return null;
+        }
+        try {
+            return XPathExpressionCache.getXPathExpression(thisPath, this.getNamespaceContext());
+        } catch (XPathExpressionException ex) {
+            this.status = new StdStatus(StdStatusCode.STATUS_CODE_SYNTAX_ERROR,
+                                        "Error compiling XPath " + thisPath + ": " + ex.getMessage());
+            return null;
         }
-        return this.xpathExpressionWrapped;
     }
 
     public String getPath() {
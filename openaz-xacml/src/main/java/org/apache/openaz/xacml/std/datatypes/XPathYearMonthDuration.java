@@ -65,6 +65,11 @@ public class XPathYearMonthDuration extends ISO8601Duration implements Comparabl
         return new XPathYearMonthDuration(this.getDurationSign(), years, monthsLeft);
     }
 
+    @Override
+    public int hashCode() {
+        return this.getMonthsDuration();
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null || !(obj instanceof XPathYearMonthDuration)) {
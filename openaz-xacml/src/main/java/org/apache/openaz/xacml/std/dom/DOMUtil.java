@@ -321,13 +321,19 @@ public class DOMUtil {
     }
 
     private static Identifier getIdentifierFromString(Node node, String stringAttribute)
+        throws DOMStructureException {
+        return getIdentifierFromString(node, stringAttribute, false);
+    }
+
+    private static Identifier getIdentifierFromString(Node node, String stringAttribute, boolean bCanonical)
         throws DOMStructureException {
         if (stringAttribute == null) {
             return null;
         } else {
             Identifier identifierResult = null;
             try {
-                identifierResult = new IdentifierImpl(stringAttribute);
+                identifierResult = bCanonical
+                    ? IdentifierImpl.valueOf(stringAttribute) : IdentifierImpl.lookup(stringAttribute);
             } catch (IllegalArgumentException ex) {
                 throw new DOMStructureException(node, "Invalid Identifier \"" + stringAttribute + "\" in \""
                                                       + getNodeLabel(node) + "\"", ex);
@@ -365,6 +371,27 @@ public class DOMUtil {
         return getIdentifierFromString(node, getStringAttribute(node, localName));
     }
 
+    /**
+     * Gets the <code>Identifier</code> in the given attribute, making it canonical if it is not yet. This is
+     * meant for policies; the <code>getIdentifierAttribute</code> methods never add ids from requests to the
+     * canonical ones.
+     *
+     * @param node the <code>Node</code> holding the attribute
+     * @param localName the name of the attribute
+     * @param bRequired true if a missing attribute is an error
+     * @return the <code>Identifier</code> in the attribute, or null if there is none
+     * @throws DOMStructureException if the attribute is missing but required or is not a valid identifier
+     */
+    public static Identifier getCanonicalIdentifierAttribute(Node node, String localName, boolean bRequired)
+        throws DOMStructureException {
+        return getIdentifierFromString(node, getStringAttribute(node, localName, bRequired), true);
+    }
+
+    public static Identifier getCanonicalIdentifierAttribute(Node node, String localName)
+        throws DOMStructureException {
+        return getIdentifierFromString(node, getStringAttribute(node, localName), true);
+    }
+
     public static Identifier getIdentifierContent(Node node, boolean bRequired) throws DOMStructureException {
         Identifier identifier = getIdentifierFromString(node, node.getTextContent());
         if (bRequired && identifier == null) {
@@ -48,6 +48,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -92,12 +93,12 @@ import org.w3c.dom.Node;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonLocation;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
 
 /**
  * JSONRequest is used to convert JSON into {@link org.apache.openaz.xacml.api.Request} objects. Instances are
@@ -123,6 +124,84 @@ public class JSONRequest {
      */
     private static DataTypeFactory dataTypeFactory = null;
 
+    /*
+     * The JsonFactory shared by every load. It is configured once here and is thread-safe from then on.
+     * TODO - ASSUME that any duplicated component is a bad thing (probably indicating an error in the
+     * incoming JSON)
+     */
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+        .enable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION);
+
+    /*
+     * The ObjectMapper shared by every conversion of a Request to JSON. Its configuration is never changed
+     * after this, so it can be used by many threads at once.
+     */
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+        .setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
+
+    /*
+     * The shorthand names of the default Categories along with their CategoryIds, in the order they are added
+     * to the Request.
+     */
+    private static final String[][] DEFAULT_CATEGORIES = {
+        {
+            "AccessSubject", "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject"
+        },
+        //
+        // Provide backward compatibility for our PEP's
+        //
+        {
+            "Subject", "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject"
+        }, {
+            "Action", "urn:oasis:names:tc:xacml:3.0:attribute-category:action"
+        }, {
+            "Resource", "urn:oasis:names:tc:xacml:3.0:attribute-category:resource"
+        }, {
+            "Environment", "urn:oasis:names:tc:xacml:3.0:attribute-category:environment"
+        }, {
+            "RecipientSubject", "urn:oasis:names:tc:xacml:1.0:subject-category:recipient-subject"
+        }, {
+            "IntermediarySubject", "urn:oasis:names:tc:xacml:1.0:subject-category:intermediary-subject"
+        }, {
+            "Codebase", "urn:oasis:names:tc:xacml:1.0:subject-category:codebase"
+        }, {
+            "RequestingMachine", "urn:oasis:names:tc:xacml:1.0:subject-category:requesting-machine"
+        }
+    };
+
+    /*
+     * The members of the JSON objects in a Request, as read from the input stream before they are checked.
+     * Members of an unexpected JSON type are kept as the plain java objects Jackson would map them to, so the
+     * checks report the same errors no matter in which order the members appear.
+     */
+    private static class ParsedAttribute {
+        private Object attributeId;
+        private Object id;
+        private Object value;
+        private Object issuer;
+        private Object includeInResult;
+        private Object dataType;
+        private List<String> unknownMembers = new ArrayList<String>();
+    }
+
+    private static class ParsedCategory {
+        private Object categoryId;
+        private Object xmlId;
+        private Object attribute;
+        private Object content;
+        private List<String> unknownMembers = new ArrayList<String>();
+    }
+
+    private static class ParsedRequest {
+        private Object category;
+        private Object[] defaultCategories = new Object[DEFAULT_CATEGORIES.length];
+        private Object multiRequests;
+        private Object returnPolicyIdList;
+        private Object combinedDecision;
+        private Object xpathVersion;
+        private List<String> unknownMembers = new ArrayList<String>();
+    }
+
     /*
      * Prevent creation of instances - this class contains only static methods that return other object types.
      */
@@ -161,12 +240,21 @@ public class JSONRequest {
      * used). If anything remains, throw an exception based on the component and the keys left in the map
      */
     private static void checkUnknown(String component, Map<?, ?> map) throws JSONStructureException {
-        if (map.size() == 0) {
+        checkUnknown(component, map.keySet());
+    }
+
+    /**
+     * Check the given collection of member names that were not recognized while reading a JSON object. If
+     * there are any, throw an exception based on the component and those names.
+     */
+    private static void checkUnknown(String component, Collection<?> keyCollection)
+        throws JSONStructureException {
+        if (keyCollection.size() == 0) {
             return;
         }
 
         String keys = null;
-        Iterator<?> it = map.keySet().iterator();
+        Iterator<?> it = keyCollection.iterator();
         while (it.hasNext()) {
             if (keys == null) {
                 keys = "'" + it.next().toString() + "'";
@@ -175,7 +263,8 @@ public class JSONRequest {
             }
         }
 
-        String message = component + " contains unknown element" + ((map.size() == 1) ? " " : "s ") + keys;
+        String message = component + " contains unknown element" + ((keyCollection.size() == 1) ? " " : "s ")
+                         + keys;
         throw new JSONStructureException(message);
     }
 
@@ -203,7 +292,7 @@ public class JSONRequest {
             throw new JSONStructureException("XPathCategory or XPath missing or 0-length");
         }
 
-        Identifier xpathCategoryId = new IdentifierImpl(xpathCategoryString);
+        Identifier xpathCategoryId = IdentifierImpl.lookup(xpathCategoryString);
 
         // get the Namespaces, if any.
         // Use StringNamespaceContext because we need to use the add functions to incrementally add the
@@ -316,19 +405,20 @@ public class JSONRequest {
      * @param stdMutableRequest
      * @throws JSONStructureException
      */
-    private static List<Attribute> parseAttribute(Identifier categoryID, ArrayList<?> attributes)
+    private static List<Attribute> parseAttribute(Identifier categoryID, List<?> attributes)
         throws JSONStructureException {
         Iterator<?> iterAttributes = attributes.iterator();
 
         List<Attribute> collectedAttributes = new ArrayList<Attribute>();
 
         while (iterAttributes.hasNext()) {
-            Map<?, ?> attributeMap = (Map<?, ?>)iterAttributes.next();
-            if (!(attributeMap instanceof Map)) {
+            Object parsedAttribute = iterAttributes.next();
+            if (!(parsedAttribute instanceof ParsedAttribute)) {
                 throw new JSONStructureException("Expect Attribute content to be Map got "
-                                                 + attributeMap.getClass());
+                                                 + (parsedAttribute == null ? null : parsedAttribute
+                                                     .getClass()));
             }
-            Attribute attribute = parseAttribute(categoryID, attributeMap);
+            Attribute attribute = parseAttribute(categoryID, (ParsedAttribute)parsedAttribute);
             collectedAttributes.add(attribute);
         }
 
@@ -337,15 +427,14 @@ public class JSONRequest {
     }
 
     /**
-     * Given the map of the parsed JSON representation of an Attribute, create the Attribute from the map.
+     * Given the members read from the JSON representation of an Attribute, create the Attribute from them.
      *
      * @param categoryID
-     * @param attributeMap
-     * @param stdMutableRequest
+     * @param parsedAttribute
      * @return
      * @throws JSONStructureException
      */
-    private static Attribute parseAttribute(Identifier categoryID, Map<?, ?> attributeMap)
+    private static Attribute parseAttribute(Identifier categoryID, ParsedAttribute parsedAttribute)
         throws JSONStructureException {
 
         // TODO - ASSUME that the spec will remove the requirement that we MUST "handle" JavaScript special
@@ -353,7 +442,7 @@ public class JSONRequest {
 
         // TODO - ASSUME that the spec will fix inconsistency between AttributeId and Id (both are mentioned),
         // but we have code using both so allow both on input.
-        Object idString = attributeMap.remove("AttributeId");
+        Object idString = parsedAttribute.attributeId;
         if (idString == null) {
             //
             // This is an annoying message, and since we have PEP's that already use it
@@ -362,13 +451,13 @@ public class JSONRequest {
             if (logger.isDebugEnabled()) {
                 logger.debug("Attribute missing AttributeId, looking for Id");
             }
-            idString = attributeMap.remove("Id");
+            idString = parsedAttribute.id;
             if (idString == null) {
                 throw new JSONStructureException("Attribute missing AttributeId (and Id)");
             }
         } else {
             // we have the AttributeId - should not also have Id
-            if (attributeMap.remove("Id") != null) {
+            if (parsedAttribute.id != null) {
                 throw new JSONStructureException("Found both AttributeId '" + idString
                                                  + "' and Id field.  Please use only AttributeId.");
             }
@@ -376,16 +465,16 @@ public class JSONRequest {
         if (!(idString instanceof String)) {
             throw new JSONStructureException("AttributeId must be String, got " + idString.getClass());
         }
-        Identifier id = new IdentifierImpl(idString.toString());
+        Identifier id = IdentifierImpl.lookup(idString.toString());
 
-        Object Value = attributeMap.remove("Value");
+        Object Value = parsedAttribute.value;
         if (Value == null) {
             throw new JSONStructureException("Attribute missing Value");
         }
 
-        String Issuer = (String)attributeMap.remove("Issuer");
+        String Issuer = (String)parsedAttribute.issuer;
 
-        Object includeInResultObject = attributeMap.remove("IncludeInResult");
+        Object includeInResultObject = parsedAttribute.includeInResult;
         Boolean includeInResult = makeBoolean(includeInResultObject, "IncludeInResult");
         if (includeInResult == null) {
             includeInResult = Boolean.FALSE;
@@ -399,7 +488,7 @@ public class JSONRequest {
         // - arrays must all use the same DataType
         // - we are limited in the data types that the Jackson parser is able to infer
         //
-        Object DataType = attributeMap.remove("DataType");
+        Object DataType = parsedAttribute.dataType;
         if (DataType != null && !(DataType instanceof String)) {
             throw new JSONStructureException("DataType must be String, got " + DataType.getClass());
         }
@@ -564,7 +653,8 @@ public class JSONRequest {
                                              + "' to type '" + dataTypeId.stringValue() + "'");
         }
 
-        checkUnknown(id.stringValue() + "Attribute '" + idString.toString() + "'", attributeMap);
+        checkUnknown(id.stringValue() + "Attribute '" + idString.toString() + "'",
+                     parsedAttribute.unknownMembers);
 
         return attribute;
     }
@@ -606,15 +696,15 @@ public class JSONRequest {
     /**
      * Helper to parse all components of one Category or default Category
      *
-     * @param categoryMap
+     * @param parsedCategory
      * @param request
      */
-    private static void parseCategory(Map<?, ?> categoryMap, String categoryName,
+    private static void parseCategory(ParsedCategory parsedCategory, String categoryName,
                                       Identifier defaultCategoryId, StdMutableRequest stdMutableRequest)
         throws JSONStructureException {
 
         Identifier categoryId = defaultCategoryId;
-        Object categoryIDString = ((Map<?, ?>)categoryMap).remove("CategoryId");
+        Object categoryIDString = parsedCategory.categoryId;
         if (categoryIDString == null && defaultCategoryId == null) {
             throw new JSONStructureException("Category is missing CategoryId");
         }
@@ -624,7 +714,7 @@ public class JSONRequest {
                                                  + categoryIDString.getClass());
             } else {
                 // TODO Spec says CategoryId may be shorthand, but none have been specified
-                categoryId = new IdentifierImpl(categoryIDString.toString());
+                categoryId = IdentifierImpl.lookup(categoryIDString.toString());
             }
         }
         // if we know the category, make sure user gave correct Id
@@ -635,20 +725,17 @@ public class JSONRequest {
         }
 
         // get the Id, a.k.a xmlId
-        String xmlId = (String)((Map<?, ?>)categoryMap).remove("Id");
+        String xmlId = (String)parsedCategory.xmlId;
 
         // get the Attributes for this Category, if any
         List<Attribute> attributeList = new ArrayList<Attribute>();
-        Object attributesMap = ((Map<?, ?>)categoryMap).remove("Attribute");
+        Object attributesMap = parsedCategory.attribute;
         if (attributesMap != null) {
-            if (attributesMap instanceof ArrayList) {
-                attributeList = parseAttribute(categoryId, (ArrayList<?>)attributesMap);
-            } else if (attributesMap instanceof Map) {
-                // underlying code expects only collections of Attributes, so create a collection of one to
-                // pass this single value
-                ArrayList<Map<?, ?>> listForOne = new ArrayList<Map<?, ?>>();
-                listForOne.add((Map<?, ?>)attributesMap);
-                attributeList = parseAttribute(categoryId, listForOne);
+            if (attributesMap instanceof List) {
+                attributeList = parseAttribute(categoryId, (List<?>)attributesMap);
+            } else if (attributesMap instanceof ParsedAttribute) {
+                // a single Attribute object rather than an array of them
+                attributeList.add(parseAttribute(categoryId, (ParsedAttribute)attributesMap));
             } else {
                 throw new JSONStructureException("Category '" + categoryName
                                                  + "' saw unexpected Attribute class "
@@ -658,7 +745,7 @@ public class JSONRequest {
 
         // Get the Content node for this Category, if any
         Node contentRootNode = null;
-        Object content = categoryMap.remove("Content");
+        Object content = parsedCategory.content;
         if (content != null) {
             if (content instanceof String) {
                 //
@@ -713,7 +800,7 @@ public class JSONRequest {
             }
         }
 
-        checkUnknown(categoryName, categoryMap);
+        checkUnknown(categoryName, parsedCategory.unknownMembers);
 
         StdMutableRequestAttributes attributeCategory = new StdMutableRequestAttributes(categoryId,
                                                                                         attributeList,
@@ -728,34 +815,35 @@ public class JSONRequest {
      * Load the "Default Category" objects, if any. This is used for the special cases of AccessSubject,
      * Action, Resource, and Environment
      *
-     * @param jsonRequestMap
+     * @param categoryMap
      * @param categoryName
      * @param categoryIdString
      * @param stdMutableRequest
      * @throws JSONStructureException
      */
-    private static void parseDefaultCategory(Map<?, ?> jsonRequestMap, String categoryName,
+    private static void parseDefaultCategory(Object categoryMap, String categoryName,
                                              String categoryIdString, StdMutableRequest stdMutableRequest)
         throws JSONStructureException {
-        Object categoryMap = jsonRequestMap.remove(categoryName);
         if (categoryMap != null) {
-            Identifier defaultIdentifier = new IdentifierImpl(categoryIdString);
-            // The contents may be either a single item (whose attributes are in a Map)
+            Identifier defaultIdentifier = IdentifierImpl.lookup(categoryIdString);
+            // The contents may be either a single item (whose attributes are in an object)
             // or a list of items
-            if (categoryMap instanceof Map) {
+            if (categoryMap instanceof ParsedCategory) {
                 // default category contains a single object
-                parseCategory((Map<?, ?>)categoryMap, categoryName, defaultIdentifier, stdMutableRequest);
+                parseCategory((ParsedCategory)categoryMap, categoryName, defaultIdentifier,
+                              stdMutableRequest);
             } else if (categoryMap instanceof List) {
                 // Array (for Multiple Decision) of this default category - create separate element for each
                 // item in list using same CategoryId for all
                 List<?> categoryList = (List<?>)categoryMap;
                 for (Object subCategory : categoryList) {
-                    if (!(subCategory instanceof Map)) {
+                    if (!(subCategory instanceof ParsedCategory)) {
                         throw new JSONStructureException(
                                                          categoryName
                                                              + " array can only contain objects within curly braces");
                     }
-                    parseCategory((Map<?, ?>)subCategory, categoryName, defaultIdentifier, stdMutableRequest);
+                    parseCategory((ParsedCategory)subCategory, categoryName, defaultIdentifier,
+                                  stdMutableRequest);
                 }
             } else {
                 // do not understand this
@@ -767,6 +855,182 @@ public class JSONRequest {
 
     }
 
+    //
+    // READING the JSON input
+    //
+
+    /**
+     * Read the JSON value at the current token of the parser into the plain java objects Jackson maps untyped
+     * JSON to: objects become Maps, arrays become Lists, and numbers become Integer, Long, BigInteger or
+     * Double. A JSON null is returned as null.
+     *
+     * @param parser
+     * @return
+     * @throws IOException
+     */
+    private static Object readValue(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+        case START_OBJECT:
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                map.put(name, readValue(parser));
+            }
+            return map;
+        case START_ARRAY:
+            List<Object> list = new ArrayList<Object>();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                list.add(readValue(parser));
+            }
+            return list;
+        case VALUE_STRING:
+            return parser.getText();
+        case VALUE_NUMBER_INT:
+            return parser.getNumberValue();
+        case VALUE_NUMBER_FLOAT:
+            return parser.getDoubleValue();
+        case VALUE_TRUE:
+            return Boolean.TRUE;
+        case VALUE_FALSE:
+            return Boolean.FALSE;
+        case VALUE_EMBEDDED_OBJECT:
+            return parser.getEmbeddedObject();
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Read the members of an Attribute object. The parser is positioned on the START_OBJECT token.
+     *
+     * @param parser
+     * @return
+     * @throws IOException
+     */
+    private static ParsedAttribute readAttribute(JsonParser parser) throws IOException {
+        ParsedAttribute parsedAttribute = new ParsedAttribute();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if ("AttributeId".equals(name)) {
+                parsedAttribute.attributeId = readValue(parser);
+            } else if ("Id".equals(name)) {
+                parsedAttribute.id = readValue(parser);
+            } else if ("Value".equals(name)) {
+                parsedAttribute.value = readValue(parser);
+            } else if ("Issuer".equals(name)) {
+                parsedAttribute.issuer = readValue(parser);
+            } else if ("IncludeInResult".equals(name)) {
+                parsedAttribute.includeInResult = readValue(parser);
+            } else if ("DataType".equals(name)) {
+                parsedAttribute.dataType = readValue(parser);
+            } else {
+                parsedAttribute.unknownMembers.add(name);
+                parser.skipChildren();
+            }
+        }
+        return parsedAttribute;
+    }
+
+    /**
+     * Read the members of a Category object. The parser is positioned on the START_OBJECT token.
+     *
+     * @param parser
+     * @return
+     * @throws IOException
+     */
+    private static ParsedCategory readCategory(JsonParser parser) throws IOException {
+        ParsedCategory parsedCategory = new ParsedCategory();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("CategoryId".equals(name)) {
+                parsedCategory.categoryId = readValue(parser);
+            } else if ("Id".equals(name)) {
+                parsedCategory.xmlId = readValue(parser);
+            } else if ("Attribute".equals(name)) {
+                if (token == JsonToken.START_OBJECT) {
+                    parsedCategory.attribute = readAttribute(parser);
+                } else if (token == JsonToken.START_ARRAY) {
+                    List<Object> attributes = new ArrayList<Object>();
+                    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                        attributes.add(token == JsonToken.START_OBJECT ? readAttribute(parser)
+                            : readValue(parser));
+                    }
+                    parsedCategory.attribute = attributes;
+                } else {
+                    parsedCategory.attribute = readValue(parser);
+                }
+            } else if ("Content".equals(name)) {
+                parsedCategory.content = readValue(parser);
+            } else {
+                parsedCategory.unknownMembers.add(name);
+                parser.skipChildren();
+            }
+        }
+        return parsedCategory;
+    }
+
+    /**
+     * Read an array of Category objects. The parser is positioned on the START_ARRAY token.
+     *
+     * @param parser
+     * @return
+     * @throws IOException
+     */
+    private static List<Object> readCategories(JsonParser parser) throws IOException {
+        List<Object> categories = new ArrayList<Object>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            categories.add(token == JsonToken.START_OBJECT ? readCategory(parser) : readValue(parser));
+        }
+        return categories;
+    }
+
+    /**
+     * Read the members of the Request object. The parser is positioned on the START_OBJECT token.
+     *
+     * @param parser
+     * @return
+     * @throws IOException
+     */
+    private static ParsedRequest readRequest(JsonParser parser) throws IOException {
+        ParsedRequest parsedRequest = new ParsedRequest();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("Category".equals(name)) {
+                parsedRequest.category = token == JsonToken.START_ARRAY ? readCategories(parser)
+                    : readValue(parser);
+            } else if ("MultiRequests".equals(name)) {
+                parsedRequest.multiRequests = readValue(parser);
+            } else if ("ReturnPolicyIdList".equals(name)) {
+                parsedRequest.returnPolicyIdList = readValue(parser);
+            } else if ("CombinedDecision".equals(name)) {
+                parsedRequest.combinedDecision = readValue(parser);
+            } else if ("XPathVersion".equals(name)) {
+                parsedRequest.xpathVersion = readValue(parser);
+            } else {
+                int i = 0;
+                while (i < DEFAULT_CATEGORIES.length && !DEFAULT_CATEGORIES[i][0].equals(name)) {
+                    i++;
+                }
+                if (i == DEFAULT_CATEGORIES.length) {
+                    parsedRequest.unknownMembers.add(name);
+                    parser.skipChildren();
+                } else if (token == JsonToken.START_OBJECT) {
+                    parsedRequest.defaultCategories[i] = readCategory(parser);
+                } else if (token == JsonToken.START_ARRAY) {
+                    parsedRequest.defaultCategories[i] = readCategories(parser);
+                } else {
+                    parsedRequest.defaultCategories[i] = readValue(parser);
+                }
+            }
+        }
+        return parsedRequest;
+    }
+
     //
     // Primary interface methods
     //
@@ -780,8 +1044,8 @@ public class JSONRequest {
      */
     public static Request load(String jsonString) throws JSONStructureException {
         Request request = null;
-        try (InputStream is = new ByteArrayInputStream(jsonString.getBytes("UTF-8"))) {
-            request = JSONRequest.load(is);
+        try (JsonParser parser = JSON_FACTORY.createParser(jsonString)) {
+            request = JSONRequest.load(parser);
         } catch (Exception ex) {
             throw new JSONStructureException("Exception loading String Request: " + ex.getMessage(), ex);
         }
@@ -792,7 +1056,7 @@ public class JSONRequest {
      * Read a file containing the JSON description of a XACML Request and parse it into a
      * {@link org.apache.openaz.xacml.api.Request} Object. This is only used for testing. In normal operation a
      * Request arrives through the RESTful interface and is processed using
-     * <code>load(String jsonString)</code>.
+     * <code>load(InputStream is)</code>.
      *
      * @param fileRequest
      * @return
@@ -810,13 +1074,32 @@ public class JSONRequest {
 
     /**
      * Read characters from the given <code>InputStream</code> and parse them into an XACML
-     * {@link org.apache.openaz.xacml.api.Request} object.
+     * {@link org.apache.openaz.xacml.api.Request} object. The input is parsed as it is read, without first
+     * copying it into a <code>String</code>. The <code>InputStream</code> is closed when done.
      *
      * @param is
      * @return
      * @throws JSONStructureException
      */
     public static Request load(InputStream is) throws JSONStructureException {
+        try (JsonParser parser = JSON_FACTORY.createParser(is)) {
+            return JSONRequest.load(parser);
+        } catch (IOException e) {
+            throw new JSONStructureException("Unable to read JSON input, exception: " + e, e);
+        }
+    }
+
+    /**
+     * Read the JSON input from the given <code>JsonParser</code> and parse it into an XACML
+     * {@link org.apache.openaz.xacml.api.Request} object. The members of the Request are first read in the
+     * order they appear in the input, then checked and added to the Request in a fixed order.
+     *
+     * @param parser
+     * @return
+     * @throws JSONStructureException
+     * @throws IOException
+     */
+    private static Request load(JsonParser parser) throws JSONStructureException, IOException {
 
         // TODO - ASSUME that order of members within an object does not matter (Different from XML, in JSON
         // everything is handled as Maps so order does not matter)
@@ -838,270 +1121,214 @@ public class JSONRequest {
             }
         }
 
-        // create a new Request object to be filled in
-        StdMutableRequest stdMutableRequest = null;
-
-        String json = null;
-        ObjectMapper mapper = null;
+        //
+        // Read the top-level object
+        //
+        Object jsonRequest = null;
+        List<String> unknownMembers = new ArrayList<String>();
         try {
-
-            // read the inputStream into a buffer (trick found online scans entire input looking for
-            // end-of-file)
-            java.util.Scanner scanner = new java.util.Scanner(is);
-            scanner.useDelimiter("\\A");
-            json = scanner.hasNext() ? scanner.next() : "";
-            scanner.close();
-
-            mapper = new ObjectMapper().setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
-
-            // TODO - ASSUME that any duplicated component is a bad thing (probably indicating an error in the
-            // incoming JSON)
-            mapper.configure(JsonParser.Feature.STRICT_DUPLICATE_DETECTION, true);
-
-            Map<?, ?> root = mapper.readValue(json, Map.class);
-
-            //
-            // Does the request exist?
-            //
-            Map<?, ?> jsonRequestMap = (Map<?, ?>)root.remove("Request");
-            if (jsonRequestMap == null) {
-                throw new JSONStructureException("No \"Request\" property found.");
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                throw new JSONStructureException("No JSON content found");
+            } else if (token != JsonToken.START_OBJECT) {
+                throw new JSONStructureException("Expected JSON object, got " + token);
             }
-
-            checkUnknown("Top-level message", root);
-
-            stdMutableRequest = new StdMutableRequest();
-
-            //
-            // Is there a Category?
-            //
-            Object categoryList = jsonRequestMap.remove("Category");
-            if (categoryList != null && !(categoryList instanceof List)) {
-                throw new JSONStructureException("Category must contain list of objects, not '"
-                                                 + categoryList.getClass() + "'");
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                token = parser.nextToken();
+                if ("Request".equals(name)) {
+                    jsonRequest = token == JsonToken.START_OBJECT ? readRequest(parser) : readValue(parser);
+                } else {
+                    unknownMembers.add(name);
+                    parser.skipChildren();
+                }
             }
-            if (categoryList != null) {
-                //
-                // Iterate each Category
-                //
-                Iterator<?> iter = ((List<?>)categoryList).iterator();
-                while (iter.hasNext()) {
-                    Object category = iter.next();
-                    if (!(category instanceof Map)) {
-                        throw new JSONStructureException(
-                                                         "Category list must contain objects contained within curly braces ({})");
-                    }
+        } catch (JsonParseException e) {
+            // try to point to problem area in JSON input, if possible
+            JsonLocation location = e.getLocation();
+            String locationOfError = "(unavailable)";
+            if (location != null && location != JsonLocation.NA) {
+                locationOfError = "line " + location.getLineNr() + " column " + location.getColumnNr();
+            }
+            throw new JSONStructureException("Unable to parse JSON at " + locationOfError + ", exception: "
+                                             + e, e);
+        }
 
-                    parseCategory((Map<?, ?>)category, "Category", null, stdMutableRequest);
+        //
+        // Does the request exist?
+        //
+        if (jsonRequest == null) {
+            throw new JSONStructureException("No \"Request\" property found.");
+        }
+        if (!(jsonRequest instanceof ParsedRequest)) {
+            throw new JSONStructureException("\"Request\" must be an object, not '" + jsonRequest.getClass()
+                                             + "'");
+        }
+        ParsedRequest parsedRequest = (ParsedRequest)jsonRequest;
 
-                }
-            }
+        checkUnknown("Top-level message", unknownMembers);
 
-            // The following may be either a single instance or an array. This allows multiple decisions to
-            // work with the Default Category objects.
-            // Example:
-            // "AccessSubject" : [ {attributes group one},
-            // {attributes group two}
-            // ]
+        // create a new Request object to be filled in
+        StdMutableRequest stdMutableRequest = new StdMutableRequest();
 
+        //
+        // Is there a Category?
+        //
+        Object categoryList = parsedRequest.category;
+        if (categoryList != null && !(categoryList instanceof List)) {
+            throw new JSONStructureException("Category must contain list of objects, not '"
+                                             + categoryList.getClass() + "'");
+        }
+        if (categoryList != null) {
             //
-            // Look for default Shorthand AccessSubject
-            //
-            parseDefaultCategory(jsonRequestMap, "AccessSubject",
-                                 "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject",
-                                 stdMutableRequest);
-            //
-            // Provide backward compatibility for our PEP's
+            // Iterate each Category
             //
-            parseDefaultCategory(jsonRequestMap, "Subject",
-                                 "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject",
-                                 stdMutableRequest);
+            Iterator<?> iter = ((List<?>)categoryList).iterator();
+            while (iter.hasNext()) {
+                Object category = iter.next();
+                if (!(category instanceof ParsedCategory)) {
+                    throw new JSONStructureException(
+                                                     "Category list must contain objects contained within curly braces ({})");
+                }
 
-            //
-            // Look for default Shorthand Action
-            //
-            parseDefaultCategory(jsonRequestMap, "Action",
-                                 "urn:oasis:names:tc:xacml:3.0:attribute-category:action", stdMutableRequest);
+                parseCategory((ParsedCategory)category, "Category", null, stdMutableRequest);
 
-            //
-            // Look for default Shorthand Resource
-            //
-            parseDefaultCategory(jsonRequestMap, "Resource",
-                                 "urn:oasis:names:tc:xacml:3.0:attribute-category:resource",
-                                 stdMutableRequest);
+            }
+        }
 
-            //
-            // Look for default Shorthand Environment
-            //
-            parseDefaultCategory(jsonRequestMap, "Environment",
-                                 "urn:oasis:names:tc:xacml:3.0:attribute-category:environment",
-                                 stdMutableRequest);
+        // The following may be either a single instance or an array. This allows multiple decisions to
+        // work with the Default Category objects.
+        // Example:
+        // "AccessSubject" : [ {attributes group one},
+        // {attributes group two}
+        // ]
 
-            //
-            // Look for default Shorthand RecipientSubject
-            //
-            parseDefaultCategory(jsonRequestMap, "RecipientSubject",
-                                 "urn:oasis:names:tc:xacml:1.0:subject-category:recipient-subject",
-                                 stdMutableRequest);
+        //
+        // Look for the default Shorthand categories AccessSubject, Action, Resource, etc.
+        //
+        for (int i = 0; i < DEFAULT_CATEGORIES.length; i++) {
+            parseDefaultCategory(parsedRequest.defaultCategories[i], DEFAULT_CATEGORIES[i][0],
+                                 DEFAULT_CATEGORIES[i][1], stdMutableRequest);
+        }
 
-            //
-            // Look for default Shorthand IntermediarySubject
-            //
-            parseDefaultCategory(jsonRequestMap, "IntermediarySubject",
-                                 "urn:oasis:names:tc:xacml:1.0:subject-category:intermediary-subject",
-                                 stdMutableRequest);
+        //
+        // MultiRequest
+        //
+        Object multiRequestsObject = parsedRequest.multiRequests;
+        if (multiRequestsObject != null) {
+            if (!(multiRequestsObject instanceof Map)) {
+                throw new JSONStructureException("MultiRequests must be object structure, not single value");
+            }
+            Map<?, ?> multiRequests = (Map<?, ?>)multiRequestsObject;
 
-            //
-            // Look for default Shorthand Codebase
-            //
-            parseDefaultCategory(jsonRequestMap, "Codebase",
-                                 "urn:oasis:names:tc:xacml:1.0:subject-category:codebase", stdMutableRequest);
+            Object requestReferenceListObject = multiRequests.remove("RequestReference");
+            if (requestReferenceListObject == null) {
+                throw new JSONStructureException("MultiRequest must contain a RequestReference element");
+            }
+            if (!(requestReferenceListObject instanceof List)) {
+                throw new JSONStructureException("MultiRequest RequestReference must be an array");
+            }
+            List<?> requestReferenceList = (List<?>)requestReferenceListObject;
+            if (requestReferenceList.size() < 1) {
+                throw new JSONStructureException(
+                                                 "MultiRequest must contain at least one element in the RequestReference list");
+            }
 
-            //
-            // Look for default Shorthand RequestingMachine
-            //
-            parseDefaultCategory(jsonRequestMap, "RequestingMachine",
-                                 "urn:oasis:names:tc:xacml:1.0:subject-category:requesting-machine",
-                                 stdMutableRequest);
+            checkUnknown("MultiRequest", multiRequests);
 
-            //
-            // MultiRequest
-            //
-            Map<?, ?> multiRequests = (Map<?, ?>)jsonRequestMap.remove("MultiRequests");
-            if (multiRequests != null) {
-                if (!(multiRequests instanceof Map)) {
-                    throw new JSONStructureException(
-                                                     "MultiRequests must be object structure, not single value");
+            for (Object requestReferenceMapObject : requestReferenceList) {
+                if (!(requestReferenceMapObject instanceof Map)) {
+                    throw new JSONStructureException("MultiRequest RequestReference must be object");
                 }
+                Map<?, ?> requestReferenceMap = (Map<?, ?>)requestReferenceMapObject;
 
-                List<?> requestReferenceList = (List<?>)multiRequests.remove("RequestReference");
-                if (requestReferenceList == null) {
-                    throw new JSONStructureException("MultiRequest must contain a RequestReference element");
-                }
-                if (requestReferenceList.size() < 1) {
+                // each object within the list must contain a ReferenceId and only a ReferenceId
+                Object referenceIdListObject = requestReferenceMap.remove("ReferenceId");
+                if (referenceIdListObject == null) {
                     throw new JSONStructureException(
-                                                     "MultiRequest must contain at least one element in the RequestReference list");
+                                                     "MultiRequest RequestReference list element must contain ReferenceId");
+                }
+                if (!(referenceIdListObject instanceof List)) {
+                    throw new JSONStructureException("MultiRequest RequestReference ReferenceId must be an array");
+                }
+                List<?> referenceIdList = (List<?>)referenceIdListObject;
+                if (referenceIdList.size() == 0) {
+                    // the spec does not disallow empty list RequestReference objects
+                    continue;
                 }
 
-                checkUnknown("MultiRequest", multiRequests);
-
-                for (Object requestReferenceMapObject : requestReferenceList) {
-                    if (!(requestReferenceMapObject instanceof Map)) {
-                        throw new JSONStructureException("MultiRequest RequestReference must be object");
-                    }
-                    Map<?, ?> requestReferenceMap = (Map<?, ?>)requestReferenceMapObject;
-
-                    // each object within the list must contain a ReferenceId and only a ReferenceId
-                    Object referenceIdListObject = requestReferenceMap.remove("ReferenceId");
-                    if (referenceIdListObject == null) {
-                        throw new JSONStructureException(
-                                                         "MultiRequest RequestReference list element must contain ReferenceId");
-                    }
-                    List<?> referenceIdList = (List<?>)referenceIdListObject;
-                    if (referenceIdList.size() == 0) {
-                        // the spec does not disallow empty list RequestReference objects
-                        continue;
-                    }
-
-                    checkUnknown("RequestReference", requestReferenceMap);
+                checkUnknown("RequestReference", requestReferenceMap);
 
-                    // create reference corresponding to RequestReference list element
-                    StdMutableRequestReference requestReference = new StdMutableRequestReference();
+                // create reference corresponding to RequestReference list element
+                StdMutableRequestReference requestReference = new StdMutableRequestReference();
 
-                    for (Object referenceId : referenceIdList) {
-                        // add attributes to the reference
-                        // Since the order of the JSON is not constrained, we could process this section
-                        // before the section containing attribute being referenced,
-                        // so we cannot do a cross-check here to verify that the attribute reference exists.
-                        // That will happen later when the PDP attempts to find the attribute.
-                        StdRequestAttributesReference requestAttributesReference = new StdRequestAttributesReference(
-                                                                                                                     (String)referenceId);
-                        requestReference.add(requestAttributesReference);
-                    }
-                    stdMutableRequest.add(requestReference);
+                for (Object referenceId : referenceIdList) {
+                    // add attributes to the reference
+                    // Since the order of the JSON is not constrained, we could process this section
+                    // before the section containing attribute being referenced,
+                    // so we cannot do a cross-check here to verify that the attribute reference exists.
+                    // That will happen later when the PDP attempts to find the attribute.
+                    StdRequestAttributesReference requestAttributesReference = new StdRequestAttributesReference(
+                                                                                                                 (String)referenceId);
+                    requestReference.add(requestAttributesReference);
                 }
+                stdMutableRequest.add(requestReference);
             }
+        }
 
-            //
-            // ReturnPolicyIdList
-            //
-            // If omitted this is set to a default of false by the StdMutableRequest constructor.
-            //
-            Object returnPolicyIdList = jsonRequestMap.remove("ReturnPolicyIdList");
-            Boolean returnPolicyIdListBoolean = makeBoolean(returnPolicyIdList, "ReturnPolicyIdList");
-            if (returnPolicyIdList != null) {
-                stdMutableRequest.setReturnPolicyIdList(returnPolicyIdListBoolean);
-            }
-
-            //
-            // CombinedDecision
-            //
-            // If omitted this is set to a default of false by the StdMutableRequest constructor.
-            //
-            Object combinedDecision = jsonRequestMap.remove("CombinedDecision");
-            Boolean combinedDecisionBoolean = makeBoolean(combinedDecision, "CombinedDecision");
-            if (combinedDecision != null) {
-                stdMutableRequest.setCombinedDecision(combinedDecisionBoolean);
-            }
+        //
+        // ReturnPolicyIdList
+        //
+        // If omitted this is set to a default of false by the StdMutableRequest constructor.
+        //
+        Object returnPolicyIdList = parsedRequest.returnPolicyIdList;
+        Boolean returnPolicyIdListBoolean = makeBoolean(returnPolicyIdList, "ReturnPolicyIdList");
+        if (returnPolicyIdList != null) {
+            stdMutableRequest.setReturnPolicyIdList(returnPolicyIdListBoolean);
+        }
 
-            //
-            // XPath
-            //
+        //
+        // CombinedDecision
+        //
+        // If omitted this is set to a default of false by the StdMutableRequest constructor.
+        //
+        Object combinedDecision = parsedRequest.combinedDecision;
+        Boolean combinedDecisionBoolean = makeBoolean(combinedDecision, "CombinedDecision");
+        if (combinedDecision != null) {
+            stdMutableRequest.setCombinedDecision(combinedDecisionBoolean);
+        }
 
-            // The JSON spec says that this has a default value, implying that if it is missing in the Request
-            // we should fill it in.
-            // However the XML (DOM) version does not do that. If the value is missing it leaves the
-            // requestDefaults object blank.
-            // We are following the XML approach and ignoring the Default value for this field in the spec.
-
-            // TODO - Assume that no value for XPathVersion means "leave as null", not "fill in the default
-            // value from spec. This violates the JSON spec
-            Object xPath = jsonRequestMap.remove("XPathVersion");
-            if (xPath != null) {
-                // XPath is given in the JSON input
-                if (!(xPath instanceof String)) {
-                    throw new JSONStructureException("XPathVersion not a URI passed as a String");
-                }
-                URI xPathUri = null;
-                try {
-                    xPathUri = new URI(xPath.toString());
-                } catch (Exception e) {
-                    throw new JSONStructureException("XPathVersion not a valid URI: '" + xPath + "'", e);
-                }
+        //
+        // XPath
+        //
 
-                StdRequestDefaults requestDefaults = new StdRequestDefaults(xPathUri);
-                stdMutableRequest.setRequestDefaults(requestDefaults);
+        // The JSON spec says that this has a default value, implying that if it is missing in the Request
+        // we should fill it in.
+        // However the XML (DOM) version does not do that. If the value is missing it leaves the
+        // requestDefaults object blank.
+        // We are following the XML approach and ignoring the Default value for this field in the spec.
+
+        // TODO - Assume that no value for XPathVersion means "leave as null", not "fill in the default
+        // value from spec. This violates the JSON spec
+        Object xPath = parsedRequest.xpathVersion;
+        if (xPath != null) {
+            // XPath is given in the JSON input
+            if (!(xPath instanceof String)) {
+                throw new JSONStructureException("XPathVersion not a URI passed as a String");
             }
-
-            checkUnknown("Request", jsonRequestMap);
-
-        } catch (JsonParseException e) {
-            // try to point to problem area in JSON input, if possible
-            JsonLocation location = e.getLocation();
-            String locationOfError = "(unavailable)";
-            if (location != null && location != JsonLocation.NA) {
-                String jsonText = json;
-                if (location.getLineNr() > 1) {
-                    String[] jsonArray = jsonText.split("\\r?\\n|\\r");
-                    jsonText = jsonArray[location.getLineNr()];
-                }
-                if (location.getCharOffset() < jsonText.length()) {
-                    if (location.getCharOffset() > 0) {
-                        locationOfError = jsonText.substring((int)location.getCharOffset() - 1);
-                    }
-                    if (locationOfError.length() > 30) {
-                        locationOfError = locationOfError.substring(0, 30);
-                    }
-                }
+            URI xPathUri = null;
+            try {
+                xPathUri = new URI(xPath.toString());
+            } catch (Exception e) {
+                throw new JSONStructureException("XPathVersion not a valid URI: '" + xPath + "'", e);
             }
-            throw new JSONStructureException("Unable to parse JSON starting at text'" + locationOfError
-                                             + "', input was '" + json + "', exception: " + e, e);
-        } catch (JsonMappingException e) {
-            throw new JSONStructureException("Unable to map JSON '" + json + "', exception: " + e, e);
-        } catch (IOException e) {
-            throw new JSONStructureException("Unable to read JSON input, exception: " + e, e);
+
+            StdRequestDefaults requestDefaults = new StdRequestDefaults(xPathUri);
+            stdMutableRequest.setRequestDefaults(requestDefaults);
         }
 
+        checkUnknown("Request", parsedRequest.unknownMembers);
+
         // all done
         return new StdRequest(stdMutableRequest);
     }
@@ -1328,12 +1555,11 @@ public class JSONRequest {
         //
         // Create a string buffer
         //
-        ObjectMapper mapper = new ObjectMapper().setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
-        mapper.configure(SerializationFeature.INDENT_OUTPUT, prettyPrint);
         try (OutputStreamWriter osw = new OutputStreamWriter(outputStream)) {
 
             // convert the request to json string
-            String json = mapper.writeValueAsString(theWholeRequest);
+            String json = prettyPrint ? OBJECT_MAPPER.writerWithDefaultPrettyPrinter()
+                .writeValueAsString(theWholeRequest) : OBJECT_MAPPER.writeValueAsString(theWholeRequest);
 
             // write it
             osw.write(json);
@@ -0,0 +1,508 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.std.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Iterator;
+
+import javax.security.auth.x500.X500Principal;
+import javax.xml.XMLConstants;
+
+import org.apache.openaz.xacml.api.Advice;
+import org.apache.openaz.xacml.api.Attribute;
+import org.apache.openaz.xacml.api.AttributeAssignment;
+import org.apache.openaz.xacml.api.AttributeCategory;
+import org.apache.openaz.xacml.api.AttributeValue;
+import org.apache.openaz.xacml.api.Decision;
+import org.apache.openaz.xacml.api.IdReference;
+import org.apache.openaz.xacml.api.Identifier;
+import org.apache.openaz.xacml.api.MissingAttributeDetail;
+import org.apache.openaz.xacml.api.Obligation;
+import org.apache.openaz.xacml.api.Response;
+import org.apache.openaz.xacml.api.Result;
+import org.apache.openaz.xacml.api.SemanticString;
+import org.apache.openaz.xacml.api.Status;
+import org.apache.openaz.xacml.api.StatusCode;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.std.StdStatusCode;
+import org.apache.openaz.xacml.std.datatypes.DataTypes;
+import org.apache.openaz.xacml.std.datatypes.ExtendedNamespaceContext;
+import org.apache.openaz.xacml.std.datatypes.XPathExpressionWrapper;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * JSONResponseWriter writes {@link org.apache.openaz.xacml.api.Response} objects as XACML 3.0 JSON directly
+ * to an <code>OutputStream</code> using a Jackson <code>JsonGenerator</code>, without first building a tree of
+ * Maps or a <code>String</code> of the whole Response. It writes the same members as
+ * {@link JSONResponse#convert(Response, OutputStream, boolean)}, always in the same order, so the output can
+ * be read back with {@link JSONResponse#load(java.io.InputStream)}.
+ * <p>
+ * The Response is checked as it is written, so if it is not valid some of it may already have been written
+ * when the <code>JSONStructureException</code> is thrown.
+ */
+public class JSONResponseWriter {
+    /*
+     * The JsonFactory shared by every write. It is never reconfigured, so it can be used by many threads at
+     * once.
+     */
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    /*
+     * Prevent creation of instances - this class contains only static methods.
+     */
+    protected JSONResponseWriter() {
+    }
+
+    /**
+     * Write the given {@link org.apache.openaz.xacml.api.Response} as JSON to the given
+     * <code>OutputStream</code> in UTF-8 without pretty-printing. IMPORTANT: This method does NOT close the
+     * outputStream.
+     *
+     * @param response
+     * @param outputStream
+     * @throws IOException
+     * @throws JSONStructureException
+     */
+    public static void write(Response response, OutputStream outputStream) throws IOException,
+        JSONStructureException {
+        write(response, outputStream, false);
+    }
+
+    /**
+     * Write the given {@link org.apache.openaz.xacml.api.Response} as JSON to the given
+     * <code>OutputStream</code> in UTF-8, pretty-printing if desired. IMPORTANT: This method does NOT close
+     * the outputStream.
+     *
+     * @param response
+     * @param outputStream
+     * @param prettyPrint
+     * @throws IOException
+     * @throws JSONStructureException
+     */
+    public static void write(Response response, OutputStream outputStream, boolean prettyPrint)
+        throws IOException, JSONStructureException {
+        if (response == null) {
+            throw new JSONStructureException("No Request in convert");
+        }
+        if (response.getResults() == null || response.getResults().size() == 0) {
+            // must be at least one result
+            throw new JSONStructureException("No Result in Response");
+        }
+
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream, JsonEncoding.UTF8)) {
+            if (prettyPrint) {
+                generator.useDefaultPrettyPrinter();
+            }
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("Response");
+            for (Result result : response.getResults()) {
+                writeResult(generator, result);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+
+    private static void writeResult(JsonGenerator generator, Result result) throws IOException,
+        JSONStructureException {
+        if (result.getDecision() == null) {
+            throw new JSONStructureException("No Decision in Result");
+        }
+        generator.writeStartObject();
+        generator.writeStringField("Decision", result.getDecision().toString());
+
+        if (result.getStatus() != null) {
+            writeStatus(generator, result.getStatus(), result.getDecision());
+        }
+
+        if (result.getObligations() != null && result.getObligations().size() > 0) {
+            generator.writeArrayFieldStart("Obligations");
+            for (Obligation obligation : result.getObligations()) {
+                if (obligation.getId() == null) {
+                    throw new JSONStructureException("Obligation must have Id");
+                }
+                writeAttributeAssignments(generator, "Obligation", obligation.getId(),
+                                          obligation.getAttributeAssignments());
+            }
+            generator.writeEndArray();
+        }
+
+        if (result.getAssociatedAdvice() != null && result.getAssociatedAdvice().size() > 0) {
+            generator.writeArrayFieldStart("AssociatedAdvice");
+            for (Advice advice : result.getAssociatedAdvice()) {
+                if (advice.getId() == null) {
+                    throw new JSONStructureException("Advice must have Id");
+                }
+                writeAttributeAssignments(generator, "Advice", advice.getId(),
+                                          advice.getAttributeAssignments());
+            }
+            generator.writeEndArray();
+        }
+
+        //
+        // Attributes (note change in name from XML to JSON spec; this is called Category in the XML)
+        //
+        if (result.getAttributes() != null && result.getAttributes().size() > 0) {
+            generator.writeArrayFieldStart("Category");
+            for (AttributeCategory attributeCategory : result.getAttributes()) {
+                generator.writeStartObject();
+                generator.writeStringField("CategoryId", attributeCategory.getCategory().stringValue());
+                if (attributeCategory.getAttributes() != null) {
+                    generator.writeArrayFieldStart("Attribute");
+                    for (Attribute attribute : attributeCategory.getAttributes()) {
+                        if (attribute.getIncludeInResults()) {
+                            writeAttribute(generator, attribute);
+                        }
+                    }
+                    generator.writeEndArray();
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+
+        //
+        // PolicyIdentifier - PolicyIdReference and PolicySetIdReference are separate lists in JSON
+        //
+        boolean hasPolicyIds = result.getPolicyIdentifiers() != null
+                               && result.getPolicyIdentifiers().size() > 0;
+        boolean hasPolicySetIds = result.getPolicySetIdentifiers() != null
+                                  && result.getPolicySetIdentifiers().size() > 0;
+        if (hasPolicyIds || hasPolicySetIds) {
+            generator.writeObjectFieldStart("PolicyIdentifier");
+            if (hasPolicyIds) {
+                writeIdReferences(generator, "PolicyIdReference", result.getPolicyIdentifiers());
+            }
+            if (hasPolicySetIds) {
+                writeIdReferences(generator, "PolicySetIdReference", result.getPolicySetIdentifiers());
+            }
+            generator.writeEndObject();
+        }
+
+        generator.writeEndObject();
+    }
+
+    private static void writeStatus(JsonGenerator generator, Status status, Decision decision)
+        throws IOException, JSONStructureException {
+        // if the StatusCode object as a whole is missing it defaults to OK, but if it exists it must
+        // have an actual code value
+        if (status.getStatusCode() == null) {
+            throw new JSONStructureException("No Identifier given in StatusCode");
+        }
+        Identifier statusCodeId = status.getStatusCode().getStatusCodeValue();
+
+        // if there is a status code, it must agree with the decision
+        // Permit/Deny/NotAllowed must all be OK
+        // Indeterminate must not be OK
+        boolean isOk = statusCodeId.equals(StdStatusCode.STATUS_CODE_OK.getStatusCodeValue());
+        boolean isIndeterminate = decision == Decision.INDETERMINATE
+                                  || decision == Decision.INDETERMINATE_DENY
+                                  || decision == Decision.INDETERMINATE_DENYPERMIT
+                                  || decision == Decision.INDETERMINATE_PERMIT;
+        if (isOk == isIndeterminate) {
+            throw new JSONStructureException("StatusCode '" + statusCodeId.stringValue()
+                                             + "' does not match Decision '" + decision.toString());
+        }
+
+        generator.writeObjectFieldStart("Status");
+        generator.writeFieldName("StatusCode");
+        writeStatusCode(generator, status.getStatusCode());
+        if (status.getStatusMessage() != null) {
+            generator.writeStringField("StatusMessage", status.getStatusMessage());
+        }
+
+        if (status.getStatusDetail() != null) {
+            // cross-check that rules defined in XACML Core spec section 5.5.7 re: when StatusDetail
+            // may/may-not be included have been followed
+            if (status.isOk() || statusCodeId.equals(XACML3.ID_STATUS_SYNTAX_ERROR)
+                || statusCodeId.equals(XACML3.ID_STATUS_PROCESSING_ERROR)) {
+                throw new JSONStructureException("Status '" + statusCodeId.stringValue()
+                                                 + "' must not return StatusDetail");
+            }
+            Collection<MissingAttributeDetail> missingAttributeDetails = status.getStatusDetail()
+                .getMissingAttributeDetails();
+            if (missingAttributeDetails == null) {
+                throw new JSONStructureException(
+                                                 "Unhandled StatusDetail contents (statusDetail exists but is not MissingAttributeDetail)");
+            }
+            if (!statusCodeId.equals(XACML3.ID_STATUS_MISSING_ATTRIBUTE)) {
+                throw new JSONStructureException(
+                                                 "MissingAttributeDetails can only be included when StatusCode is MISSING_ATTRIBUTES, not '"
+                                                     + statusCodeId.stringValue());
+            }
+            // ASSUME that a list of length 0 should be treated as having no MissingAttributeDetails and
+            // ignored. As in JSONResponse the details are written as escaped XML.
+            if (missingAttributeDetails.size() > 0) {
+                StringBuilder statusDetail = new StringBuilder();
+                for (MissingAttributeDetail mad : missingAttributeDetails) {
+                    appendMissingAttributeDetail(statusDetail, mad);
+                }
+                generator.writeStringField("StatusDetail", statusDetail.toString().replace("\\", "\\\\")
+                    .replace("\"", "\\\""));
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    /*
+     * Write a StatusCode object with its one optional child StatusCode, as JSONResponse does.
+     */
+    private static void writeStatusCode(JsonGenerator generator, StatusCode statusCode) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("Value", statusCode.getStatusCodeValue().stringValue());
+        if (statusCode.getChild() != null) {
+            generator.writeFieldName("StatusCode");
+            writeStatusCode(generator, statusCode.getChild());
+        }
+        generator.writeEndObject();
+    }
+
+    private static void appendMissingAttributeDetail(StringBuilder sb, MissingAttributeDetail mad)
+        throws JSONStructureException {
+        if (mad.getCategory() == null || mad.getAttributeId() == null || mad.getDataTypeId() == null) {
+            throw new JSONStructureException(
+                                             "MissingAttributeDetail must have Category, AttributeId and DataType");
+        }
+        sb.append("<MissingAttributeDetail");
+        sb.append(" Category=\"").append(mad.getCategory().stringValue()).append('"');
+        sb.append(" AttributeId=\"").append(mad.getAttributeId().stringValue()).append('"');
+        sb.append(" DataType=\"").append(mad.getDataTypeId().stringValue()).append('"');
+        if (mad.getIssuer() != null) {
+            sb.append(" Issuer=\"").append(mad.getIssuer()).append('"');
+        }
+        sb.append('>');
+        if (mad.getAttributeValues() != null) {
+            for (AttributeValue<?> attributeValue : mad.getAttributeValues()) {
+                sb.append("<AttributeValue DataType=\"").append(attributeValue.getDataTypeId()).append("\">");
+                sb.append(outputString(attributeValue.getValue(), attributeValue));
+                sb.append("</AttributeValue>");
+            }
+        }
+        sb.append("</MissingAttributeDetail>");
+    }
+
+    private static void writeAttributeAssignments(JsonGenerator generator, String name, Identifier id,
+                                                  Collection<AttributeAssignment> attributeAssignments)
+        throws IOException, JSONStructureException {
+        generator.writeStartObject();
+        generator.writeStringField("Id", id.stringValue());
+        if (attributeAssignments != null && attributeAssignments.size() > 0) {
+            generator.writeArrayFieldStart("AttributeAssignment");
+            for (AttributeAssignment attributeAssignment : attributeAssignments) {
+                if (attributeAssignment.getAttributeId() == null) {
+                    throw new JSONStructureException(name + " Attribute must have AttributeId");
+                }
+                generator.writeStartObject();
+                generator.writeStringField("AttributeId", attributeAssignment.getAttributeId().stringValue());
+                if (attributeAssignment.getCategory() != null) {
+                    generator.writeStringField("Category", attributeAssignment.getCategory().stringValue());
+                }
+                if (attributeAssignment.getIssuer() != null) {
+                    generator.writeStringField("Issuer", attributeAssignment.getIssuer());
+                }
+                AttributeValue<?> attributeValue = attributeAssignment.getAttributeValue();
+                if (attributeValue == null || attributeValue.getValue() == null) {
+                    generator.writeStringField("Value", "");
+                } else {
+                    if (attributeValue.getDataTypeId() != null) {
+                        // Don't use shorthand by default, for backwards compatibility to our pep's.
+                        generator.writeStringField("DataType", attributeValue.getDataTypeId().stringValue());
+                    }
+                    generator.writeFieldName("Value");
+                    writeValue(generator, attributeValue.getValue(), attributeValue);
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeAttribute(JsonGenerator generator, Attribute attribute) throws IOException,
+        JSONStructureException {
+        if (attribute.getAttributeId() == null) {
+            throw new JSONStructureException("Attribute must have AttributeId");
+        }
+        if (attribute.getValues() == null || attribute.getValues().size() == 0) {
+            throw new JSONStructureException("Attribute missing required Value");
+        }
+        generator.writeStartObject();
+        generator.writeStringField("AttributeId", attribute.getAttributeId().stringValue());
+
+        Iterator<AttributeValue<?>> valueIterator = attribute.getValues().iterator();
+        Identifier dataTypeId = null;
+        if (attribute.getValues().size() == 1) {
+            AttributeValue<?> attributeValue = valueIterator.next();
+            if (attributeValue == null || attributeValue.getValue() == null) {
+                throw new JSONStructureException("Attribute must have value");
+            }
+            generator.writeFieldName("Value");
+            writeValue(generator, attributeValue.getValue(), attributeValue);
+            dataTypeId = attributeValue.getDataTypeId();
+        } else {
+            // there are multiple values, all of the same DataType except that integers may be mixed with
+            // doubles, which makes the whole list double
+            generator.writeArrayFieldStart("Value");
+            while (valueIterator.hasNext()) {
+                AttributeValue<?> attributeValue = valueIterator.next();
+                if (attributeValue == null || attributeValue.getValue() == null) {
+                    throw new JSONStructureException("Attribute in array must have value");
+                }
+                writeValue(generator, attributeValue.getValue(), attributeValue);
+
+                Identifier valueDataTypeId = attributeValue.getDataTypeId();
+                if (valueDataTypeId == null) {
+                    continue;
+                } else if (dataTypeId == null) {
+                    dataTypeId = valueDataTypeId;
+                } else if (dataTypeId.equals(DataTypes.DT_INTEGER.getId())
+                           && valueDataTypeId.equals(DataTypes.DT_DOUBLE.getId())) {
+                    dataTypeId = valueDataTypeId;
+                } else if (!dataTypeId.equals(valueDataTypeId)
+                           && !(dataTypeId.equals(DataTypes.DT_DOUBLE.getId()) && valueDataTypeId
+                               .equals(DataTypes.DT_INTEGER.getId()))) {
+                    throw new JSONStructureException("Mixed DataTypes in Attribute values, '"
+                                                     + valueDataTypeId.stringValue() + "' in list of '"
+                                                     + dataTypeId.stringValue() + "'");
+                }
+            }
+            generator.writeEndArray();
+        }
+        if (dataTypeId != null) {
+            // Don't use shorthand by default, for backwards compatibility to our pep's.
+            generator.writeStringField("DataType", dataTypeId.stringValue());
+        }
+        if (attribute.getIssuer() != null) {
+            generator.writeStringField("Issuer", attribute.getIssuer());
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeIdReferences(JsonGenerator generator, String name,
+                                          Collection<IdReference> idReferences) throws IOException,
+        JSONStructureException {
+        generator.writeArrayFieldStart(name);
+        for (IdReference idReference : idReferences) {
+            if (idReference == null) {
+                throw new JSONStructureException(name + " with null reference");
+            }
+            generator.writeStartObject();
+            generator.writeStringField("Id", idReference.getId().stringValue());
+            if (idReference.getVersion() != null) {
+                generator.writeStringField("Version", idReference.getVersion().stringValue());
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    /*
+     * Write a single value the way JSONResponse formats it: Booleans, integers and doubles as JSON values,
+     * XPathExpressions as objects, and everything else as strings.
+     */
+    private static void writeValue(JsonGenerator generator, Object obj, AttributeValue<?> attributeValue)
+        throws IOException, JSONStructureException {
+        if (obj instanceof Boolean) {
+            generator.writeBoolean((Boolean)obj);
+        } else if (obj instanceof BigInteger) {
+            generator.writeNumber((BigInteger)obj);
+        } else if (obj instanceof Double) {
+            Double d = (Double)obj;
+            if (d.isNaN()) {
+                generator.writeString("NaN");
+            } else if (d == Double.POSITIVE_INFINITY) {
+                generator.writeString("INF");
+            } else if (d == Double.NEGATIVE_INFINITY) {
+                generator.writeString("-INF");
+            } else {
+                generator.writeNumber(d);
+            }
+        } else if (obj instanceof XPathExpressionWrapper) {
+            Identifier xpathCategoryId = attributeValue.getXPathCategory();
+            if (xpathCategoryId == null) {
+                throw new JSONStructureException("XPathExpression is missing XPathCategory");
+            }
+            XPathExpressionWrapper xw = (XPathExpressionWrapper)obj;
+            generator.writeStartObject();
+            generator.writeStringField("XPathCategory", xpathCategoryId.stringValue());
+            generator.writeStringField("XPath", xw.getPath());
+            ExtendedNamespaceContext namespaceContext = xw.getNamespaceContext();
+            if (namespaceContext != null) {
+                generator.writeArrayFieldStart("Namespaces");
+                Iterator<String> prefixIt = namespaceContext.getAllPrefixes();
+                while (prefixIt.hasNext()) {
+                    String prefix = prefixIt.next();
+                    generator.writeStartObject();
+                    if (prefix != null && !prefix.equals(XMLConstants.DEFAULT_NS_PREFIX)) {
+                        generator.writeStringField("Prefix", prefix);
+                    }
+                    generator.writeStringField("Namespace", namespaceContext.getNamespaceURI(prefix));
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+            }
+            generator.writeEndObject();
+        } else {
+            generator.writeString(outputString(obj, attributeValue));
+        }
+    }
+
+    /*
+     * Get the String form of a value that is not written as a JSON boolean, number or object.
+     */
+    private static String outputString(Object obj, AttributeValue<?> attributeValue)
+        throws JSONStructureException {
+        if (obj instanceof String || obj instanceof Boolean || obj instanceof BigInteger) {
+            return obj.toString();
+        } else if (obj instanceof Double) {
+            Double d = (Double)obj;
+            if (d.isNaN()) {
+                return "NaN";
+            } else if (d == Double.POSITIVE_INFINITY) {
+                return "INF";
+            } else if (d == Double.NEGATIVE_INFINITY) {
+                return "-INF";
+            }
+            return obj.toString();
+        } else if (obj instanceof SemanticString) {
+            return ((SemanticString)obj).stringValue();
+        } else if (obj instanceof X500Principal || obj instanceof URI) {
+            // something is very weird with X500Principal data type. If left on its own the output is a map
+            // that includes encoding.
+            return obj.toString();
+        } else if (obj instanceof XPathExpressionWrapper) {
+            if (attributeValue.getXPathCategory() == null) {
+                throw new JSONStructureException("XPathExpression is missing XPathCategory");
+            }
+            return ((XPathExpressionWrapper)obj).getPath();
+        } else {
+            throw new JSONStructureException("Unhandled data type='" + obj.getClass().getName() + "'");
+        }
+    }
+}
@@ -31,10 +31,11 @@
 package org.apache.openaz.xacml.std.pip.engines.csv;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -48,6 +49,7 @@ import org.apache.openaz.xacml.api.AttributeValue;
 import org.apache.openaz.xacml.api.DataType;
 import org.apache.openaz.xacml.api.DataTypeException;
 import org.apache.openaz.xacml.api.DataTypeFactory;
+import org.apache.openaz.xacml.api.Identifier;
 import org.apache.openaz.xacml.api.pip.PIPException;
 import org.apache.openaz.xacml.api.pip.PIPFinder;
 import org.apache.openaz.xacml.api.pip.PIPRequest;
@@ -60,16 +62,15 @@ import org.apache.openaz.xacml.std.pip.engines.StdConfigurableEngine;
 import org.apache.openaz.xacml.util.AttributeUtils;
 import org.apache.openaz.xacml.util.FactoryException;
 
-import au.com.bytecode.opencsv.CSVReader;
-
 import com.google.common.base.Splitter;
 
 public class CSVEngine extends StdConfigurableEngine {
 
     protected Log logger = LogFactory.getLog(this.getClass());
     /*
-     * Files that are smaller than this number are read into memory during startup. Larger files are read one
-     * line at a time as needed to avoid overloading the JVM memory limit.
+     * Files that are smaller than this number are read into memory during startup. Larger files are parsed
+     * once for the offset of each line, and only the lines a request matches are read again, to avoid
+     * overloading the JVM memory limit.
      */
     public static final long DEFAULT_MAX_FILE_SIZE_FOR_READALL = 100000000;
 
@@ -103,13 +104,11 @@ public class CSVEngine extends StdConfigurableEngine {
     private char csvQuote;
     private int csvSkip;
     //
-    // big files must be read one line at a time; small files are read in all at once
-    //
-    private boolean fileIsBig = false;
+    // The file as of its last modification. Small files are held in memory, big files are indexed by
+    // record offset. The snapshot is replaced as a whole when the file changes.
     //
-    // small files get all lines read at once into this list
-    //
-    private List<String[]> allLines = null;
+    private volatile CSVFileSnapshot csvSnapshot;
+    private final Object reloadLock = new Object();
 
     //
     // Our list of resolvers
@@ -161,13 +160,6 @@ public class CSVEngine extends StdConfigurableEngine {
             logger.error(message);
             throw new PIPException(message);
         }
-        if (csvSourceFile.length() > this.maximumSize) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("File size is greater than max allowed (" + this.maximumSize + "): "
-                             + csvSourceFile.length());
-            }
-            fileIsBig = true;
-        }
         //
         // Get the properties for CSVReader
         //
@@ -229,22 +221,65 @@ public class CSVEngine extends StdConfigurableEngine {
             this.createResolver(id + "." + PROP_RESOLVER + "." + resolverId, properties);
         }
         //
-        // If the file is small, we read it fully into memory.
+        // Parse the file once; lookups use the snapshot until the file changes
         //
-        if (!this.fileIsBig) {
-            try (CSVReader csvReader = new CSVReader(new FileReader(csvSourceFile), csvDelimiter, csvQuote,
-                                                     csvSkip)) {
-                this.allLines = csvReader.readAll();
-                if (logger.isDebugEnabled()) {
-                    logger.debug(id + ": All lines read from csv file, size=" + allLines.size());
+        this.csvSnapshot = this.loadSnapshot();
+    }
+
+    /**
+     * Parses the CSV file into a new {@link CSVFileSnapshot}. Files no larger than the maximum size are
+     * held in memory, larger ones only by record offset.
+     *
+     * @return the new <code>CSVFileSnapshot</code>
+     * @throws org.apache.openaz.xacml.api.pip.PIPException if the file cannot be read
+     */
+    private CSVFileSnapshot loadSnapshot() throws PIPException {
+        boolean fileIsBig = this.csvSourceFile.length() > this.maximumSize;
+        if (fileIsBig && this.logger.isDebugEnabled()) {
+            this.logger.debug("File size is greater than max allowed (" + this.maximumSize + "): "
+                              + this.csvSourceFile.length());
+        }
+        try {
+            CSVFileSnapshot snapshot = CSVFileSnapshot.load(this.csvSourceFile, this.csvDelimiter,
+                                                            this.csvQuote, this.csvSkip, !fileIsBig);
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug(this.getName() + ": All lines read from csv file, size="
+                                  + snapshot.getRecordCount());
+            }
+            return snapshot;
+        } catch (IOException e) {
+            String message = this.getName() + ": Unable to read csv.source '"
+                             + this.csvSourceFile.getAbsolutePath() + "': " + e;
+            this.logger.error(message, e);
+            throw new PIPException(message, e);
+        }
+    }
+
+    /**
+     * Gets the current {@link CSVFileSnapshot}, first re-reading the file if it has been modified. If the
+     * modified file cannot be read, the previous snapshot is kept.
+     *
+     * @return the current <code>CSVFileSnapshot</code>
+     */
+    private CSVFileSnapshot getSnapshot() {
+        CSVFileSnapshot snapshot = this.csvSnapshot;
+        if (!snapshot.isStale()) {
+            return snapshot;
+        }
+        synchronized (this.reloadLock) {
+            snapshot = this.csvSnapshot;
+            if (snapshot.isStale()) {
+                try {
+                    snapshot = this.loadSnapshot();
+                    this.csvSnapshot = snapshot;
+                    this.logger.info(this.getName() + ": reloaded csv.source '"
+                                     + this.csvSourceFile.getAbsolutePath() + "'");
+                } catch (PIPException e) {
+                    this.logger.error(this.getName() + ": keeping the previous contents of csv.source");
                 }
-            } catch (IOException e) {
-                String message = id + ": CSVReader unable to read csv.source '"
-                                 + csvSourceFile.getAbsolutePath() + "': " + e;
-                logger.error(message, e);
-                throw new PIPException(message);
             }
         }
+        return snapshot;
     }
 
     /**
@@ -335,45 +370,14 @@ public class CSVEngine extends StdConfigurableEngine {
             listParameters.add(map);
         }
         //
-        // Look at each line of the file to see if it matches the (non-unique) criteria in the parameters
+        // Find the lines that match the (non-unique) criteria in the parameters through the column indexes
         // and add the value in the associated column from the CSV file to the list of response Attributes.
         //
         StdMutablePIPResponse mutablePIPResponse = new StdMutablePIPResponse();
-        //
-        // for smaller files, this is the index in the allLines List
-        //
-        int lineIndex = 0;
-        //
-        // for big files we need to read one line at a time from the CSVReader
-        //
-        CSVReader csvReader = null;
-
         try {
-            if (this.fileIsBig) {
-                csvReader = new CSVReader(new FileReader(csvSourceFile), csvDelimiter, csvQuote, csvSkip);
-            }
-
-            while (true) {
-                String[] line = null;
-                if (this.fileIsBig) {
-                    line = csvReader.readNext();
-                    if (line == null) {
-                        // end of file
-                        break;
-                    }
-                } else {
-                    if (lineIndex < this.allLines.size()) {
-                        line = this.allLines.get(lineIndex);
-                        lineIndex++;
-                    } else {
-                        //
-                        // end of (previously-read) list
-                        //
-                        break;
-                    }
-                }
+            for (String[] line : this.getCandidateLines(this.getSnapshot(), listParameters)) {
                 //
-                // Does the line match?
+                // The index narrowed the search by one column, check all of them
                 //
                 if (!this.doesLineMatch(line, listParameters)) {
                     continue;
@@ -406,15 +410,69 @@ public class CSVEngine extends StdConfigurableEngine {
             logger.error(message, e);
             return new StdPIPResponse(new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR,
                                                     e.getMessage()));
-        } finally {
-            if (csvReader != null) {
-                try {
-                    csvReader.close();
-                } catch (IOException e) {
-                    this.logger.error("Close CSV Reader: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Looks up every parameter column in its index and returns the lines for the column with the fewest
+     * matches. Every matching line is among them; the caller still checks the other columns.
+     *
+     * @param snapshot the <code>CSVFileSnapshot</code> to search
+     * @param listParameters the column parameter values of each resolver
+     * @return the candidate lines in file order
+     * @throws IOException if the lines of a big file cannot be read
+     */
+    private List<String[]> getCandidateLines(CSVFileSnapshot snapshot,
+                                             List<Map<Integer, List<AttributeValue<?>>>> listParameters)
+        throws IOException {
+        int[] candidates = null;
+        for (Map<Integer, List<AttributeValue<?>>> map : listParameters) {
+            for (Map.Entry<Integer, List<AttributeValue<?>>> entry : map.entrySet()) {
+                int[] lineNumbers = this.lookupColumn(snapshot, entry.getKey(), entry.getValue());
+                if (candidates == null || lineNumbers.length < candidates.length) {
+                    candidates = lineNumbers;
+                }
+                if (candidates.length == 0) {
+                    return new ArrayList<String[]>();
                 }
             }
         }
+        return snapshot.getRecords(candidates);
+    }
+
+    private int[] lookupColumn(CSVFileSnapshot snapshot, int column, List<AttributeValue<?>> values)
+        throws IOException {
+        //
+        // Group the values by data type, there is normally just the one
+        //
+        Map<Identifier, List<Object>> valuesByDataType = new HashMap<Identifier, List<Object>>();
+        for (AttributeValue<?> value : values) {
+            List<Object> typedValues = valuesByDataType.get(value.getDataTypeId());
+            if (typedValues == null) {
+                typedValues = new ArrayList<Object>();
+                valuesByDataType.put(value.getDataTypeId(), typedValues);
+            }
+            typedValues.add(value.getValue());
+        }
+        int[] result = null;
+        for (Map.Entry<Identifier, List<Object>> entry : valuesByDataType.entrySet()) {
+            DataType<?> dt = dataTypeFactory.getDataType(entry.getKey());
+            if (dt == null) {
+                this.logger.error(column + " unknown data type " + entry.getKey());
+                continue;
+            }
+            int[] lineNumbers = snapshot.lookup(column, dt, entry.getValue());
+            if (result == null || result.length == 0) {
+                result = lineNumbers;
+            } else if (lineNumbers.length > 0) {
+                int[] union = new int[result.length + lineNumbers.length];
+                System.arraycopy(result, 0, union, 0, result.length);
+                System.arraycopy(lineNumbers, 0, union, result.length, lineNumbers.length);
+                Arrays.sort(union);
+                result = union;
+            }
+        }
+        return result == null ? new int[0] : result;
     }
 
     protected boolean doesLineMatch(String[] line, List<Map<Integer, List<AttributeValue<?>>>> listParameters) {
@@ -441,11 +499,8 @@ public class CSVEngine extends StdConfigurableEngine {
                     DataType<?> dt = dataTypeFactory.getDataType(value.getDataTypeId());
                     try {
                         //
-                        // Convert the value. NOTE: This may be time-consuming as opposed to
-                        // converting the parameter value to a String once and then doing string
-                        // comparisons. But, using a CSV is already a performance issue and should
-                        // only be used for testing purposes or very small data sets. Use of a cache
-                        // can help performance if the CSV file is necessary in a production environment.
+                        // Convert the value. This is only done for the lines the column indexes
+                        // found, so it does not depend on the size of the file.
                         //
                         Object convertedValue = dt.convert(lineValue);
                         if (convertedValue.equals(value.getValue())) {
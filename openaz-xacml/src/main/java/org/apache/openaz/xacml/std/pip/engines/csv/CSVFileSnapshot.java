@@ -0,0 +1,398 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.std.pip.engines.csv;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.openaz.xacml.api.DataType;
+import org.apache.openaz.xacml.api.DataTypeException;
+
+import au.com.bytecode.opencsv.CSVParser;
+
+/**
+ * An immutable view of a CSV file as it was at one modification time, used by {@link CSVEngine}. Small
+ * files keep every parsed record in memory. Big files only keep the byte offset of each record and read
+ * the records a lookup needs with positional reads, so the file is parsed once per change either way.
+ * <p>
+ * Column indexes are built lazily the first time a column is searched with a given <code>DataType</code>.
+ * Each index maps the typed value of a cell to the numbers of the records holding it, so a lookup is a
+ * hash probe rather than a conversion of every cell in the file.
+ */
+class CSVFileSnapshot {
+    private static final Log logger = LogFactory.getLog(CSVFileSnapshot.class);
+
+    private static final int[] NO_RECORDS = new int[0];
+
+    private final File file;
+    private final long lastModified;
+    private final long length;
+    private final char delimiter;
+    private final char quote;
+    //
+    // Exactly one of these is set: the records of a small file or the record offsets of a big one
+    //
+    private final List<String[]> records;
+    private final long[] offsets;
+    private final int recordCount;
+    //
+    // Lazily built indexes keyed by column and data type id
+    //
+    private final ConcurrentMap<String, Map<Object, int[]>> indexes = new ConcurrentHashMap<String, Map<Object, int[]>>();
+
+    private CSVFileSnapshot(File fileIn, long lastModifiedIn, long lengthIn, char delimiterIn, char quoteIn,
+                            List<String[]> recordsIn, long[] offsetsIn, int recordCountIn) {
+        this.file = fileIn;
+        this.lastModified = lastModifiedIn;
+        this.length = lengthIn;
+        this.delimiter = delimiterIn;
+        this.quote = quoteIn;
+        this.records = recordsIn;
+        this.offsets = offsetsIn;
+        this.recordCount = recordCountIn;
+    }
+
+    /**
+     * Parses the given <code>File</code> once.
+     *
+     * @param file the CSV <code>File</code>
+     * @param delimiter the field delimiter
+     * @param quote the quote character
+     * @param skip the number of lines to skip at the start of the file
+     * @param keepRecords if true the parsed records are kept in memory, otherwise only their offsets
+     * @return a new <code>CSVFileSnapshot</code>
+     * @throws IOException if the file cannot be read
+     */
+    static CSVFileSnapshot load(File file, char delimiter, char quote, int skip, boolean keepRecords)
+        throws IOException {
+        //
+        // Take the time stamp first, so a change while we are reading is picked up by the next check
+        //
+        long lastModified = file.lastModified();
+        long length = file.length();
+        List<String[]> records = keepRecords ? new ArrayList<String[]>() : null;
+        long[] offsets = keepRecords ? null : new long[1024];
+        int count = 0;
+        try (RecordReader recordReader = new RecordReader(new FileInputStream(file), 0, delimiter, quote)) {
+            recordReader.skipLines(skip);
+            while (true) {
+                long offset = recordReader.getPosition();
+                String[] record = recordReader.readRecord();
+                if (record == null) {
+                    break;
+                }
+                if (keepRecords) {
+                    records.add(record);
+                } else {
+                    if (count == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                    }
+                    offsets[count] = offset;
+                }
+                count++;
+            }
+        }
+        return new CSVFileSnapshot(file, lastModified, length, delimiter, quote, records,
+                                   keepRecords ? null : Arrays.copyOf(offsets, count), count);
+    }
+
+    /**
+     * Determines whether the file has been modified since this snapshot was taken.
+     *
+     * @return true if the modification time or the length of the file has changed
+     */
+    boolean isStale() {
+        return this.file.lastModified() != this.lastModified || this.file.length() != this.length;
+    }
+
+    int getRecordCount() {
+        return this.recordCount;
+    }
+
+    boolean isInMemory() {
+        return this.records != null;
+    }
+
+    /**
+     * Gets the index of the given column for values of the given <code>DataType</code>, building it if this
+     * is the first time the column is searched with that data type. Cells that are empty or cannot be
+     * converted are left out of the index, just as they never match a search.
+     *
+     * @param column the column number
+     * @param dataType the <code>DataType</code> of the values being searched for
+     * @return a <code>Map</code> from typed cell values to ascending record numbers
+     * @throws IOException if the records of a big file cannot be read
+     */
+    Map<Object, int[]> getIndex(int column, DataType<?> dataType) throws IOException {
+        String key = column + " " + dataType.getId().stringValue();
+        Map<Object, int[]> index = this.indexes.get(key);
+        if (index == null) {
+            index = this.buildIndex(column, dataType);
+            Map<Object, int[]> existing = this.indexes.putIfAbsent(key, index);
+            if (existing != null) {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    private Map<Object, int[]> buildIndex(int column, DataType<?> dataType) throws IOException {
+        //
+        // Convert every cell once, then group the record numbers by value
+        //
+        Object[] values = new Object[this.recordCount];
+        Map<Object, Integer> counts = new HashMap<Object, Integer>();
+        int unconvertible = 0;
+        RecordReader recordReader = null;
+        try {
+            if (this.records == null && this.recordCount > 0) {
+                //
+                // Start at the first record rather than skipping the header lines again
+                //
+                FileInputStream fileInputStream = new FileInputStream(this.file);
+                fileInputStream.getChannel().position(this.offsets[0]);
+                recordReader = new RecordReader(fileInputStream, this.offsets[0], this.delimiter, this.quote);
+            }
+            for (int i = 0; i < this.recordCount; i++) {
+                String[] record = this.records == null ? recordReader.readRecord() : this.records.get(i);
+                if (record == null || column >= record.length || record[column].length() == 0) {
+                    continue;
+                }
+                try {
+                    Object value = dataType.convert(record[column]);
+                    if (value != null) {
+                        values[i] = value;
+                        Integer count = counts.get(value);
+                        counts.put(value, count == null ? 1 : count + 1);
+                    }
+                } catch (DataTypeException ex) {
+                    unconvertible++;
+                }
+            }
+        } finally {
+            if (recordReader != null) {
+                recordReader.close();
+            }
+        }
+        if (unconvertible > 0) {
+            logger.warn(this.file.getName() + ": " + unconvertible + " values in column " + column
+                        + " could not be converted to " + dataType.getId());
+        }
+        Map<Object, int[]> index = new HashMap<Object, int[]>(counts.size() * 4 / 3 + 1);
+        Map<Object, Integer> filled = new HashMap<Object, Integer>(counts.size() * 4 / 3 + 1);
+        for (int i = 0; i < this.recordCount; i++) {
+            Object value = values[i];
+            if (value == null) {
+                continue;
+            }
+            int[] recordNumbers = index.get(value);
+            int next = 0;
+            if (recordNumbers == null) {
+                recordNumbers = new int[counts.get(value)];
+                index.put(value, recordNumbers);
+            } else {
+                next = filled.get(value);
+            }
+            recordNumbers[next] = i;
+            filled.put(value, next + 1);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug(this.file.getName() + ": indexed column " + column + " as " + dataType.getId() + ", "
+                         + index.size() + " distinct values");
+        }
+        return index;
+    }
+
+    /**
+     * Gets the numbers of the records whose cell in the given column equals any of the given typed values.
+     *
+     * @param column the column number
+     * @param dataType the <code>DataType</code> of the values
+     * @param values the typed values to look up
+     * @return the ascending record numbers, never null
+     * @throws IOException if the records of a big file cannot be read
+     */
+    int[] lookup(int column, DataType<?> dataType, List<Object> values) throws IOException {
+        Map<Object, int[]> index = this.getIndex(column, dataType);
+        if (values.size() == 1) {
+            int[] recordNumbers = index.get(values.get(0));
+            return recordNumbers == null ? NO_RECORDS : recordNumbers;
+        }
+        int total = 0;
+        List<int[]> found = new ArrayList<int[]>(values.size());
+        for (Object value : values) {
+            int[] recordNumbers = index.get(value);
+            if (recordNumbers != null && !found.contains(recordNumbers)) {
+                found.add(recordNumbers);
+                total += recordNumbers.length;
+            }
+        }
+        if (found.size() == 1) {
+            return found.get(0);
+        }
+        int[] union = new int[total];
+        int next = 0;
+        for (int[] recordNumbers : found) {
+            System.arraycopy(recordNumbers, 0, union, next, recordNumbers.length);
+            next += recordNumbers.length;
+        }
+        Arrays.sort(union);
+        return union;
+    }
+
+    /**
+     * Gets the given records in order. Big files are read with one channel positioned at each record.
+     *
+     * @param recordNumbers the ascending record numbers
+     * @return the records
+     * @throws IOException if the records of a big file cannot be read
+     */
+    List<String[]> getRecords(int[] recordNumbers) throws IOException {
+        List<String[]> result = new ArrayList<String[]>(recordNumbers.length);
+        if (this.records != null) {
+            for (int recordNumber : recordNumbers) {
+                result.add(this.records.get(recordNumber));
+            }
+            return result;
+        }
+        try (FileChannel fileChannel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            for (int recordNumber : recordNumbers) {
+                long offset = this.offsets[recordNumber];
+                fileChannel.position(offset);
+                @SuppressWarnings("resource")
+                RecordReader recordReader = new RecordReader(Channels.newInputStream(fileChannel), offset,
+                                                             this.delimiter, this.quote);
+                String[] record = recordReader.readRecord();
+                if (record != null) {
+                    result.add(record);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads CSV records from a byte stream while keeping track of the byte offset of each record. Lines end
+     * the same way <code>BufferedReader.readLine</code> ends them and are parsed with the same
+     * <code>CSVParser</code> that <code>CSVReader</code> uses, so quoted values may span lines.
+     */
+    private static final class RecordReader implements Closeable {
+        private static final Charset CHARSET = Charset.defaultCharset();
+
+        private final InputStream inputStream;
+        private final CSVParser csvParser;
+        private final ByteArrayOutputStream lineBytes = new ByteArrayOutputStream(256);
+        private long position;
+        private int pushedBack = -1;
+
+        RecordReader(InputStream inputStreamIn, long positionIn, char delimiter, char quote) {
+            this.inputStream = new BufferedInputStream(inputStreamIn);
+            this.position = positionIn;
+            this.csvParser = new CSVParser(delimiter, quote);
+        }
+
+        long getPosition() {
+            return this.position;
+        }
+
+        private int read() throws IOException {
+            if (this.pushedBack >= 0) {
+                int b = this.pushedBack;
+                this.pushedBack = -1;
+                return b;
+            }
+            return this.inputStream.read();
+        }
+
+        private String readLine() throws IOException {
+            this.lineBytes.reset();
+            int b = this.read();
+            if (b < 0) {
+                return null;
+            }
+            while (b >= 0 && b != '\n' && b != '\r') {
+                this.lineBytes.write(b);
+                b = this.read();
+            }
+            this.position += this.lineBytes.size() + (b < 0 ? 0 : 1);
+            if (b == '\r') {
+                int next = this.read();
+                if (next == '\n') {
+                    this.position++;
+                } else if (next >= 0) {
+                    this.pushedBack = next;
+                }
+            }
+            return new String(this.lineBytes.toByteArray(), CHARSET);
+        }
+
+        void skipLines(int count) throws IOException {
+            for (int i = 0; i < count && this.readLine() != null; i++) { //NOPMD
+            }
+        }
+
+        String[] readRecord() throws IOException {
+            String[] result = null;
+            do {
+                String line = this.readLine();
+                if (line == null) {
+                    return result;
+                }
+                String[] values = this.csvParser.parseLineMulti(line);
+                if (values.length == 0) {
+                    continue;
+                }
+                if (result == null) {
+                    result = values;
+                } else {
+                    String[] joined = new String[result.length + values.length];
+                    System.arraycopy(result, 0, joined, 0, result.length);
+                    System.arraycopy(values, 0, joined, result.length, values.length);
+                    result = joined;
+                }
+            } while (this.csvParser.isPending());
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.std.pip.engines.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * JDBCConnectionPool is a small, bounded pool of JDBC {@link java.sql.Connection}s for the
+ * {@link JDBCEngine} when it connects through a JDBC URL. At most <code>maxConnections</code> connections are
+ * handed out at once; callers wait up to <code>maxWaitMillis</code> for one to be returned. Calling
+ * <code>close</code> on a pooled <code>Connection</code> returns it to the pool.
+ * <p>
+ * Each pooled connection also keeps the {@link java.sql.PreparedStatement}s created through
+ * <code>prepareStatement(String)</code>, up to <code>maxStatements</code> per connection, so the same SQL is
+ * only prepared once per connection. Closing such a statement clears its parameters instead of closing it.
+ * <p>
+ * A connection on which the driver has thrown a <code>SQLException</code> is not reused, and idle
+ * connections can optionally be validated with <code>Connection.isValid</code> before they are handed out.
+ */
+public class JDBCConnectionPool {
+    private static final Log logger = LogFactory.getLog(JDBCConnectionPool.class);
+
+    private final String url;
+    private final Properties connectionProperties;
+    private final long maxWaitMillis;
+    private final int maxStatements;
+    private final int validationTimeoutSeconds;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<PooledConnection>();
+    private final AtomicLong connectionsCreated = new AtomicLong();
+    private final AtomicLong statementsPrepared = new AtomicLong();
+    private volatile boolean closed;
+
+    /*
+     * The InvocationHandler behind a pooled Connection. It hands out cached PreparedStatements and returns
+     * itself to the pool when the Connection is closed.
+     */
+    private final class PooledConnection implements InvocationHandler {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+        private Connection connectionHandle;
+        private boolean inUse;
+        private boolean broken;
+
+        PooledConnection(Connection connectionIn) {
+            this.connection = connectionIn;
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (this.size() > JDBCConnectionPool.this.maxStatements) {
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        Connection open() {
+            this.inUse = true;
+            this.connectionHandle = (Connection)Proxy.newProxyInstance(JDBCConnectionPool.class
+                .getClassLoader(), new Class<?>[] {
+                Connection.class
+            }, this);
+            return this.connectionHandle;
+        }
+
+        boolean isUsable() {
+            if (this.broken) {
+                return false;
+            }
+            try {
+                if (this.connection.isClosed()) {
+                    return false;
+                }
+                return JDBCConnectionPool.this.validationTimeoutSeconds <= 0
+                       || this.connection.isValid(JDBCConnectionPool.this.validationTimeoutSeconds);
+            } catch (SQLException ex) {
+                logger.warn("SQLException validating pooled connection: " + ex.toString());
+                return false;
+            }
+        }
+
+        void closePhysical() {
+            for (PreparedStatement preparedStatement : this.statements.values()) {
+                closeQuietly(preparedStatement);
+            }
+            this.statements.clear();
+            try {
+                this.connection.close();
+            } catch (SQLException ex) {
+                logger.warn("SQLException closing pooled connection: " + ex.toString());
+            }
+        }
+
+        Object delegate(Object target, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException ex) {
+                if (ex.getCause() instanceof SQLException) {
+                    this.broken = true;
+                }
+                throw ex.getCause();
+            }
+        }
+
+        PreparedStatement prepareStatement(String sql) throws Throwable {
+            PreparedStatement preparedStatement = this.statements.get(sql);
+            if (preparedStatement == null || preparedStatement.isClosed()) {
+                try {
+                    preparedStatement = this.connection.prepareStatement(sql);
+                } catch (SQLException ex) {
+                    this.broken = true;
+                    throw ex;
+                }
+                JDBCConnectionPool.this.statementsPrepared.incrementAndGet();
+                this.statements.put(sql, preparedStatement);
+            }
+            return (PreparedStatement)Proxy.newProxyInstance(JDBCConnectionPool.class.getClassLoader(),
+                                                             new Class<?>[] {
+                                                                 PreparedStatement.class
+                                                             }, new PooledStatement(this, preparedStatement));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+            int argCount = args == null ? 0 : args.length;
+            if ("close".equals(methodName) && argCount == 0) {
+                if (this.inUse && proxy == this.connectionHandle) {
+                    this.inUse = false;
+                    JDBCConnectionPool.this.release(this);
+                }
+                return null;
+            } else if ("isClosed".equals(methodName) && argCount == 0) {
+                return !this.inUse || proxy != this.connectionHandle;
+            } else if ("equals".equals(methodName) && argCount == 1) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(methodName) && argCount == 0) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(methodName) && argCount == 0) {
+                return "Pooled " + this.connection.toString();
+            } else if (!this.inUse || proxy != this.connectionHandle) {
+                throw new SQLException("Connection has been returned to the pool");
+            } else if ("prepareStatement".equals(methodName) && argCount == 1 && args[0] instanceof String
+                       && JDBCConnectionPool.this.maxStatements > 0) {
+                return this.prepareStatement((String)args[0]);
+            }
+            return this.delegate(this.connection, method, args);
+        }
+    }
+
+    /*
+     * The InvocationHandler behind a cached PreparedStatement. Closing it only clears its parameters.
+     */
+    private static final class PooledStatement implements InvocationHandler {
+        private final PooledConnection pooledConnection;
+        private final PreparedStatement preparedStatement;
+        private boolean closed;
+
+        PooledStatement(PooledConnection pooledConnectionIn, PreparedStatement preparedStatementIn) {
+            this.pooledConnection = pooledConnectionIn;
+            this.preparedStatement = preparedStatementIn;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+            int argCount = args == null ? 0 : args.length;
+            if ("close".equals(methodName) && argCount == 0) {
+                if (!this.closed) {
+                    this.closed = true;
+                    this.pooledConnection.delegate(this.preparedStatement,
+                                                   PreparedStatement.class.getMethod("clearParameters"),
+                                                   null);
+                }
+                return null;
+            } else if ("isClosed".equals(methodName) && argCount == 0) {
+                return this.closed;
+            } else if ("equals".equals(methodName) && argCount == 1) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(methodName) && argCount == 0) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(methodName) && argCount == 0) {
+                return this.preparedStatement.toString();
+            } else if ("getConnection".equals(methodName) && argCount == 0) {
+                return this.pooledConnection.connectionHandle;
+            } else if (this.closed) {
+                throw new SQLException("PreparedStatement is closed");
+            }
+            return this.pooledConnection.delegate(this.preparedStatement, method, args);
+        }
+    }
+
+    /**
+     * Creates a new <code>JDBCConnectionPool</code>.
+     *
+     * @param urlIn the JDBC URL to connect to
+     * @param connectionPropertiesIn the <code>Properties</code> passed to the JDBC driver
+     * @param maxConnections the maximum number of connections in use at once
+     * @param maxWaitMillisIn the maximum number of milliseconds to wait for a connection
+     * @param maxStatementsIn the maximum number of prepared statements kept per connection, 0 for none
+     * @param validationTimeoutSecondsIn the timeout for validating an idle connection before it is handed
+     *            out, 0 to skip validation
+     */
+    public JDBCConnectionPool(String urlIn, Properties connectionPropertiesIn, int maxConnections,
+                              long maxWaitMillisIn, int maxStatementsIn, int validationTimeoutSecondsIn) {
+        this.url = urlIn;
+        this.connectionProperties = connectionPropertiesIn;
+        this.permits = new Semaphore(Math.max(maxConnections, 1), true);
+        this.maxWaitMillis = maxWaitMillisIn;
+        this.maxStatements = maxStatementsIn;
+        this.validationTimeoutSeconds = validationTimeoutSecondsIn;
+    }
+
+    private static void closeQuietly(PreparedStatement preparedStatement) {
+        try {
+            preparedStatement.close();
+        } catch (SQLException ex) {
+            logger.warn("SQLException closing pooled statement: " + ex.toString());
+        }
+    }
+
+    /**
+     * Gets a <code>Connection</code> from the pool, creating a new one if there is no usable idle connection.
+     * The <code>Connection</code> must be closed to return it to the pool.
+     *
+     * @return a pooled <code>Connection</code>
+     * @throws SQLException if no connection became available in time or a new one could not be created
+     */
+    public Connection getConnection() throws SQLException {
+        if (this.closed) {
+            throw new SQLException("Connection pool for " + this.url + " is closed");
+        }
+        try {
+            if (!this.permits.tryAcquire(this.maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out after " + this.maxWaitMillis
+                                       + "ms waiting for a connection to " + this.url);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection to " + this.url, ex);
+        }
+        try {
+            PooledConnection pooledConnection;
+            while ((pooledConnection = this.idleConnections.pollFirst()) != null) {
+                if (pooledConnection.isUsable()) {
+                    return pooledConnection.open();
+                }
+                pooledConnection.closePhysical();
+            }
+            pooledConnection = new PooledConnection(DriverManager.getConnection(this.url,
+                                                                                this.connectionProperties));
+            this.connectionsCreated.incrementAndGet();
+            return pooledConnection.open();
+        } catch (SQLException | RuntimeException ex) {
+            this.permits.release();
+            throw ex;
+        }
+    }
+
+    private void release(PooledConnection pooledConnection) {
+        try {
+            if (this.closed || pooledConnection.broken) {
+                pooledConnection.closePhysical();
+            } else {
+                /*
+                 * Most recently used first, so the busiest connections stay warm
+                 */
+                this.idleConnections.offerFirst(pooledConnection);
+                if (this.closed) {
+                    /*
+                     * Closed while this connection was being returned
+                     */
+                    this.closeIdle();
+                }
+            }
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    /**
+     * Closes every idle connection. Connections in use are closed when they are returned.
+     */
+    public void close() {
+        this.closed = true;
+        this.closeIdle();
+    }
+
+    private void closeIdle() {
+        PooledConnection pooledConnection;
+        while ((pooledConnection = this.idleConnections.pollFirst()) != null) {
+            pooledConnection.closePhysical();
+        }
+    }
+
+    public int getIdleCount() {
+        return this.idleConnections.size();
+    }
+
+    public long getConnectionsCreated() {
+        return this.connectionsCreated.get();
+    }
+
+    public long getStatementsPrepared() {
+        return this.statementsPrepared.get();
+    }
+}
@@ -30,6 +30,7 @@
  */
 package org.apache.openaz.xacml.std.pip.engines.jdbc;
 
+import java.io.Closeable;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -50,6 +51,7 @@ import javax.sql.DataSource;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.openaz.xacml.api.Attribute;
+import org.apache.openaz.xacml.api.AttributeValue;
 import org.apache.openaz.xacml.api.pip.PIPException;
 import org.apache.openaz.xacml.api.pip.PIPFinder;
 import org.apache.openaz.xacml.api.pip.PIPRequest;
@@ -60,19 +62,29 @@ import org.apache.openaz.xacml.std.pip.engines.StdConfigurableEngine;
 import org.apache.openaz.xacml.util.AttributeUtils;
 
 import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
 
 /**
  * PIPEgineJDBC extends {@link org.apache.openaz.xacml.std.pip.engines.StdConfigurableEngine} to implement a
- * PIP that retrieves XACML attributes from a database using JDBC. This is a minimal implementation that does
- * not do any caching of results. It does not perform JDBC connection pooling either.
+ * PIP that retrieves XACML attributes from a database using JDBC.
+ * <p>
+ * If a "cacheSpec" is configured, the attributes found by each resolver are cached keyed on the
+ * <code>PIPRequest</code> and the values of the attributes bound to the query parameters, so repeated
+ * lookups do not reach the database. If "jdbc.pool.size" is configured for the "jdbc" type, connections are
+ * taken from a bounded {@link JDBCConnectionPool} that also reuses prepared statements; otherwise a new
+ * connection is opened for each query. Closing the engine closes the pooled connections.
  */
-public class JDBCEngine extends StdConfigurableEngine {
+public class JDBCEngine extends StdConfigurableEngine implements Closeable {
     public static final String PROP_TYPE = "type";
     public static final String PROP_JDBC_DRIVER = "jdbc.driver";
     public static final String PROP_JDBC_URL = "jdbc.url";
     public static final String PROP_JDBC_CONN = "jdbc.conn";
     public static final String PROP_JDBC_CONN_USER = "jdbc.conn.user";
     public static final String PROP_JDBC_CONN_PASS = "jdbc.conn.password";
+    public static final String PROP_JDBC_POOL_SIZE = "jdbc.pool.size";
+    public static final String PROP_JDBC_POOL_MAXWAIT = "jdbc.pool.maxWait";
+    public static final String PROP_JDBC_POOL_STATEMENTS = "jdbc.pool.statements";
+    public static final String PROP_JDBC_POOL_VALIDATIONTIMEOUT = "jdbc.pool.validationTimeout";
     public static final String PROP_RESOLVERS = "resolvers";
     public static final String PROP_RESOLVER = "resolver";
     public static final String PROP_CLASSNAME = "classname";
@@ -80,6 +92,9 @@ public class JDBCEngine extends StdConfigurableEngine {
     public static final String TYPE_JDBC = "jdbc";
     public static final String TYPE_JNDI = "jndi";
 
+    public static final long DEFAULT_POOL_MAXWAIT = 5000;
+    public static final int DEFAULT_POOL_STATEMENTS = 32;
+
     protected Log logger = LogFactory.getLog(this.getClass());
     private String type;
     private String jndiDataSource;
@@ -88,6 +103,7 @@ public class JDBCEngine extends StdConfigurableEngine {
     private String jdbcUrl;
     private Properties jdbcConnProperties = new Properties();
     private List<JDBCResolver> jdbcResolvers = new ArrayList<JDBCResolver>();
+    private JDBCConnectionPool connectionPool;
 
     /**
      * If the JDBC driver <code>Class</code> has not been loaded yet, do so now.
@@ -138,11 +154,15 @@ public class JDBCEngine extends StdConfigurableEngine {
         }
 
         /*
-         * Try to create a new Connection
+         * Try to create a new Connection, or take one from the pool
          */
         Connection connectionResult = null;
         try {
-            connectionResult = DriverManager.getConnection(this.jdbcUrl, this.jdbcConnProperties);
+            if (this.connectionPool != null) {
+                connectionResult = this.connectionPool.getConnection();
+            } else {
+                connectionResult = DriverManager.getConnection(this.jdbcUrl, this.jdbcConnProperties);
+            }
         } catch (SQLException ex) {
             this.logger.error("SQLException creating Connection", ex);
             throw new PIPException("SQLException creating Connection", ex);
@@ -165,10 +185,80 @@ public class JDBCEngine extends StdConfigurableEngine {
         }
     }
 
+    /**
+     * Gets the {@link JDBCConnectionPool} used for the "jdbc" type.
+     *
+     * @return the <code>JDBCConnectionPool</code> or null if connections are not pooled
+     */
+    public JDBCConnectionPool getConnectionPool() {
+        return this.connectionPool;
+    }
+
+    /**
+     * Closes the {@link JDBCConnectionPool}, if any. Connections in use are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        if (this.connectionPool != null) {
+            this.connectionPool.close();
+        }
+    }
+
+    /**
+     * Builds the key for caching the results of the given {@link JDBCResolver} for the given
+     * <code>PIPRequest</code>. The key is made of the resolver, the request and the values of the attributes
+     * the resolver binds to its query parameters.
+     *
+     * @return the <code>String</code> cache key or null if a parameter value could not be retrieved
+     * @throws org.apache.openaz.xacml.api.pip.PIPException if there is an error retrieving a parameter value
+     */
+    protected String getCacheKey(PIPRequest pipRequest, PIPFinder pipFinder, JDBCResolver jdbcResolver)
+        throws PIPException {
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append(this.jdbcResolvers.indexOf(jdbcResolver)).append("::").append(pipRequest);
+        List<PIPRequest> parameters = new ArrayList<PIPRequest>();
+        jdbcResolver.attributesRequired(parameters);
+        if (parameters.size() > 0 && pipFinder == null) {
+            return null;
+        }
+        for (PIPRequest pipRequestParameter : parameters) {
+            PIPResponse pipResponseParameter = pipFinder.getMatchingAttributes(pipRequestParameter, null);
+            if (pipResponseParameter == null || pipResponseParameter.getStatus() != null
+                && !pipResponseParameter.getStatus().isOk()) {
+                return null;
+            }
+            stringBuilder.append("::");
+            for (Attribute attribute : pipResponseParameter.getAttributes()) {
+                for (AttributeValue<?> attributeValue : attribute.getValues()) {
+                    stringBuilder.append('{').append(attributeValue.getDataTypeId()).append(':')
+                        .append(attributeValue.getValue()).append('}');
+                }
+            }
+        }
+        return stringBuilder.toString();
+    }
+
     protected void getAttributes(PIPRequest pipRequest, PIPFinder pipFinder, JDBCResolver jdbcResolver,
                                  StdMutablePIPResponse pipResponse) throws PIPException {
         /*
-         * First we need to get a PreparedStatement
+         * Is it in the cache?
+         */
+        Cache<String, PIPResponse> cache = this.getCache();
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = this.getCacheKey(pipRequest, pipFinder, jdbcResolver);
+            PIPResponse pipResponseCached = cacheKey == null ? null : cache.getIfPresent(cacheKey);
+            if (pipResponseCached != null) {
+                if (this.logger.isDebugEnabled()) {
+                    this.logger.debug("Returning cached response: " + pipResponseCached);
+                }
+                pipResponse.addAttributes(pipResponseCached.getAttributes());
+                return;
+            }
+        }
+
+        /*
+         * Then we need to get a PreparedStatement
          */
         Connection connection = this.getConnection();
         PreparedStatement preparedStatement = jdbcResolver.getPreparedStatement(this, pipRequest, pipFinder,
@@ -184,14 +274,7 @@ public class JDBCEngine extends StdConfigurableEngine {
             return;
         }
 
-        /*
-         * Is it in the cache?
-         */
         this.logger.debug(preparedStatement.toString());
-        // Cache<String, PIPResponse> cache = this.getCache();
-        //if (cache != null) {
-            // TODO - a cache key
-        //}
 
         /*
          * Execute the prepared statement
@@ -221,18 +304,21 @@ public class JDBCEngine extends StdConfigurableEngine {
             /*
              * Get all the results
              */
+            List<Attribute> listAttributesResult = new ArrayList<Attribute>();
             while (resultSet.next()) {
                 List<Attribute> listAttributes = jdbcResolver.decodeResult(resultSet);
                 if (listAttributes != null) {
                     pipResponse.addAttributes(listAttributes);
+                    listAttributesResult.addAll(listAttributes);
                 }
             }
             /*
              * Save it in the cache
              */
-            //if (cache != null) {
-                // TODO
-            //}
+            if (cacheKey != null) {
+                cache.put(cacheKey, listAttributesResult.size() == 0
+                    ? StdPIPResponse.PIP_RESPONSE_EMPTY : new StdPIPResponse(listAttributesResult));
+            }
         } catch (SQLException ex) {
             this.logger.error("SQLException decoding results: " + ex.toString());
             // TODO: Should we re-throw the exception or just continue
@@ -391,6 +477,38 @@ public class JDBCEngine extends StdConfigurableEngine {
                 }
             }
         }
+        //
+        // Pool the connections if asked to
+        //
+        if (TYPE_JDBC.equals(this.type)
+            && (stringProp = properties.getProperty(propPrefix + PROP_JDBC_POOL_SIZE)) != null) {
+            int poolSize = getIntProperty(propPrefix + PROP_JDBC_POOL_SIZE, stringProp);
+            long maxWait = DEFAULT_POOL_MAXWAIT;
+            if ((stringProp = properties.getProperty(propPrefix + PROP_JDBC_POOL_MAXWAIT)) != null) {
+                maxWait = getIntProperty(propPrefix + PROP_JDBC_POOL_MAXWAIT, stringProp);
+            }
+            int maxStatements = DEFAULT_POOL_STATEMENTS;
+            if ((stringProp = properties.getProperty(propPrefix + PROP_JDBC_POOL_STATEMENTS)) != null) {
+                maxStatements = getIntProperty(propPrefix + PROP_JDBC_POOL_STATEMENTS, stringProp);
+            }
+            int validationTimeout = 0;
+            if ((stringProp = properties.getProperty(propPrefix + PROP_JDBC_POOL_VALIDATIONTIMEOUT)) != null) {
+                validationTimeout = getIntProperty(propPrefix + PROP_JDBC_POOL_VALIDATIONTIMEOUT, stringProp);
+            }
+            if (poolSize > 0) {
+                this.connectionPool = new JDBCConnectionPool(this.jdbcUrl, this.jdbcConnProperties, poolSize,
+                                                             maxWait, maxStatements, validationTimeout);
+            }
+        }
+    }
+
+    private int getIntProperty(String propertyName, String stringProp) throws PIPException {
+        try {
+            return Integer.parseInt(stringProp.trim());
+        } catch (NumberFormatException ex) {
+            this.logger.error("Invalid '" + propertyName + "' property: " + stringProp);
+            throw new PIPException("Invalid '" + propertyName + "' property: " + stringProp, ex);
+        }
     }
 
     @Override
@@ -0,0 +1,198 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.std.pip.engines.ldap;
+
+import java.util.Hashtable;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * LDAPContextPool is a small, bounded pool of bound {@link javax.naming.directory.DirContext}s for the
+ * {@link LDAPEngine}, so a lookup does not have to connect and bind to the directory. At most
+ * <code>maxContexts</code> contexts are handed out at once; callers wait up to <code>maxWaitMillis</code> for
+ * one to be returned.
+ * <p>
+ * A context on which a <code>NamingException</code> was thrown is closed instead of being reused. A context
+ * that has been idle for longer than <code>validationIntervalMillis</code> is checked by reading the
+ * attribute-less base entry of the provider URL before it is handed out again.
+ */
+public class LDAPContextPool {
+    private static final Log logger = LogFactory.getLog(LDAPContextPool.class);
+
+    private static final String[] NO_ATTRIBUTES = new String[] {
+        "1.1"
+    };
+
+    private final Hashtable<?, ?> environment;
+    private final long maxWaitMillis;
+    private final long validationIntervalMillis;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledContext> idleContexts = new LinkedBlockingDeque<PooledContext>();
+    private final AtomicLong contextsCreated = new AtomicLong();
+    private volatile boolean closed;
+
+    private static final class PooledContext {
+        private final DirContext dirContext;
+        private long lastUsed;
+
+        PooledContext(DirContext dirContextIn) {
+            this.dirContext = dirContextIn;
+        }
+    }
+
+    /**
+     * Creates a new <code>LDAPContextPool</code>.
+     *
+     * @param environmentIn the JNDI environment used to create each <code>InitialDirContext</code>
+     * @param maxContexts the maximum number of contexts in use at once
+     * @param maxWaitMillisIn the maximum number of milliseconds to wait for a context
+     * @param validationIntervalMillisIn how long a context may be idle before it is checked again, 0 to check
+     *            it every time and a negative number never to check it
+     */
+    public LDAPContextPool(Hashtable<?, ?> environmentIn, int maxContexts, long maxWaitMillisIn,
+                           long validationIntervalMillisIn) {
+        this.environment = environmentIn;
+        this.permits = new Semaphore(Math.max(maxContexts, 1), true);
+        this.maxWaitMillis = maxWaitMillisIn;
+        this.validationIntervalMillis = validationIntervalMillisIn;
+    }
+
+    private static void closeQuietly(DirContext dirContext) {
+        try {
+            dirContext.close();
+        } catch (NamingException ex) {
+            logger.warn("NamingException closing pooled DirContext: " + ex.toString());
+        }
+    }
+
+    private boolean isUsable(PooledContext pooledContext) {
+        if (this.validationIntervalMillis < 0
+            || System.currentTimeMillis() - pooledContext.lastUsed < this.validationIntervalMillis) {
+            return true;
+        }
+        try {
+            pooledContext.dirContext.getAttributes("", NO_ATTRIBUTES);
+            return true;
+        } catch (NamingException ex) {
+            logger.warn("Discarding pooled DirContext that failed its check: " + ex.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Gets a <code>DirContext</code> from the pool, creating a new one if there is no usable idle context.
+     * The <code>DirContext</code> must be handed back with <code>release</code> rather than closed.
+     *
+     * @return a pooled <code>DirContext</code>
+     * @throws NamingException if no context became available in time or a new one could not be created
+     */
+    public DirContext getContext() throws NamingException {
+        if (this.closed) {
+            throw new ServiceUnavailableException("LDAP context pool is closed");
+        }
+        try {
+            if (!this.permits.tryAcquire(this.maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new ServiceUnavailableException("Timed out after " + this.maxWaitMillis
+                                                      + "ms waiting for an LDAP context");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException("Interrupted waiting for an LDAP context");
+        }
+        try {
+            PooledContext pooledContext;
+            while ((pooledContext = this.idleContexts.pollFirst()) != null) {
+                if (this.isUsable(pooledContext)) {
+                    return pooledContext.dirContext;
+                }
+                closeQuietly(pooledContext.dirContext);
+            }
+            DirContext dirContext = new InitialDirContext(this.environment);
+            this.contextsCreated.incrementAndGet();
+            return dirContext;
+        } catch (NamingException | RuntimeException ex) {
+            this.permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns a <code>DirContext</code> obtained from <code>getContext</code> to the pool.
+     *
+     * @param dirContext the <code>DirContext</code> to return
+     * @param broken true if a <code>NamingException</code> was thrown using it, in which case it is closed
+     */
+    public void release(DirContext dirContext, boolean broken) {
+        try {
+            if (this.closed || broken) {
+                closeQuietly(dirContext);
+            } else {
+                /*
+                 * Most recently used first, so the busiest contexts stay warm
+                 */
+                PooledContext pooledContext = new PooledContext(dirContext);
+                pooledContext.lastUsed = System.currentTimeMillis();
+                this.idleContexts.offerFirst(pooledContext);
+                if (this.closed) {
+                    /*
+                     * Closed while this context was being returned
+                     */
+                    this.closeIdle();
+                }
+            }
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    /**
+     * Closes every idle context. Contexts in use are closed when they are returned.
+     */
+    public void close() {
+        this.closed = true;
+        this.closeIdle();
+    }
+
+    private void closeIdle() {
+        PooledContext pooledContext;
+        while ((pooledContext = this.idleContexts.pollFirst()) != null) {
+            closeQuietly(pooledContext.dirContext);
+        }
+    }
+
+    public int getIdleCount() {
+        return this.idleContexts.size();
+    }
+
+    public long getContextsCreated() {
+        return this.contextsCreated.get();
+    }
+}
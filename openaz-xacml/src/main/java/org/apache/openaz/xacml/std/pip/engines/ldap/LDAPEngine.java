@@ -30,6 +30,7 @@
  */
 package org.apache.openaz.xacml.std.pip.engines.ldap;
 
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
@@ -64,11 +65,26 @@ import com.google.common.cache.Cache;
  * LDAPEngine extends {@link org.apache.openaz.xacml.std.pip.engines.StdConfigurableEngine} to implement a
  * generic PIP for accessing data from and LDAP server, including a configurable cache to avoid repeat
  * queries.
+ * <p>
+ * If "pool.size" is configured, bound <code>DirContext</code>s are taken from a bounded
+ * {@link LDAPContextPool} instead of connecting and binding for each search. If "batch.size" is configured,
+ * concurrent searches of the same base for single equality filters on the same attribute are combined into
+ * one OR-filter search by an {@link LDAPSearchBatcher}, waiting at most "batch.window" milliseconds for
+ * other searches to join. Closing the engine closes the pooled contexts.
  */
-public class LDAPEngine extends StdConfigurableEngine {
+public class LDAPEngine extends StdConfigurableEngine implements Closeable {
     public static final String PROP_RESOLVERS = "resolvers";
     public static final String PROP_RESOLVER = "resolver";
     public static final String PROP_LDAP_SCOPE = "scope";
+    public static final String PROP_POOL_SIZE = "pool.size";
+    public static final String PROP_POOL_MAXWAIT = "pool.maxWait";
+    public static final String PROP_POOL_VALIDATIONINTERVAL = "pool.validationInterval";
+    public static final String PROP_BATCH_SIZE = "batch.size";
+    public static final String PROP_BATCH_WINDOW = "batch.window";
+
+    public static final long DEFAULT_POOL_MAXWAIT = 5000;
+    public static final long DEFAULT_POOL_VALIDATIONINTERVAL = 30000;
+    public static final long DEFAULT_BATCH_WINDOW = 5;
 
     private static final String LDAP_SCOPE_SUBTREE = "subtree";
     private static final String LDAP_SCOPE_OBJECT = "object";
@@ -80,6 +96,15 @@ public class LDAPEngine extends StdConfigurableEngine {
     private Hashtable<Object, Object> ldapEnvironment = new Hashtable<Object, Object>();
     private List<LDAPResolver> ldapResolvers = new ArrayList<LDAPResolver>();
     private int ldapScope;
+    private LDAPContextPool contextPool;
+    private LDAPSearchBatcher searchBatcher;
+    private final LDAPSearchBatcher.Searcher searcher = new LDAPSearchBatcher.Searcher() {
+        @Override
+        public List<SearchResult> search(String base, String filter, String[] returningAttributes)
+            throws NamingException {
+            return LDAPEngine.this.search(base, filter, returningAttributes);
+        }
+    };
 
     /*
      * In addition, we pull the following standard LDAP properties from the configuration
@@ -125,6 +150,40 @@ public class LDAPEngine extends StdConfigurableEngine {
         }
     }
 
+    private long getLongProperty(String propertyName, Properties properties, long defaultValue)
+        throws PIPException {
+        String propertyValue = properties.getProperty(propertyName);
+        if (propertyValue == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(propertyValue.trim());
+        } catch (NumberFormatException ex) {
+            this.logger.error("Invalid number '" + propertyValue + "' for '" + propertyName + "' property");
+            throw new PIPException("Invalid number '" + propertyValue + "' for '" + propertyName
+                                   + "' property");
+        }
+    }
+
+    /**
+     * Gets the {@link LDAPContextPool} the contexts are taken from.
+     *
+     * @return the <code>LDAPContextPool</code> or null if contexts are not pooled
+     */
+    public LDAPContextPool getContextPool() {
+        return this.contextPool;
+    }
+
+    /**
+     * Closes the {@link LDAPContextPool}, if any. Contexts in use are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        if (this.contextPool != null) {
+            this.contextPool.close();
+        }
+    }
+
     @Override
     public void configure(String id, Properties properties) throws PIPException {
         /*
@@ -167,6 +226,28 @@ public class LDAPEngine extends StdConfigurableEngine {
             this.ldapScope = SearchControls.SUBTREE_SCOPE;
         }
 
+        /*
+         * Pool the contexts and batch the searches if asked to
+         */
+        int poolSize = (int)this.getLongProperty(propertyPrefix + PROP_POOL_SIZE, properties, 0);
+        if (poolSize > 0) {
+            this.contextPool = new LDAPContextPool(
+                                                   this.ldapEnvironment,
+                                                   poolSize,
+                                                   this.getLongProperty(propertyPrefix + PROP_POOL_MAXWAIT,
+                                                                        properties, DEFAULT_POOL_MAXWAIT),
+                                                   this.getLongProperty(propertyPrefix
+                                                                        + PROP_POOL_VALIDATIONINTERVAL,
+                                                                        properties,
+                                                                        DEFAULT_POOL_VALIDATIONINTERVAL));
+        }
+        int batchSize = (int)this.getLongProperty(propertyPrefix + PROP_BATCH_SIZE, properties, 0);
+        if (batchSize > 1) {
+            this.searchBatcher = new LDAPSearchBatcher(batchSize,
+                                                       this.getLongProperty(propertyPrefix + PROP_BATCH_WINDOW,
+                                                                            properties, DEFAULT_BATCH_WINDOW));
+        }
+
         /*
          * Get list of resolvers defined for this LDAP Engine
          */
@@ -260,10 +341,12 @@ public class LDAPEngine extends StdConfigurableEngine {
         String stringFilter = ldapResolver.getFilterString(this, pipRequest, pipFinder);
 
         /*
-         * Check the cache
+         * Check the cache. Resolvers decode the same entries into different attributes, so the resolver is
+         * part of the key.
          */
         Cache<String, PIPResponse> cache = this.getCache();
-        String cacheKey = stringBase + "::" + (stringFilter == null ? "" : stringFilter);
+        String cacheKey = this.ldapResolvers.indexOf(ldapResolver) + "::" + stringBase + "::"
+                          + (stringFilter == null ? "" : stringFilter);
         if (cache != null) {
             PIPResponse pipResponse = cache.getIfPresent(cacheKey);
             if (pipResponse != null) {
@@ -275,45 +358,91 @@ public class LDAPEngine extends StdConfigurableEngine {
             }
         }
         /*
-         * Not in the cache, so set up the LDAP query session
+         * Not in the cache, so search the directory, together with other searches if we can
          */
-        DirContext dirContext = null;
-        PIPResponse pipResponse = null;
         try {
+            List<SearchResult> listSearchResults;
+            String[] equalityAssertion = this.searchBatcher == null
+                ? null : LDAPSearchBatcher.getEqualityAssertion(stringFilter);
+            if (equalityAssertion != null) {
+                listSearchResults = this.searchBatcher.search(stringBase, equalityAssertion, this.searcher);
+            } else {
+                listSearchResults = this.search(stringBase, stringFilter);
+            }
+            List<Attribute> listAttributesResult = new ArrayList<Attribute>();
+            for (SearchResult searchResult : listSearchResults) {
+                List<Attribute> listAttributes = ldapResolver.decodeResult(searchResult);
+                if (listAttributes != null && listAttributes.size() > 0) {
+                    mutablePIPResponse.addAttributes(listAttributes);
+                    listAttributesResult.addAll(listAttributes);
+                }
+            }
             /*
-             * Create the DirContext
+             * Put in the cache
              */
-            dirContext = new InitialDirContext(this.ldapEnvironment);
+            if (cache != null) {
+                cache.put(cacheKey, listAttributesResult.size() == 0
+                    ? StdPIPResponse.PIP_RESPONSE_EMPTY : new StdPIPResponse(listAttributesResult));
+            }
+        } catch (NamingException ex) {
+            this.logger.error("NamingException searching the directory: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Runs one search with a pooled or a new <code>DirContext</code> and reads all of its results before the
+     * context is given back.
+     *
+     * @param stringBase the base to search
+     * @param stringFilter the filter to search with
+     * @return the <code>List</code> of <code>SearchResult</code>s
+     * @throws NamingException if the context cannot be created or the search fails
+     */
+    protected List<SearchResult> search(String stringBase, String stringFilter) throws NamingException {
+        return this.search(stringBase, stringFilter, null);
+    }
 
+    /**
+     * Runs one search with a pooled or a new <code>DirContext</code>, asking for the given attributes of each
+     * entry, and reads all of its results before the context is given back.
+     *
+     * @param stringBase the base to search
+     * @param stringFilter the filter to search with
+     * @param returningAttributes the attributes to return, or null for all of them
+     * @return the <code>List</code> of <code>SearchResult</code>s
+     * @throws NamingException if the context cannot be created or the search fails
+     */
+    protected List<SearchResult> search(String stringBase, String stringFilter, String[] returningAttributes)
+        throws NamingException {
+        DirContext dirContext = this.contextPool == null
+            ? new InitialDirContext(this.ldapEnvironment) : this.contextPool.getContext();
+        boolean broken = true;
+        try {
             /*
              * Set up the search controls
              */
             SearchControls searchControls = new SearchControls();
             searchControls.setSearchScope(this.ldapScope);
+            searchControls.setReturningAttributes(returningAttributes);
 
             /*
              * Do the search
              */
+            List<SearchResult> listSearchResults = new ArrayList<SearchResult>();
             NamingEnumeration<SearchResult> namingEnumeration = dirContext.search(stringBase, stringFilter,
                                                                                   searchControls);
-            if (namingEnumeration != null && namingEnumeration.hasMore()) {
+            if (namingEnumeration != null) {
                 while (namingEnumeration.hasMore()) {
-                    List<Attribute> listAttributes = ldapResolver.decodeResult(namingEnumeration.next());
-                    if (listAttributes != null && listAttributes.size() > 0) {
-                        mutablePIPResponse.addAttributes(listAttributes);
-                    }
+                    listSearchResults.add(namingEnumeration.next());
                 }
+                namingEnumeration.close();
             }
-            /*
-             * Put in the cache
-             */
-            if (cache != null) {
-                cache.put(cacheKey, pipResponse);
-            }
-        } catch (NamingException ex) {
-            this.logger.error("NamingException creating the DirContext: " + ex.getMessage(), ex);
+            broken = false;
+            return listSearchResults;
         } finally {
-            if (dirContext != null) {
+            if (this.contextPool != null) {
+                this.contextPool.release(dirContext, broken);
+            } else {
                 try {
                     dirContext.close();
                 } catch (Exception ex) {
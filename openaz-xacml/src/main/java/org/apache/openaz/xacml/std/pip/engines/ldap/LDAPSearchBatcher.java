@@ -0,0 +1,344 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.std.pip.engines.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchResult;
+
+/**
+ * LDAPSearchBatcher combines concurrent searches of the same base for single equality filters on the same
+ * attribute, such as <code>(uid=alice)</code> and <code>(uid=bob)</code>, into one
+ * <code>(|(uid=alice)(uid=bob))</code> search. The first search to arrive waits up to
+ * <code>windowMillis</code>, or until <code>maxBatchSize</code> values have joined it, runs the combined
+ * search and hands each entry to the searches whose value the entry holds for that attribute.
+ * <p>
+ * The directory matches values by the matching rule of the attribute, which is not known here, so entries are
+ * only sorted by comparing values without regard to case or surrounding spaces. A search is run on its own
+ * instead whenever that comparison cannot give its answer with certainty: when an entry holds none of the
+ * values, when its value differs from another one only in case or spaces, or when no entry holds its value.
+ * <p>
+ * Filters of any other form are not batched; <code>getEqualityAssertion</code> returns null for them.
+ */
+class LDAPSearchBatcher {
+    /*
+     * An optional pair of parentheses around attribute=value, with no wildcards, no other operators and no
+     * matching rule
+     */
+    private static final Pattern EQUALITY_FILTER = Pattern
+        .compile("^\\s*(\\()?\\s*([A-Za-z0-9][A-Za-z0-9;.\\-]*)=([^()*]*)(\\))?\\s*$");
+
+    /**
+     * Runs a single LDAP search.
+     */
+    interface Searcher {
+        List<SearchResult> search(String base, String filter, String[] returningAttributes)
+            throws NamingException;
+    }
+
+    private static final class Batch {
+        private final String base;
+        private final String attributeId;
+        //
+        // Unescaped value to the escaped value as it appeared in the filter
+        //
+        private final Map<String, String> values = new LinkedHashMap<String, String>();
+        private final CountDownLatch full = new CountDownLatch(1);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private boolean open = true;
+        //
+        // The entries for each value the combined search could answer for
+        //
+        private Map<String, List<SearchResult>> resultsByValue;
+        private NamingException failure;
+
+        Batch(String baseIn, String attributeIdIn) {
+            this.base = baseIn;
+            this.attributeId = attributeIdIn;
+        }
+
+        String getFilter() {
+            StringBuilder stringBuilder = new StringBuilder();
+            if (this.values.size() > 1) {
+                stringBuilder.append("(|");
+            }
+            for (String value : this.values.values()) {
+                stringBuilder.append(getFilter(this.attributeId, value));
+            }
+            if (this.values.size() > 1) {
+                stringBuilder.append(')');
+            }
+            return stringBuilder.toString();
+        }
+
+        static String getFilter(String attributeId, String escapedValue) {
+            return "(" + attributeId + "=" + escapedValue + ")";
+        }
+    }
+
+    private final int maxBatchSize;
+    private final long windowMillis;
+    private final Map<String, Batch> openBatches = new HashMap<String, Batch>();
+
+    LDAPSearchBatcher(int maxBatchSizeIn, long windowMillisIn) {
+        this.maxBatchSize = maxBatchSizeIn;
+        this.windowMillis = windowMillisIn;
+    }
+
+    /**
+     * Splits a filter of the form <code>(attribute=value)</code> into its attribute and value.
+     *
+     * @param filter the LDAP filter <code>String</code>
+     * @return the attribute, the escaped value and the unescaped value, or null if the filter is not a single
+     *         equality assertion
+     */
+    static String[] getEqualityAssertion(String filter) {
+        if (filter == null) {
+            return null;
+        }
+        Matcher matcher = EQUALITY_FILTER.matcher(filter);
+        if (!matcher.matches()) {
+            return null;
+        }
+        boolean hasOpen = matcher.group(1) != null;
+        boolean hasClose = matcher.group(4) != null;
+        String value = matcher.group(3);
+        if (hasOpen != hasClose || value.isEmpty()) {
+            return null;
+        }
+        String unescapedValue = unescape(value);
+        if (unescapedValue == null) {
+            return null;
+        }
+        return new String[] {
+            matcher.group(2), value, unescapedValue
+        };
+    }
+
+    /*
+     * Removes the RFC 4515 \XX escapes from an assertion value, or returns null if it has an escape that is
+     * not two hex digits
+     */
+    private static String unescape(String value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length());
+        int i = 0;
+        while (i < value.length()) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                if (i + 2 >= value.length()) {
+                    return null;
+                }
+                int high = Character.digit(value.charAt(i + 1), 16);
+                int low = Character.digit(value.charAt(i + 2), 16);
+                if (high < 0 || low < 0) {
+                    return null;
+                }
+                bytes.write(high * 16 + low);
+                i += 3;
+            } else {
+                int end = i + 1;
+                while (end < value.length() && value.charAt(end) != '\\') {
+                    end++;
+                }
+                byte[] utf8 = value.substring(i, end).getBytes(StandardCharsets.UTF_8);
+                bytes.write(utf8, 0, utf8.length);
+                i = end;
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String normalizeValue(String value) {
+        return value.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Searches the given base for the given equality filter, sharing one search with any other searches of
+     * the same base and attribute that arrive at about the same time.
+     *
+     * @param base the base to search
+     * @param equalityAssertion the result of <code>getEqualityAssertion</code> for the filter
+     * @param searcher the <code>Searcher</code> that runs the combined search
+     * @return the entries holding the value
+     * @throws NamingException if the combined search failed
+     */
+    List<SearchResult> search(String base, String[] equalityAssertion, Searcher searcher)
+        throws NamingException {
+        String attributeId = equalityAssertion[0];
+        String value = equalityAssertion[2];
+        String key = base + "\u0000" + attributeId.toLowerCase(Locale.ENGLISH);
+        Batch batch;
+        boolean leader = false;
+        synchronized (this.openBatches) {
+            batch = this.openBatches.get(key);
+            if (batch == null) {
+                batch = new Batch(base, attributeId);
+                this.openBatches.put(key, batch);
+                leader = true;
+            }
+            if (!batch.values.containsKey(value)) {
+                batch.values.put(value, equalityAssertion[1]);
+            }
+            if (batch.values.size() >= this.maxBatchSize) {
+                batch.open = false;
+                this.openBatches.remove(key);
+                batch.full.countDown();
+            }
+        }
+        if (leader) {
+            this.runBatch(key, batch, searcher);
+        } else {
+            try {
+                batch.done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ServiceUnavailableException("Interrupted waiting for a batched LDAP search");
+            }
+        }
+        if (batch.failure != null) {
+            throw batch.failure;
+        }
+        List<SearchResult> results = batch.resultsByValue.get(value);
+        if (results == null) {
+            //
+            // The combined search cannot tell which entries hold this value
+            //
+            results = searcher.search(base, Batch.getFilter(attributeId, equalityAssertion[1]), null);
+        }
+        return results;
+    }
+
+    private void runBatch(String key, Batch batch, Searcher searcher) throws NamingException {
+        try {
+            //
+            // Give other searches the window to join, then close the batch
+            //
+            try {
+                batch.full.await(this.windowMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this.openBatches) {
+                if (batch.open) {
+                    batch.open = false;
+                    this.openBatches.remove(key);
+                }
+            }
+            //
+            // Run the combined search, making sure the entries come back with the attribute searched on
+            //
+            String[] returningAttributes = {
+                "*", batch.attributeId
+            };
+            batch.resultsByValue = getResultsByValue(batch, searcher.search(batch.base, batch.getFilter(),
+                                                                            returningAttributes));
+        } catch (NamingException ex) {
+            batch.failure = ex;
+        } catch (RuntimeException ex) {
+            batch.failure = new ServiceUnavailableException("Batched LDAP search failed: " + ex.toString());
+            throw ex;
+        } finally {
+            batch.done.countDown();
+        }
+    }
+
+    /*
+     * Hands each entry to the values it holds. Values the entries cannot be handed to with certainty are
+     * left out, so that they are searched for on their own.
+     */
+    private static Map<String, List<SearchResult>> getResultsByValue(Batch batch,
+                                                                     List<SearchResult> listSearchResults)
+        throws NamingException {
+        Map<String, List<SearchResult>> resultsByValue = new HashMap<String, List<SearchResult>>();
+        if (batch.values.size() == 1 || listSearchResults.isEmpty()) {
+            //
+            // The combined search is the search for each of the values
+            //
+            for (String value : batch.values.keySet()) {
+                resultsByValue.put(value, listSearchResults);
+            }
+            return resultsByValue;
+        }
+
+        Map<String, List<String>> valuesByNormalizedValue = new HashMap<String, List<String>>();
+        for (String value : batch.values.keySet()) {
+            String normalizedValue = normalizeValue(value);
+            List<String> listValues = valuesByNormalizedValue.get(normalizedValue);
+            if (listValues == null) {
+                listValues = new ArrayList<String>();
+                valuesByNormalizedValue.put(normalizedValue, listValues);
+            }
+            listValues.add(value);
+            resultsByValue.put(value, new ArrayList<SearchResult>());
+        }
+        for (SearchResult searchResult : listSearchResults) {
+            boolean matched = false;
+            Attribute attribute = searchResult.getAttributes() == null
+                ? null : searchResult.getAttributes().get(batch.attributeId);
+            if (attribute != null) {
+                NamingEnumeration<?> enumValues = attribute.getAll();
+                while (enumValues.hasMore()) {
+                    Object entryValue = enumValues.next();
+                    List<String> listValues = entryValue instanceof String
+                        ? valuesByNormalizedValue.get(normalizeValue((String)entryValue)) : null;
+                    if (listValues != null) {
+                        matched = true;
+                        for (String value : listValues) {
+                            List<SearchResult> results = resultsByValue.get(value);
+                            if (!results.contains(searchResult)) {
+                                results.add(searchResult);
+                            }
+                        }
+                    }
+                }
+            }
+            if (!matched) {
+                //
+                // The directory matched this entry in a way we cannot tell, so any value may hold it
+                //
+                return new HashMap<String, List<SearchResult>>();
+            }
+        }
+        for (List<String> listValues : valuesByNormalizedValue.values()) {
+            for (String value : listValues) {
+                if (listValues.size() > 1 || resultsByValue.get(value).isEmpty()) {
+                    resultsByValue.remove(value);
+                }
+            }
+        }
+        return resultsByValue;
+    }
+}
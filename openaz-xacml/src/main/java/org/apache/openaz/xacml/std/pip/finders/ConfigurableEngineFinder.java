@@ -30,11 +30,20 @@
  */
 package org.apache.openaz.xacml.std.pip.finders;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.openaz.xacml.api.pip.PIPEngine;
 import org.apache.openaz.xacml.api.pip.PIPException;
 import org.apache.openaz.xacml.api.pip.PIPRequest;
 import org.apache.openaz.xacml.std.pip.engines.ConfigurableEngine;
@@ -42,13 +51,35 @@ import org.apache.openaz.xacml.util.AttributeUtils;
 
 /**
  * ConfigurableEngineFinder extends {@link EngineFinder} with a method for configuring it from a
- * <code>Properties</code> object.
+ * <code>Properties</code> object. The responses of an engine are cached across requests if its
+ * <code>&lt;engineId&gt;.responseCache.ttl</code> property is set to a number of milliseconds, with
+ * <code>&lt;engineId&gt;.responseCache.maxWeight</code> limiting the total number of cached attribute values.
+ * If <code>xacml.pip.fanOut.threads</code> is set, the engines for a request are called concurrently on that
+ * many threads, each waiting at most <code>&lt;engineId&gt;.timeout</code> or
+ * <code>xacml.pip.fanOut.timeout</code> milliseconds, and an engine that fails
+ * <code>xacml.pip.circuitBreaker.failures</code> times in a row is not called for
+ * <code>xacml.pip.circuitBreaker.openMillis</code> milliseconds. Closing the finder shuts those threads down
+ * and closes the engines that hold connections.
  */
-public class ConfigurableEngineFinder extends EngineFinder {
+public class ConfigurableEngineFinder extends EngineFinder implements Closeable {
     private static final String PROP_PIP_ENGINES = "xacml.pip.engines";
+    private static final String PROP_PIP_ROUTEBYATTRIBUTE = "xacml.pip.routeByAttribute";
+    private static final String PROP_PIP_FANOUT_THREADS = "xacml.pip.fanOut.threads";
+    private static final String PROP_PIP_FANOUT_TIMEOUT = "xacml.pip.fanOut.timeout";
+    private static final String PROP_PIP_CIRCUITBREAKER_FAILURES = "xacml.pip.circuitBreaker.failures";
+    private static final String PROP_PIP_CIRCUITBREAKER_OPENMILLIS = "xacml.pip.circuitBreaker.openMillis";
+    private static final String TIMEOUT = ".timeout";
     private static final String CLASSNAME = ".classname";
+    private static final String RESPONSECACHE_TTL = ".responseCache.ttl";
+    private static final String RESPONSECACHE_MAXWEIGHT = ".responseCache.maxWeight";
+    public static final long DEFAULT_RESPONSECACHE_MAXWEIGHT = 10000;
+    public static final long DEFAULT_FANOUT_TIMEOUT = 5000;
+    public static final int DEFAULT_CIRCUITBREAKER_FAILURES = 5;
+    public static final long DEFAULT_CIRCUITBREAKER_OPENMILLIS = 30000;
+    private static final long FANOUT_KEEPALIVE_SECONDS = 60;
 
     private Log logger = LogFactory.getLog(this.getClass());
+    private ExecutorService fanOutExecutorService;
 
     /**
      * Creates an instance of the given <code>String</code> className for an object implementing the
@@ -109,6 +140,64 @@ public class ConfigurableEngineFinder extends EngineFinder {
          * Register the engine
          */
         this.register(configurableEngine);
+
+        /*
+         * Put a response cache in front of the engine if one is configured
+         */
+        long ttl = getLongProperty(properties, engineId + RESPONSECACHE_TTL, 0);
+        if (ttl > 0) {
+            long maxWeight = getLongProperty(properties, engineId + RESPONSECACHE_MAXWEIGHT,
+                                             DEFAULT_RESPONSECACHE_MAXWEIGHT);
+            this.setResponseCache(configurableEngine, new EngineResponseCache(configurableEngine, ttl,
+                                                                              maxWeight));
+            this.logger.info("Caching responses of engine " + engineId + " for " + ttl
+                             + "ms, maximum weight " + maxWeight);
+        }
+
+        long timeout = getLongProperty(properties, engineId + TIMEOUT, 0);
+        if (timeout > 0) {
+            this.setEngineTimeout(configurableEngine, timeout);
+        }
+    }
+
+    /**
+     * Creates the <code>ExecutorService</code> for calling engines concurrently. Its threads are daemon
+     * threads so an engine that never returns does not keep the JVM alive, and they exit after being idle for
+     * a minute.
+     *
+     * @param threads the number of threads
+     * @return a new <code>ExecutorService</code>
+     */
+    protected ExecutorService newExecutorService(int threads) {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "pip-fanout-" + this.count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threads, threads,
+                                                                       FANOUT_KEEPALIVE_SECONDS, TimeUnit.SECONDS,
+                                                                       new LinkedBlockingQueue<Runnable>(),
+                                                                       threadFactory);
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
+    private static long getLongProperty(Properties properties, String propertyName, long defaultValue)
+        throws PIPException {
+        String value = properties.getProperty(propertyName);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new PIPException("Invalid value for " + propertyName + ": \"" + value + "\"");
+        }
     }
 
     public ConfigurableEngineFinder() {
@@ -116,13 +205,32 @@ public class ConfigurableEngineFinder extends EngineFinder {
 
     /**
      * Gets the "org.apache.openaz.xacml.pip.engines" property from the given <code>Properties</code> to find
-     * the list of PIP engines that should be created, configured, and registered.
+     * the list of PIP engines that should be created, configured, and registered. Routing of requests by the
+     * attributes each engine provides can be turned off by setting "xacml.pip.routeByAttribute" to false.
      *
      * @param properties the <code>Properties</code> containing the engine configurations
      * @throws org.apache.openaz.xacml.api.pip.PIPException if there is an error creating and configuring the
      *             engines
      */
     public void configure(Properties properties) throws PIPException {
+        String routeByAttribute = properties.getProperty(PROP_PIP_ROUTEBYATTRIBUTE);
+        if (routeByAttribute != null) {
+            this.setRouteByAttribute(Boolean.parseBoolean(routeByAttribute.trim()));
+        }
+
+        int fanOutThreads = (int)getLongProperty(properties, PROP_PIP_FANOUT_THREADS, 0);
+        if (fanOutThreads > 0) {
+            long fanOutTimeout = getLongProperty(properties, PROP_PIP_FANOUT_TIMEOUT, DEFAULT_FANOUT_TIMEOUT);
+            this.fanOutExecutorService = this.newExecutorService(fanOutThreads);
+            this.setExecutorService(this.fanOutExecutorService, fanOutTimeout);
+            this.setCircuitBreaker((int)getLongProperty(properties, PROP_PIP_CIRCUITBREAKER_FAILURES,
+                                                        DEFAULT_CIRCUITBREAKER_FAILURES),
+                                   getLongProperty(properties, PROP_PIP_CIRCUITBREAKER_OPENMILLIS,
+                                                   DEFAULT_CIRCUITBREAKER_OPENMILLIS));
+            this.logger.info("Calling PIP engines concurrently on " + fanOutThreads + " threads, timeout "
+                             + fanOutTimeout + "ms");
+        }
+
         String engineIds = properties.getProperty(PROP_PIP_ENGINES);
         if (engineIds == null || engineIds.length() == 0) {
             return;
@@ -148,4 +256,25 @@ public class ConfigurableEngineFinder extends EngineFinder {
         }
     }
 
+    /**
+     * Shuts down the threads this finder created for calling engines concurrently and closes every registered
+     * engine that is <code>Closeable</code>, releasing the connections it holds. Calls already waiting for an
+     * engine are not interrupted, and later calls run the engines on the calling thread.
+     */
+    @Override
+    public void close() {
+        if (this.fanOutExecutorService != null) {
+            this.fanOutExecutorService.shutdown();
+        }
+        for (PIPEngine pipEngine : this.getPIPEngines()) {
+            if (pipEngine instanceof Closeable) {
+                try {
+                    ((Closeable)pipEngine).close();
+                } catch (IOException | RuntimeException ex) {
+                    this.logger.warn("Exception closing engine \"" + pipEngine.getName() + "\"", ex);
+                }
+            }
+        }
+    }
+
 }
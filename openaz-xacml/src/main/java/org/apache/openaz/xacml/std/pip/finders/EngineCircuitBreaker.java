@@ -0,0 +1,75 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.std.pip.finders;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * EngineCircuitBreaker keeps track of consecutive failures of a single
+ * {@link org.apache.openaz.xacml.api.pip.PIPEngine}. Once the engine has failed, timed out or answered with an
+ * error status <code>failureThreshold</code> times in a row the circuit opens and the engine is not called for
+ * <code>openMillis</code> milliseconds. After that calls are let through again; the first one to fail opens
+ * the circuit again straight away, and the first one to succeed resets the failure count.
+ */
+public class EngineCircuitBreaker {
+    private final int failureThreshold;
+    private final long openMillis;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openUntil;
+
+    /**
+     * Creates a new <code>EngineCircuitBreaker</code>.
+     *
+     * @param failureThresholdIn the number of consecutive failures that opens the circuit
+     * @param openMillisIn the number of milliseconds the circuit stays open
+     */
+    public EngineCircuitBreaker(int failureThresholdIn, long openMillisIn) {
+        this.failureThreshold = Math.max(failureThresholdIn, 1);
+        this.openMillis = openMillisIn;
+    }
+
+    /**
+     * Determines whether the engine may be called now.
+     *
+     * @return true if the circuit is closed or the open period has passed
+     */
+    public boolean allowRequest() {
+        return System.currentTimeMillis() >= this.openUntil;
+    }
+
+    public boolean isOpen() {
+        return !this.allowRequest();
+    }
+
+    public void recordSuccess() {
+        this.consecutiveFailures.set(0);
+    }
+
+    public void recordFailure() {
+        if (this.consecutiveFailures.incrementAndGet() >= this.failureThreshold) {
+            this.openUntil = System.currentTimeMillis() + this.openMillis;
+        }
+    }
+
+    public int getConsecutiveFailures() {
+        return this.consecutiveFailures.get();
+    }
+}
@@ -34,10 +34,23 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.openaz.xacml.api.Identifier;
 import org.apache.openaz.xacml.api.Status;
 import org.apache.openaz.xacml.api.pip.PIPEngine;
 import org.apache.openaz.xacml.api.pip.PIPException;
@@ -47,14 +60,74 @@ import org.apache.openaz.xacml.api.pip.PIPResponse;
 import org.apache.openaz.xacml.std.StdStatus;
 import org.apache.openaz.xacml.std.StdStatusCode;
 import org.apache.openaz.xacml.std.pip.StdMutablePIPResponse;
+import org.apache.openaz.xacml.std.pip.StdPIPRequest;
 import org.apache.openaz.xacml.std.pip.StdPIPResponse;
+import org.apache.openaz.xacml.util.ObjUtil;
 
 /**
  * EngineFinder implements the {@link org.apache.openaz.xacml.api.pip.PIPFinder} interface by maintaining a
  * simple list of registered {@link org.apache.openaz.xacml.api.pip.PIPEngine} objects.
+ * <p>
+ * By default a <code>PIPRequest</code> is only passed to the engines that list a matching attribute in
+ * <code>attributesProvided</code>, plus every engine that does not list any attributes at all.
  */
 public class EngineFinder implements PIPFinder {
     private Map<String, List<PIPEngine>> pipEngines = new HashMap<String, List<PIPEngine>>();
+    private Map<PIPEngine, EngineResponseCache> responseCaches = new IdentityHashMap<PIPEngine, EngineResponseCache>();
+
+    /*
+     * The attributes provided by each engine, indexed by category and attribute id, and the engines that
+     * do not say what they provide and so get every request.
+     */
+    private Map<PIPRequest, List<ProvidedAttribute>> mapProvidedAttributes = new HashMap<PIPRequest, List<ProvidedAttribute>>();
+    private Set<PIPEngine> undeclaredEngines = Collections
+        .newSetFromMap(new IdentityHashMap<PIPEngine, Boolean>());
+    private boolean routeByAttribute = true;
+    private AtomicLong engineCalls = new AtomicLong();
+    private AtomicLong skippedEngineCalls = new AtomicLong();
+
+    /*
+     * Optional concurrent fan-out of engine calls, with a timeout per engine and a circuit breaker that stops
+     * calling an engine that keeps failing.
+     */
+    private static final ThreadLocal<Boolean> IN_FAN_OUT = new ThreadLocal<Boolean>();
+    private ExecutorService executorService;
+    private long defaultTimeoutMillis;
+    private Map<PIPEngine, Long> engineTimeouts = new IdentityHashMap<PIPEngine, Long>();
+    private int circuitBreakerFailures;
+    private long circuitBreakerOpenMillis;
+    private ConcurrentMap<PIPEngine, EngineCircuitBreaker> circuitBreakers = new ConcurrentHashMap<PIPEngine, EngineCircuitBreaker>();
+
+    private static class ProvidedAttribute {
+        private PIPEngine pipEngine;
+        private PIPRequest pipRequest;
+
+        ProvidedAttribute(PIPEngine pipEngineIn, PIPRequest pipRequestIn) {
+            this.pipEngine = pipEngineIn;
+            this.pipRequest = pipRequestIn;
+        }
+
+        /*
+         * Missing data types and issuers on either side are treated as wildcards, so an engine is only
+         * skipped if it clearly does not provide the requested attribute.
+         */
+        boolean matches(PIPRequest pipRequestIn) {
+            Identifier dataTypeProvided = this.pipRequest.getDataTypeId();
+            Identifier dataTypeRequested = pipRequestIn.getDataTypeId();
+            if (dataTypeProvided != null && dataTypeRequested != null
+                && !dataTypeProvided.equals(dataTypeRequested)) {
+                return false;
+            }
+            String issuerProvided = this.pipRequest.getIssuer();
+            String issuerRequested = pipRequestIn.getIssuer();
+            return issuerProvided == null || issuerRequested == null || issuerRequested.length() == 0
+                   || ObjUtil.equalsAllowNull(issuerProvided, issuerRequested);
+        }
+    }
+
+    private static PIPRequest newRouteKey(Identifier category, Identifier attributeId) {
+        return new StdPIPRequest(category, attributeId, null);
+    }
 
     /**
      * Creates an empty <code>EngineFinder</code>
@@ -75,37 +148,394 @@ public class EngineFinder implements PIPFinder {
                 this.pipEngines.put(pipEngine.getName(), pipEnginesForName);
             }
             pipEnginesForName.add(pipEngine);
+
+            /*
+             * Index the attributes the engine provides
+             */
+            Collection<PIPRequest> attributesProvided = pipEngine.attributesProvided();
+            if (attributesProvided == null || attributesProvided.isEmpty()) {
+                this.undeclaredEngines.add(pipEngine);
+            } else {
+                for (PIPRequest pipRequestProvided : attributesProvided) {
+                    if (pipRequestProvided.getCategory() == null || pipRequestProvided.getAttributeId() == null) {
+                        this.undeclaredEngines.add(pipEngine);
+                    } else {
+                        PIPRequest routeKey = newRouteKey(pipRequestProvided.getCategory(),
+                                                          pipRequestProvided.getAttributeId());
+                        List<ProvidedAttribute> listProvidedAttributes = this.mapProvidedAttributes
+                            .get(routeKey);
+                        if (listProvidedAttributes == null) {
+                            listProvidedAttributes = new ArrayList<ProvidedAttribute>();
+                            this.mapProvidedAttributes.put(routeKey, listProvidedAttributes);
+                        }
+                        listProvidedAttributes.add(new ProvidedAttribute(pipEngine, pipRequestProvided));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets whether a <code>PIPRequest</code> is only passed to the engines that provide a matching attribute
+     * (the default), or to every registered engine.
+     *
+     * @param routeByAttributeIn true to route requests by the attributes each engine provides
+     */
+    public void setRouteByAttribute(boolean routeByAttributeIn) {
+        this.routeByAttribute = routeByAttributeIn;
+    }
+
+    public boolean isRouteByAttribute() {
+        return this.routeByAttribute;
+    }
+
+    /**
+     * Calls the candidate <code>PIPEngine</code>s for a <code>PIPRequest</code> concurrently on the given
+     * <code>ExecutorService</code> instead of one after the other on the calling thread. An engine that does
+     * not answer within its timeout contributes a processing error status instead of its attributes.
+     *
+     * @param executorServiceIn the <code>ExecutorService</code> to call engines on, or null to call them on
+     *            the calling thread
+     * @param defaultTimeoutMillisIn the number of milliseconds to wait for an engine without its own timeout
+     */
+    public void setExecutorService(ExecutorService executorServiceIn, long defaultTimeoutMillisIn) {
+        this.executorService = executorServiceIn;
+        this.defaultTimeoutMillis = defaultTimeoutMillisIn;
+    }
+
+    public ExecutorService getExecutorService() {
+        return this.executorService;
+    }
+
+    /**
+     * Sets the number of milliseconds to wait for the given <code>PIPEngine</code> when engines are called
+     * concurrently.
+     *
+     * @param pipEngine the registered <code>PIPEngine</code>
+     * @param timeoutMillis the timeout in milliseconds
+     */
+    public void setEngineTimeout(PIPEngine pipEngine, long timeoutMillis) {
+        this.engineTimeouts.put(pipEngine, timeoutMillis);
+    }
+
+    /**
+     * Stops calling an engine for <code>openMillis</code> milliseconds once it has failed, timed out or
+     * answered with an error status <code>failures</code> times in a row.
+     *
+     * @param failures the number of consecutive failures that opens the circuit, or 0 for no circuit breaker
+     * @param openMillis the number of milliseconds the circuit stays open
+     */
+    public void setCircuitBreaker(int failures, long openMillis) {
+        this.circuitBreakerFailures = failures;
+        this.circuitBreakerOpenMillis = openMillis;
+        this.circuitBreakers.clear();
+    }
+
+    /**
+     * Gets the {@link EngineCircuitBreaker} for the given <code>PIPEngine</code>.
+     *
+     * @param pipEngine the registered <code>PIPEngine</code>
+     * @return the <code>EngineCircuitBreaker</code> or null if there is no circuit breaker
+     */
+    public EngineCircuitBreaker getCircuitBreaker(PIPEngine pipEngine) {
+        if (this.circuitBreakerFailures <= 0) {
+            return null;
+        }
+        EngineCircuitBreaker circuitBreaker = this.circuitBreakers.get(pipEngine);
+        if (circuitBreaker == null) {
+            circuitBreaker = new EngineCircuitBreaker(this.circuitBreakerFailures,
+                                                      this.circuitBreakerOpenMillis);
+            EngineCircuitBreaker circuitBreakerExisting = this.circuitBreakers.putIfAbsent(pipEngine,
+                                                                                          circuitBreaker);
+            if (circuitBreakerExisting != null) {
+                circuitBreaker = circuitBreakerExisting;
+            }
+        }
+        return circuitBreaker;
+    }
+
+    private long getTimeoutMillis(PIPEngine pipEngine) {
+        Long timeoutMillis = this.engineTimeouts.get(pipEngine);
+        return timeoutMillis == null ? this.defaultTimeoutMillis : timeoutMillis;
+    }
+
+    /**
+     * Gets the number of calls made to registered <code>PIPEngine</code>s.
+     *
+     * @return the number of <code>PIPEngine</code> calls
+     */
+    public long getEngineCalls() {
+        return this.engineCalls.get();
+    }
+
+    /**
+     * Gets the number of <code>PIPEngine</code> calls that were skipped because the engine does not provide
+     * the requested attribute.
+     *
+     * @return the number of skipped <code>PIPEngine</code> calls
+     */
+    public long getSkippedEngineCalls() {
+        return this.skippedEngineCalls.get();
+    }
+
+    /**
+     * Gets the registered <code>PIPEngine</code>s that may provide the attribute in the given
+     * <code>PIPRequest</code>.
+     *
+     * @param pipRequest the <code>PIPRequest</code>
+     * @return the <code>Set</code> of candidate <code>PIPEngine</code>s or null if every engine is a
+     *         candidate
+     */
+    protected Set<PIPEngine> getCandidateEngines(PIPRequest pipRequest) {
+        if (!this.routeByAttribute || pipRequest.getCategory() == null || pipRequest.getAttributeId() == null) {
+            return null;
         }
+        Set<PIPEngine> candidateEngines = Collections.newSetFromMap(new IdentityHashMap<PIPEngine, Boolean>());
+        candidateEngines.addAll(this.undeclaredEngines);
+        List<ProvidedAttribute> listProvidedAttributes = this.mapProvidedAttributes
+            .get(newRouteKey(pipRequest.getCategory(), pipRequest.getAttributeId()));
+        if (listProvidedAttributes != null) {
+            for (ProvidedAttribute providedAttribute : listProvidedAttributes) {
+                if (providedAttribute.matches(pipRequest)) {
+                    candidateEngines.add(providedAttribute.pipEngine);
+                }
+            }
+        }
+        return candidateEngines;
+    }
+
+    /**
+     * Caches the responses of the given registered <code>PIPEngine</code> in the given
+     * {@link EngineResponseCache} so they can be shared across requests.
+     *
+     * @param pipEngine the registered <code>PIPEngine</code>
+     * @param responseCache the <code>EngineResponseCache</code> for the <code>PIPEngine</code>
+     */
+    public void setResponseCache(PIPEngine pipEngine, EngineResponseCache responseCache) {
+        if (responseCache == null) {
+            this.responseCaches.remove(pipEngine);
+        } else {
+            this.responseCaches.put(pipEngine, responseCache);
+        }
+    }
+
+    /**
+     * Gets the {@link EngineResponseCache} for the given <code>PIPEngine</code>.
+     *
+     * @param pipEngine the registered <code>PIPEngine</code>
+     * @return the <code>EngineResponseCache</code> for the <code>PIPEngine</code> or null if its responses
+     *         are not cached
+     */
+    public EngineResponseCache getResponseCache(PIPEngine pipEngine) {
+        return this.responseCaches.get(pipEngine);
+    }
+
+    /**
+     * Gets the <code>PIPResponse</code> for the given <code>PIPRequest</code> from a single
+     * <code>PIPEngine</code>, going through its {@link EngineResponseCache} if it has one.
+     *
+     * @param pipEngine the <code>PIPEngine</code> to get attributes from
+     * @param pipRequest the <code>PIPRequest</code>
+     * @param pipFinderParent the <code>PIPFinder</code> for recursive calls
+     * @return the <code>PIPResponse</code> from the <code>PIPEngine</code>
+     * @throws PIPException if there is an error getting the attributes
+     */
+    protected PIPResponse getEngineAttributes(PIPEngine pipEngine, PIPRequest pipRequest,
+                                              PIPFinder pipFinderParent) throws PIPException {
+        EngineResponseCache responseCache = this.responseCaches.get(pipEngine);
+        if (responseCache == null) {
+            return pipEngine.getAttributes(pipRequest, pipFinderParent);
+        } else {
+            return responseCache.getAttributes(pipRequest, pipFinderParent);
+        }
+    }
+
+    private static PIPResponse newErrorResponse(String message) {
+        return new StdPIPResponse(new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR, message));
+    }
+
+    private static PIPResponse newUnavailableResponse(PIPEngine pipEngine) {
+        return newErrorResponse("PIP engine " + pipEngine.getName() + " is unavailable");
+    }
+
+    /*
+     * A response with an error status counts as a failure just like an exception or a timeout
+     */
+    private static void recordResponse(EngineCircuitBreaker circuitBreaker, PIPResponse pipResponse) {
+        if (circuitBreaker != null) {
+            Status status = (pipResponse == null ? null : pipResponse.getStatus());
+            if (status == null || status.isOk()) {
+                circuitBreaker.recordSuccess();
+            } else {
+                circuitBreaker.recordFailure();
+            }
+        }
+    }
+
+    private PIPResponse getEngineAttributesSafely(PIPEngine pipEngine, PIPRequest pipRequest,
+                                                  PIPFinder pipFinderParent) {
+        try {
+            return this.getEngineAttributes(pipEngine, pipRequest, pipFinderParent);
+        } catch (Exception e) {
+            return new StdPIPResponse(new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR));
+        }
+    }
+
+    /**
+     * Calls the given <code>PIPEngine</code> on the calling thread, going through its circuit breaker.
+     */
+    private PIPResponse getEngineAttributesInline(PIPEngine pipEngine, PIPRequest pipRequest,
+                                                  PIPFinder pipFinderParent) {
+        EngineCircuitBreaker circuitBreaker = this.getCircuitBreaker(pipEngine);
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            return newUnavailableResponse(pipEngine);
+        }
+        PIPResponse pipResponseEngine = this.getEngineAttributesSafely(pipEngine, pipRequest,
+                                                                       pipFinderParent);
+        recordResponse(circuitBreaker, pipResponseEngine);
+        return pipResponseEngine;
+    }
+
+    /**
+     * Calls each of the given <code>PIPEngine</code>s on the <code>ExecutorService</code> and waits for each
+     * of them up to its timeout. The responses are returned in the same order as the engines.
+     */
+    private List<PIPResponse> getEngineAttributesConcurrently(List<PIPEngine> listEngines,
+                                                              final PIPRequest pipRequest,
+                                                              final PIPFinder pipFinderParent) {
+        List<PIPResponse> listResponses = new ArrayList<PIPResponse>(listEngines.size());
+        List<Future<PIPResponse>> listFutures = new ArrayList<Future<PIPResponse>>(listEngines.size());
+        long start = System.currentTimeMillis();
+        for (final PIPEngine pipEngine : listEngines) {
+            EngineCircuitBreaker circuitBreaker = this.getCircuitBreaker(pipEngine);
+            if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+                listResponses.add(newUnavailableResponse(pipEngine));
+                listFutures.add(null);
+                continue;
+            }
+            Future<PIPResponse> future = null;
+            try {
+                future = this.executorService.submit(new Callable<PIPResponse>() {
+                    @Override
+                    public PIPResponse call() throws Exception {
+                        IN_FAN_OUT.set(Boolean.TRUE);
+                        try {
+                            return EngineFinder.this.getEngineAttributes(pipEngine, pipRequest,
+                                                                         pipFinderParent);
+                        } finally {
+                            IN_FAN_OUT.remove();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                /*
+                 * Call the engine on this thread instead
+                 */
+                future = null;
+            }
+            if (future == null) {
+                PIPResponse pipResponseEngine = this.getEngineAttributesSafely(pipEngine, pipRequest,
+                                                                               pipFinderParent);
+                recordResponse(circuitBreaker, pipResponseEngine);
+                listResponses.add(pipResponseEngine);
+            } else {
+                listResponses.add(null);
+            }
+            listFutures.add(future);
+        }
+
+        for (int i = 0; i < listEngines.size(); i++) {
+            Future<PIPResponse> future = listFutures.get(i);
+            if (future == null) {
+                continue;
+            }
+            PIPEngine pipEngine = listEngines.get(i);
+            EngineCircuitBreaker circuitBreaker = this.getCircuitBreaker(pipEngine);
+            PIPResponse pipResponseEngine = null;
+            try {
+                long remaining = start + this.getTimeoutMillis(pipEngine) - System.currentTimeMillis();
+                pipResponseEngine = future.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+                recordResponse(circuitBreaker, pipResponseEngine);
+            } catch (TimeoutException ex) {
+                /*
+                 * Abandon the result rather than interrupting the engine, which may not leave its connection
+                 * or other shared state usable after an interrupt
+                 */
+                future.cancel(false);
+                if (circuitBreaker != null) {
+                    circuitBreaker.recordFailure();
+                }
+                pipResponseEngine = newErrorResponse("PIP engine " + pipEngine.getName() + " timed out");
+            } catch (ExecutionException ex) {
+                if (circuitBreaker != null) {
+                    circuitBreaker.recordFailure();
+                }
+                pipResponseEngine = new StdPIPResponse(
+                                                       new StdStatus(StdStatusCode.STATUS_CODE_PROCESSING_ERROR));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                for (int j = i; j < listFutures.size(); j++) {
+                    if (listFutures.get(j) != null) {
+                        listFutures.get(j).cancel(false);
+                    }
+                }
+                pipResponseEngine = newErrorResponse("Interrupted waiting for PIP engine "
+                                                     + pipEngine.getName());
+            }
+            listResponses.set(i, pipResponseEngine);
+        }
+        return listResponses;
     }
 
     @Override
     public PIPResponse getAttributes(PIPRequest pipRequest, PIPEngine exclude, PIPFinder pipFinderParent)
         throws PIPException {
-        StdMutablePIPResponse pipResponse = new StdMutablePIPResponse();
-        Status firstErrorStatus = null;
+        /*
+         * Collect the engines to call
+         */
+        List<PIPEngine> listEngines = new ArrayList<PIPEngine>();
+        Set<PIPEngine> candidateEngines = this.getCandidateEngines(pipRequest);
         Iterator<List<PIPEngine>> iterPIPEngineLists = this.pipEngines.values().iterator();
         while (iterPIPEngineLists.hasNext()) {
             List<PIPEngine> listPIPEngines = iterPIPEngineLists.next();
             for (PIPEngine pipEngine : listPIPEngines) {
                 if (pipEngine != exclude) {
-                    PIPResponse pipResponseEngine = null;
-                    try {
-                        pipResponseEngine = pipEngine.getAttributes(pipRequest, pipFinderParent);
-                    } catch (Exception e) {
-                        pipResponseEngine = new StdPIPResponse(
-                                                               new StdStatus(
-                                                                             StdStatusCode.STATUS_CODE_PROCESSING_ERROR));
-                    }
-                    if (pipResponseEngine != null) {
-                        if (pipResponseEngine.getStatus() == null || pipResponseEngine.getStatus().isOk()) {
-                            pipResponse.addAttributes(pipResponseEngine.getAttributes());
-                        } else if (firstErrorStatus == null) {
-                            firstErrorStatus = pipResponseEngine.getStatus();
-                        }
+                    if (candidateEngines != null && !candidateEngines.contains(pipEngine)) {
+                        this.skippedEngineCalls.incrementAndGet();
+                    } else {
+                        listEngines.add(pipEngine);
                     }
                 }
             }
         }
+        this.engineCalls.addAndGet(listEngines.size());
+
+        /*
+         * Call them, concurrently if there is an executor. Engines that ask for more attributes while they
+         * run on the executor call the engines they need on their own thread, so they never wait for a free
+         * thread in the executor.
+         */
+        List<PIPResponse> listResponses;
+        if (this.executorService != null && listEngines.size() > 0 && IN_FAN_OUT.get() == null) {
+            listResponses = this.getEngineAttributesConcurrently(listEngines, pipRequest, pipFinderParent);
+        } else {
+            listResponses = new ArrayList<PIPResponse>(listEngines.size());
+            for (PIPEngine pipEngine : listEngines) {
+                listResponses.add(this.getEngineAttributesInline(pipEngine, pipRequest, pipFinderParent));
+            }
+        }
+
+        StdMutablePIPResponse pipResponse = new StdMutablePIPResponse();
+        Status firstErrorStatus = null;
+        for (PIPResponse pipResponseEngine : listResponses) {
+            if (pipResponseEngine != null) {
+                if (pipResponseEngine.getStatus() == null || pipResponseEngine.getStatus().isOk()) {
+                    pipResponse.addAttributes(pipResponseEngine.getAttributes());
+                } else if (firstErrorStatus == null) {
+                    firstErrorStatus = pipResponseEngine.getStatus();
+                }
+            }
+        }
         if (pipResponse.getAttributes().size() == 0 && firstErrorStatus != null) {
             pipResponse.setStatus(firstErrorStatus);
         }
@@ -0,0 +1,201 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.std.pip.finders;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.openaz.xacml.api.Attribute;
+import org.apache.openaz.xacml.api.AttributeValue;
+import org.apache.openaz.xacml.api.pip.PIPEngine;
+import org.apache.openaz.xacml.api.pip.PIPException;
+import org.apache.openaz.xacml.api.pip.PIPFinder;
+import org.apache.openaz.xacml.api.pip.PIPRequest;
+import org.apache.openaz.xacml.api.pip.PIPResponse;
+import org.apache.openaz.xacml.std.pip.StdPIPRequest;
+import org.apache.openaz.xacml.std.pip.StdPIPResponse;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+/**
+ * EngineResponseCache caches the {@link org.apache.openaz.xacml.api.pip.PIPResponse}s of a single
+ * {@link org.apache.openaz.xacml.api.pip.PIPEngine} across requests. A cached response is keyed by the
+ * <code>PIPRequest</code> and the values of every attribute the engine lists in
+ * <code>attributesRequired</code>, so two requests for the same principal share a response while requests
+ * for different principals do not. Entries expire a fixed time after they are written, and the cache is
+ * bounded by the total number of attribute values it holds. The cache is safe to share between threads.
+ */
+public class EngineResponseCache {
+    private final PIPEngine pipEngine;
+    private final Cache<Key, PIPResponse> cache;
+
+    /*
+     * The key for a cached response: the requested attribute plus the values of the engine's required
+     * attributes at the time of the request.
+     */
+    private static final class Key {
+        private final PIPRequest pipRequest;
+        private final List<Set<AttributeValue<?>>> requiredValues;
+        private final int hashCode;
+
+        Key(PIPRequest pipRequestIn, List<Set<AttributeValue<?>>> requiredValuesIn) {
+            this.pipRequest = pipRequestIn;
+            this.requiredValues = requiredValuesIn;
+            this.hashCode = 31 * pipRequestIn.hashCode() + requiredValuesIn.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            } else if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key key = (Key)obj;
+            return this.hashCode == key.hashCode && this.pipRequest.equals(key.pipRequest)
+                   && this.requiredValues.equals(key.requiredValues);
+        }
+    }
+
+    private static final Weigher<Key, PIPResponse> WEIGHER = new Weigher<Key, PIPResponse>() {
+        @Override
+        public int weigh(Key key, PIPResponse pipResponse) {
+            int weight = 1;
+            for (Attribute attribute : pipResponse.getAttributes()) {
+                weight += attribute.getValues().size();
+            }
+            return weight;
+        }
+    };
+
+    /**
+     * Creates a new <code>EngineResponseCache</code> for the given <code>PIPEngine</code>.
+     *
+     * @param pipEngineIn the <code>PIPEngine</code> whose responses are cached
+     * @param ttlMillis the number of milliseconds a response stays in the cache
+     * @param maxWeight the maximum total number of attribute values in the cache
+     */
+    public EngineResponseCache(PIPEngine pipEngineIn, long ttlMillis, long maxWeight) {
+        this.pipEngine = pipEngineIn;
+        this.cache = CacheBuilder.newBuilder().expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+            .maximumWeight(maxWeight).weigher(WEIGHER).recordStats().build();
+    }
+
+    public PIPEngine getPIPEngine() {
+        return this.pipEngine;
+    }
+
+    /**
+     * Builds the cache key for the given <code>PIPRequest</code> by looking up the current values of the
+     * engine's required attributes through the given <code>PIPFinder</code>.
+     *
+     * @return the <code>Key</code> or null if one of the required attributes could not be retrieved
+     */
+    private Key newKey(PIPRequest pipRequest, PIPFinder pipFinder) throws PIPException {
+        Collection<PIPRequest> attributesRequired = this.pipEngine.attributesRequired();
+        List<Set<AttributeValue<?>>> requiredValues = new ArrayList<Set<AttributeValue<?>>>();
+        if (attributesRequired != null && attributesRequired.size() > 0) {
+            if (pipFinder == null) {
+                return null;
+            }
+            for (PIPRequest pipRequestRequired : attributesRequired) {
+                PIPResponse pipResponseRequired = pipFinder.getMatchingAttributes(pipRequestRequired,
+                                                                                  this.pipEngine);
+                if (pipResponseRequired == null
+                    || pipResponseRequired.getStatus() != null && !pipResponseRequired.getStatus().isOk()) {
+                    return null;
+                }
+                Set<AttributeValue<?>> values = new HashSet<AttributeValue<?>>();
+                for (Attribute attribute : pipResponseRequired.getAttributes()) {
+                    values.addAll(attribute.getValues());
+                }
+                requiredValues.add(values);
+            }
+        }
+        return new Key(new StdPIPRequest(pipRequest), requiredValues);
+    }
+
+    /**
+     * Gets the <code>PIPResponse</code> for the given <code>PIPRequest</code> from the cache, or from the
+     * <code>PIPEngine</code> if it is not cached. Only responses with an OK status are cached.
+     *
+     * @param pipRequest the <code>PIPRequest</code>
+     * @param pipFinder the <code>PIPFinder</code> the <code>PIPEngine</code> uses for its required attributes
+     * @return the <code>PIPResponse</code>
+     * @throws PIPException if there is an error getting the attributes from the <code>PIPEngine</code>
+     */
+    public PIPResponse getAttributes(PIPRequest pipRequest, PIPFinder pipFinder) throws PIPException {
+        Key key = this.newKey(pipRequest, pipFinder);
+        if (key == null) {
+            return this.pipEngine.getAttributes(pipRequest, pipFinder);
+        }
+        PIPResponse pipResponse = this.cache.getIfPresent(key);
+        if (pipResponse == null) {
+            pipResponse = this.pipEngine.getAttributes(pipRequest, pipFinder);
+            if (pipResponse != null && (pipResponse.getStatus() == null || pipResponse.getStatus().isOk())) {
+                pipResponse = new StdPIPResponse(pipResponse);
+                this.cache.put(key, pipResponse);
+            }
+        }
+        return pipResponse;
+    }
+
+    /**
+     * Discards every cached <code>PIPResponse</code>.
+     */
+    public void invalidateAll() {
+        this.cache.invalidateAll();
+    }
+
+    public long size() {
+        return this.cache.size();
+    }
+
+    public long getHitCount() {
+        return this.cache.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return this.cache.stats().missCount();
+    }
+
+    public CacheStats getStats() {
+        return this.cache.stats();
+    }
+
+    @Override
+    public String toString() {
+        return "{pipEngine=" + this.pipEngine.getName() + ",size=" + this.cache.size() + ",stats="
+               + this.cache.stats() + "}";
+    }
+}
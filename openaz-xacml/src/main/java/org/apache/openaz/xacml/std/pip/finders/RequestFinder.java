@@ -34,9 +34,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.openaz.xacml.api.Status;
 import org.apache.openaz.xacml.api.XACML3;
@@ -59,7 +59,7 @@ import org.apache.openaz.xacml.std.pip.engines.RequestEngine;
 public class RequestFinder extends WrappingFinder {
     private RequestEngine requestEngine;
     private EnvironmentEngine environmentEngine;
-    private Map<PIPRequest, PIPResponse> mapCache = new HashMap<PIPRequest, PIPResponse>();
+    private Map<PIPRequest, PIPResponse> mapCache = new ConcurrentHashMap<PIPRequest, PIPResponse>();
 
     protected RequestEngine getRequestEngine() {
         return this.requestEngine;
@@ -128,8 +128,9 @@ public class RequestFinder extends WrappingFinder {
         /*
          * Try the cache
          */
-        if (this.mapCache.containsKey(pipRequest)) {
-            return this.mapCache.get(pipRequest);
+        PIPResponse pipResponseCached = this.mapCache.get(pipRequest);
+        if (pipResponseCached != null) {
+            return pipResponseCached;
         }
 
         /*
@@ -0,0 +1,714 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.std.stax;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.openaz.xacml.api.Attribute;
+import org.apache.openaz.xacml.api.AttributeValue;
+import org.apache.openaz.xacml.api.DataType;
+import org.apache.openaz.xacml.api.DataTypeException;
+import org.apache.openaz.xacml.api.DataTypeFactory;
+import org.apache.openaz.xacml.api.Identifier;
+import org.apache.openaz.xacml.api.Request;
+import org.apache.openaz.xacml.api.RequestAttributes;
+import org.apache.openaz.xacml.api.RequestReference;
+import org.apache.openaz.xacml.api.XACML;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.std.IdentifierImpl;
+import org.apache.openaz.xacml.std.StdAttribute;
+import org.apache.openaz.xacml.std.StdMutableAttribute;
+import org.apache.openaz.xacml.std.StdMutableRequest;
+import org.apache.openaz.xacml.std.StdMutableRequestReference;
+import org.apache.openaz.xacml.std.StdRequest;
+import org.apache.openaz.xacml.std.StdRequestAttributes;
+import org.apache.openaz.xacml.std.StdRequestAttributesReference;
+import org.apache.openaz.xacml.std.StdRequestDefaults;
+import org.apache.openaz.xacml.std.StdRequestReference;
+import org.apache.openaz.xacml.std.datatypes.DataTypes;
+import org.apache.openaz.xacml.std.datatypes.StringNamespaceContext;
+import org.apache.openaz.xacml.std.datatypes.XPathExpressionWrapper;
+import org.apache.openaz.xacml.std.dom.DOMProperties;
+import org.apache.openaz.xacml.std.dom.DOMRequest;
+import org.apache.openaz.xacml.std.dom.DOMStructureException;
+import org.apache.openaz.xacml.std.dom.DOMUtil;
+import org.apache.openaz.xacml.util.FactoryException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+
+/**
+ * StAXRequest is used to convert XML into {@link org.apache.openaz.xacml.api.Request} objects with a StAX
+ * <code>XMLStreamReader</code>. It accepts the same documents as
+ * {@link org.apache.openaz.xacml.std.dom.DOMRequest} and builds the same
+ * {@link org.apache.openaz.xacml.std.StdRequest} objects, including the handling of lenient mode from
+ * {@link org.apache.openaz.xacml.std.dom.DOMProperties}, but only builds a DOM tree for the children of
+ * <code>Content</code> elements.
+ * <p>
+ * As in <code>DOMRequest</code>, the namespaces used by xpathExpression values are the ones declared on the
+ * root Request element.
+ */
+public class StAXRequest {
+    private static final Log logger = LogFactory.getLog(StAXRequest.class);
+
+    private static final String PROPERTY_REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    /*
+     * The XMLInputFactory shared by every load. It is configured once here and only used to create new
+     * XMLStreamReaders after that.
+     */
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        /*
+         * The JDK parser reports CDATA sections as plain characters unless asked not to, and the DOM keeps
+         * them as CDATASection nodes
+         */
+        if (XML_INPUT_FACTORY.isPropertySupported(PROPERTY_REPORT_CDATA)) {
+            XML_INPUT_FACTORY.setProperty(PROPERTY_REPORT_CDATA, Boolean.TRUE);
+        }
+    }
+
+    /*
+     * DocumentBuilders are not thread-safe, so each thread keeps its own for building Content documents.
+     */
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = new ThreadLocal<DocumentBuilder>();
+
+    private final XMLStreamReader reader;
+    private final boolean bLenient;
+    private final DataTypeFactory dataTypeFactory;
+    private StringNamespaceContext namespaceContext;
+
+    protected StAXRequest(XMLStreamReader readerIn, boolean bLenientIn, DataTypeFactory dataTypeFactoryIn) {
+        this.reader = readerIn;
+        this.bLenient = bLenientIn;
+        this.dataTypeFactory = dataTypeFactoryIn;
+    }
+
+    /**
+     * Parse an XML string into a {@link org.apache.openaz.xacml.api.Request} object.
+     *
+     * @param xmlString
+     * @return
+     * @throws DOMStructureException
+     */
+    public static Request load(String xmlString) throws DOMStructureException {
+        try (InputStream is = new ByteArrayInputStream(xmlString.getBytes("UTF-8"))) {
+            return StAXRequest.load(is);
+        } catch (IOException ex) {
+            throw new DOMStructureException("Exception loading String Request: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Read a file containing the XML description of a XACML Request and parse it into a
+     * {@link org.apache.openaz.xacml.api.Request} Object.
+     *
+     * @param fileRequest
+     * @return
+     * @throws DOMStructureException
+     */
+    public static Request load(File fileRequest) throws DOMStructureException {
+        try (FileInputStream fis = new FileInputStream(fileRequest)) {
+            return StAXRequest.load(fis);
+        } catch (IOException ex) {
+            throw new DOMStructureException("Exception loading File Request: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Read characters from the given <code>InputStream</code> and parse them into an XACML
+     * {@link org.apache.openaz.xacml.api.Request} object. IMPORTANT: This method does NOT close the
+     * InputStream.
+     *
+     * @param is
+     * @return
+     * @throws DOMStructureException
+     */
+    public static Request load(InputStream is) throws DOMStructureException {
+        XMLStreamReader xmlStreamReader = null;
+        try {
+            DataTypeFactory dataTypeFactory = DataTypeFactory.newInstance();
+            if (dataTypeFactory == null) {
+                throw new DOMStructureException("Failed to get DataTypeFactory");
+            }
+            xmlStreamReader = XML_INPUT_FACTORY.createXMLStreamReader(is);
+            if (xmlStreamReader.nextTag() != XMLStreamConstants.START_ELEMENT) {
+                throw new DOMStructureException("No child in document");
+            }
+            StAXRequest stAXRequest = new StAXRequest(xmlStreamReader, DOMProperties.isLenient(),
+                                                      dataTypeFactory);
+            if (!stAXRequest.isXacmlElement(XACML3.ELEMENT_REQUEST)) {
+                throw stAXRequest.newUnexpectedElementException(null);
+            }
+            return stAXRequest.parseRequest();
+        } catch (DOMStructureException | XMLStreamException | FactoryException ex) {
+            throw new DOMStructureException("Exception loading Request: " + ex.getMessage(), ex);
+        } finally {
+            if (xmlStreamReader != null) {
+                try {
+                    xmlStreamReader.close();
+                } catch (XMLStreamException ex) {
+                    logger.warn("Failed to close XMLStreamReader: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /*
+     * Helpers for the element the reader is positioned at.
+     */
+
+    private String getLabel() {
+        String namespaceURI = this.reader.getNamespaceURI();
+        return namespaceURI == null || namespaceURI.length() == 0
+            ? this.reader.getLocalName() : namespaceURI + ":" + this.reader.getLocalName();
+    }
+
+    /*
+     * Errors are reported with the position of the reader in the document.
+     */
+    private DOMStructureException newException(String message, Throwable cause) {
+        Location location = this.reader.getLocation();
+        if (location != null) {
+            message = message + " at line " + location.getLineNumber() + " column "
+                      + location.getColumnNumber();
+        }
+        return new DOMStructureException(message, cause);
+    }
+
+    private boolean isXacmlElement(String localName) {
+        return XACML3.XMLNS.equals(this.reader.getNamespaceURI())
+               && localName.equals(this.reader.getLocalName());
+    }
+
+    private DOMStructureException newUnexpectedElementException(String parentLabel) {
+        return this.newException("Unexpected element \"" + this.getLabel()
+                                 + (parentLabel == null ? "\"" : "\" in \"" + parentLabel + "\""), null);
+    }
+
+    private DOMStructureException newMissingElementException(String parentLabel, String elementName) {
+        return this.newException("Missing element \"" + XACML3.XMLNS + ":" + elementName + "\" in \""
+                                 + parentLabel + "\"", null);
+    }
+
+    /*
+     * Advance to the next child element of the current element. Returns false when the end of the current
+     * element is reached instead. Text, comments and processing instructions between elements are ignored,
+     * as they are by the DOM classes.
+     */
+    private boolean nextChildElement() throws XMLStreamException {
+        while (this.reader.hasNext()) {
+            int eventType = this.reader.next();
+            if (eventType == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if (eventType == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Skip the current element and everything in it, leaving the reader at its end.
+     */
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && this.reader.hasNext()) {
+            int eventType = this.reader.next();
+            if (eventType == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (eventType == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /*
+     * An unexpected element is an error unless we are lenient, in which case it is skipped.
+     */
+    private void unexpectedElement(String parentLabel) throws DOMStructureException, XMLStreamException {
+        if (!this.bLenient) {
+            throw this.newUnexpectedElementException(parentLabel);
+        }
+        this.skipElement();
+    }
+
+    /*
+     * Get the text of the current element and all of its descendants, like Node.getTextContent(), leaving
+     * the reader at the end of the element.
+     */
+    private String getTextContent() throws XMLStreamException {
+        StringBuilder stringBuilder = null;
+        String firstText = null;
+        int depth = 1;
+        while (depth > 0 && this.reader.hasNext()) {
+            switch (this.reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+            case XMLStreamConstants.ENTITY_REFERENCE:
+                if (firstText == null) {
+                    firstText = this.reader.getText();
+                } else {
+                    if (stringBuilder == null) {
+                        stringBuilder = new StringBuilder(firstText);
+                    }
+                    stringBuilder.append(this.reader.getText());
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        if (stringBuilder != null) {
+            return stringBuilder.toString();
+        }
+        return firstText == null ? "" : firstText;
+    }
+
+    /*
+     * Attributes are looked up by their unprefixed name, as DOMUtil does with getNamedItem.
+     */
+    private String getAttribute(String localName, boolean bRequired) throws DOMStructureException {
+        int count = this.reader.getAttributeCount();
+        for (int i = 0; i < count; i++) {
+            String prefix = this.reader.getAttributePrefix(i);
+            if ((prefix == null || prefix.length() == 0) && localName.equals(this.reader.getAttributeLocalName(i))) {
+                return this.reader.getAttributeValue(i);
+            }
+        }
+        if (bRequired) {
+            throw this.newException("Missing attribute \"" + localName + "\" in \"" + this.getLabel()
+                                    + "\"", null);
+        }
+        return null;
+    }
+
+    private Identifier getIdentifierAttribute(String localName, boolean bRequired)
+        throws DOMStructureException {
+        String stringAttribute = this.getAttribute(localName, bRequired);
+        if (stringAttribute == null) {
+            return null;
+        }
+        try {
+            return IdentifierImpl.lookup(stringAttribute);
+        } catch (IllegalArgumentException ex) {
+            throw this.newException("Invalid Identifier \"" + stringAttribute + "\" in \""
+                                    + this.getLabel() + "\"", ex);
+        }
+    }
+
+    private Boolean getBooleanAttribute(String localName, boolean bRequired) throws DOMStructureException {
+        String stringAttribute = this.getAttribute(localName, bRequired);
+        if (stringAttribute == null) {
+            return null;
+        } else if (stringAttribute.equals("0") || stringAttribute.equalsIgnoreCase("false")) {
+            return Boolean.FALSE;
+        } else if (stringAttribute.equals("1") || stringAttribute.equalsIgnoreCase("true")) {
+            return Boolean.TRUE;
+        } else {
+            throw this.newException("Illegal Boolean value \"" + stringAttribute + "\" in \""
+                                    + this.getLabel() + "\"", null);
+        }
+    }
+
+    /*
+     * Parsers for each element of the Request schema. Each one is called with the reader at the start of its
+     * element and returns with the reader at the end of it.
+     */
+
+    private Request parseRequest() throws DOMStructureException, XMLStreamException {
+        String label = this.getLabel();
+
+        /*
+         * Remember the namespaces declared on the Request for xpathExpression values
+         */
+        this.namespaceContext = new StringNamespaceContext();
+        int namespaceCount = this.reader.getNamespaceCount();
+        for (int i = 0; i < namespaceCount; i++) {
+            try {
+                this.namespaceContext.add(this.reader.getNamespacePrefix(i), this.reader.getNamespaceURI(i));
+            } catch (Exception ex) {
+                throw this.newException("Invalid namespace declaration in \"" + label + "\": "
+                                        + ex.getMessage(), ex);
+            }
+        }
+
+        StdMutableRequest stdMutableRequest = new StdMutableRequest();
+        Boolean returnPolicyIdList = this.getBooleanAttribute(XACML3.ATTRIBUTE_RETURNPOLICYIDLIST,
+                                                              !this.bLenient);
+        stdMutableRequest.setReturnPolicyIdList(returnPolicyIdList != null
+                                                && returnPolicyIdList.booleanValue());
+        Boolean combinedDecision = this.getBooleanAttribute(XACML3.ATTRIBUTE_COMBINEDDECISION, !this.bLenient);
+        stdMutableRequest.setCombinedDecision(combinedDecision != null && combinedDecision.booleanValue());
+
+        boolean sawAttributes = false;
+        while (this.nextChildElement()) {
+            if (this.isXacmlElement(XACML3.ELEMENT_ATTRIBUTES)) {
+                stdMutableRequest.add(this.parseAttributes());
+                sawAttributes = true;
+            } else if (this.isXacmlElement(XACML3.ELEMENT_REQUESTDEFAULTS)) {
+                stdMutableRequest.setRequestDefaults(this.parseRequestDefaults());
+            } else if (this.isXacmlElement(XACML3.ELEMENT_MULTIREQUESTS)) {
+                String labelMultiRequests = this.getLabel();
+                while (this.nextChildElement()) {
+                    if (this.isXacmlElement(XACML3.ELEMENT_REQUESTREFERENCE)) {
+                        stdMutableRequest.add(this.parseRequestReference());
+                    } else {
+                        this.unexpectedElement(labelMultiRequests);
+                    }
+                }
+            } else {
+                this.unexpectedElement(label);
+            }
+        }
+        if (!sawAttributes && !this.bLenient) {
+            throw this.newMissingElementException(label, XACML3.ELEMENT_ATTRIBUTES);
+        }
+
+        return new StdRequest(stdMutableRequest);
+    }
+
+    private StdRequestDefaults parseRequestDefaults() throws DOMStructureException, XMLStreamException {
+        String label = this.getLabel();
+        URI uriXPathVersion = null;
+        while (this.nextChildElement()) {
+            if (this.isXacmlElement(XACML3.ELEMENT_XPATHVERSION)) {
+                String labelXPathVersion = this.getLabel();
+                String text = this.getTextContent();
+                try {
+                    uriXPathVersion = new URI(text);
+                } catch (URISyntaxException ex) {
+                    throw this.newException("Illegal URI value \"" + text + "\" in \""
+                                            + labelXPathVersion + "\"", ex);
+                }
+            } else {
+                this.unexpectedElement(label);
+            }
+        }
+        return new StdRequestDefaults(uriXPathVersion);
+    }
+
+    private RequestReference parseRequestReference() throws DOMStructureException, XMLStreamException {
+        String label = this.getLabel();
+        StdMutableRequestReference stdRequestReference = new StdMutableRequestReference();
+        boolean sawAttributesReference = false;
+        while (this.nextChildElement()) {
+            if (this.isXacmlElement(XACML3.ELEMENT_ATTRIBUTESREFERENCE)) {
+                stdRequestReference.add(new StdRequestAttributesReference(this
+                    .getAttribute(XACML3.ATTRIBUTE_REFERENCEID, !this.bLenient)));
+                this.skipElement();
+                sawAttributesReference = true;
+            } else {
+                this.unexpectedElement(label);
+            }
+        }
+        if (!sawAttributesReference && !this.bLenient) {
+            throw this.newMissingElementException(label, XACML3.ELEMENT_ATTRIBUTESREFERENCE);
+        }
+        return new StdRequestReference(stdRequestReference);
+    }
+
+    private RequestAttributes parseAttributes() throws DOMStructureException, XMLStreamException {
+        String label = this.getLabel();
+        Identifier identifierCategory = this.getIdentifierAttribute(XACML3.ATTRIBUTE_CATEGORY, !this.bLenient);
+        String xmlId = this.reader.getAttributeValue(XMLConstants.XML_NS_URI, "id");
+        Node nodeContentRoot = null;
+        List<Attribute> listAttributes = new ArrayList<Attribute>();
+        boolean sawContent = false;
+
+        while (this.nextChildElement()) {
+            if (this.isXacmlElement(XACML3.ELEMENT_CONTENT)) {
+                if (sawContent && !this.bLenient) {
+                    throw this.newUnexpectedElementException(label);
+                }
+                sawContent = true;
+                nodeContentRoot = this.parseContent(nodeContentRoot);
+            } else if (this.isXacmlElement(XACML3.ELEMENT_ATTRIBUTE)) {
+                listAttributes.add(this.parseAttribute(identifierCategory));
+            } else {
+                this.unexpectedElement(label);
+            }
+        }
+
+        return new StdRequestAttributes(identifierCategory, listAttributes, nodeContentRoot, xmlId);
+    }
+
+    /*
+     * The single child element of Content becomes the document element of a new Document. If lenient and
+     * there is more than one, the first one wins as it does in DOMRequestAttributes.
+     */
+    private Node parseContent(Node nodeContentRootIn) throws DOMStructureException, XMLStreamException {
+        String label = this.getLabel();
+        Node nodeContentRoot = nodeContentRootIn;
+        while (this.nextChildElement()) {
+            if (nodeContentRoot != null) {
+                this.unexpectedElement(label);
+            } else {
+                DocumentBuilder documentBuilder = DOCUMENT_BUILDER.get();
+                if (documentBuilder == null) {
+                    documentBuilder = DOMUtil.getDocumentBuilder();
+                    DOCUMENT_BUILDER.set(documentBuilder);
+                }
+                Document documentRoot = documentBuilder.newDocument();
+                nodeContentRoot = this.buildElement(documentRoot);
+                documentRoot.appendChild(nodeContentRoot);
+            }
+        }
+        if (nodeContentRoot == null && !this.bLenient) {
+            throw this.newException("Missing content for \"" + label + "\"", null);
+        }
+        return nodeContentRoot;
+    }
+
+    /*
+     * Build a DOM Element for the current element and everything in it.
+     */
+    private Element buildElement(Document document) throws XMLStreamException {
+        Element element = document.createElementNS(emptyToNull(this.reader.getNamespaceURI()),
+                                                   qualifiedName(this.reader.getPrefix(),
+                                                                 this.reader.getLocalName()));
+        int namespaceCount = this.reader.getNamespaceCount();
+        for (int i = 0; i < namespaceCount; i++) {
+            String prefix = emptyToNull(this.reader.getNamespacePrefix(i));
+            String namespaceURI = this.reader.getNamespaceURI(i);
+            element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                                   qualifiedName(prefix == null ? null : XMLConstants.XMLNS_ATTRIBUTE,
+                                                 prefix == null ? XMLConstants.XMLNS_ATTRIBUTE : prefix),
+                                   namespaceURI == null ? "" : namespaceURI);
+        }
+        int attributeCount = this.reader.getAttributeCount();
+        for (int i = 0; i < attributeCount; i++) {
+            element.setAttributeNS(emptyToNull(this.reader.getAttributeNamespace(i)),
+                                   qualifiedName(this.reader.getAttributePrefix(i),
+                                                 this.reader.getAttributeLocalName(i)),
+                                   this.reader.getAttributeValue(i));
+        }
+
+        while (this.reader.hasNext()) {
+            switch (this.reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                element.appendChild(this.buildElement(document));
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                return element;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+            case XMLStreamConstants.ENTITY_REFERENCE:
+                /*
+                 * A parser may report one run of text in several pieces, the DOM has a single Text node
+                 */
+                Node lastChild = element.getLastChild();
+                if (lastChild != null && lastChild.getNodeType() == Node.TEXT_NODE) {
+                    ((Text)lastChild).appendData(this.reader.getText());
+                } else {
+                    element.appendChild(document.createTextNode(this.reader.getText()));
+                }
+                break;
+            case XMLStreamConstants.CDATA:
+                element.appendChild(document.createCDATASection(this.reader.getText()));
+                break;
+            case XMLStreamConstants.COMMENT:
+                element.appendChild(document.createComment(this.reader.getText()));
+                break;
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                element.appendChild(document.createProcessingInstruction(this.reader.getPITarget(),
+                                                                         this.reader.getPIData()));
+                break;
+            default:
+                break;
+            }
+        }
+        return element;
+    }
+
+    private static String emptyToNull(String string) {
+        return string == null || string.length() == 0 ? null : string;
+    }
+
+    private static String qualifiedName(String prefix, String localName) {
+        return prefix == null || prefix.length() == 0 ? localName : prefix + ":" + localName;
+    }
+
+    private Attribute parseAttribute(Identifier category) throws DOMStructureException, XMLStreamException {
+        String label = this.getLabel();
+        StdMutableAttribute mutableAttribute = new StdMutableAttribute();
+
+        mutableAttribute.setCategory(category);
+        mutableAttribute.setAttributeId(this.getIdentifierAttribute(XACML3.ATTRIBUTE_ATTRIBUTEID,
+                                                                    !this.bLenient));
+        mutableAttribute.setIssuer(this.getAttribute(XACML3.ATTRIBUTE_ISSUER, false));
+        Boolean includeInResults = this.getBooleanAttribute(XACML3.ATTRIBUTE_INCLUDEINRESULT, !this.bLenient);
+        mutableAttribute.setIncludeInResults(includeInResults != null && includeInResults.booleanValue());
+
+        boolean sawAttributeValue = false;
+        while (this.nextChildElement()) {
+            if (this.isXacmlElement(XACML3.ELEMENT_ATTRIBUTEVALUE)) {
+                mutableAttribute.addValue(this.parseAttributeValue(category));
+                sawAttributeValue = true;
+            } else {
+                this.unexpectedElement(label);
+            }
+        }
+        if (!sawAttributeValue && !this.bLenient) {
+            throw this.newMissingElementException(label, XACML3.ELEMENT_ATTRIBUTEVALUE);
+        }
+
+        return new StdAttribute(mutableAttribute);
+    }
+
+    /*
+     * A missing or unknown DataType is repaired the same way DOMAttributeValue does it.
+     */
+    private AttributeValue<?> parseAttributeValue(Identifier category) throws DOMStructureException,
+        XMLStreamException {
+        String label = this.getLabel();
+        Identifier identifierDataTypeId = this.getIdentifierAttribute(XACML3.ATTRIBUTE_DATATYPE, false);
+        DataType<?> dataTypeExtended = identifierDataTypeId == null
+            ? null : this.dataTypeFactory.getDataType(identifierDataTypeId);
+        if (dataTypeExtended == null) {
+            if (identifierDataTypeId == null) {
+                dataTypeExtended = DataTypes.DT_STRING;
+                logger.warn("Setting missing " + XACML3.ATTRIBUTE_DATATYPE + " attribute to "
+                            + dataTypeExtended.getId().stringValue());
+            } else {
+                if (identifierDataTypeId.equals(XACML.ID_DATATYPE_WD_DAYTIMEDURATION)) {
+                    dataTypeExtended = DataTypes.DT_DAYTIMEDURATION;
+                } else if (identifierDataTypeId.equals(XACML.ID_DATATYPE_WD_YEARMONTHDURATION)) {
+                    dataTypeExtended = DataTypes.DT_YEARMONTHDURATION;
+                } else {
+                    dataTypeExtended = DataTypes.DT_STRING;
+                }
+                logger.warn("Changing unknown DataType " + identifierDataTypeId.stringValue() + " to "
+                            + dataTypeExtended.getId().stringValue());
+            }
+        }
+
+        /*
+         * An invalid XPathCategory is ignored, as it is by DataTypeBase
+         */
+        Identifier xpathCategory = null;
+        String stringXPathCategory = this.getAttribute(XACML3.ATTRIBUTE_XPATHCATEGORY, false);
+        if (stringXPathCategory != null) {
+            try {
+                xpathCategory = IdentifierImpl.lookup(stringXPathCategory);
+            } catch (IllegalArgumentException ex) {
+                logger.debug("Ignoring invalid XPathCategory \"" + stringXPathCategory + "\" in \"" + label
+                             + "\"");
+            }
+        }
+
+        String text = this.getTextContent();
+        AttributeValue<?> attributeValue = null;
+        try {
+            Object source = text;
+            if (dataTypeExtended.getId().equals(XACML3.ID_DATATYPE_XPATHEXPRESSION)) {
+                if (text.length() == 0) {
+                    throw new DataTypeException(dataTypeExtended, "XPathExpression must have XPath value");
+                }
+                source = new XPathExpressionWrapper(this.namespaceContext, text);
+            }
+            attributeValue = dataTypeExtended.createAttributeValue(source, xpathCategory);
+        } catch (DataTypeException ex) {
+            throw this.newException("Unable to convert \"" + label + "\" to \""
+                                    + dataTypeExtended.getId().toString() + "\"", ex);
+        }
+        if (!this.bLenient && attributeValue != null && attributeValue.getXPathCategory() != null
+            && category != null && !category.equals(attributeValue.getXPathCategory())) {
+            throw this.newException("AttributeValue XPathCategory does not match "
+                                    + category.stringValue() + " in \"" + label + "\"", null);
+        }
+        return attributeValue;
+    }
+
+    /**
+     * Unit test program to load XML files containing XACML Request documents with both
+     * <code>StAXRequest</code> and {@link org.apache.openaz.xacml.std.dom.DOMRequest}, check that they give
+     * the same Request, and print how long each takes to load it the given number of times.
+     *
+     * @param args the number of times to load each file, followed by the list of Request files to load
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: StAXRequest <iterations> <request file>...");
+            return;
+        }
+        int iterations = Integer.parseInt(args[0]);
+        for (int i = 1; i < args.length; i++) {
+            File fileXml = new File(args[i]);
+            System.out.println(fileXml.getAbsolutePath() + ":");
+            try {
+                byte[] bytes = Files.readAllBytes(fileXml.toPath());
+                Request stAXRequest = StAXRequest.load(new ByteArrayInputStream(bytes));
+                Request domRequest = DOMRequest.load(new ByteArrayInputStream(bytes));
+                if (!stAXRequest.equals(domRequest)) {
+                    System.err.println("StAXRequest and DOMRequest differ for \"" + fileXml.getAbsolutePath()
+                                       + "\"");
+                }
+
+                long lTimeStart = System.nanoTime();
+                for (int n = 0; n < iterations; n++) {
+                    StAXRequest.load(new ByteArrayInputStream(bytes));
+                }
+                long lTimeStAX = System.nanoTime() - lTimeStart;
+                lTimeStart = System.nanoTime();
+                for (int n = 0; n < iterations; n++) {
+                    DOMRequest.load(new ByteArrayInputStream(bytes));
+                }
+                long lTimeDOM = System.nanoTime() - lTimeStart;
+                System.out.println("StAXRequest: " + lTimeStAX / 1000 / iterations + "us/request, DOMRequest: "
+                                   + lTimeDOM / 1000 / iterations + "us/request");
+            } catch (Exception ex) {
+                ex.printStackTrace(System.err);
+            }
+        }
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.openaz.xacml.std.stax;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Iterator;
+
+import javax.security.auth.x500.X500Principal;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.openaz.xacml.api.Advice;
+import org.apache.openaz.xacml.api.Attribute;
+import org.apache.openaz.xacml.api.AttributeAssignment;
+import org.apache.openaz.xacml.api.AttributeCategory;
+import org.apache.openaz.xacml.api.AttributeValue;
+import org.apache.openaz.xacml.api.Decision;
+import org.apache.openaz.xacml.api.IdReference;
+import org.apache.openaz.xacml.api.Identifier;
+import org.apache.openaz.xacml.api.MissingAttributeDetail;
+import org.apache.openaz.xacml.api.Obligation;
+import org.apache.openaz.xacml.api.Response;
+import org.apache.openaz.xacml.api.Result;
+import org.apache.openaz.xacml.api.SemanticString;
+import org.apache.openaz.xacml.api.Status;
+import org.apache.openaz.xacml.api.StatusCode;
+import org.apache.openaz.xacml.api.XACML3;
+import org.apache.openaz.xacml.std.StdStatusCode;
+import org.apache.openaz.xacml.std.datatypes.ExtendedNamespaceContext;
+import org.apache.openaz.xacml.std.datatypes.XPathExpressionWrapper;
+import org.apache.openaz.xacml.std.dom.DOMStructureException;
+
+/**
+ * StAXResponseWriter writes {@link org.apache.openaz.xacml.api.Response} objects as XACML 3.0 XML directly to
+ * an <code>OutputStream</code> using an <code>XMLStreamWriter</code>, without first building the whole
+ * document in memory. It writes the same elements as
+ * {@link org.apache.openaz.xacml.std.dom.DOMResponse#convert(Response, OutputStream, boolean)}, but escapes
+ * text and attribute values, and names the <code>DataType</code> of a <code>MissingAttributeDetail</code> and
+ * of its <code>AttributeValue</code>s as the schema does.
+ * <p>
+ * The Response is checked as it is written, so if it is not valid some of it may already have been written
+ * when the <code>DOMStructureException</code> is thrown.
+ */
+public class StAXResponseWriter {
+    private static final String SCHEMA_LOCATION = XACML3.XMLNS
+                                                  + " http://docs.oasis-open.org/xacml/3.0/xacml-core-v3-schema-wd-17.xsd";
+
+    /*
+     * The XMLOutputFactory shared by every write. It is configured once here and only used to create new
+     * XMLStreamWriters after that.
+     */
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private final XMLStreamWriter writer;
+    private final boolean prettyPrint;
+
+    protected StAXResponseWriter(XMLStreamWriter writerIn, boolean prettyPrintIn) {
+        this.writer = writerIn;
+        this.prettyPrint = prettyPrintIn;
+    }
+
+    /**
+     * Write the given {@link org.apache.openaz.xacml.api.Response} as XML to the given
+     * <code>OutputStream</code> in UTF-8 without pretty-printing. IMPORTANT: This method does NOT close the
+     * outputStream.
+     *
+     * @param response
+     * @param outputStream
+     * @throws IOException
+     * @throws DOMStructureException
+     */
+    public static void write(Response response, OutputStream outputStream) throws IOException,
+        DOMStructureException {
+        write(response, outputStream, false);
+    }
+
+    /**
+     * Write the given {@link org.apache.openaz.xacml.api.Response} as XML to the given
+     * <code>OutputStream</code> in UTF-8, pretty-printing if desired. IMPORTANT: This method does NOT close
+     * the outputStream.
+     *
+     * @param response
+     * @param outputStream
+     * @param prettyPrint
+     * @throws IOException
+     * @throws DOMStructureException
+     */
+    public static void write(Response response, OutputStream outputStream, boolean prettyPrint)
+        throws IOException, DOMStructureException {
+        if (response == null) {
+            throw new DOMStructureException("No Request in convert");
+        }
+        if (response.getResults() == null || response.getResults().size() == 0) {
+            // must be at least one result
+            throw new DOMStructureException("No Result in Response");
+        }
+
+        try {
+            XMLStreamWriter xmlStreamWriter = XML_OUTPUT_FACTORY.createXMLStreamWriter(outputStream, "UTF-8");
+            try {
+                new StAXResponseWriter(xmlStreamWriter, prettyPrint).writeResponse(response);
+                xmlStreamWriter.flush();
+            } finally {
+                // this does not close the underlying outputStream
+                xmlStreamWriter.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new IOException("Unable to write Response: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void indent(int depth) throws XMLStreamException {
+        if (this.prettyPrint) {
+            StringBuilder sb = new StringBuilder(depth + 1);
+            sb.append('\n');
+            for (int i = 0; i < depth; i++) {
+                sb.append('\t');
+            }
+            this.writer.writeCharacters(sb.toString());
+        }
+    }
+
+    private void writeStartElement(String localName, int depth) throws XMLStreamException {
+        this.indent(depth);
+        this.writer.writeStartElement(localName);
+    }
+
+    private void writeEndElement(int depth) throws XMLStreamException {
+        this.indent(depth);
+        this.writer.writeEndElement();
+    }
+
+    private void writeResponse(Response response) throws XMLStreamException, DOMStructureException {
+        this.writer.writeStartDocument("UTF-8", "1.0");
+
+        // TODO include all Namespace info, as in DOMResponse this only has the standard XACML namespaces
+        this.writeStartElement(XACML3.ELEMENT_RESPONSE, 0);
+        this.writer.writeDefaultNamespace(XACML3.XMLNS);
+        this.writer.writeNamespace("xsi", XACML3.XMLNS_XSI);
+        this.writer.writeAttribute("xsi", XACML3.XMLNS_XSI, "schemaLocation", SCHEMA_LOCATION);
+
+        for (Result result : response.getResults()) {
+            this.writeResult(result);
+        }
+
+        this.writeEndElement(0);
+        this.writer.writeEndDocument();
+    }
+
+    private void writeResult(Result result) throws XMLStreamException, DOMStructureException {
+        this.writeStartElement(XACML3.ELEMENT_RESULT, 1);
+
+        if (result.getDecision() == null) {
+            throw new DOMStructureException("Result missing Decision");
+        }
+        this.writeStartElement(XACML3.ELEMENT_DECISION, 2);
+        this.writer.writeCharacters(result.getDecision().toString());
+        this.writer.writeEndElement();
+
+        if (result.getStatus() != null) {
+            this.writeStatus(result.getStatus(), result.getDecision());
+        }
+
+        if (result.getObligations() != null && result.getObligations().size() > 0) {
+            this.writeStartElement(XACML3.ELEMENT_OBLIGATIONS, 2);
+            for (Obligation obligation : result.getObligations()) {
+                if (obligation.getId() == null) {
+                    throw new DOMStructureException("Obligation must have ObligationId");
+                }
+                this.writeStartElement(XACML3.ELEMENT_OBLIGATION, 3);
+                this.writer.writeAttribute(XACML3.ATTRIBUTE_OBLIGATIONID, obligation.getId().stringValue());
+                this.writeAttributeAssignments("Obligation", obligation.getAttributeAssignments());
+                this.writeEndElement(3);
+            }
+            this.writeEndElement(2);
+        }
+
+        if (result.getAssociatedAdvice() != null && result.getAssociatedAdvice().size() > 0) {
+            this.writeStartElement(XACML3.ELEMENT_ASSOCIATEDADVICE, 2);
+            for (Advice advice : result.getAssociatedAdvice()) {
+                if (advice.getId() == null) {
+                    throw new DOMStructureException("Advice must have AdviceId");
+                }
+                this.writeStartElement(XACML3.ELEMENT_ADVICE, 3);
+                this.writer.writeAttribute(XACML3.ATTRIBUTE_ADVICEID, advice.getId().stringValue());
+                this.writeAttributeAssignments("Advice", advice.getAttributeAssignments());
+                this.writeEndElement(3);
+            }
+            this.writeEndElement(2);
+        }
+
+        if (result.getAttributes() != null) {
+            for (AttributeCategory attributeCategory : result.getAttributes()) {
+                this.writeAttributeCategory(attributeCategory);
+            }
+        }
+
+        Collection<IdReference> policyIds = result.getPolicyIdentifiers();
+        Collection<IdReference> policySetIds = result.getPolicySetIdentifiers();
+        if (policyIds != null && policyIds.size() > 0 || policySetIds != null && policySetIds.size() > 0) {
+            this.writeStartElement(XACML3.ELEMENT_POLICYIDENTIFIERLIST, 2);
+            this.writeIdReferences(XACML3.ELEMENT_POLICYIDREFERENCE, policyIds);
+            this.writeIdReferences(XACML3.ELEMENT_POLICYSETIDREFERENCE, policySetIds);
+            this.writeEndElement(2);
+        }
+
+        this.writeEndElement(1);
+    }
+
+    private void writeStatus(Status status, Decision decision) throws XMLStreamException,
+        DOMStructureException {
+        StatusCode statusCode = status.getStatusCode();
+        if (statusCode == null) {
+            throw new DOMStructureException("Status must have StatusCode");
+        }
+        Identifier statusCodeId = statusCode.getStatusCodeValue();
+
+        // if there is a status code, it must agree with the decision
+        // Permit/Deny/NotAllowed must all be OK
+        // Indeterminate must not be OK
+        boolean isOk = statusCodeId.equals(StdStatusCode.STATUS_CODE_OK.getStatusCodeValue());
+        boolean isIndeterminate = decision == Decision.INDETERMINATE
+                                  || decision == Decision.INDETERMINATE_DENY
+                                  || decision == Decision.INDETERMINATE_DENYPERMIT
+                                  || decision == Decision.INDETERMINATE_PERMIT;
+        if (isOk == isIndeterminate) {
+            throw new DOMStructureException("StatusCode '" + statusCodeId.stringValue()
+                                            + "' does not match Decision '" + decision.toString());
+        }
+
+        this.writeStartElement(XACML3.ELEMENT_STATUS, 2);
+        this.writeStatusCode(statusCode, 3);
+
+        if (status.getStatusMessage() != null) {
+            this.writeStartElement(XACML3.ELEMENT_STATUSMESSAGE, 3);
+            this.writer.writeCharacters(status.getStatusMessage());
+            this.writer.writeEndElement();
+        }
+
+        if (status.getStatusDetail() != null) {
+            // cross-check that rules defined in XACML Core spec section 5.5.7 re: when StatusDetail
+            // may/may-not be included have been followed
+            Collection<MissingAttributeDetail> missingAttributeDetails = status.getStatusDetail()
+                .getMissingAttributeDetails();
+            if (status.isOk() || statusCodeId.equals(XACML3.ID_STATUS_SYNTAX_ERROR)
+                || statusCodeId.equals(XACML3.ID_STATUS_PROCESSING_ERROR)) {
+                throw new DOMStructureException("Status '" + statusCodeId.stringValue()
+                                                + "' must not return StatusDetail");
+            } else if (statusCodeId.equals(XACML3.ID_STATUS_MISSING_ATTRIBUTE)
+                       && missingAttributeDetails == null) {
+                throw new DOMStructureException("Status '" + statusCodeId.stringValue()
+                                                + "' has StatusDetail without MissingAttributeDetail");
+            }
+
+            if (missingAttributeDetails != null) {
+                this.writeStartElement(XACML3.ELEMENT_STATUSDETAIL, 3);
+                for (MissingAttributeDetail mad : missingAttributeDetails) {
+                    this.writeMissingAttributeDetail(mad);
+                }
+                this.writeEndElement(3);
+            }
+        }
+
+        this.writeEndElement(2);
+    }
+
+    private void writeStatusCode(StatusCode statusCode, int depth) throws XMLStreamException {
+        this.writeStartElement(XACML3.ELEMENT_STATUSCODE, depth);
+        if (statusCode.getStatusCodeValue() != null) {
+            this.writer.writeAttribute(XACML3.ATTRIBUTE_VALUE, statusCode.getStatusCodeValue().stringValue());
+        }
+        if (statusCode.getChild() == null) {
+            this.writer.writeEndElement();
+        } else {
+            this.writeStatusCode(statusCode.getChild(), depth + 1);
+            this.writeEndElement(depth);
+        }
+    }
+
+    private void writeMissingAttributeDetail(MissingAttributeDetail mad) throws XMLStreamException,
+        DOMStructureException {
+        if (mad.getAttributeId() == null || mad.getCategory() == null || mad.getDataTypeId() == null) {
+            throw new DOMStructureException(
+                                            "MissingAttributeDetail is missing required AttributeId, Category or DataTypeId");
+        }
+        this.writeStartElement(XACML3.ELEMENT_MISSINGATTRIBUTEDETAIL, 4);
+        this.writer.writeAttribute(XACML3.ATTRIBUTE_CATEGORY, mad.getCategory().stringValue());
+        this.writer.writeAttribute(XACML3.ATTRIBUTE_ATTRIBUTEID, mad.getAttributeId().stringValue());
+        this.writer.writeAttribute(XACML3.ATTRIBUTE_DATATYPE, mad.getDataTypeId().stringValue());
+        if (mad.getIssuer() != null) {
+            this.writer.writeAttribute(XACML3.ATTRIBUTE_ISSUER, mad.getIssuer());
+        }
+        if (mad.getAttributeValues() != null) {
+            for (AttributeValue<?> attributeValue : mad.getAttributeValues()) {
+                this.writeAttributeValue(attributeValue, 5);
+            }
+        }
+        this.writeEndElement(4);
+    }
+
+    private void writeAttributeAssignments(String parentName, Collection<AttributeAssignment> attributeAssignments)
+        throws XMLStreamException, DOMStructureException {
+        if (attributeAssignments == null) {
+            return;
+        }
+        for (AttributeAssignment attributeAssignment : attributeAssignments) {
+            if (attributeAssignment.getAttributeId() == null) {
+                throw new DOMStructureException(parentName + " AttributeAssignment must have AttributeId");
+            }
+            AttributeValue<?> attributeValue = attributeAssignment.getAttributeValue();
+            if (attributeAssignment.getDataTypeId() == null || attributeValue == null
+                || attributeValue.getValue() == null) {
+                throw new DOMStructureException(parentName + " AttributeAssignment '"
+                                                + attributeAssignment.getAttributeId().stringValue()
+                                                + "' must have DataType and Value");
+            }
+            this.writeStartElement(XACML3.ELEMENT_ATTRIBUTEASSIGNMENT, 4);
+            this.writer.writeAttribute(XACML3.ATTRIBUTE_ATTRIBUTEID, attributeAssignment.getAttributeId()
+                .stringValue());
+            if (attributeAssignment.getCategory() != null) {
+                this.writer.writeAttribute(XACML3.ATTRIBUTE_CATEGORY, attributeAssignment.getCategory()
+                    .stringValue());
+            }
+            if (attributeAssignment.getIssuer() != null) {
+                this.writer.writeAttribute(XACML3.ATTRIBUTE_ISSUER, attributeAssignment.getIssuer());
+            }
+            this.writeValue(attributeAssignment.getDataTypeId(), attributeValue);
+        }
+    }
+
+    private void writeAttributeCategory(AttributeCategory attributeCategory) throws XMLStreamException,
+        DOMStructureException {
+        if (attributeCategory.getCategory() == null) {
+            throw new DOMStructureException("Attributes must have Category");
+        }
+        this.writeStartElement(XACML3.ELEMENT_ATTRIBUTES, 2);
+        this.writer.writeAttribute(XACML3.ATTRIBUTE_CATEGORY, attributeCategory.getCategory().stringValue());
+
+        for (Attribute attribute : attributeCategory.getAttributes()) {
+            if (!attribute.getIncludeInResults()) {
+                // skip this one - do not include in results
+                continue;
+            }
+            if (attribute.getAttributeId() == null) {
+                throw new DOMStructureException("Attribute in Category '"
+                                                + attributeCategory.getCategory().stringValue()
+                                                + "' must have AttributeId");
+            }
+            if (attribute.getValues().size() == 0) {
+                throw new DOMStructureException("Attribute '" + attribute.getAttributeId()
+                                                + "' must have at least one value");
+            }
+            this.writeStartElement(XACML3.ELEMENT_ATTRIBUTE, 3);
+            this.writer.writeAttribute(XACML3.ATTRIBUTE_INCLUDEINRESULT, "true");
+            this.writer.writeAttribute(XACML3.ATTRIBUTE_ATTRIBUTEID, attribute.getAttributeId().stringValue());
+            if (attribute.getIssuer() != null) {
+                this.writer.writeAttribute(XACML3.ATTRIBUTE_ISSUER, attribute.getIssuer());
+            }
+            for (AttributeValue<?> attributeValue : attribute.getValues()) {
+                if (attributeValue.getDataTypeId() == null || attributeValue.getValue() == null) {
+                    throw new DOMStructureException("Attribute '" + attribute.getAttributeId()
+                                                    + "' has AttributeValue missing either DataType or Value");
+                }
+                this.writeAttributeValue(attributeValue, 4);
+            }
+            this.writeEndElement(3);
+        }
+
+        this.writeEndElement(2);
+    }
+
+    private void writeAttributeValue(AttributeValue<?> attributeValue, int depth) throws XMLStreamException,
+        DOMStructureException {
+        this.writeStartElement(XACML3.ELEMENT_ATTRIBUTEVALUE, depth);
+        this.writeValue(attributeValue.getDataTypeId(), attributeValue);
+    }
+
+    /*
+     * Write the DataType, XPathCategory and namespace attributes and the text of an element holding a value,
+     * then end the element.
+     */
+    private void writeValue(Identifier dataTypeId, AttributeValue<?> attributeValue) throws XMLStreamException,
+        DOMStructureException {
+        if (dataTypeId != null) {
+            this.writer.writeAttribute(XACML3.ATTRIBUTE_DATATYPE, dataTypeId.stringValue());
+        }
+        if (attributeValue.getXPathCategory() != null) {
+            this.writer.writeAttribute(XACML3.ATTRIBUTE_XPATHCATEGORY, attributeValue.getXPathCategory()
+                .stringValue());
+        }
+        Object value = attributeValue.getValue();
+        if (value instanceof XPathExpressionWrapper) {
+            ExtendedNamespaceContext namespaceContext = ((XPathExpressionWrapper)value).getNamespaceContext();
+            if (namespaceContext != null) {
+                /*
+                 * Unprefixed names in an XPath never use the default namespace, and declaring it here would
+                 * move this element out of the XACML namespace, so only prefixed namespaces are declared
+                 */
+                Iterator<String> prefixIt = namespaceContext.getAllPrefixes();
+                while (prefixIt.hasNext()) {
+                    String prefix = prefixIt.next();
+                    if (prefix != null && !prefix.equals(XMLConstants.DEFAULT_NS_PREFIX)) {
+                        this.writer.writeNamespace(prefix, namespaceContext.getNamespaceURI(prefix));
+                    }
+                }
+            }
+        }
+        this.writer.writeCharacters(valueString(value));
+        this.writer.writeEndElement();
+    }
+
+    private void writeIdReferences(String localName, Collection<IdReference> idReferences)
+        throws XMLStreamException, DOMStructureException {
+        if (idReferences == null) {
+            return;
+        }
+        for (IdReference idReference : idReferences) {
+            if (idReference == null) {
+                throw new DOMStructureException(localName + " has null IdReference");
+            }
+            this.writeStartElement(localName, 3);
+            if (idReference.getVersion() != null) {
+                this.writer.writeAttribute(XACML3.ATTRIBUTE_VERSION, idReference.getVersion().stringValue());
+            }
+            this.writer.writeCharacters(idReference.getId().stringValue());
+            this.writer.writeEndElement();
+        }
+    }
+
+    /*
+     * Get the text of a value. Most values are SemanticStrings, but some are not.
+     */
+    private static String valueString(Object obj) throws DOMStructureException {
+        if (obj instanceof String || obj instanceof Boolean || obj instanceof Integer
+            || obj instanceof BigInteger) {
+            return obj.toString();
+        } else if (obj instanceof Double) {
+            Double d = (Double)obj;
+            if (d.isNaN()) {
+                return "NaN";
+            } else if (d == Double.POSITIVE_INFINITY) {
+                return "INF";
+            } else if (d == Double.NEGATIVE_INFINITY) {
+                return "-INF";
+            }
+            return obj.toString();
+        } else if (obj instanceof SemanticString) {
+            return ((SemanticString)obj).stringValue();
+        } else if (obj instanceof X500Principal || obj instanceof URI) {
+            // something is very weird with X500Principal data type. If left on its own the output is a map
+            // that includes encoding.
+            return obj.toString();
+        } else if (obj instanceof XPathExpressionWrapper) {
+            return ((XPathExpressionWrapper)obj).getPath();
+        } else {
+            throw new DOMStructureException("Unhandled data type='" + obj.getClass().getName() + "'");
+        }
+    }
+}
@@ -36,7 +36,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Properties;
 import java.util.Set;
 
@@ -219,7 +219,7 @@ public class XACMLProperties {
     }
 
     public static Set<String> getRootPolicyIDs(Properties props) {
-        Set<String> ids = new HashSet<String>();
+        Set<String> ids = new LinkedHashSet<String>();
         String roots = props.getProperty(XACMLProperties.PROP_ROOTPOLICIES);
         if (roots == null) {
             return ids;
@@ -232,7 +232,7 @@ public class XACMLProperties {
     }
 
     public static Set<String> getReferencedPolicyIDs(Properties props) {
-        Set<String> ids = new HashSet<String>();
+        Set<String> ids = new LinkedHashSet<String>();
         String refs = props.getProperty(XACMLProperties.PROP_REFERENCEDPOLICIES);
         if (refs == null) {
             return ids;